@@ -16,11 +16,7 @@
 
 package com.antigenomics.mageri.core;
 
-import com.antigenomics.mageri.pipeline.SerializationUtils;
-
-import java.io.File;
-import java.io.IOException;
-import java.io.Serializable;
+import java.io.*;
 
 public abstract class PipelineBlock implements Serializable {
     private final String name;
@@ -29,24 +25,90 @@ public abstract class PipelineBlock implements Serializable {
         this.name = name;
     }
 
+    // R-compatible output, rows are streamed to disk as they are formatted
     public void writePlainText(String pathPrefix) throws IOException {
-        SerializationUtils.writeStringToFile(new File(pathPrefix + "." + name + ".txt"), toTabular());
+        TrailingNewlineWriter writer = new TrailingNewlineWriter(new BufferedWriter(
+                new FileWriter(new File(pathPrefix + "." + name + ".txt"))));
+        try {
+            writeComments(writer);
+            writer.write(getHeader());
+            writer.write("\n");
+            writeBody(writer);
+            // in case someone want to concatenate the output later
+            writer.ensureTrailingNewline();
+        } finally {
+            writer.close();
+        }
     }
 
-    // R-compatible output
-    private String toTabular() {
-        StringBuilder stringBuilder = new StringBuilder();
+    // Same output as writePlainText, but rows are appended to the returned writer by the caller
+    public PrintWriter createPlainTextWriter(String pathPrefix) throws IOException {
+        PrintWriter writer = new PrintWriter(new BufferedWriter(
+                new FileWriter(new File(pathPrefix + "." + name + ".txt"))));
+        writeComments(writer);
+        writer.write(getHeader());
+        writer.write("\n");
+        return writer;
+    }
+
+    private void writeComments(Writer writer) throws IOException {
         for (String commentLine : toString().split("\n")) {
-            stringBuilder.append("#").append(commentLine).append("\n");
+            writer.write("#");
+            writer.write(commentLine);
+            writer.write("\n");
         }
-        stringBuilder.append(getHeader());
-        stringBuilder.append("\n").append(getBody());
-        return stringBuilder.toString();
     }
 
     public abstract String getHeader();
 
-    public abstract String getBody();
+    // Implementations should append rows one by one rather than building the whole table in memory
+    public abstract void writeBody(Writer writer) throws IOException;
+
+    public String getBody() {
+        StringWriter writer = new StringWriter();
+        try {
+            writeBody(writer);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return writer.toString();
+    }
+
+    private static class TrailingNewlineWriter extends FilterWriter {
+        private char lastChar = '\n';
+
+        TrailingNewlineWriter(Writer out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int c) throws IOException {
+            super.write(c);
+            lastChar = (char) c;
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            super.write(cbuf, off, len);
+            if (len > 0) {
+                lastChar = cbuf[off + len - 1];
+            }
+        }
+
+        @Override
+        public void write(String str, int off, int len) throws IOException {
+            super.write(str, off, len);
+            if (len > 0) {
+                lastChar = str.charAt(off + len - 1);
+            }
+        }
+
+        void ensureTrailingNewline() throws IOException {
+            if (lastChar != '\n') {
+                write('\n');
+            }
+        }
+    }
 
     @Override
     public String toString() {
@@ -18,19 +18,19 @@ package com.antigenomics.mageri.core.assemble;
 
 import cc.redberry.pipe.Processor;
 import com.antigenomics.mageri.core.PipelineBlock;
+import com.antigenomics.mageri.misc.AsyncFastqWriter;
 import com.antigenomics.mageri.misc.FastqWriter;
-import com.antigenomics.mageri.misc.PFastqWriterWrapper;
-import com.milaboratory.core.sequence.quality.QualityFormat;
-import com.milaboratory.core.sequencing.io.fastq.PFastqWriter;
-import com.milaboratory.core.sequencing.io.fastq.SFastqWriter;
 import com.antigenomics.mageri.core.Mig;
 import com.antigenomics.mageri.core.ReadSpecific;
+import com.antigenomics.mageri.misc.ParallelBgzfOutputStream;
 import com.antigenomics.mageri.misc.ProcessorResultWrapper;
-import com.antigenomics.mageri.misc.SFastqWriterWrapper;
+import com.antigenomics.mageri.pipeline.RuntimeParameters;
 import com.antigenomics.mageri.pipeline.Speaker;
-import com.milaboratory.util.CompressionType;
 
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -43,6 +43,7 @@ public abstract class Assembler<ConsensusType extends Consensus, MigType extends
     protected final AtomicInteger migsTotal = new AtomicInteger(), migsAssembled = new AtomicInteger();
     protected final List<ConsensusType> consensusList = Collections.synchronizedList(new ArrayList<ConsensusType>());
     protected boolean storeConsensuses = true, cleared = false;
+    protected transient FastqWriter consensusWriter = null;
 
     protected Assembler() {
         super("assemble");
@@ -55,10 +56,44 @@ public abstract class Assembler<ConsensusType extends Consensus, MigType extends
         if (consensus == null) {
             return ProcessorResultWrapper.BLANK;
         } else {
+            if (consensusWriter != null) {
+                try {
+                    // Formatted here, written by the background thread of the writer
+                    consensusWriter.write(consensus.asRead());
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
             return new ProcessorResultWrapper<>(consensus);
         }
     }
 
+    // Consensus FASTQ files are then written during assembly rather than upon writePlainText
+    public void openConsensusWriter(String pathPrefix, int numberOfThreads) throws IOException {
+        this.consensusWriter = createConsensusWriter(pathPrefix, numberOfThreads);
+    }
+
+    private FastqWriter createConsensusWriter(String pathPrefix, int numberOfThreads) throws IOException {
+        OutputStream outputStream1 = createGzipOutputStream(pathPrefix + ".assemble.R1.fastq.gz", numberOfThreads);
+
+        if (!isPairedEnd()) {
+            return new AsyncFastqWriter(outputStream1);
+        }
+
+        try {
+            return new AsyncFastqWriter(outputStream1,
+                    createGzipOutputStream(pathPrefix + ".assemble.R2.fastq.gz", numberOfThreads));
+        } catch (IOException | RuntimeException e) {
+            outputStream1.close();
+            throw e;
+        }
+    }
+
+    private static OutputStream createGzipOutputStream(String fileName, int numberOfThreads) throws IOException {
+        // Multi-member gzip, blocks are compressed in parallel
+        return new ParallelBgzfOutputStream(new FileOutputStream(fileName), numberOfThreads);
+    }
+
     public abstract ConsensusType assemble(MigType mig);
 
     public long getReadsTotal() {
@@ -100,21 +135,38 @@ public abstract class Assembler<ConsensusType extends Consensus, MigType extends
     }
 
     @Override
-    public String getBody() {
+    public void writeBody(Writer writer) throws IOException {
         StringBuilder stringBuilder = new StringBuilder();
 
-        for (Consensus consensus : consensusList)
+        for (Consensus consensus : consensusList) {
             stringBuilder.append(consensus.getUmi()).
                     append('\t').append(consensus.getAssembledSize()).
                     append('\t').append(consensus.getTrueSize()).
                     append('\n');
-
-        return stringBuilder.toString();
+            writer.append(stringBuilder);
+            stringBuilder.setLength(0);
+        }
     }
 
-    @SuppressWarnings("unchecked")
     @Override
     public void writePlainText(String pathPrefix) throws IOException {
+        writePlainText(pathPrefix, RuntimeParameters.DEFAULT.getNumberOfThreads());
+    }
+
+    // Number of threads is used to compress consensus FASTQ if it was not written upon assembly
+    @SuppressWarnings("unchecked")
+    public void writePlainText(String pathPrefix, int numberOfThreads) throws IOException {
+        if (consensusWriter != null) {
+            // Consensus FASTQ was already written upon assembly
+            try {
+                super.writePlainText(pathPrefix);
+            } finally {
+                consensusWriter.close();
+                consensusWriter = null;
+            }
+            return;
+        }
+
         super.writePlainText(pathPrefix);
 
         if (cleared) {
@@ -122,19 +174,15 @@ public abstract class Assembler<ConsensusType extends Consensus, MigType extends
             return;
         }
 
-        FastqWriter writer = isPairedEnd() ?
-                new PFastqWriterWrapper(
-                        new PFastqWriter(pathPrefix + ".assemble.R1.fastq.gz", pathPrefix + ".assemble.R2.fastq.gz",
-                                QualityFormat.Phred33, CompressionType.GZIP)
-                ) :
-                new SFastqWriterWrapper(
-                        new SFastqWriter(pathPrefix + ".assemble.R1.fastq.gz", QualityFormat.Phred33, CompressionType.GZIP)
-                );
-        for (Consensus consensus : consensusList) {
-            writer.write(consensus.asRead());
-        }
+        FastqWriter writer = createConsensusWriter(pathPrefix, numberOfThreads);
 
-        writer.close();
+        try {
+            for (Consensus consensus : consensusList) {
+                writer.write(consensus.asRead());
+            }
+        } finally {
+            writer.close();
+        }
     }
 
     public abstract MinorCaller getMinorCaller();
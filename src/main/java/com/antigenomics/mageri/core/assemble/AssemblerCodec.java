@@ -0,0 +1,170 @@
+/*
+ * Copyright 2014-2016 Mikhail Shugay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.antigenomics.mageri.core.assemble;
+
+import com.antigenomics.mageri.core.input.PreprocessorParameters;
+import com.antigenomics.mageri.misc.Basics;
+import org.jdom.Element;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Encoding of assembler statistics used by binary analysis output. Consensuses are not stored,
+ * as they are cleared once the sample is analyzed, neither are debug results of minor caller.
+ * Per-thread minor caller statistics are stored summed up.
+ */
+public final class AssemblerCodec {
+    public static final int VERSION = 1;
+    private static final byte DUMMY = 0, POISSON_TEST = 1;
+
+    private AssemblerCodec() {
+    }
+
+    public static void write(DataOutput output, Assembler assembler) throws IOException {
+        output.writeInt(VERSION);
+        output.writeBoolean(assembler.isPairedEnd());
+
+        if (assembler.isPairedEnd()) {
+            PAssembler pAssembler = (PAssembler) assembler;
+            writeSAssembler(output, pAssembler.assembler1);
+            writeSAssembler(output, pAssembler.assembler2);
+        } else {
+            writeSAssembler(output, (SAssembler) assembler);
+        }
+
+        writeCounters(output, assembler);
+    }
+
+    public static Assembler read(DataInput input) throws IOException {
+        int version = input.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported assembler encoding version " + version + ".");
+        }
+
+        Assembler assembler = input.readBoolean() ?
+                new PAssembler(readSAssembler(input), readSAssembler(input)) :
+                readSAssembler(input);
+
+        readCounters(input, assembler);
+
+        return assembler;
+    }
+
+    private static void writeSAssembler(DataOutput output, SAssembler assembler) throws IOException {
+        Basics.writeParameters(output, assembler.parameters);
+        writeMinorCaller(output, assembler.getMinorCaller());
+        output.writeLong(assembler.readsDroppedShortCounter.get());
+        output.writeLong(assembler.readsDroppedErrorsCounter.get());
+        output.writeLong(assembler.readsRescuedCounter.get());
+        writeCounters(output, assembler);
+    }
+
+    private static SAssembler readSAssembler(DataInput input) throws IOException {
+        SAssembler assembler = new SAssembler(AssemblerParameters.fromXml(Basics.readParameters(input)),
+                readMinorCaller(input));
+        assembler.readsDroppedShortCounter.set(input.readLong());
+        assembler.readsDroppedErrorsCounter.set(input.readLong());
+        assembler.readsRescuedCounter.set(input.readLong());
+        readCounters(input, assembler);
+
+        return assembler;
+    }
+
+    private static void writeCounters(DataOutput output, Assembler assembler) throws IOException {
+        output.writeLong(assembler.readsTotal.get());
+        output.writeLong(assembler.readsAssembled.get());
+        output.writeInt(assembler.migsTotal.get());
+        output.writeInt(assembler.migsAssembled.get());
+    }
+
+    private static void readCounters(DataInput input, Assembler assembler) throws IOException {
+        assembler.readsTotal.set(input.readLong());
+        assembler.readsAssembled.set(input.readLong());
+        assembler.migsTotal.set(input.readInt());
+        assembler.migsAssembled.set(input.readInt());
+        assembler.cleared = true;
+    }
+
+    private static void writeMinorCaller(DataOutput output, MinorCaller<?> minorCaller) throws IOException {
+        if (minorCaller instanceof PoissonTestMinorCaller) {
+            PoissonTestMinorCaller poissonTestMinorCaller = (PoissonTestMinorCaller) minorCaller;
+            output.writeByte(POISSON_TEST);
+            Basics.writeParameters(output, poissonTestMinorCaller.assemblerParameters,
+                    poissonTestMinorCaller.preprocessorParameters);
+        } else if (minorCaller instanceof DummyMinorCaller) {
+            output.writeByte(DUMMY);
+        } else {
+            throw new IOException("Unsupported minor caller " + minorCaller.getClass().getName());
+        }
+
+        MinorCaller.Statistics statistics = new MinorCaller.Statistics();
+        for (MinorCaller.Statistics other : minorCaller.getStatisticsList()) {
+            statistics.add(other);
+        }
+
+        output.writeInt(statistics.totalMigs);
+        output.writeDouble(statistics.logMigSize);
+        for (int i = 0; i < 4; i++) {
+            for (int j = 0; j < 4; j++) {
+                output.writeInt(statistics.m1[i][j]);
+                output.writeInt(statistics.m[i][j]);
+                output.writeLong(statistics.minorReadCountSumArr[i][j]);
+                output.writeLong(statistics.totalReadCountSumArr[i][j]);
+                output.writeLong(statistics.totalReadCountSumArrNoQFilter[i][j]);
+                output.writeDouble(statistics.pValueSum[i][j]);
+            }
+        }
+    }
+
+    private static MinorCaller readMinorCaller(DataInput input) throws IOException {
+        byte type = input.readByte();
+        MinorCaller minorCaller;
+
+        switch (type) {
+            case POISSON_TEST:
+                Element parameters = Basics.readParameters(input);
+                minorCaller = new PoissonTestMinorCaller(AssemblerParameters.fromXml(parameters),
+                        PreprocessorParameters.fromXml(parameters));
+                break;
+            case DUMMY:
+                minorCaller = new DummyMinorCaller();
+                break;
+            default:
+                throw new IOException("Unknown minor caller type " + type);
+        }
+
+        MinorCaller.Statistics statistics = new MinorCaller.Statistics();
+        statistics.totalMigs = input.readInt();
+        statistics.logMigSize = input.readDouble();
+        for (int i = 0; i < 4; i++) {
+            for (int j = 0; j < 4; j++) {
+                statistics.m1[i][j] = input.readInt();
+                statistics.m[i][j] = input.readInt();
+                statistics.minorReadCountSumArr[i][j] = input.readLong();
+                statistics.totalReadCountSumArr[i][j] = input.readLong();
+                statistics.totalReadCountSumArrNoQFilter[i][j] = input.readLong();
+                statistics.pValueSum[i][j] = input.readDouble();
+            }
+        }
+        minorCaller.getStatisticsList().add(statistics);
+
+        return minorCaller;
+    }
+}
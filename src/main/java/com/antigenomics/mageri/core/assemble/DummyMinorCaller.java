@@ -16,14 +16,10 @@
 
 package com.antigenomics.mageri.core.assemble;
 
-import com.antigenomics.mageri.misc.AtomicDouble;
-
-import java.util.concurrent.atomic.AtomicInteger;
+import java.io.IOException;
+import java.io.Writer;
 
 public class DummyMinorCaller extends MinorCaller<DummyMinorCaller> {
-    private final AtomicInteger totalMigs = new AtomicInteger();
-    private final AtomicDouble logMigSize = new AtomicDouble();
-
     public DummyMinorCaller() {
         super("MinorCaller.DUMMY");
     }
@@ -35,8 +31,9 @@ public class DummyMinorCaller extends MinorCaller<DummyMinorCaller> {
 
     @Override
     boolean callAndUpdate(int from, int to, int k, int n, int n0) {
-        totalMigs.incrementAndGet();
-        logMigSize.addAndGet(Math.log(n));
+        Statistics statistics = getLocalStatistics();
+        statistics.totalMigs++;
+        statistics.logMigSize += Math.log(n);
         return k > 0;
     }
 
@@ -44,8 +41,7 @@ public class DummyMinorCaller extends MinorCaller<DummyMinorCaller> {
     DummyMinorCaller combine(DummyMinorCaller other) {
         DummyMinorCaller dummyMinorCaller = new DummyMinorCaller();
 
-        dummyMinorCaller.totalMigs.addAndGet(this.totalMigs.get() + other.totalMigs.get());
-        dummyMinorCaller.logMigSize.addAndGet(this.logMigSize.get() + other.logMigSize.get());
+        dummyMinorCaller.combineStatistics(this, other);
 
         return dummyMinorCaller;
     }
@@ -71,17 +67,16 @@ public class DummyMinorCaller extends MinorCaller<DummyMinorCaller> {
     }
 
     @Override
-    public String getBody() {
-        return "";
+    public void writeBody(Writer writer) throws IOException {
     }
 
     @Override
     public int getTotalMigs() {
-        return totalMigs.get();
+        return getTotalMigsSum();
     }
 
     @Override
     public double getGeometricMeanMigSize() {
-        return (int) Math.exp(logMigSize.get() / getTotalMigs());
+        return (int) Math.exp(getLogMigSizeSum() / getTotalMigs());
     }
 }
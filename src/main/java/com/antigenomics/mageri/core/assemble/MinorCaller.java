@@ -18,7 +18,15 @@ package com.antigenomics.mageri.core.assemble;
 
 import com.antigenomics.mageri.core.PipelineBlock;
 
+import java.io.Serializable;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
 public abstract class MinorCaller<M extends MinorCaller> extends PipelineBlock {
+    // Each thread updates its own accumulator, they are summed up upon reading
+    private final List<Statistics> statisticsList = new CopyOnWriteArrayList<>();
+    private transient volatile ThreadLocal<Statistics> localStatistics;
+
     MinorCaller(String name) {
         super(name);
     }
@@ -38,4 +46,85 @@ public abstract class MinorCaller<M extends MinorCaller> extends PipelineBlock {
     public abstract int getTotalMigs();
 
     public abstract double getGeometricMeanMigSize();
+
+    Statistics getLocalStatistics() {
+        ThreadLocal<Statistics> localStatistics = this.localStatistics;
+
+        if (localStatistics == null) {
+            synchronized (statisticsList) {
+                if ((localStatistics = this.localStatistics) == null) {
+                    this.localStatistics = localStatistics = new ThreadLocal<>();
+                }
+            }
+        }
+
+        Statistics statistics = localStatistics.get();
+
+        if (statistics == null) {
+            statistics = new Statistics();
+            statisticsList.add(statistics);
+            localStatistics.set(statistics);
+        }
+
+        return statistics;
+    }
+
+    List<Statistics> getStatisticsList() {
+        return statisticsList;
+    }
+
+    // Adds statistics of both callers to this (empty) caller, same as summing up per-thread accumulators
+    void combineStatistics(MinorCaller<?> first, MinorCaller<?> second) {
+        Statistics statistics = new Statistics();
+
+        for (Statistics other : first.statisticsList) {
+            statistics.add(other);
+        }
+        for (Statistics other : second.statisticsList) {
+            statistics.add(other);
+        }
+
+        statisticsList.add(statistics);
+    }
+
+    int getTotalMigsSum() {
+        int sum = 0;
+        for (Statistics statistics : statisticsList) {
+            sum += statistics.totalMigs;
+        }
+        return sum;
+    }
+
+    double getLogMigSizeSum() {
+        double sum = 0;
+        for (Statistics statistics : statisticsList) {
+            sum += statistics.logMigSize;
+        }
+        return sum;
+    }
+
+    static class Statistics implements Serializable {
+        int totalMigs;
+        double logMigSize;
+        final int[][] m1 = new int[4][4], m = new int[4][4];
+        final long[][] minorReadCountSumArr = new long[4][4],
+                totalReadCountSumArr = new long[4][4], totalReadCountSumArrNoQFilter = new long[4][4];
+        final double[][] pValueSum = new double[4][4];
+
+        void add(Statistics other) {
+            totalMigs += other.totalMigs;
+            logMigSize += other.logMigSize;
+
+            for (int i = 0; i < 4; i++) {
+                for (int j = 0; j < 4; j++) {
+                    m1[i][j] += other.m1[i][j];
+                    m[i][j] += other.m[i][j];
+                    minorReadCountSumArr[i][j] += other.minorReadCountSumArr[i][j];
+                    totalReadCountSumArr[i][j] += other.totalReadCountSumArr[i][j];
+                    totalReadCountSumArrNoQFilter[i][j] += other.totalReadCountSumArrNoQFilter[i][j];
+                    pValueSum[i][j] += other.pValueSum[i][j];
+                }
+            }
+        }
+    }
 }
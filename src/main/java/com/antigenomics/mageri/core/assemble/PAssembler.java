@@ -20,7 +20,7 @@ import com.antigenomics.mageri.core.input.PMig;
 import com.antigenomics.mageri.core.input.PreprocessorParameters;
 
 public final class PAssembler extends Assembler<PConsensus, PMig> {
-    private final SAssembler assembler1, assembler2;
+    final SAssembler assembler1, assembler2;
 
     public PAssembler() {
         this(new SAssembler(), new SAssembler());
@@ -17,28 +17,24 @@
 package com.antigenomics.mageri.core.assemble;
 
 import com.antigenomics.mageri.core.input.PreprocessorParameters;
-import com.antigenomics.mageri.misc.AtomicDouble;
 import com.milaboratory.core.sequence.nucleotide.NucleotideAlphabet;
 import org.apache.commons.math.MathException;
 import org.apache.commons.math.special.Gamma;
 
+import java.io.IOException;
+import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 public class PoissonTestMinorCaller extends MinorCaller<PoissonTestMinorCaller> {
-    private final AssemblerParameters assemblerParameters;
-    private final PreprocessorParameters preprocessorParameters;
+    // P-values for n < P_VALUE_TABLE_SIZE are tabulated, stored as raw long bits with 0 meaning not computed yet
+    static final int P_VALUE_TABLE_SIZE = 256;
+    private transient AtomicLongArray pValueTable;
+    final AssemblerParameters assemblerParameters;
+    final PreprocessorParameters preprocessorParameters;
     private final double seqErrorRate;
-    private final AtomicDouble logMigSize = new AtomicDouble();
-    private final AtomicInteger totalMigs = new AtomicInteger();
-    private final AtomicInteger[][] m1 = new AtomicInteger[4][4],
-            m = new AtomicInteger[4][4];
-    private final AtomicLong[][] minorReadCountSumArr = new AtomicLong[4][4],
-            totalReadCountSumArr = new AtomicLong[4][4], totalReadCountSumArrNoQFilter = new AtomicLong[4][4];
-    private final AtomicDouble[][] pValueSum = new AtomicDouble[4][4];
     private final List<CallResult> results = Collections.synchronizedList(new ArrayList<CallResult>());
 
 
@@ -47,17 +43,6 @@ public class PoissonTestMinorCaller extends MinorCaller<PoissonTestMinorCaller>
         this.assemblerParameters = assemblerParameters;
         this.preprocessorParameters = preprocessorParameters;
         this.seqErrorRate = Math.pow(10.0, -(double) preprocessorParameters.getGoodQualityThreshold() / 10.0) / 3.0;
-
-        for (int i = 0; i < 4; i++) {
-            for (int j = 0; j < 4; j++) {
-                this.m1[i][j] = new AtomicInteger();
-                this.m[i][j] = new AtomicInteger();
-                this.pValueSum[i][j] = new AtomicDouble();
-                this.minorReadCountSumArr[i][j] = new AtomicLong();
-                this.totalReadCountSumArr[i][j] = new AtomicLong();
-                this.totalReadCountSumArrNoQFilter[i][j] = new AtomicLong();
-            }
-        }
     }
 
     @Override
@@ -66,15 +51,15 @@ public class PoissonTestMinorCaller extends MinorCaller<PoissonTestMinorCaller>
             return false;
         }
 
-        totalMigs.incrementAndGet();
-        logMigSize.addAndGet(Math.log(n));
+        Statistics statistics = getLocalStatistics();
+
+        statistics.totalMigs++;
+        statistics.logMigSize += Math.log(n);
 
         boolean pass = false;
 
         try {
-            double lambda = n * seqErrorRate;
-            double p = Gamma.regularizedGammaP(k, lambda) +
-                    0.5 * Math.exp(k * Math.log(lambda) - lambda - Gamma.logGamma(k + 1));
+            double p = getPValue(k, n);
 
             if (assemblerParameters.isMinorCallerDebug()) {
                 results.add(new CallResult(from, to, k, n, n0, p));
@@ -82,14 +67,14 @@ public class PoissonTestMinorCaller extends MinorCaller<PoissonTestMinorCaller>
 
             pass = p < assemblerParameters.getPcrMinorTestPValue();
 
-            m[from][to].incrementAndGet();
-            pValueSum[from][to].addAndGet(p);
+            statistics.m[from][to]++;
+            statistics.pValueSum[from][to] += p;
 
             if (pass) {
-                m1[from][to].incrementAndGet();
-                minorReadCountSumArr[from][to].addAndGet(k);
-                totalReadCountSumArr[from][to].addAndGet(n);
-                totalReadCountSumArrNoQFilter[from][to].addAndGet(n0);
+                statistics.m1[from][to]++;
+                statistics.minorReadCountSumArr[from][to] += k;
+                statistics.totalReadCountSumArr[from][to] += n;
+                statistics.totalReadCountSumArrNoQFilter[from][to] += n0;
             }
         } catch (MathException e) {
             e.printStackTrace();
@@ -98,42 +83,66 @@ public class PoissonTestMinorCaller extends MinorCaller<PoissonTestMinorCaller>
         return pass;
     }
 
+    double getPValue(int k, int n) throws MathException {
+        if (n >= P_VALUE_TABLE_SIZE || k > n) {
+            return computePValue(k, n);
+        }
+
+        AtomicLongArray pValueTable = this.pValueTable;
+        if (pValueTable == null) {
+            // Lazily created, as the table is not serialized
+            this.pValueTable = pValueTable = new AtomicLongArray(P_VALUE_TABLE_SIZE * (P_VALUE_TABLE_SIZE + 1) / 2);
+        }
+
+        int index = n * (n + 1) / 2 + k;
+        long bits = pValueTable.get(index);
+
+        if (bits == 0) {
+            double p = computePValue(k, n);
+            pValueTable.set(index, Double.doubleToRawLongBits(p));
+            return p;
+        }
+
+        return Double.longBitsToDouble(bits);
+    }
+
+    private double computePValue(int k, int n) throws MathException {
+        double lambda = n * seqErrorRate;
+        return Gamma.regularizedGammaP(k, lambda) +
+                0.5 * Math.exp(k * Math.log(lambda) - lambda - Gamma.logGamma(k + 1));
+    }
+
     @Override
     PoissonTestMinorCaller combine(PoissonTestMinorCaller other) {
         PoissonTestMinorCaller poissonTestMinorCaller = new PoissonTestMinorCaller(this.assemblerParameters,
                 this.preprocessorParameters);
 
-        for (int i = 0; i < 4; i++) {
-            for (int j = 0; j < 4; j++) {
-                poissonTestMinorCaller.m1[i][j].addAndGet(this.getM1(i, j) + other.getM1(i, j));
-                poissonTestMinorCaller.m[i][j].addAndGet(this.getM(i, j) + other.getM(i, j));
-                poissonTestMinorCaller.pValueSum[i][j].addAndGet(this.getPValueSum(i, j) + other.getPValueSum(i, j));
-                poissonTestMinorCaller.minorReadCountSumArr[i][j].addAndGet(
-                        this.minorReadCountSumArr[i][j].get() + other.minorReadCountSumArr[i][j].get());
-                poissonTestMinorCaller.totalReadCountSumArr[i][j].addAndGet(
-                        this.totalReadCountSumArr[i][j].get() + other.totalReadCountSumArr[i][j].get());
-                poissonTestMinorCaller.totalReadCountSumArrNoQFilter[i][j].addAndGet(
-                        this.totalReadCountSumArrNoQFilter[i][j].get() + other.totalReadCountSumArrNoQFilter[i][j].get());
-            }
-        }
+        poissonTestMinorCaller.combineStatistics(this, other);
 
         poissonTestMinorCaller.results.addAll(this.results);
         poissonTestMinorCaller.results.addAll(other.results);
 
-        poissonTestMinorCaller.totalMigs.addAndGet(this.totalMigs.get() + other.totalMigs.get());
-        poissonTestMinorCaller.logMigSize.addAndGet(this.logMigSize.get() + other.logMigSize.get());
-
         return poissonTestMinorCaller;
     }
 
     @Override
     public double getReadFractionForCalledMinors(int from, int to) {
-        return minorReadCountSumArr[from][to].get() / (double) totalReadCountSumArr[from][to].get();
+        long minorReadCountSum = 0, totalReadCountSum = 0;
+        for (Statistics statistics : getStatisticsList()) {
+            minorReadCountSum += statistics.minorReadCountSumArr[from][to];
+            totalReadCountSum += statistics.totalReadCountSumArr[from][to];
+        }
+        return minorReadCountSum / (double) totalReadCountSum;
     }
 
     @Override
     public double getFilteredReadFraction(int from, int to) {
-        return 1.0 - totalReadCountSumArr[from][to].get() / (double) totalReadCountSumArrNoQFilter[from][to].get();
+        long totalReadCountSum = 0, totalReadCountSumNoQFilter = 0;
+        for (Statistics statistics : getStatisticsList()) {
+            totalReadCountSum += statistics.totalReadCountSumArr[from][to];
+            totalReadCountSumNoQFilter += statistics.totalReadCountSumArrNoQFilter[from][to];
+        }
+        return 1.0 - totalReadCountSum / (double) totalReadCountSumNoQFilter;
     }
 
     @Override
@@ -154,20 +163,28 @@ public class PoissonTestMinorCaller extends MinorCaller<PoissonTestMinorCaller>
 
     @Override
     public int getTotalMigs() {
-        return totalMigs.get();
+        return getTotalMigsSum();
     }
 
     @Override
     public double getGeometricMeanMigSize() {
-        return Math.exp(logMigSize.get() / getTotalMigs());
+        return Math.exp(getLogMigSizeSum() / getTotalMigs());
     }
 
     private int getM(int from, int to) {
-        return m[from][to].get();
+        int sum = 0;
+        for (Statistics statistics : getStatisticsList()) {
+            sum += statistics.m[from][to];
+        }
+        return sum;
     }
 
     private int getM1(int from, int to) {
-        return m1[from][to].get();
+        int sum = 0;
+        for (Statistics statistics : getStatisticsList()) {
+            sum += statistics.m1[from][to];
+        }
+        return sum;
     }
 
     @Override
@@ -182,7 +199,11 @@ public class PoissonTestMinorCaller extends MinorCaller<PoissonTestMinorCaller>
     }
 
     private double getPValueSum(int from, int to) {
-        return pValueSum[from][to].get();
+        double sum = 0;
+        for (Statistics statistics : getStatisticsList()) {
+            sum += statistics.pValueSum[from][to];
+        }
+        return sum;
     }
 
     @Override
@@ -192,7 +213,7 @@ public class PoissonTestMinorCaller extends MinorCaller<PoissonTestMinorCaller>
     }
 
     @Override
-    public String getBody() {
+    public void writeBody(Writer writer) throws IOException {
         StringBuilder sb = new StringBuilder();
 
         if (assemblerParameters.isMinorCallerDebug()) {
@@ -210,6 +231,8 @@ public class PoissonTestMinorCaller extends MinorCaller<PoissonTestMinorCaller>
                         .append("\t")
                         .append(result.p)
                         .append("\n");
+                writer.append(sb);
+                sb.setLength(0);
             }
         } else {
             for (int i = 0; i < 4; i++) {
@@ -228,10 +251,11 @@ public class PoissonTestMinorCaller extends MinorCaller<PoissonTestMinorCaller>
                             .append("\t")
                             .append(getTotalMigs())
                             .append("\n");
+                    writer.append(sb);
+                    sb.setLength(0);
                 }
             }
         }
-        return sb.toString();
     }
 
     private static class CallResult {
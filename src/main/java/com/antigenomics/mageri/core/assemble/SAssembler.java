@@ -35,7 +35,7 @@ import java.util.concurrent.atomic.AtomicLong;
 
 public class SAssembler extends Assembler<SConsensus, SMig> {
     protected final AssemblerParameters parameters;
-    private final AtomicLong readsDroppedShortCounter = new AtomicLong(),
+    final AtomicLong readsDroppedShortCounter = new AtomicLong(),
             readsDroppedErrorsCounter = new AtomicLong(),
             readsRescuedCounter = new AtomicLong();
     private final MinorCaller minorCaller;
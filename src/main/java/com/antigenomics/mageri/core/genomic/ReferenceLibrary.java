@@ -68,8 +68,14 @@ public class ReferenceLibrary implements Serializable {
 
     public ReferenceLibrary(GenomicInfoProvider genomicInfoProvider,
                             ReferenceLibraryParameters referenceLibraryParameters) {
+        this(genomicInfoProvider, referenceLibraryParameters, EMPTY_PATH);
+    }
+
+    // References are then added as is, see ReferenceLibraryCodec
+    ReferenceLibrary(GenomicInfoProvider genomicInfoProvider,
+                     ReferenceLibraryParameters referenceLibraryParameters, String path) {
         this.genomicInfoProvider = genomicInfoProvider;
-        this.path = EMPTY_PATH;
+        this.path = path;
         this.referenceLibraryParameters = referenceLibraryParameters;
     }
 
@@ -191,6 +197,12 @@ public class ReferenceLibrary implements Serializable {
         references.add(reference);
     }
 
+    synchronized void addReference(Reference reference) {
+        contigs.add(reference.getGenomicInfo().getContig());
+        nameToId.put(reference.getName(), reference.getIndex());
+        references.add(reference);
+    }
+
     public Reference getAt(int index) {
         if (index < 0 || index >= references.size())
             throw new IndexOutOfBoundsException();
@@ -221,6 +233,10 @@ public class ReferenceLibrary implements Serializable {
         return path;
     }
 
+    public ReferenceLibraryParameters getReferenceLibraryParameters() {
+        return referenceLibraryParameters;
+    }
+
     @Override
     public String toString() {
         StringBuilder stringBuilder = new StringBuilder(Reference.HEADER);
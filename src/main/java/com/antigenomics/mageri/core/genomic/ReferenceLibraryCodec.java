@@ -0,0 +1,167 @@
+/*
+ * Copyright 2014-2016 Mikhail Shugay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.antigenomics.mageri.core.genomic;
+
+import com.antigenomics.mageri.misc.Basics;
+import com.milaboratory.core.sequence.nucleotide.NucleotideSequence;
+import com.milaboratory.util.Bit2Array;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Encoding of reference library used by binary analysis output. References are stored as they were
+ * loaded, i.e. already split and reverse complemented, together with their genomic info. Contigs are
+ * stored once and referred to by index. New references can not be added to a restored library.
+ */
+public final class ReferenceLibraryCodec {
+    public static final int VERSION = 1;
+
+    private ReferenceLibraryCodec() {
+    }
+
+    public static void write(DataOutput output, ReferenceLibrary referenceLibrary) throws IOException {
+        output.writeInt(VERSION);
+        output.writeUTF(referenceLibrary.getPath());
+        Basics.writeParameters(output, referenceLibrary.getReferenceLibraryParameters());
+
+        // Contigs of partitioned references may differ from those listed by genomic info provider
+        GenomicInfoProvider genomicInfoProvider = referenceLibrary.getGenomicInfoProvider();
+        Map<Contig, Integer> contigIds = new IdentityHashMap<>();
+        List<Contig> contigs = new ArrayList<>();
+        for (Contig contig : genomicInfoProvider.getContigs()) {
+            addContig(contig, contigIds, contigs);
+        }
+        for (Reference reference : referenceLibrary.getReferences()) {
+            addContig(reference.getGenomicInfo().getContig(), contigIds, contigs);
+        }
+
+        output.writeInt(contigs.size());
+        for (Contig contig : contigs) {
+            output.writeUTF(contig.getID());
+            output.writeUTF(contig.getAssembly());
+            output.writeInt(contig.getLength());
+            output.writeBoolean(contig.skipInSamAndVcf());
+        }
+
+        output.writeInt(genomicInfoProvider.size());
+        output.writeInt(genomicInfoProvider.getContigs().size());
+        for (Contig contig : genomicInfoProvider.getContigs()) {
+            output.writeInt(contigIds.get(contig));
+        }
+
+        output.writeInt(referenceLibrary.size());
+        for (Reference reference : referenceLibrary.getReferences()) {
+            output.writeUTF(reference.getName());
+            output.writeUTF(reference.getOriginalName());
+            reference.getSequence().getInnerData().writeTo(output);
+            output.writeInt(reference.getnMaskedBases());
+
+            GenomicInfo genomicInfo = reference.getGenomicInfo();
+            output.writeInt(contigIds.get(genomicInfo.getContig()));
+            output.writeInt(genomicInfo.getStart());
+            output.writeInt(genomicInfo.getEnd());
+            output.writeBoolean(genomicInfo.positiveStrand());
+        }
+    }
+
+    public static ReferenceLibrary read(DataInput input) throws IOException {
+        int version = input.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported reference library encoding version " + version + ".");
+        }
+
+        String path = input.readUTF();
+        ReferenceLibraryParameters parameters = ReferenceLibraryParameters.fromXml(Basics.readParameters(input));
+
+        Contig[] contigs = new Contig[input.readInt()];
+        for (int i = 0; i < contigs.length; i++) {
+            contigs[i] = new Contig(input.readUTF(), input.readUTF(), input.readInt(), input.readBoolean());
+        }
+
+        int size = input.readInt();
+        List<Contig> providerContigs = new ArrayList<>();
+        int numberOfProviderContigs = input.readInt();
+        for (int i = 0; i < numberOfProviderContigs; i++) {
+            providerContigs.add(contigs[input.readInt()]);
+        }
+
+        StoredGenomicInfoProvider genomicInfoProvider = new StoredGenomicInfoProvider(providerContigs, size);
+        ReferenceLibrary referenceLibrary = new ReferenceLibrary(genomicInfoProvider, parameters, path);
+
+        int numberOfReferences = input.readInt();
+        for (int i = 0; i < numberOfReferences; i++) {
+            String name = input.readUTF(), originalName = input.readUTF();
+            NucleotideSequence sequence = new NucleotideSequence(Bit2Array.readFrom(input));
+            int nMaskedBases = input.readInt();
+            GenomicInfo genomicInfo = new GenomicInfo(contigs[input.readInt()],
+                    input.readInt(), input.readInt(), input.readBoolean());
+
+            genomicInfoProvider.genomicInfoByName.put(name, genomicInfo);
+            referenceLibrary.addReference(new Reference(referenceLibrary, i, name, originalName,
+                    sequence, genomicInfo, nMaskedBases));
+        }
+
+        return referenceLibrary;
+    }
+
+    private static void addContig(Contig contig, Map<Contig, Integer> contigIds, List<Contig> contigs) {
+        if (!contigIds.containsKey(contig)) {
+            contigIds.put(contig, contigs.size());
+            contigs.add(contig);
+        }
+    }
+
+    private static final class StoredGenomicInfoProvider implements GenomicInfoProvider {
+        private final List<Contig> contigs;
+        private final int size;
+        private final Map<String, GenomicInfo> genomicInfoByName = new HashMap<>();
+
+        StoredGenomicInfoProvider(List<Contig> contigs, int size) {
+            this.contigs = contigs;
+            this.size = size;
+        }
+
+        @Override
+        public GenomicInfo createPartitioned(String name, NucleotideSequence sequence, int offset) {
+            throw new UnsupportedOperationException("References can not be added to a restored library.");
+        }
+
+        @Override
+        public GenomicInfo create(String name, NucleotideSequence sequence) {
+            throw new UnsupportedOperationException("References can not be added to a restored library.");
+        }
+
+        @Override
+        public GenomicInfo get(String name) {
+            return genomicInfoByName.get(name);
+        }
+
+        @Override
+        public List<Contig> getContigs() {
+            return Collections.unmodifiableList(contigs);
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright 2014-2016 Mikhail Shugay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.antigenomics.mageri.core.input;
+
+import cc.redberry.pipe.OutputPortCloseable;
+import cc.redberry.pipe.util.Chunk;
+import com.milaboratory.core.sequence.NucleotideSQPair;
+import com.milaboratory.core.sequence.nucleotide.NucleotideAlphabet;
+import com.milaboratory.core.sequence.nucleotide.NucleotideSequence;
+import com.milaboratory.core.sequence.quality.QualityFormat;
+import com.milaboratory.core.sequence.quality.SequenceQualityPhred;
+import com.milaboratory.core.sequencing.read.SequencingRead;
+import com.milaboratory.util.Bit2Array;
+
+import java.io.IOException;
+import java.util.concurrent.*;
+
+/**
+ * Base for readers that cut input into batches on a single reader thread and decode batches on a pool of threads.
+ * Batches are reported in input order.
+ */
+abstract class BatchReader implements OutputPortCloseable<Chunk<SequencingRead>> {
+    private static final byte N_QUALITY = 2,
+            MIN_QUALITY = QualityFormat.Phred33.getMinValue(),
+            MAX_QUALITY = QualityFormat.Phred33.getMaxValue();
+    private static final byte UNKNOWN = -2, A_CODE = NucleotideAlphabet.A;
+    private static final byte[] CODES = new byte[128];
+
+    static {
+        for (int i = 0; i < CODES.length; i++) {
+            CODES[i] = -1;
+        }
+        for (char symbol : "ACGTacgt".toCharArray()) {
+            CODES[symbol] = NucleotideAlphabet.INSTANCE.codeFromSymbol(symbol);
+        }
+        for (char symbol : ".nN".toCharArray()) {
+            CODES[symbol] = UNKNOWN;
+        }
+    }
+
+    private final String format;
+    protected final int batchSize;
+    private final ExecutorService executorService;
+    private final BlockingQueue<Future<Chunk<SequencingRead>>> pendingBatches;
+    private final Future<Chunk<SequencingRead>> endOfInput;
+    private final Thread readerThread;
+    protected volatile boolean closed = false;
+    private boolean finished = false;
+
+    protected BatchReader(final String format, int numberOfThreads, int batchSize) {
+        this.format = format;
+        this.batchSize = batchSize;
+        numberOfThreads = Math.max(1, numberOfThreads);
+        this.pendingBatches = new ArrayBlockingQueue<>(2 * numberOfThreads);
+        this.executorService = Executors.newFixedThreadPool(numberOfThreads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, format.toLowerCase() + "-parser");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.endOfInput = completed(null);
+        this.readerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    split();
+                    // Input is not needed once it is split into batches
+                    closeInputQuietly();
+                    pendingBatches.put(endOfInput);
+                } catch (InterruptedException e) {
+                    // closed
+                } catch (Exception e) {
+                    try {
+                        pendingBatches.put(BatchReader.<Chunk<SequencingRead>>failed(e));
+                    } catch (InterruptedException e1) {
+                        // closed
+                    }
+                }
+            }
+        }, format.toLowerCase() + "-reader");
+        readerThread.setDaemon(true);
+    }
+
+    // Should be called once the subclass is initialized
+    protected final void start() {
+        readerThread.start();
+    }
+
+    // Runs on the reader thread, cuts input into batches and submits them in input order
+    protected abstract void split() throws Exception;
+
+    protected abstract void closeInput() throws IOException;
+
+    protected final void submit(Callable<Chunk<SequencingRead>> batch) throws InterruptedException {
+        pendingBatches.put(executorService.submit(batch));
+    }
+
+    @Override
+    public synchronized Chunk<SequencingRead> take() {
+        if (closed || finished) {
+            return null;
+        }
+
+        try {
+            Future<Chunk<SequencingRead>> nextBatch = pendingBatches.take();
+            if (nextBatch == endOfInput) {
+                finished = true;
+                executorService.shutdown();
+                return null;
+            }
+            return nextBatch.get();
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            finished = true;
+            throw new RuntimeException("Failed to read " + format, e.getCause());
+        }
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        readerThread.interrupt();
+        executorService.shutdownNow();
+        pendingBatches.clear();
+
+        try {
+            closeInput();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void closeInputQuietly() {
+        try {
+            closeInput();
+        } catch (IOException e) {
+            // ignored, all data was already read
+        }
+    }
+
+    // Packs bases (as symbols) and qualities into 2-bit sequence, same conventions as milib FASTQ readers:
+    // unknown bases are replaced with A having the lowest quality
+    protected static NucleotideSQPair toSQPair(byte[] bases, int basesFrom,
+                                               byte[] qualities, int qualitiesFrom, int qualityOffset,
+                                               int length, boolean reverseComplement) {
+        // Same packing as Bit2Array, 4 bases per byte
+        byte[] sequence = new byte[(length + 3) >> 2], quality = new byte[length];
+
+        for (int i = 0; i < length; i++) {
+            int j = reverseComplement ? length - 1 - i : i;
+            byte symbol = bases[basesFrom + j];
+            int q = qualities[qualitiesFrom + j] - qualityOffset,
+                    code = CODES[symbol & 0x7F];
+
+            if (code == UNKNOWN) {
+                code = A_CODE;
+                q = N_QUALITY;
+            } else if (code < 0 || symbol < 0) {
+                throw new RuntimeException("Error while parsing sequence.");
+            } else if (reverseComplement) {
+                // A:0 G:1 C:2 T:3
+                code = 3 - code;
+            }
+
+            if (q < MIN_QUALITY || q > MAX_QUALITY) {
+                throw new RuntimeException("Error while parsing quality");
+            }
+
+            sequence[i >> 2] |= code << ((i & 3) << 1);
+            quality[i] = (byte) q;
+        }
+
+        return new NucleotideSQPair(NucleotideSequence.fromStorage(Bit2Array.construct(length, sequence)),
+                new SequenceQualityPhred(quality));
+    }
+
+    private static <T> FutureTask<T> completed(final T value) {
+        FutureTask<T> task = new FutureTask<>(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                return value;
+            }
+        });
+        task.run();
+        return task;
+    }
+
+    private static <T> FutureTask<T> failed(final Exception exception) {
+        FutureTask<T> task = new FutureTask<>(new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                throw exception;
+            }
+        });
+        task.run();
+        return task;
+    }
+}
@@ -16,13 +16,16 @@
 
 package com.antigenomics.mageri.core.input;
 
+import cc.redberry.pipe.CUtils;
 import cc.redberry.pipe.OutputPort;
-import cc.redberry.pipe.OutputPortCloseable;
+import cc.redberry.pipe.Processor;
 import cc.redberry.pipe.blocks.Merger;
 import cc.redberry.pipe.blocks.ParallelProcessor;
+import cc.redberry.pipe.util.Chunk;
 import cc.redberry.pipe.util.CountLimitingOutputPort;
 import cc.redberry.pipe.util.CountingOutputPort;
 import com.antigenomics.mageri.core.input.index.*;
+import com.antigenomics.mageri.core.mapping.kmer.ReferenceKmerFilter;
 import com.antigenomics.mageri.pipeline.RuntimeParameters;
 import com.milaboratory.core.sequence.nucleotide.NucleotideSequence;
 import com.milaboratory.core.sequencing.read.SequencingRead;
@@ -33,10 +36,16 @@ import com.antigenomics.mageri.pipeline.Speaker;
 import com.antigenomics.mageri.pipeline.analysis.Sample;
 import com.antigenomics.mageri.preprocessing.CheckoutProcessor;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.Serializable;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 public abstract class MigReader<MigType extends Mig> implements Serializable, ReadSpecific {
+    // Reads are moved through the indexing pipeline in batches, up to BUFFER_SIZE reads are buffered
+    public static final int BATCH_SIZE = ParallelFastqReader.DEFAULT_BATCH_SIZE, BUFFER_SIZE = 524288;
+
     protected final PreprocessorParameters preprocessorParameters;
     protected final RuntimeParameters runtimeParameters;
     private transient final UmiIndexer umiIndexer;
@@ -45,14 +54,24 @@ public abstract class MigReader<MigType extends Mig> implements Serializable, Re
     // Umi index is here
     protected transient final Map<String,
             Iterator<Map.Entry<NucleotideSequence, List<ReadInfo>>>> iteratorMap = new HashMap<>();
+    private transient final Map<String, Map<NucleotideSequence, List<ReadInfo>>> umiIndexBySample = new HashMap<>();
+    // Used instead of in-memory index if UMI index is spilled to disk
+    private transient UmiIndexPartitions umiIndexPartitions = null;
     protected final Map<String, MigSizeDistribution> umiHistogramBySample = new HashMap<>();
 
     protected final CheckoutProcessor checkoutProcessor;
 
-    @SuppressWarnings("unchecked")
     protected MigReader(PreprocessorParameters preprocessorParameters,
                         CheckoutProcessor checkoutProcessor,
                         RuntimeParameters runtimeParameters) {
+        this(preprocessorParameters, checkoutProcessor, runtimeParameters, null);
+    }
+
+    @SuppressWarnings("unchecked")
+    protected MigReader(PreprocessorParameters preprocessorParameters,
+                        CheckoutProcessor checkoutProcessor,
+                        RuntimeParameters runtimeParameters,
+                        ReferenceKmerFilter referenceKmerFilter) {
         this.preprocessorParameters = preprocessorParameters;
         this.checkoutProcessor = checkoutProcessor;
         this.sampleNames = checkoutProcessor.getSampleNames();
@@ -61,26 +80,29 @@ public abstract class MigReader<MigType extends Mig> implements Serializable, Re
                 preprocessorParameters.getUmiQualThreshold(),
                 isPairedEnd() ?
                         new PairedEndReadWrappingFactory(qualityProvider) :
-                        new SingleEndReadWrappingFactory(qualityProvider));
+                        new SingleEndReadWrappingFactory(qualityProvider),
+                referenceKmerFilter);
         this.runtimeParameters = runtimeParameters;
     }
 
-    protected void buildUmiIndex(OutputPortCloseable<SequencingRead> input)
-            throws InterruptedException {
+    protected void buildUmiIndex(OutputPort<Chunk<SequencingRead>> input)
+            throws InterruptedException, IOException {
 
         // Set limit if required
         if (runtimeParameters.getReadLimit() > -1) {
-            input = new CountLimitingOutputPort<>(input, runtimeParameters.getReadLimit());
+            input = CUtils.chunked(new CountLimitingOutputPort<>(CUtils.unchunked(input),
+                    runtimeParameters.getReadLimit()), BATCH_SIZE);
         }
 
         // Buffer the input - speed up and protect from parallelization problems
-        final Merger<SequencingRead> bufferedInput = new Merger<>(524288);
+        final Merger<Chunk<SequencingRead>> bufferedInput = new Merger<>(BUFFER_SIZE / BATCH_SIZE);
         bufferedInput.merge(input);
         bufferedInput.start();
         input = bufferedInput;
 
         // To count input sequences
-        final CountingOutputPort<SequencingRead> countingInput = new CountingOutputPort<>(input);
+        final CountingOutputPort<Chunk<SequencingRead>> countingInput = new CountingOutputPort<>(input);
+        final AtomicLong readCount = new AtomicLong();
 
         // Run checkout in parallel
         if (runtimeParameters.getVerbosityLevel() > 1)
@@ -91,7 +113,7 @@ public abstract class MigReader<MigType extends Mig> implements Serializable, Re
                 public void run() {
                     try {
                         while (!countingInput.isClosed()) {
-                            long count = countingInput.getCount();
+                            long count = readCount.get();
                             if (prevCount != count) {
                                 Speaker.INSTANCE.sout("[Indexer] Building UMI index, " +
                                         count + " reads processed, " +
@@ -107,44 +129,149 @@ public abstract class MigReader<MigType extends Mig> implements Serializable, Re
                 }
             }).start();
 
-        final OutputPort<ProcessorResultWrapper<IndexingInfo>> indexingResults =
-                new ParallelProcessor<>(countingInput, umiIndexer,
+        // Reads are written to disk right away in spill mode, only UMI counters are kept in memory
+        Processor<SequencingRead, ProcessorResultWrapper<IndexingInfo>> indexer = umiIndexer;
+        if (runtimeParameters.getUmiIndexPartitions() > 0) {
+            umiIndexPartitions = new UmiIndexPartitions(runtimeParameters.getUmiIndexSpillFolder(),
+                    runtimeParameters.getUmiIndexPartitions(), sampleNames.size(), isPairedEnd());
+            Speaker.INSTANCE.sout("[Indexer] Spilling UMI index to " +
+                    runtimeParameters.getUmiIndexPartitions() + " partitions on disk", 2);
+            indexer = createGroomingIndexer();
+        }
+
+        // Reads are passed in batches, one queue operation per batch
+        final OutputPort<Chunk<ProcessorResultWrapper<IndexingInfo>>> indexingResults =
+                new ParallelProcessor<>(countingInput, CUtils.chunked(indexer),
                         runtimeParameters.getNumberOfThreads());
 
-        // Create temporary index, histograms
-        Map<String, Map<NucleotideSequence, List<ReadInfo>>> umiIndexBySample = new HashMap<>();
+        // Create index, histograms
+        Map<String, Integer> sampleIds = new HashMap<>();
         for (String sampleName : sampleNames) {
+            sampleIds.put(sampleName, sampleIds.size());
             umiHistogramBySample.put(sampleName, new MigSizeDistribution(preprocessorParameters));
             umiIndexBySample.put(sampleName, new HashMap<NucleotideSequence, List<ReadInfo>>());
         }
 
         // Take results, extract histogram and index (single thread)
-        ProcessorResultWrapper<IndexingInfo> result;
-        while ((result = indexingResults.take()) != null) {
-            if (result.hasResult()) {
-                IndexingInfo indexingInfo = result.getResult();
-                umiHistogramBySample.get(indexingInfo.getSampleName()).update(indexingInfo.getUmi());
-                Map<NucleotideSequence, List<ReadInfo>> umiIndex = umiIndexBySample.get(indexingInfo.getSampleName());
-                List<ReadInfo> readInfoList = umiIndex.get(indexingInfo.getUmi());
-                if (readInfoList == null)
-                    umiIndex.put(indexingInfo.getUmi(), readInfoList = new LinkedList<>());
-                readInfoList.add(indexingInfo.getReadInfo());
+        Chunk<ProcessorResultWrapper<IndexingInfo>> results;
+        while ((results = indexingResults.take()) != null) {
+            readCount.addAndGet(results.size());
+            for (ProcessorResultWrapper<IndexingInfo> result : results) {
+                if (result.hasResult()) {
+                    IndexingInfo indexingInfo = result.getResult();
+                    umiHistogramBySample.get(indexingInfo.getSampleName()).update(indexingInfo.getUmi());
+                    if (umiIndexPartitions != null) {
+                        umiIndexPartitions.write(sampleIds.get(indexingInfo.getSampleName()),
+                                indexingInfo.getUmi(), indexingInfo.getReadInfo().getReadContainer());
+                        continue;
+                    }
+                    Map<NucleotideSequence, List<ReadInfo>> umiIndex = umiIndexBySample.get(indexingInfo.getSampleName());
+                    List<ReadInfo> readInfoList = umiIndex.get(indexingInfo.getUmi());
+                    if (readInfoList == null)
+                        umiIndex.put(indexingInfo.getUmi(), readInfoList = new LinkedList<>());
+                    readInfoList.add(indexingInfo.getReadInfo());
+                }
             }
         }
 
         // Copy index
+        if (umiIndexPartitions != null) {
+            umiIndexPartitions.finish();
+            umiIndexBySample.clear();
+        }
         for (String sampleName : sampleNames)
-            iteratorMap.put(sampleName, umiIndexBySample.get(sampleName).entrySet().iterator());
+            iteratorMap.put(sampleName, createIterator(sampleName));
 
         // Finalize histograms
         for (MigSizeDistribution histogram : umiHistogramBySample.values())
             histogram.calculateHistogram();
 
         Speaker.INSTANCE.sout("[Indexer] Finished building UMI index, " +
-                countingInput.getCount() + " reads processed, " +
+                readCount.get() + " reads processed, " +
                 ((int) (umiIndexer.getCheckoutProcessor().extractionRatio() * 10000) / 100.0) + "% extracted", 1);
     }
 
+    // Reads are groomed by indexing threads before they are spilled, as it is done by take() for in-memory index
+    private Processor<SequencingRead, ProcessorResultWrapper<IndexingInfo>> createGroomingIndexer() {
+        return new Processor<SequencingRead, ProcessorResultWrapper<IndexingInfo>>() {
+            @Override
+            public ProcessorResultWrapper<IndexingInfo> process(SequencingRead read) {
+                ProcessorResultWrapper<IndexingInfo> result = umiIndexer.process(read);
+
+                if (!result.hasResult()) {
+                    return result;
+                }
+
+                IndexingInfo indexingInfo = result.getResult();
+                return new ProcessorResultWrapper<>(new IndexingInfo(
+                        new ReadInfo(groom(indexingInfo.getReadInfo()), null),
+                        indexingInfo.getSampleName(), indexingInfo.getUmi()));
+            }
+        };
+    }
+
+    private Iterator<Map.Entry<NucleotideSequence, List<ReadInfo>>> createIterator(String sampleName) {
+        return umiIndexPartitions != null ?
+                umiIndexPartitions.iterator(sampleNames.indexOf(sampleName)) :
+                umiIndexBySample.get(sampleName).entrySet().iterator();
+    }
+
+    protected void loadUmiIndex(UmiIndexCheckpoint checkpoint) {
+        if (checkpoint.isPairedEnd() != isPairedEnd())
+            throw new RuntimeException("UMI index checkpoint and input differ in paired-end setting");
+
+        checkoutProcessor.setCounters(checkpoint.getCounters());
+
+        for (String sampleName : sampleNames) {
+            Map<NucleotideSequence, List<ReadInfo>> umiIndex = checkpoint.getUmiIndex(sampleName);
+            MigSizeDistribution histogram = new MigSizeDistribution(preprocessorParameters);
+            for (Map.Entry<NucleotideSequence, List<ReadInfo>> entry : umiIndex.entrySet()) {
+                histogram.update(entry.getKey(), entry.getValue().size());
+            }
+            histogram.calculateHistogram();
+
+            umiHistogramBySample.put(sampleName, histogram);
+            umiIndexBySample.put(sampleName, umiIndex);
+            iteratorMap.put(sampleName, umiIndex.entrySet().iterator());
+        }
+
+        Speaker.INSTANCE.sout("[Indexer] Loaded UMI index checkpoint, " +
+                checkoutProcessor.getTotal() + " reads processed, " +
+                ((int) (checkoutProcessor.extractionRatio() * 10000) / 100.0) + "% extracted", 1);
+    }
+
+    /**
+     * Saves UMI index and checkout counters to a file that can be loaded by subsequent runs.
+     * Should be called before any MIG is taken.
+     *
+     * @param file checkpoint file.
+     * @param key  checkpoint key, see {@link UmiIndexCheckpoint#createKey}.
+     * @throws IOException
+     */
+    public void saveUmiIndex(File file, String key) throws IOException {
+        UmiIndexCheckpoint.Writer writer = new UmiIndexCheckpoint.Writer(file, key, isPairedEnd(),
+                checkoutProcessor.getCounters(), sampleNames.size());
+
+        for (String sampleName : sampleNames) {
+            writer.startSample(sampleName, umiHistogramBySample.get(sampleName).getMigsTotal());
+            Iterator<Map.Entry<NucleotideSequence, List<ReadInfo>>> iterator = createIterator(sampleName);
+            while (iterator.hasNext()) {
+                Map.Entry<NucleotideSequence, List<ReadInfo>> entry = iterator.next();
+                List<ReadContainer> readContainers = new ArrayList<>(entry.getValue().size());
+                for (ReadInfo readInfo : entry.getValue()) {
+                    readContainers.add(groom(readInfo));
+                }
+                writer.write(entry.getKey(), readContainers);
+            }
+        }
+
+        writer.close();
+
+        Speaker.INSTANCE.sout("[Indexer] Saved UMI index checkpoint to " + file.getPath(), 2);
+    }
+
+    protected abstract ReadContainer groom(ReadInfo readInfo);
+
     protected boolean checkUmiMismatch(String sampleName, NucleotideSequence umi) {
         return umiHistogramBySample.get(sampleName).isMismatch(umi);
     }
@@ -182,5 +309,10 @@ public abstract class MigReader<MigType extends Mig> implements Serializable, Re
 
     public synchronized void clear(Sample sample) {
         iteratorMap.remove(sample.getName());
+        umiIndexBySample.remove(sample.getName());
+
+        if (umiIndexPartitions != null && iteratorMap.isEmpty()) {
+            umiIndexPartitions.delete();
+        }
     }
 }
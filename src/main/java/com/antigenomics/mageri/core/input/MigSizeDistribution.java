@@ -19,11 +19,13 @@ import com.antigenomics.mageri.core.PipelineBlock;
 import com.milaboratory.core.sequence.nucleotide.NucleotideSequence;
 import com.milaboratory.util.Bit2Array;
 
+import java.io.IOException;
+import java.io.Writer;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class MigSizeDistribution extends PipelineBlock {
-    private final PreprocessorParameters preprocessorParameters;
+    final PreprocessorParameters preprocessorParameters;
     private transient final ConcurrentHashMap<NucleotideSequence, AtomicInteger> umiCounterMap =
             new ConcurrentHashMap<>();
 
@@ -37,9 +39,9 @@ public class MigSizeDistribution extends PipelineBlock {
         return (int) Math.pow(2.0, index);
     }
 
-    private final long[] migHistogram = new long[N], readHistogram = new long[N];
-    private long readTotal = 0;
-    private int migsTotal;
+    final long[] migHistogram = new long[N], readHistogram = new long[N];
+    long readTotal = 0;
+    int migsTotal;
     private static final double base = Math.log(2.0);
 
     public MigSizeDistribution(PreprocessorParameters preprocessorParameters) {
@@ -79,28 +81,34 @@ public class MigSizeDistribution extends PipelineBlock {
     }
 
     public void update(NucleotideSequence umi) {
+        update(umi, 1);
+    }
+
+    public void update(NucleotideSequence umi, int count) {
         AtomicInteger blankUmiCounter = new AtomicInteger(),
                 umiCounter = umiCounterMap.putIfAbsent(umi, blankUmiCounter);
 
         if (umiCounter == null)
             umiCounter = blankUmiCounter;
 
-        umiCounter.incrementAndGet();
+        umiCounter.addAndGet(count);
     }
 
     public void calculateHistogram() {
         for (AtomicInteger counter : umiCounterMap.values()) {
-            long value = counter.get();
-
-            int sizeIndex = Math.min(convertToIndex(value), N - 1);
+            update(counter.get());
+        }
+    }
 
-            readHistogram[sizeIndex] += value;
-            readTotal += value;
+    // Adds a MIG of a given size straight to the histogram, used when MIGs are streamed and UMIs are not counted
+    public void update(long migSize) {
+        int sizeIndex = Math.min(convertToIndex(migSize), N - 1);
 
-            migHistogram[sizeIndex]++;
-        }
+        readHistogram[sizeIndex] += migSize;
+        readTotal += migSize;
 
-        migsTotal = umiCounterMap.size();
+        migHistogram[sizeIndex]++;
+        migsTotal++;
     }
 
     public int getMigSizeThreshold() {
@@ -162,7 +170,7 @@ public class MigSizeDistribution extends PipelineBlock {
     }
 
     @Override
-    public String getBody() {
+    public void writeBody(Writer writer) throws IOException {
         StringBuilder stringBuilder = new StringBuilder();
 
         for (int i = 0; i < N; i++) {
@@ -170,8 +178,8 @@ public class MigSizeDistribution extends PipelineBlock {
                     append(migHistogram[i]).append("\t").
                     append(readHistogram[i]).append("\t").
                     append(getMigSizeThreshold()).append("\n");
+            writer.append(stringBuilder);
+            stringBuilder.setLength(0);
         }
-
-        return stringBuilder.toString();
     }
 }
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2014-2016 Mikhail Shugay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.antigenomics.mageri.core.input;
+
+import com.antigenomics.mageri.misc.Basics;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Encoding of MIG size histogram used by binary analysis output. UMI counters are not stored.
+ */
+public final class MigSizeDistributionCodec {
+    public static final int VERSION = 1;
+
+    private MigSizeDistributionCodec() {
+    }
+
+    public static void write(DataOutput output, MigSizeDistribution migSizeDistribution) throws IOException {
+        output.writeInt(VERSION);
+        Basics.writeParameters(output, migSizeDistribution.preprocessorParameters);
+
+        output.writeInt(migSizeDistribution.migHistogram.length);
+        for (int i = 0; i < migSizeDistribution.migHistogram.length; i++) {
+            output.writeLong(migSizeDistribution.migHistogram[i]);
+            output.writeLong(migSizeDistribution.readHistogram[i]);
+        }
+
+        output.writeLong(migSizeDistribution.readTotal);
+        output.writeInt(migSizeDistribution.migsTotal);
+    }
+
+    public static MigSizeDistribution read(DataInput input) throws IOException {
+        int version = input.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported MIG size distribution encoding version " + version + ".");
+        }
+
+        MigSizeDistribution migSizeDistribution = new MigSizeDistribution(
+                PreprocessorParameters.fromXml(Basics.readParameters(input)));
+
+        int size = input.readInt();
+        if (size != migSizeDistribution.migHistogram.length) {
+            throw new IOException("MIG size histogram has " + size + " bins, while " +
+                    migSizeDistribution.migHistogram.length + " are expected.");
+        }
+        for (int i = 0; i < size; i++) {
+            migSizeDistribution.migHistogram[i] = input.readLong();
+            migSizeDistribution.readHistogram[i] = input.readLong();
+        }
+
+        migSizeDistribution.readTotal = input.readLong();
+        migSizeDistribution.migsTotal = input.readInt();
+
+        return migSizeDistribution;
+    }
+}
@@ -15,22 +15,24 @@
  */
 package com.antigenomics.mageri.core.input;
 
+import cc.redberry.pipe.CUtils;
+import cc.redberry.pipe.OutputPort;
 import cc.redberry.pipe.OutputPortCloseable;
+import cc.redberry.pipe.util.Chunk;
 import com.antigenomics.mageri.core.input.index.PairedReadContainer;
 import com.antigenomics.mageri.core.input.index.Read;
 import com.antigenomics.mageri.core.input.index.ReadContainer;
 import com.antigenomics.mageri.core.input.index.ReadInfo;
 import com.antigenomics.mageri.pipeline.RuntimeParameters;
 import com.antigenomics.mageri.pipeline.analysis.Sample;
+import com.antigenomics.mageri.core.mapping.kmer.ReferenceKmerFilter;
 import com.antigenomics.mageri.preprocessing.CheckoutProcessor;
 import com.antigenomics.mageri.preprocessing.CheckoutResult;
 import com.antigenomics.mageri.preprocessing.PCheckoutResult;
 import com.antigenomics.mageri.preprocessing.barcode.BarcodeSearcherResult;
 import com.milaboratory.core.sequence.nucleotide.NucleotideSequence;
-import com.milaboratory.core.sequence.quality.QualityFormat;
 import com.milaboratory.core.sequencing.io.fastq.PFastqReader;
 import com.milaboratory.core.sequencing.read.SequencingRead;
-import com.milaboratory.util.CompressionType;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -49,7 +51,35 @@ public final class PMigReader extends MigReader<PMig> {
                 checkoutProcessor,
                 runtimeParameters);
 
-        buildUmiIndex(new PairedReaderWrapper(reader));
+        buildUmiIndex(CUtils.chunked(new PairedReaderWrapper(reader), BATCH_SIZE));
+    }
+
+    public PMigReader(OutputPort<Chunk<SequencingRead>> input,
+                      CheckoutProcessor checkoutProcessor,
+                      PreprocessorParameters preprocessorParameters,
+                      RuntimeParameters runtimeParameters)
+            throws IOException, InterruptedException {
+        this(input, checkoutProcessor, preprocessorParameters, runtimeParameters, null);
+    }
+
+    public PMigReader(OutputPort<Chunk<SequencingRead>> input,
+                      CheckoutProcessor checkoutProcessor,
+                      PreprocessorParameters preprocessorParameters,
+                      RuntimeParameters runtimeParameters,
+                      ReferenceKmerFilter referenceKmerFilter)
+            throws IOException, InterruptedException {
+        super(preprocessorParameters, checkoutProcessor, runtimeParameters, referenceKmerFilter);
+
+        buildUmiIndex(input);
+    }
+
+    public PMigReader(UmiIndexCheckpoint checkpoint,
+                      CheckoutProcessor checkoutProcessor,
+                      PreprocessorParameters preprocessorParameters,
+                      RuntimeParameters runtimeParameters) {
+        super(preprocessorParameters, checkoutProcessor, runtimeParameters);
+
+        loadUmiIndex(checkpoint);
     }
 
     public PMigReader(InputStream inputStream1, InputStream inputStream2,
@@ -57,9 +87,9 @@ public final class PMigReader extends MigReader<PMig> {
                       PreprocessorParameters preprocessorParameters,
                       RuntimeParameters runtimeParameters)
             throws IOException, InterruptedException {
-        this(new PFastqReader(inputStream1, inputStream2, QualityFormat.Phred33, CompressionType.None, null, false, false),
-                checkoutProcessor,
-                preprocessorParameters, runtimeParameters);
+        // Reads are parsed in batches on worker threads
+        this(new ParallelFastqReader(inputStream1, inputStream2, runtimeParameters.getNumberOfThreads()),
+                checkoutProcessor, preprocessorParameters, runtimeParameters);
     }
 
     public PMigReader(InputStream inputStream1, InputStream inputStream2,
@@ -85,25 +115,35 @@ public final class PMigReader extends MigReader<PMig> {
         while (iterator.hasNext()) {
             Map.Entry<NucleotideSequence, List<ReadInfo>> entry = iterator.next();
             if (entry.getValue().size() >= sizeThreshold && !checkUmiMismatch(barcodeName, entry.getKey())) {
-                List<Read> readList1 = new LinkedList<>(),
-                        readList2 = new LinkedList<>();
+                return createMig(sample, entry.getKey(), entry.getValue(), preprocessorParameters.trimAdapters());
+            }
 
-                for (ReadInfo readInfo : entry.getValue()) {
-                    ReadContainer readContainer = groom(readInfo.getReadContainer(),
-                            readInfo.getCheckoutResult(),
-                            preprocessorParameters.trimAdapters());
+        }
+        return null;
+    }
 
-                    Read read1 = readContainer.getFirst(), read2 = readContainer.getSecond();
-                    readList1.add(read1);
-                    readList2.add(read2);
-                }
+    public static PMig createMig(Sample sample, NucleotideSequence umi, List<ReadInfo> readInfos,
+                                 boolean trimAdapters) {
+        List<Read> readList1 = new LinkedList<>(),
+                readList2 = new LinkedList<>();
 
-                return new PMig(new SMig(sample, entry.getKey(), readList1),
-                        new SMig(sample, entry.getKey(), readList2));
-            }
+        for (ReadInfo readInfo : readInfos) {
+            ReadContainer readContainer = groom(readInfo.getReadContainer(),
+                    readInfo.getCheckoutResult(),
+                    trimAdapters);
 
+            Read read1 = readContainer.getFirst(), read2 = readContainer.getSecond();
+            readList1.add(read1);
+            readList2.add(read2);
         }
-        return null;
+
+        return new PMig(new SMig(sample, umi, readList1),
+                new SMig(sample, umi, readList2));
+    }
+
+    @Override
+    protected ReadContainer groom(ReadInfo readInfo) {
+        return groom(readInfo.getReadContainer(), readInfo.getCheckoutResult(), preprocessorParameters.trimAdapters());
     }
 
     public static ReadContainer groom(ReadContainer readContainer, CheckoutResult result1, boolean trimAdaptors) {
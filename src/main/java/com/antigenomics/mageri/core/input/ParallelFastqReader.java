@@ -0,0 +1,270 @@
+/*
+ * Copyright 2014-2016 Mikhail Shugay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.antigenomics.mageri.core.input;
+
+import cc.redberry.pipe.util.Chunk;
+import com.milaboratory.core.sequence.quality.QualityFormat;
+import com.milaboratory.core.sequencing.read.PSequencingReadImpl;
+import com.milaboratory.core.sequencing.read.SSequencingRead;
+import com.milaboratory.core.sequencing.read.SSequencingReadImpl;
+import com.milaboratory.core.sequencing.read.SequencingRead;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Callable;
+
+/**
+ * Reads (Phred33) FASTQ into batches of reads. Input is read in large blocks and cut at record boundaries by a single
+ * reader thread, batches are then parsed on a pool of threads straight from the block into 2-bit sequences and quality
+ * arrays, without per-line strings. Batches are reported in file order, reads are the same as those produced by milib
+ * FASTQ readers. Paired-end reads come either from two files or from a single interleaved file, where each R1
+ * record is followed by its R2 mate.
+ */
+public final class ParallelFastqReader extends BatchReader {
+    public static final int DEFAULT_BATCH_SIZE = 1024;
+    private static final int BLOCK_SIZE = 1024 * 1024;
+    private static final byte QUALITY_OFFSET = QualityFormat.Phred33.getOffset();
+
+    private final RecordSplitter splitter1, splitter2;
+    private final boolean interleaved;
+
+    public ParallelFastqReader(InputStream inputStream1, InputStream inputStream2,
+                               int numberOfThreads) {
+        this(inputStream1, inputStream2, numberOfThreads, DEFAULT_BATCH_SIZE);
+    }
+
+    public ParallelFastqReader(InputStream inputStream1, InputStream inputStream2,
+                               int numberOfThreads, int batchSize) {
+        this(inputStream1, inputStream2, false, numberOfThreads, batchSize);
+    }
+
+    public ParallelFastqReader(InputStream inputStream, boolean interleaved,
+                               int numberOfThreads) {
+        this(inputStream, null, interleaved, numberOfThreads, DEFAULT_BATCH_SIZE);
+    }
+
+    private ParallelFastqReader(InputStream inputStream1, InputStream inputStream2, boolean interleaved,
+                                int numberOfThreads, int batchSize) {
+        super("FASTQ", numberOfThreads, batchSize);
+        this.splitter1 = new RecordSplitter(inputStream1);
+        this.splitter2 = inputStream2 == null ? null : new RecordSplitter(inputStream2);
+        this.interleaved = interleaved;
+        start();
+    }
+
+    public boolean isPairedEnd() {
+        return splitter2 != null || interleaved;
+    }
+
+    @Override
+    protected void closeInput() throws IOException {
+        splitter1.inputStream.close();
+        if (splitter2 != null) {
+            splitter2.inputStream.close();
+        }
+    }
+
+    @Override
+    protected void split() throws Exception {
+        long id = 0;
+        RecordBlock block1;
+        while (!closed && (block1 = splitter1.next(interleaved ? 2 * batchSize : batchSize)) != null) {
+            final RecordBlock first = block1,
+                    second = splitter2 == null ? null : splitter2.next(block1.count);
+
+            if (second != null && second.count != first.count || splitter2 != null && second == null) {
+                throw new IOException("R1 and R2 contain different number of reads");
+            }
+
+            // Only the last block can be odd
+            if (interleaved && first.count % 2 != 0) {
+                throw new IOException("Interleaved FASTQ contains odd number of reads");
+            }
+
+            final long firstId = id;
+            id += interleaved ? first.count / 2 : first.count;
+
+            submit(new Callable<Chunk<SequencingRead>>() {
+                @Override
+                public Chunk<SequencingRead> call() throws Exception {
+                    return parse(first, second, interleaved, firstId);
+                }
+            });
+        }
+
+        if (splitter2 != null && splitter2.next(1) != null) {
+            throw new IOException("R1 and R2 contain different number of reads");
+        }
+    }
+
+    private static Chunk<SequencingRead> parse(RecordBlock block1, RecordBlock block2, boolean interleaved,
+                                               long firstId) {
+        SequencingRead[] reads = new SequencingRead[interleaved ? block1.count / 2 : block1.count];
+        RecordParser parser1 = new RecordParser(block1),
+                parser2 = interleaved ? parser1 : block2 == null ? null : new RecordParser(block2);
+
+        for (int i = 0; i < reads.length; i++) {
+            long id = firstId + i;
+            SSequencingRead read1 = parser1.next(id);
+            reads[i] = parser2 == null ? read1 : new PSequencingReadImpl(read1, parser2.next(id));
+        }
+
+        return new Chunk<>(reads);
+    }
+
+    private static final class RecordBlock {
+        final byte[] bytes;
+        final int from, to, count;
+
+        RecordBlock(byte[] bytes, int from, int to, int count) {
+            this.bytes = bytes;
+            this.from = from;
+            this.to = to;
+            this.count = count;
+        }
+    }
+
+    // Cuts the input into blocks holding a given number of 4-line records. Blocks are handed over to parsers,
+    // so the buffer is never overwritten, a new one is allocated instead
+    private static final class RecordSplitter {
+        final InputStream inputStream;
+        byte[] buffer = new byte[0];
+        int offset = 0, length = 0;
+        boolean endOfStream = false;
+
+        RecordSplitter(InputStream inputStream) {
+            this.inputStream = inputStream;
+        }
+
+        RecordBlock next(int count) throws IOException {
+            int lines = 0, targetLines = 4 * count, end = offset;
+
+            while (true) {
+                while (lines < targetLines && end < length) {
+                    if (buffer[end++] == '\n') {
+                        lines++;
+                    }
+                }
+                if (lines == targetLines || endOfStream) {
+                    break;
+                }
+                int scanned = end - offset;
+                fill();
+                end = offset + scanned;
+            }
+
+            if (end == offset) {
+                return null;
+            }
+
+            // Last line may lack line break
+            if (lines < targetLines && buffer[end - 1] != '\n') {
+                lines++;
+            }
+
+            if (lines % 4 != 0) {
+                throw new IOException("Truncated FASTQ record at the end of file");
+            }
+
+            RecordBlock block = new RecordBlock(buffer, offset, end, lines / 4);
+            offset = end;
+            return block;
+        }
+
+        private void fill() throws IOException {
+            int pending = length - offset;
+            byte[] newBuffer = new byte[Math.max(BLOCK_SIZE, 2 * pending)];
+            System.arraycopy(buffer, offset, newBuffer, 0, pending);
+
+            int newLength = pending, count;
+            while (newLength < newBuffer.length &&
+                    (count = inputStream.read(newBuffer, newLength, newBuffer.length - newLength)) >= 0) {
+                newLength += count;
+            }
+
+            endOfStream = newLength < newBuffer.length;
+            buffer = newBuffer;
+            offset = 0;
+            length = newLength;
+        }
+    }
+
+    // Parses records one-by-one, same conventions as milib SFastqReader
+    private static final class RecordParser {
+        final byte[] bytes;
+        final int limit;
+        int position;
+
+        RecordParser(RecordBlock block) {
+            this.bytes = block.bytes;
+            this.position = block.from;
+            this.limit = block.to;
+        }
+
+        SSequencingRead next(long id) {
+            int headerEnd = lineEnd(position);
+            if (headerEnd == position || bytes[position] != '@') {
+                throw new RuntimeException("Wrong file format");
+            }
+            String description = new String(bytes, position + 1, headerEnd - position - 1,
+                    StandardCharsets.ISO_8859_1);
+            position = nextLine(headerEnd);
+
+            int sequenceStart = position, sequenceEnd = lineEnd(position);
+            position = nextLine(sequenceEnd);
+
+            int separatorEnd = lineEnd(position);
+            if (separatorEnd == position || bytes[position] != '+') {
+                throw new RuntimeException("Wrong file format");
+            }
+            position = nextLine(separatorEnd);
+
+            int qualityStart = position, qualityEnd = lineEnd(position);
+            position = nextLine(qualityEnd);
+
+            int length = sequenceEnd - sequenceStart;
+            if (qualityEnd - qualityStart != length) {
+                throw new RuntimeException("Wrong file format. Different sequence and quality sizes.");
+            }
+
+            return new SSequencingReadImpl(description,
+                    toSQPair(bytes, sequenceStart, bytes, qualityStart, QUALITY_OFFSET, length, false),
+                    id);
+        }
+
+        // Position of line break (or end of block), trailing '\r' is excluded
+        private int lineEnd(int from) {
+            int end = from;
+            while (end < limit && bytes[end] != '\n') {
+                end++;
+            }
+            if (end > from && bytes[end - 1] == '\r') {
+                end--;
+            }
+            return end;
+        }
+
+        private int nextLine(int lineEnd) {
+            while (lineEnd < limit && bytes[lineEnd] != '\n') {
+                lineEnd++;
+            }
+            return Math.min(lineEnd + 1, limit);
+        }
+    }
+}
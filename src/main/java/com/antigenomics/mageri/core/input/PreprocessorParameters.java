@@ -23,29 +23,39 @@ import org.jdom.Element;
 public class PreprocessorParameters implements ParameterSet {
     private final byte umiQualThreshold, goodQualityThreshold;
     private final boolean trimAdapters, forceOverseq;
-    private final int defaultOverseq;
+    private final int defaultOverseq, minReferenceKmerHits;
     private final double minUmiMismatchRatio;
 
     public static final PreprocessorParameters DEFAULT = new PreprocessorParameters(
             QualityDefaults.PH33_BAD_QUAL, (byte) 25,
             true,
-            10.0, true, 5);
+            10.0, true, 5, 0);
 
     public static final PreprocessorParameters IGNORE_QUAL = new PreprocessorParameters(
             (byte) 0, (byte) 0,
             true,
-            10.0, true, 5);
+            10.0, true, 5, 0);
 
     public PreprocessorParameters(byte umiQualThreshold, byte goodQualityThreshold,
                                   boolean trimAdapters,
                                   double minUmiMismatchRatio,
                                   boolean forceOverseq, int defaultOverseq) {
+        this(umiQualThreshold, goodQualityThreshold, trimAdapters, minUmiMismatchRatio,
+                forceOverseq, defaultOverseq, 0);
+    }
+
+    public PreprocessorParameters(byte umiQualThreshold, byte goodQualityThreshold,
+                                  boolean trimAdapters,
+                                  double minUmiMismatchRatio,
+                                  boolean forceOverseq, int defaultOverseq,
+                                  int minReferenceKmerHits) {
         this.umiQualThreshold = umiQualThreshold;
         this.goodQualityThreshold = goodQualityThreshold;
         this.trimAdapters = trimAdapters;
         this.minUmiMismatchRatio = minUmiMismatchRatio;
         this.forceOverseq = forceOverseq;
         this.defaultOverseq = defaultOverseq;
+        this.minReferenceKmerHits = minReferenceKmerHits;
     }
 
     public byte getUmiQualThreshold() {
@@ -72,34 +82,44 @@ public class PreprocessorParameters implements ParameterSet {
         return defaultOverseq;
     }
 
+    // Reads having less reference k-mers are dropped at checkout, 0 to disable
+    public int getMinReferenceKmerHits() {
+        return minReferenceKmerHits;
+    }
+
     public PreprocessorParameters withUmiQualThreshold(byte umiQualThreshold) {
         return new PreprocessorParameters(umiQualThreshold, goodQualityThreshold,
-                trimAdapters, minUmiMismatchRatio, forceOverseq, defaultOverseq);
+                trimAdapters, minUmiMismatchRatio, forceOverseq, defaultOverseq, minReferenceKmerHits);
     }
 
     public PreprocessorParameters withGoodQualityThreshold(byte goodQualityThreshold) {
         return new PreprocessorParameters(umiQualThreshold, goodQualityThreshold,
-                trimAdapters, minUmiMismatchRatio, forceOverseq, defaultOverseq);
+                trimAdapters, minUmiMismatchRatio, forceOverseq, defaultOverseq, minReferenceKmerHits);
     }
 
     public PreprocessorParameters withTrimAdapters(boolean trimAdapters) {
         return new PreprocessorParameters(umiQualThreshold, goodQualityThreshold,
-                trimAdapters, minUmiMismatchRatio, forceOverseq, defaultOverseq);
+                trimAdapters, minUmiMismatchRatio, forceOverseq, defaultOverseq, minReferenceKmerHits);
     }
 
     public PreprocessorParameters withForceOverseq(boolean forceOverseq) {
         return new PreprocessorParameters(umiQualThreshold, goodQualityThreshold,
-                trimAdapters, minUmiMismatchRatio, forceOverseq, defaultOverseq);
+                trimAdapters, minUmiMismatchRatio, forceOverseq, defaultOverseq, minReferenceKmerHits);
     }
 
     public PreprocessorParameters withDefaultOverseq(int defaultOverseq) {
         return new PreprocessorParameters(umiQualThreshold, goodQualityThreshold,
-                trimAdapters, minUmiMismatchRatio, forceOverseq, defaultOverseq);
+                trimAdapters, minUmiMismatchRatio, forceOverseq, defaultOverseq, minReferenceKmerHits);
     }
 
     public PreprocessorParameters withMinUmiMismatchRatio(double minUmiMismatchRatio) {
         return new PreprocessorParameters(umiQualThreshold, goodQualityThreshold,
-                trimAdapters, minUmiMismatchRatio, forceOverseq, defaultOverseq);
+                trimAdapters, minUmiMismatchRatio, forceOverseq, defaultOverseq, minReferenceKmerHits);
+    }
+
+    public PreprocessorParameters withMinReferenceKmerHits(int minReferenceKmerHits) {
+        return new PreprocessorParameters(umiQualThreshold, goodQualityThreshold,
+                trimAdapters, minUmiMismatchRatio, forceOverseq, defaultOverseq, minReferenceKmerHits);
     }
 
     @Override
@@ -111,6 +131,7 @@ public class PreprocessorParameters implements ParameterSet {
         e.addContent(new Element("minUmiMismatchRatio").setText(Double.toString(minUmiMismatchRatio)));
         e.addContent(new Element("forceOverseq").setText(Boolean.toString(forceOverseq)));
         e.addContent(new Element("defaultOverseq").setText(Integer.toString(defaultOverseq)));
+        e.addContent(new Element("minReferenceKmerHits").setText(Integer.toString(minReferenceKmerHits)));
         return e;
     }
 
@@ -122,7 +143,10 @@ public class PreprocessorParameters implements ParameterSet {
                 Boolean.parseBoolean(e.getChildTextTrim("trimAdapters")),
                 Double.parseDouble(e.getChildTextTrim("minUmiMismatchRatio")),
                 Boolean.parseBoolean(e.getChildTextTrim("forceOverseq")),
-                Integer.parseInt(e.getChildTextTrim("defaultOverseq"))
+                Integer.parseInt(e.getChildTextTrim("defaultOverseq")),
+                // absent in presets saved by older versions
+                e.getChild("minReferenceKmerHits") == null ? 0 :
+                        Integer.parseInt(e.getChildTextTrim("minReferenceKmerHits"))
         );
     }
 
@@ -134,6 +158,7 @@ public class PreprocessorParameters implements ParameterSet {
         PreprocessorParameters that = (PreprocessorParameters) o;
 
         if (defaultOverseq != that.defaultOverseq) return false;
+        if (minReferenceKmerHits != that.minReferenceKmerHits) return false;
         if (forceOverseq != that.forceOverseq) return false;
         if (goodQualityThreshold != that.goodQualityThreshold) return false;
         if (Double.compare(that.minUmiMismatchRatio, minUmiMismatchRatio) != 0) return false;
@@ -152,6 +177,7 @@ public class PreprocessorParameters implements ParameterSet {
         result = 31 * result + (trimAdapters ? 1 : 0);
         result = 31 * result + (forceOverseq ? 1 : 0);
         result = 31 * result + defaultOverseq;
+        result = 31 * result + minReferenceKmerHits;
         temp = Double.doubleToLongBits(minUmiMismatchRatio);
         result = 31 * result + (int) (temp ^ (temp >>> 32));
         return result;
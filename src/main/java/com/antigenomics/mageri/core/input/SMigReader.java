@@ -15,19 +15,23 @@
  */
 package com.antigenomics.mageri.core.input;
 
+import cc.redberry.pipe.CUtils;
+import cc.redberry.pipe.OutputPort;
 import cc.redberry.pipe.OutputPortCloseable;
+import cc.redberry.pipe.util.Chunk;
 import com.antigenomics.mageri.core.input.index.Read;
+import com.antigenomics.mageri.core.input.index.ReadContainer;
 import com.antigenomics.mageri.core.input.index.ReadInfo;
+import com.antigenomics.mageri.core.input.index.SingleReadContainer;
 import com.antigenomics.mageri.pipeline.RuntimeParameters;
+import com.antigenomics.mageri.core.mapping.kmer.ReferenceKmerFilter;
 import com.antigenomics.mageri.preprocessing.CheckoutProcessor;
 import com.antigenomics.mageri.preprocessing.CheckoutResult;
 import com.antigenomics.mageri.preprocessing.SCheckoutResult;
 import com.milaboratory.core.sequence.nucleotide.NucleotideSequence;
-import com.milaboratory.core.sequence.quality.QualityFormat;
 import com.milaboratory.core.sequencing.io.fastq.SFastqReader;
 import com.milaboratory.core.sequencing.read.SequencingRead;
 import com.antigenomics.mageri.pipeline.analysis.Sample;
-import com.milaboratory.util.CompressionType;
 
 import java.io.IOException;
 import java.io.InputStream;
@@ -44,7 +48,35 @@ public final class SMigReader extends MigReader<SMig> {
             throws IOException, InterruptedException {
         super(preprocessorParameters, checkoutProcessor, runtimeParameters);
 
-        buildUmiIndex(new SingleReaderWrapper(reader));
+        buildUmiIndex(CUtils.chunked(new SingleReaderWrapper(reader), BATCH_SIZE));
+    }
+
+    public SMigReader(OutputPort<Chunk<SequencingRead>> input,
+                      CheckoutProcessor checkoutProcessor,
+                      PreprocessorParameters preprocessorParameters,
+                      RuntimeParameters runtimeParameters)
+            throws IOException, InterruptedException {
+        this(input, checkoutProcessor, preprocessorParameters, runtimeParameters, null);
+    }
+
+    public SMigReader(OutputPort<Chunk<SequencingRead>> input,
+                      CheckoutProcessor checkoutProcessor,
+                      PreprocessorParameters preprocessorParameters,
+                      RuntimeParameters runtimeParameters,
+                      ReferenceKmerFilter referenceKmerFilter)
+            throws IOException, InterruptedException {
+        super(preprocessorParameters, checkoutProcessor, runtimeParameters, referenceKmerFilter);
+
+        buildUmiIndex(input);
+    }
+
+    public SMigReader(UmiIndexCheckpoint checkpoint,
+                      CheckoutProcessor checkoutProcessor,
+                      PreprocessorParameters preprocessorParameters,
+                      RuntimeParameters runtimeParameters) {
+        super(preprocessorParameters, checkoutProcessor, runtimeParameters);
+
+        loadUmiIndex(checkpoint);
     }
 
     public SMigReader(InputStream inputStream1,
@@ -52,9 +84,9 @@ public final class SMigReader extends MigReader<SMig> {
                       PreprocessorParameters preprocessorParameters,
                       RuntimeParameters runtimeParameters)
             throws IOException, InterruptedException {
-        this(new SFastqReader(inputStream1, QualityFormat.Phred33, CompressionType.None),
-                checkoutProcessor,
-                preprocessorParameters, runtimeParameters);
+        // Reads are parsed in batches on worker threads
+        this(new ParallelFastqReader(inputStream1, null, runtimeParameters.getNumberOfThreads()),
+                checkoutProcessor, preprocessorParameters, runtimeParameters);
     }
 
     public SMigReader(InputStream inputStream1,
@@ -80,20 +112,31 @@ public final class SMigReader extends MigReader<SMig> {
         while (iterator.hasNext()) {
             Map.Entry<NucleotideSequence, List<ReadInfo>> entry = iterator.next();
             if (entry.getValue().size() >= sizeThreshold && !checkUmiMismatch(barcodeName, entry.getKey())) {
-                List<Read> readList = new LinkedList<>();
-
-                for (ReadInfo readInfo : entry.getValue()) {
-                    readList.add(groom(readInfo.getReadContainer().getFirst(),
-                            readInfo.getCheckoutResult(),
-                            preprocessorParameters.trimAdapters()));
-                }
-
-                return new SMig(sample, entry.getKey(), readList);
+                return createMig(sample, entry.getKey(), entry.getValue(), preprocessorParameters.trimAdapters());
             }
         }
         return null;
     }
 
+    public static SMig createMig(Sample sample, NucleotideSequence umi, List<ReadInfo> readInfos,
+                                 boolean trimAdapters) {
+        List<Read> readList = new LinkedList<>();
+
+        for (ReadInfo readInfo : readInfos) {
+            readList.add(groom(readInfo.getReadContainer().getFirst(),
+                    readInfo.getCheckoutResult(),
+                    trimAdapters));
+        }
+
+        return new SMig(sample, umi, readList);
+    }
+
+    @Override
+    protected ReadContainer groom(ReadInfo readInfo) {
+        return new SingleReadContainer(groom(readInfo.getReadContainer().getFirst(),
+                readInfo.getCheckoutResult(), preprocessorParameters.trimAdapters()));
+    }
+
     public static Read groom(Read read, CheckoutResult checkoutResult, boolean trimAdapters) {
         if (trimAdapters && checkoutResult instanceof SCheckoutResult) {
             return read.trim5Prime(checkoutResult.getMasterResult().getTo());
@@ -0,0 +1,322 @@
+/*
+ * Copyright 2014-2016 Mikhail Shugay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.antigenomics.mageri.core.input;
+
+import com.antigenomics.mageri.core.input.index.*;
+import com.antigenomics.mageri.core.mapping.kmer.ReferenceKmerFilter;
+import com.antigenomics.mageri.preprocessing.DemultiplexParameters;
+import com.milaboratory.core.sequence.nucleotide.NucleotideSequence;
+import com.milaboratory.util.Bit2Array;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * UMI index that was saved to disk after the checkout of a sample group. Reads are stored already groomed,
+ * so the checkout results are not kept. Read data is memory-mapped and decoded only when a MIG is taken.
+ */
+public final class UmiIndexCheckpoint {
+    private static final int MAGIC = 0x4d554d49, VERSION = 2;
+    private static final long SEGMENT_SIZE = 1L << 30;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final boolean pairedEnd;
+    private final long[] counters;
+    private final Map<String, Map<NucleotideSequence, List<ReadInfo>>> umiIndexBySample = new HashMap<>();
+
+    // Mapping state, used while the index is loaded
+    private FileChannel channel;
+    private ByteBuffer segment;
+    private long segmentOffset;
+
+    private UmiIndexCheckpoint(FileChannel channel, long offset) throws IOException {
+        this.channel = channel;
+        this.segment = ByteBuffer.allocate(0);
+        this.segmentOffset = offset;
+
+        this.pairedEnd = ensure(1).get() != 0;
+        this.counters = new long[ensure(4).getInt()];
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = ensure(8).getLong();
+        }
+
+        int numberOfSamples = ensure(4).getInt();
+        for (int i = 0; i < numberOfSamples; i++) {
+            String sampleName = readString();
+            int numberOfUmis = ensure(4).getInt();
+
+            // keep the order in which UMIs were written, so that MIGs are taken in the same order
+            Map<NucleotideSequence, List<ReadInfo>> umiIndex = new LinkedHashMap<>(numberOfUmis * 2);
+            for (int j = 0; j < numberOfUmis; j++) {
+                int umiLength = ensure(4).getInt();
+                byte[] umiData = new byte[(umiLength + 3) >> 2];
+                ensure(umiData.length).get(umiData);
+                NucleotideSequence umi = new NucleotideSequence(Bit2Array.construct(umiLength, umiData));
+
+                int numberOfReads = ensure(4).getInt(), size = ensure(4).getInt();
+                ByteBuffer data = ensure(size).slice();
+                data.limit(size);
+                segment.position(segment.position() + size);
+
+                umiIndex.put(umi, new MappedReadList(data, numberOfReads, pairedEnd));
+            }
+            umiIndexBySample.put(sampleName, umiIndex);
+        }
+
+        this.channel = null;
+        this.segment = null;
+    }
+
+    private ByteBuffer ensure(int length) throws IOException {
+        if (segment.remaining() < length) {
+            long offset = segmentOffset + segment.position();
+            segment = channel.map(FileChannel.MapMode.READ_ONLY, offset,
+                    Math.min(channel.size() - offset, Math.max(SEGMENT_SIZE, length)));
+            segmentOffset = offset;
+            if (segment.remaining() < length) {
+                throw new EOFException("UMI index checkpoint is truncated");
+            }
+        }
+        return segment;
+    }
+
+    private String readString() throws IOException {
+        byte[] bytes = new byte[ensure(4).getInt()];
+        ensure(bytes.length).get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    /**
+     * Loads UMI index checkpoint.
+     *
+     * @param file checkpoint file.
+     * @param key  key of the checkpoint, as generated by {@link #createKey}.
+     * @return loaded checkpoint, or null if the file doesn't exist or was created for other input or parameters.
+     * @throws IOException
+     */
+    public static UmiIndexCheckpoint load(File file, String key) throws IOException {
+        if (!file.exists())
+            return null;
+
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+            if (randomAccessFile.length() < 8 ||
+                    randomAccessFile.readInt() != MAGIC || randomAccessFile.readInt() != VERSION)
+                return null;
+
+            byte[] keyBytes = new byte[randomAccessFile.readInt()];
+            randomAccessFile.readFully(keyBytes);
+            if (!key.equals(new String(keyBytes, UTF8)))
+                return null;
+
+            return new UmiIndexCheckpoint(randomAccessFile.getChannel(), randomAccessFile.getFilePointer());
+        }
+    }
+
+    /**
+     * Creates a checkpoint key from input fingerprint and parameters that affect checkout and indexing.
+     * The key is a hash of a canonical text representation of these, so it doesn't depend on how
+     * parameter classes are serialized. Parameters that are only used after indexing,
+     * such as default/forced overseq, are not included.
+     *
+     * @param fingerprint            input fingerprint.
+     * @param checkoutKey            canonical representation of the checkout rule.
+     * @param demultiplexParameters  demultiplexing parameters.
+     * @param preprocessorParameters pre-processing parameters.
+     * @param readLimit              number of reads to take from input, -1 for all.
+     * @param referenceKmerFilter    off-target read filter, null if not used.
+     * @return checkpoint key.
+     */
+    public static String createKey(String fingerprint, String checkoutKey,
+                                   DemultiplexParameters demultiplexParameters,
+                                   PreprocessorParameters preprocessorParameters,
+                                   long readLimit, ReferenceKmerFilter referenceKmerFilter) {
+        StringBuilder canonical = new StringBuilder();
+        canonical.append("fingerprint=").append(fingerprint).append('\n');
+        canonical.append("checkout=").append(checkoutKey).append('\n');
+        canonical.append("orientedReads=").append(demultiplexParameters.orientedReads()).append('\n');
+        canonical.append("maxTruncations=").append(demultiplexParameters.getMaxTruncations()).append('\n');
+        canonical.append("maxGoodQualMMRatio=").append(demultiplexParameters.getMaxGoodQualMMRatio()).append('\n');
+        canonical.append("maxLowQualityMMRatio=").append(demultiplexParameters.getMaxLowQualityMMRatio()).append('\n');
+        canonical.append("lowQualityThreshold=").append(demultiplexParameters.getLowQualityThreshold()).append('\n');
+        canonical.append("umiQualThreshold=").append(preprocessorParameters.getUmiQualThreshold()).append('\n');
+        canonical.append("goodQualityThreshold=").append(preprocessorParameters.getGoodQualityThreshold()).append('\n');
+        canonical.append("trimAdapters=").append(preprocessorParameters.trimAdapters()).append('\n');
+        canonical.append("readLimit=").append(readLimit).append('\n');
+        if (referenceKmerFilter != null) {
+            canonical.append("k=").append(referenceKmerFilter.getK()).append('\n');
+            canonical.append("spacedKmers=").append(referenceKmerFilter.getUseSpacedKmers()).append('\n');
+            canonical.append("minReferenceKmerHits=").append(referenceKmerFilter.getMinHits()).append('\n');
+            canonical.append("references=").append(referenceKmerFilter.getReferenceFingerprint()).append('\n');
+        }
+
+        try {
+            MessageDigest messageDigest = MessageDigest.getInstance("SHA-1");
+            StringBuilder key = new StringBuilder();
+            for (byte b : messageDigest.digest(canonical.toString().getBytes(UTF8))) {
+                key.append(String.format("%02x", b));
+            }
+            return key.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public boolean isPairedEnd() {
+        return pairedEnd;
+    }
+
+    public long[] getCounters() {
+        return counters;
+    }
+
+    public Map<NucleotideSequence, List<ReadInfo>> getUmiIndex(String sampleName) {
+        Map<NucleotideSequence, List<ReadInfo>> umiIndex = umiIndexBySample.get(sampleName);
+        if (umiIndex == null)
+            throw new RuntimeException("Sample " + sampleName + " not found in UMI index checkpoint");
+        return umiIndex;
+    }
+
+    public static class Writer implements Closeable {
+        private final File file, tmpFile;
+        private final DataOutputStream outputStream;
+        private final boolean pairedEnd;
+        private final ByteArrayOutputStream readBuffer = new ByteArrayOutputStream();
+        private final DataOutputStream readOutput = new DataOutputStream(readBuffer);
+
+        public Writer(File file, String key, boolean pairedEnd, long[] counters,
+                      int numberOfSamples) throws IOException {
+            this.file = file;
+            this.pairedEnd = pairedEnd;
+
+            // Written to a temporary file first, so that an interrupted run doesn't leave a broken checkpoint
+            this.tmpFile = new File(file.getPath() + ".tmp");
+            this.outputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), 1 << 20));
+
+            outputStream.writeInt(MAGIC);
+            outputStream.writeInt(VERSION);
+            writeString(key);
+            outputStream.writeBoolean(pairedEnd);
+            outputStream.writeInt(counters.length);
+            for (long counter : counters) {
+                outputStream.writeLong(counter);
+            }
+            outputStream.writeInt(numberOfSamples);
+        }
+
+        private void writeString(String str) throws IOException {
+            byte[] bytes = str.getBytes(UTF8);
+            outputStream.writeInt(bytes.length);
+            outputStream.write(bytes);
+        }
+
+        public void startSample(String sampleName, int numberOfUmis) throws IOException {
+            writeString(sampleName);
+            outputStream.writeInt(numberOfUmis);
+        }
+
+        public void write(NucleotideSequence umi, List<ReadContainer> readContainers) throws IOException {
+            outputStream.writeInt(umi.size());
+            outputStream.write(Bit2Array.extractRawDataArray(umi.getInnerData()), 0, (umi.size() + 3) >> 2);
+
+            readBuffer.reset();
+            for (ReadContainer readContainer : readContainers) {
+                ((MaskedRead) readContainer.getFirst()).writeTo(readOutput);
+                if (pairedEnd) {
+                    ((MaskedRead) readContainer.getSecond()).writeTo(readOutput);
+                }
+            }
+
+            outputStream.writeInt(readContainers.size());
+            outputStream.writeInt(readBuffer.size());
+            readBuffer.writeTo(outputStream);
+        }
+
+        @Override
+        public void close() throws IOException {
+            outputStream.close();
+            if (file.exists() && !file.delete() || !tmpFile.renameTo(file))
+                throw new IOException("Failed to write UMI index checkpoint " + file);
+        }
+    }
+
+    // Reads of a single UMI, decoded from the mapped file upon iteration
+    private static class MappedReadList extends AbstractList<ReadInfo> {
+        private final ByteBuffer data;
+        private final int size;
+        private final boolean pairedEnd;
+
+        public MappedReadList(ByteBuffer data, int size, boolean pairedEnd) {
+            this.data = data;
+            this.size = size;
+            this.pairedEnd = pairedEnd;
+        }
+
+        @Override
+        public Iterator<ReadInfo> iterator() {
+            final ByteBuffer buffer = data.duplicate();
+
+            return new Iterator<ReadInfo>() {
+                int index = 0;
+
+                @Override
+                public boolean hasNext() {
+                    return index < size;
+                }
+
+                @Override
+                public ReadInfo next() {
+                    if (index++ >= size)
+                        throw new NoSuchElementException();
+
+                    Read read1 = MaskedRead.readFrom(buffer);
+                    // Reads are already groomed, so no checkout result is needed
+                    return new ReadInfo(pairedEnd ?
+                            new PairedReadContainer(read1, MaskedRead.readFrom(buffer)) :
+                            new SingleReadContainer(read1), null);
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+
+        @Override
+        public ReadInfo get(int index) {
+            if (index < 0 || index >= size)
+                throw new IndexOutOfBoundsException();
+
+            Iterator<ReadInfo> iterator = iterator();
+            for (int i = 0; i < index; i++) {
+                iterator.next();
+            }
+            return iterator.next();
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright 2014-2016 Mikhail Shugay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.antigenomics.mageri.core.input;
+
+import com.antigenomics.mageri.core.input.index.*;
+import com.milaboratory.core.sequence.nucleotide.NucleotideSequence;
+import com.milaboratory.util.Bit2Array;
+import org.apache.commons.io.FileUtils;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.*;
+
+/**
+ * UMI index that is spilled to disk. Reads are distributed to partitions by UMI hash, so that all reads
+ * of a given UMI end up in the same partition. Records of each sample and partition are collected into blocks
+ * that are appended to a single file, so a sample reads back only its own blocks, one partition at a time.
+ */
+final class UmiIndexPartitions {
+    private static final int BLOCK_SIZE = 65536;
+
+    private final File folder, file;
+    private final DataOutputStream outputStream;
+    private long fileSize = 0;
+    private final int numberOfPartitions;
+    private final boolean pairedEnd;
+    // Pending records and file offsets of written blocks, by sample and partition
+    private final ByteArrayOutputStream[][] blockBuffers;
+    private final List<Long>[][] blockOffsets;
+
+    @SuppressWarnings("unchecked")
+    public UmiIndexPartitions(String parentFolder, int numberOfPartitions, int numberOfSamples,
+                              boolean pairedEnd) throws IOException {
+        this.numberOfPartitions = numberOfPartitions;
+        this.pairedEnd = pairedEnd;
+
+        if (parentFolder != null) {
+            FileUtils.forceMkdir(new File(parentFolder));
+            this.folder = Files.createTempDirectory(new File(parentFolder).toPath(), "mageri-umi-index").toFile();
+        } else {
+            this.folder = Files.createTempDirectory("mageri-umi-index").toFile();
+        }
+        folder.deleteOnExit();
+        this.file = new File(folder, "partitions.bin");
+        file.deleteOnExit();
+        this.outputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BLOCK_SIZE));
+
+        this.blockBuffers = new ByteArrayOutputStream[numberOfSamples][numberOfPartitions];
+        this.blockOffsets = new List[numberOfSamples][numberOfPartitions];
+        for (int i = 0; i < numberOfSamples; i++) {
+            for (int j = 0; j < numberOfPartitions; j++) {
+                blockOffsets[i][j] = new ArrayList<>();
+            }
+        }
+    }
+
+    private int getPartition(NucleotideSequence umi) {
+        return (umi.hashCode() & Integer.MAX_VALUE) % numberOfPartitions;
+    }
+
+    // Record: UMI and groomed reads in compact form
+    public void write(int sampleId, NucleotideSequence umi, ReadContainer readContainer) throws IOException {
+        int partition = getPartition(umi);
+
+        ByteArrayOutputStream blockBuffer = blockBuffers[sampleId][partition];
+        if (blockBuffer == null)
+            blockBuffers[sampleId][partition] = blockBuffer = new ByteArrayOutputStream();
+
+        DataOutputStream recordOutput = new DataOutputStream(blockBuffer);
+        recordOutput.writeInt(umi.size());
+        recordOutput.write(Bit2Array.extractRawDataArray(umi.getInnerData()), 0, (umi.size() + 3) >> 2);
+        ((MaskedRead) readContainer.getFirst()).writeTo(recordOutput);
+        if (pairedEnd) {
+            ((MaskedRead) readContainer.getSecond()).writeTo(recordOutput);
+        }
+
+        if (blockBuffer.size() >= BLOCK_SIZE)
+            writeBlock(sampleId, partition);
+    }
+
+    // Block: size and records
+    private void writeBlock(int sampleId, int partition) throws IOException {
+        ByteArrayOutputStream blockBuffer = blockBuffers[sampleId][partition];
+        blockOffsets[sampleId][partition].add(fileSize);
+        outputStream.writeInt(blockBuffer.size());
+        blockBuffer.writeTo(outputStream);
+        fileSize += 4 + blockBuffer.size();
+        blockBuffer.reset();
+    }
+
+    public void finish() throws IOException {
+        for (int i = 0; i < blockBuffers.length; i++) {
+            for (int j = 0; j < numberOfPartitions; j++) {
+                if (blockBuffers[i][j] != null && blockBuffers[i][j].size() > 0)
+                    writeBlock(i, j);
+                blockBuffers[i][j] = null;
+            }
+        }
+        outputStream.close();
+    }
+
+    private Map<NucleotideSequence, List<ReadInfo>> load(int partition, int sampleId) throws IOException {
+        Map<NucleotideSequence, List<ReadInfo>> umiIndex = new LinkedHashMap<>();
+
+        try (RandomAccessFile inputFile = new RandomAccessFile(file, "r")) {
+            byte[] block = new byte[0];
+            for (long offset : blockOffsets[sampleId][partition]) {
+                inputFile.seek(offset);
+                int size = inputFile.readInt();
+                if (block.length < size)
+                    block = new byte[size];
+                inputFile.readFully(block, 0, size);
+                ByteBuffer buffer = ByteBuffer.wrap(block, 0, size);
+
+                while (buffer.hasRemaining()) {
+                    int umiLength = buffer.getInt();
+                    byte[] umiData = new byte[(umiLength + 3) >> 2];
+                    buffer.get(umiData);
+                    NucleotideSequence umi = new NucleotideSequence(Bit2Array.construct(umiLength, umiData));
+
+                    Read read1 = MaskedRead.readFrom(buffer);
+                    // Reads are already groomed, so no checkout result is needed
+                    ReadInfo readInfo = new ReadInfo(pairedEnd ?
+                            new PairedReadContainer(read1, MaskedRead.readFrom(buffer)) :
+                            new SingleReadContainer(read1), null);
+
+                    List<ReadInfo> readInfoList = umiIndex.get(umi);
+                    if (readInfoList == null)
+                        umiIndex.put(umi, readInfoList = new LinkedList<>());
+                    readInfoList.add(readInfo);
+                }
+            }
+        }
+
+        return umiIndex;
+    }
+
+    // Iterates over UMIs of a given sample, only one partition is held in memory
+    public Iterator<Map.Entry<NucleotideSequence, List<ReadInfo>>> iterator(final int sampleId) {
+        return new Iterator<Map.Entry<NucleotideSequence, List<ReadInfo>>>() {
+            int partition = 0;
+            Iterator<Map.Entry<NucleotideSequence, List<ReadInfo>>> current = null;
+
+            @Override
+            public boolean hasNext() {
+                while (current == null || !current.hasNext()) {
+                    current = null;
+                    if (partition == numberOfPartitions)
+                        return false;
+                    try {
+                        current = load(partition++, sampleId).entrySet().iterator();
+                    } catch (IOException e) {
+                        throw new RuntimeException("Failed to load UMI index partition", e);
+                    }
+                }
+                return true;
+            }
+
+            @Override
+            public Map.Entry<NucleotideSequence, List<ReadInfo>> next() {
+                if (!hasNext())
+                    throw new NoSuchElementException();
+                return current.next();
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    public void delete() {
+        FileUtils.deleteQuietly(folder);
+    }
+}
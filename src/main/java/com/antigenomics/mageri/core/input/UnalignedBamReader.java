@@ -0,0 +1,356 @@
+/*
+ * Copyright 2014-2016 Mikhail Shugay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.antigenomics.mageri.core.input;
+
+import cc.redberry.pipe.util.Chunk;
+import com.antigenomics.mageri.misc.ParallelGzipInputStream;
+import com.antigenomics.mageri.preprocessing.UmiTaggedRead;
+import com.milaboratory.core.sequence.NucleotideSQPair;
+import com.milaboratory.core.sequencing.read.PSequencingReadImpl;
+import com.milaboratory.core.sequencing.read.SSequencingRead;
+import com.milaboratory.core.sequencing.read.SSequencingReadImpl;
+import com.milaboratory.core.sequencing.read.SequencingRead;
+import htsjdk.samtools.*;
+import htsjdk.samtools.util.BinaryCodec;
+import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.samtools.util.StringLineReader;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+
+/**
+ * Reads unaligned BAM (or SAM) records into batches of reads, UMI is taken from RX/QX tags. BAM blocks are inflated
+ * in parallel and records are decoded on a pool of threads. Mates of paired-end reads should be adjacent, as in
+ * unaligned BAMs produced by Picard/fgbio tools, secondary and supplementary records are skipped.
+ * CRAM is rejected, as decoding it requires the reference the file was compressed against.
+ */
+public final class UnalignedBamReader extends BatchReader {
+    public static final String UMI_TAG = "RX", UMI_QUALITY_TAG = "QX";
+    // Used for UMIs lacking QX tag
+    public static final char DEFAULT_UMI_QUALITY = 'I';
+    private static final byte[] BAM_MAGIC = "BAM\1".getBytes(StandardCharsets.ISO_8859_1),
+            CRAM_MAGIC = "CRAM".getBytes(StandardCharsets.ISO_8859_1);
+
+    private final InputStream inputStream;
+    private final boolean pairedEnd;
+    private final int numberOfThreads;
+    private volatile RecordSource recordSource;
+
+    public UnalignedBamReader(InputStream inputStream, boolean pairedEnd, int numberOfThreads) {
+        this(inputStream, pairedEnd, numberOfThreads, ParallelFastqReader.DEFAULT_BATCH_SIZE);
+    }
+
+    public UnalignedBamReader(InputStream inputStream, boolean pairedEnd, int numberOfThreads, int batchSize) {
+        super("BAM", numberOfThreads, batchSize);
+        this.inputStream = inputStream;
+        this.pairedEnd = pairedEnd;
+        this.numberOfThreads = numberOfThreads;
+        start();
+    }
+
+    public boolean isPairedEnd() {
+        return pairedEnd;
+    }
+
+    // Checks the first primary record, used to tell paired-end input before reading it. The stream is closed
+    public static boolean isPairedEnd(InputStream inputStream) throws IOException {
+        try {
+            RecordSource recordSource = open(inputStream, 1);
+            try {
+                SAMRecord record;
+                while ((record = recordSource.next()) != null) {
+                    if (!record.isSecondaryOrSupplementary()) {
+                        return record.getReadPairedFlag();
+                    }
+                }
+                return false;
+            } finally {
+                recordSource.close();
+            }
+        } finally {
+            inputStream.close();
+        }
+    }
+
+    public static boolean isSamFile(String path) {
+        String lowerCasePath = path.toLowerCase();
+        // CRAM is recognized here to be rejected upon opening with a meaningful message
+        return lowerCasePath.endsWith(".bam") || lowerCasePath.endsWith(".cram") || lowerCasePath.endsWith(".sam");
+    }
+
+    @Override
+    protected void closeInput() throws IOException {
+        if (recordSource != null) {
+            recordSource.close();
+        }
+        inputStream.close();
+    }
+
+    @Override
+    protected void split() throws Exception {
+        recordSource = open(inputStream, numberOfThreads);
+
+        int recordsPerBatch = pairedEnd ? 2 * batchSize : batchSize;
+        SAMRecord[] records = new SAMRecord[recordsPerBatch];
+        int count = 0;
+        long id = 0;
+
+        SAMRecord record;
+        while (!closed && (record = recordSource.next()) != null) {
+            if (record.isSecondaryOrSupplementary()) {
+                continue;
+            }
+            if (record.getReadPairedFlag() != pairedEnd) {
+                throw new IOException("Input contains both single-end and paired-end records");
+            }
+
+            records[count++] = record;
+
+            if (count == recordsPerBatch) {
+                submit(records, count, id);
+                id += batchSize;
+                records = new SAMRecord[recordsPerBatch];
+                count = 0;
+            }
+        }
+
+        if (pairedEnd && count % 2 != 0) {
+            throw new IOException("Mate is missing for the last record");
+        }
+
+        if (count > 0) {
+            submit(records, count, id);
+        }
+    }
+
+    private void submit(final SAMRecord[] records, final int count, final long firstId) throws InterruptedException {
+        submit(new Callable<Chunk<SequencingRead>>() {
+            @Override
+            public Chunk<SequencingRead> call() throws Exception {
+                return pairedEnd ? parsePaired(records, count, firstId) : parseSingle(records, count, firstId);
+            }
+        });
+    }
+
+    private static Chunk<SequencingRead> parseSingle(SAMRecord[] records, int count, long firstId) {
+        SequencingRead[] reads = new SequencingRead[count];
+
+        for (int i = 0; i < count; i++) {
+            SAMRecord record = records[i];
+            reads[i] = new TaggedSingleRead(record.getReadName(), toSQPair(record), firstId + i, extractUmi(record));
+        }
+
+        return new Chunk<>(reads);
+    }
+
+    private static Chunk<SequencingRead> parsePaired(SAMRecord[] records, int count, long firstId) {
+        SequencingRead[] reads = new SequencingRead[count / 2];
+
+        for (int i = 0; i < reads.length; i++) {
+            SAMRecord record1 = records[2 * i], record2 = records[2 * i + 1];
+
+            String readName = record1.getReadName();
+            if (!readName.equals(record2.getReadName())) {
+                throw new RuntimeException("Mates are not adjacent: " + readName + ", " + record2.getReadName());
+            }
+
+            if (record1.getSecondOfPairFlag()) {
+                SAMRecord tmp = record1;
+                record1 = record2;
+                record2 = tmp;
+            }
+
+            NucleotideSQPair umi = extractUmi(record1);
+            if (umi == null) {
+                umi = extractUmi(record2);
+            }
+
+            long id = firstId + i;
+            reads[i] = new TaggedPairedRead(new SSequencingReadImpl(readName, toSQPair(record1), id),
+                    new SSequencingReadImpl(readName, toSQPair(record2), id),
+                    umi);
+        }
+
+        return new Chunk<>(reads);
+    }
+
+    // Reads are reported as sequenced
+    private static NucleotideSQPair toSQPair(SAMRecord record) {
+        byte[] bases = record.getReadBases(), qualities = record.getBaseQualities();
+
+        if (qualities.length != bases.length) {
+            throw new RuntimeException("No base qualities for " + record.getReadName());
+        }
+
+        return toSQPair(bases, 0, qualities, 0, 0, bases.length, record.getReadNegativeStrandFlag());
+    }
+
+    // RX holds UMI sequence, multiple UMIs are separated by hyphen. QX has separators at the same positions
+    static NucleotideSQPair extractUmi(SAMRecord record) {
+        String umi = record.getStringAttribute(UMI_TAG);
+
+        if (umi == null) {
+            return null;
+        }
+
+        String umiQuality = record.getStringAttribute(UMI_QUALITY_TAG);
+
+        if (umiQuality != null && umiQuality.length() != umi.length()) {
+            throw new RuntimeException("UMI quality (" + UMI_QUALITY_TAG + ") doesn't match UMI (" + UMI_TAG +
+                    ") for " + record.getReadName());
+        }
+
+        StringBuilder sequence = new StringBuilder(umi.length()),
+                quality = new StringBuilder(umi.length());
+
+        for (int i = 0; i < umi.length(); i++) {
+            char symbol = umi.charAt(i);
+            if (symbol != '-') {
+                sequence.append(symbol);
+                quality.append(umiQuality == null ? DEFAULT_UMI_QUALITY : umiQuality.charAt(i));
+            }
+        }
+
+        return new NucleotideSQPair(sequence.toString(), quality.toString());
+    }
+
+    private static RecordSource open(InputStream inputStream, int numberOfThreads) throws IOException {
+        BufferedInputStream bufferedInputStream = new BufferedInputStream(inputStream);
+
+        byte[] magic = new byte[CRAM_MAGIC.length];
+        bufferedInputStream.mark(magic.length);
+        int length = 0, count;
+        while (length < magic.length && (count = bufferedInputStream.read(magic, length, magic.length - length)) >= 0) {
+            length += count;
+        }
+        bufferedInputStream.reset();
+
+        if (length == magic.length && Arrays.equals(magic, CRAM_MAGIC)) {
+            throw new IOException("CRAM input is not supported as it can't be decoded without the reference " +
+                    "it was compressed against, convert it to unaligned BAM first (e.g. samtools view -b).");
+        }
+
+        // BAM is BGZF-compressed, otherwise let htsjdk figure out the format (SAM)
+        boolean compressed = length >= 2 && (magic[0] & 0xFF) == 0x1f && (magic[1] & 0xFF) == 0x8b;
+        return compressed ? new BamRecordSource(new ParallelGzipInputStream(bufferedInputStream, numberOfThreads)) :
+                new SamReaderRecordSource(SamReaderFactory.makeDefault()
+                        .validationStringency(ValidationStringency.SILENT)
+                        .open(SamInputResource.of(bufferedInputStream)));
+    }
+
+    private interface RecordSource {
+        // Returns null at the end of input
+        SAMRecord next() throws IOException;
+
+        void close() throws IOException;
+    }
+
+    // Decodes BAM records straight from the inflated stream, record fields are decoded lazily,
+    // i.e. on the threads that convert records to reads
+    private static final class BamRecordSource implements RecordSource {
+        final InputStream inputStream;
+        final BAMRecordCodec recordCodec;
+
+        BamRecordSource(InputStream inputStream) throws IOException {
+            this.inputStream = inputStream;
+
+            BinaryCodec binaryCodec = new BinaryCodec(inputStream);
+            byte[] magic = new byte[BAM_MAGIC.length];
+            binaryCodec.readBytes(magic);
+            if (!Arrays.equals(magic, BAM_MAGIC)) {
+                throw new IOException("Not a BAM file");
+            }
+
+            String headerText = binaryCodec.readString(binaryCodec.readInt());
+            SAMFileHeader header = new SAMTextHeaderCodec().decode(new StringLineReader(headerText), null);
+
+            // Reference dictionary, not used for unaligned reads
+            int referenceCount = binaryCodec.readInt();
+            for (int i = 0; i < referenceCount; i++) {
+                binaryCodec.readString(binaryCodec.readInt());
+                binaryCodec.readInt();
+            }
+
+            this.recordCodec = new BAMRecordCodec(header);
+            recordCodec.setInputStream(inputStream);
+        }
+
+        @Override
+        public SAMRecord next() {
+            return recordCodec.decode();
+        }
+
+        @Override
+        public void close() throws IOException {
+            inputStream.close();
+        }
+    }
+
+    private static final class SamReaderRecordSource implements RecordSource {
+        final SamReader samReader;
+        final CloseableIterator<SAMRecord> iterator;
+
+        SamReaderRecordSource(SamReader samReader) {
+            this.samReader = samReader;
+            this.iterator = samReader.iterator();
+        }
+
+        @Override
+        public SAMRecord next() {
+            return iterator.hasNext() ? iterator.next() : null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            iterator.close();
+            samReader.close();
+        }
+    }
+
+    private static final class TaggedSingleRead extends SSequencingReadImpl implements UmiTaggedRead {
+        private final NucleotideSQPair umi;
+
+        TaggedSingleRead(String description, NucleotideSQPair data, long id, NucleotideSQPair umi) {
+            super(description, data, id);
+            this.umi = umi;
+        }
+
+        @Override
+        public NucleotideSQPair getUmi() {
+            return umi;
+        }
+    }
+
+    private static final class TaggedPairedRead extends PSequencingReadImpl implements UmiTaggedRead {
+        private final NucleotideSQPair umi;
+
+        TaggedPairedRead(SSequencingRead read1, SSequencingRead read2, NucleotideSQPair umi) {
+            super(read1, read2);
+            this.umi = umi;
+        }
+
+        @Override
+        public NucleotideSQPair getUmi() {
+            return umi;
+        }
+    }
+}
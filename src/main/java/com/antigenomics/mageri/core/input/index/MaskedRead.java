@@ -22,7 +22,12 @@ import com.milaboratory.core.sequence.nucleotide.NucleotideSequence;
 import com.milaboratory.core.sequence.nucleotide.NucleotideSequenceBuilder;
 import com.milaboratory.core.sequence.quality.SequenceQualityPhred;
 import com.milaboratory.core.sequence.quality.SequenceQualityUtils;
+import com.milaboratory.util.Bit2Array;
 
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.BitSet;
 import java.util.Random;
 
@@ -113,4 +118,21 @@ public class MaskedRead implements Read {
     public int length() {
         return sequence.size();
     }
+
+    // Compact binary form: length, 2-bit packed bases and quality mask bits
+    public void writeTo(DataOutput output) throws IOException {
+        int length = length();
+        output.writeInt(length);
+        output.write(Bit2Array.extractRawDataArray(sequence.getInnerData()), 0, (length + 3) >> 2);
+        output.write(Arrays.copyOf(qualityMask.toByteArray(), (length + 7) >> 3));
+    }
+
+    public static MaskedRead readFrom(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        byte[] sequenceData = new byte[(length + 3) >> 2], maskData = new byte[(length + 7) >> 3];
+        buffer.get(sequenceData);
+        buffer.get(maskData);
+        return new MaskedRead(new NucleotideSequence(Bit2Array.construct(length, sequenceData)),
+                BitSet.valueOf(maskData));
+    }
 }
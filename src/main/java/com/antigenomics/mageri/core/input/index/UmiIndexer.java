@@ -17,6 +17,7 @@
 package com.antigenomics.mageri.core.input.index;
 
 import cc.redberry.pipe.Processor;
+import com.antigenomics.mageri.core.mapping.kmer.ReferenceKmerFilter;
 import com.antigenomics.mageri.preprocessing.CheckoutProcessor;
 import com.antigenomics.mageri.preprocessing.CheckoutResult;
 import com.milaboratory.core.sequence.nucleotide.NucleotideSequence;
@@ -27,13 +28,22 @@ public class UmiIndexer implements Processor<SequencingRead, ProcessorResultWrap
     private final CheckoutProcessor checkoutProcessor;
     private final byte umiQualityThreshold;
     private final ReadWrappingFactory readWrappingFactory;
+    private final ReferenceKmerFilter referenceKmerFilter;
 
     public UmiIndexer(CheckoutProcessor checkoutProcessor,
                       byte umiQualityThreshold,
                       ReadWrappingFactory readWrappingFactory) {
+        this(checkoutProcessor, umiQualityThreshold, readWrappingFactory, null);
+    }
+
+    public UmiIndexer(CheckoutProcessor checkoutProcessor,
+                      byte umiQualityThreshold,
+                      ReadWrappingFactory readWrappingFactory,
+                      ReferenceKmerFilter referenceKmerFilter) {
         this.checkoutProcessor = checkoutProcessor;
         this.umiQualityThreshold = umiQualityThreshold;
         this.readWrappingFactory = readWrappingFactory;
+        this.referenceKmerFilter = referenceKmerFilter;
     }
 
     @SuppressWarnings("unchecked")
@@ -42,6 +52,12 @@ public class UmiIndexer implements Processor<SequencingRead, ProcessorResultWrap
         CheckoutResult result = checkoutProcessor.checkout(milibRead);
 
         if (result != null && result.isGood(umiQualityThreshold)) {
+            // Drop reads that won't map before they are stored in the index
+            if (referenceKmerFilter != null && referenceKmerFilter.isOffTarget(milibRead)) {
+                checkoutProcessor.countOffTarget(result);
+                return ProcessorResultWrapper.BLANK;
+            }
+
             String sampleName = result.getSampleName();
             NucleotideSequence umi = result.getUmi();
             ReadContainer readContainer = readWrappingFactory.wrap(milibRead);
@@ -21,6 +21,7 @@ import com.antigenomics.mageri.core.input.PMigReader;
 import com.antigenomics.mageri.core.input.PreprocessorParameters;
 import com.antigenomics.mageri.core.input.index.PairedReadContainer;
 import com.antigenomics.mageri.core.input.index.ReadContainer;
+import com.antigenomics.mageri.core.mapping.kmer.ReferenceKmerFilter;
 import com.antigenomics.mageri.preprocessing.CheckoutProcessor;
 import com.antigenomics.mageri.preprocessing.CheckoutResult;
 import com.milaboratory.core.sequencing.read.SequencingRead;
@@ -28,11 +29,19 @@ import com.milaboratory.core.sequencing.read.SequencingRead;
 public class PRawReadProcessor implements Processor<SequencingRead, IndexedReadContainer> {
     private final CheckoutProcessor checkoutProcessor;
     private final PreprocessorParameters preprocessorParameters;
+    private final ReferenceKmerFilter referenceKmerFilter;
 
     public PRawReadProcessor(CheckoutProcessor checkoutProcessor,
                              PreprocessorParameters preprocessorParameters) {
+        this(checkoutProcessor, preprocessorParameters, null);
+    }
+
+    public PRawReadProcessor(CheckoutProcessor checkoutProcessor,
+                             PreprocessorParameters preprocessorParameters,
+                             ReferenceKmerFilter referenceKmerFilter) {
         this.checkoutProcessor = checkoutProcessor;
         this.preprocessorParameters = preprocessorParameters;
+        this.referenceKmerFilter = referenceKmerFilter;
     }
 
     @SuppressWarnings("unchecked")
@@ -45,6 +54,11 @@ public class PRawReadProcessor implements Processor<SequencingRead, IndexedReadC
         CheckoutResult result = checkoutProcessor.checkout(milibRead);
 
         if (result != null) {
+            if (referenceKmerFilter != null && referenceKmerFilter.isOffTarget(milibRead)) {
+                checkoutProcessor.countOffTarget(result);
+                return new IndexedReadContainer(null, null);
+            }
+
             String sampleName = result.getSampleName();
 
             ReadContainer readContainer = PMigReader.groom(
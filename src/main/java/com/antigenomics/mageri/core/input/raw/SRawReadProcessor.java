@@ -20,6 +20,7 @@ import cc.redberry.pipe.Processor;
 import com.antigenomics.mageri.core.input.PreprocessorParameters;
 import com.antigenomics.mageri.core.input.SMigReader;
 import com.antigenomics.mageri.core.input.index.*;
+import com.antigenomics.mageri.core.mapping.kmer.ReferenceKmerFilter;
 import com.antigenomics.mageri.preprocessing.CheckoutProcessor;
 import com.antigenomics.mageri.preprocessing.CheckoutResult;
 import com.milaboratory.core.sequencing.read.SequencingRead;
@@ -27,11 +28,19 @@ import com.milaboratory.core.sequencing.read.SequencingRead;
 public class SRawReadProcessor implements Processor<SequencingRead, IndexedReadContainer> {
     private final CheckoutProcessor checkoutProcessor;
     private final PreprocessorParameters preprocessorParameters;
+    private final ReferenceKmerFilter referenceKmerFilter;
 
     public SRawReadProcessor(CheckoutProcessor checkoutProcessor,
                              PreprocessorParameters preprocessorParameters) {
+        this(checkoutProcessor, preprocessorParameters, null);
+    }
+
+    public SRawReadProcessor(CheckoutProcessor checkoutProcessor,
+                             PreprocessorParameters preprocessorParameters,
+                             ReferenceKmerFilter referenceKmerFilter) {
         this.checkoutProcessor = checkoutProcessor;
         this.preprocessorParameters = preprocessorParameters;
+        this.referenceKmerFilter = referenceKmerFilter;
     }
 
     @Override
@@ -44,6 +53,11 @@ public class SRawReadProcessor implements Processor<SequencingRead, IndexedReadC
         CheckoutResult result = checkoutProcessor.checkout(milibRead);
 
         if (result != null) {
+            if (referenceKmerFilter != null && referenceKmerFilter.isOffTarget(milibRead)) {
+                checkoutProcessor.countOffTarget(result);
+                return new IndexedReadContainer(null, null);
+            }
+
             String sampleName = result.getSampleName();
 
             Read read = SMigReader.groom(new RawRead(milibRead.getData(0), milibRead.id()),
@@ -0,0 +1,257 @@
+/*
+ * Copyright 2014-2016 Mikhail Shugay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.antigenomics.mageri.core.mapping;
+
+import com.antigenomics.mageri.core.genomic.Reference;
+import com.antigenomics.mageri.core.genomic.ReferenceLibrary;
+import com.antigenomics.mageri.core.mapping.alignment.AlignmentResult;
+import com.antigenomics.mageri.core.mutations.Mutation;
+import com.antigenomics.mageri.core.mutations.MutationArray;
+import com.antigenomics.mageri.pipeline.analysis.Sample;
+import com.milaboratory.core.sequence.NucleotideSQPair;
+import com.milaboratory.core.sequence.Range;
+import com.milaboratory.core.sequence.alignment.LocalAlignment;
+import com.milaboratory.core.sequence.nucleotide.NucleotideSequence;
+import com.milaboratory.core.sequence.quality.SequenceQualityPhred;
+import com.milaboratory.util.Bit2Array;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compact field-by-field encoding of aligned consensuses used by binary analysis output.
+ * Sample and references are not stored, they are restored from the enclosing sample analysis
+ * and its reference library.
+ */
+public final class AlignedConsensusCodec {
+    public static final int VERSION = 1;
+    private static final byte SINGLE = 0, PAIRED = 1;
+
+    private AlignedConsensusCodec() {
+    }
+
+    public static void writeAll(DataOutput output, List<AlignedConsensus> alignedConsensuses) throws IOException {
+        output.writeInt(VERSION);
+        output.writeInt(alignedConsensuses.size());
+        for (AlignedConsensus alignedConsensus : alignedConsensuses) {
+            write(output, alignedConsensus);
+        }
+    }
+
+    public static List<AlignedConsensus> readAll(DataInput input, Sample sample,
+                                                 ReferenceLibrary referenceLibrary) throws IOException {
+        int version = input.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported aligned consensus encoding version " + version + ".");
+        }
+
+        int size = input.readInt();
+        List<AlignedConsensus> alignedConsensuses = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            alignedConsensuses.add(read(input, sample, referenceLibrary));
+        }
+
+        return alignedConsensuses;
+    }
+
+    public static void write(DataOutput output, AlignedConsensus alignedConsensus) throws IOException {
+        if (alignedConsensus instanceof SAlignedConsensus) {
+            SAlignedConsensus sAlignedConsensus = (SAlignedConsensus) alignedConsensus;
+            output.writeByte(SINGLE);
+            writeSequence(output, sAlignedConsensus.getUmi());
+            writeSQPair(output, sAlignedConsensus.getConsensusSQPair());
+            writeAlignmentResult(output, sAlignedConsensus.getAlignmentResult(),
+                    sAlignedConsensus.getConsensusSQPair().getSequence());
+            writeMutations(output, sAlignedConsensus.getMutations());
+        } else {
+            PAlignedConsensus pAlignedConsensus = (PAlignedConsensus) alignedConsensus;
+            output.writeByte(PAIRED);
+            writeSequence(output, pAlignedConsensus.getUmi());
+            writeSQPair(output, pAlignedConsensus.getConsensusSQPair1());
+            writeSQPair(output, pAlignedConsensus.getConsensusSQPair2());
+            writeAlignmentResult(output, pAlignedConsensus.getAlignmentResult1(),
+                    pAlignedConsensus.getConsensusSQPair1().getSequence());
+            writeAlignmentResult(output, pAlignedConsensus.getAlignmentResult2(),
+                    pAlignedConsensus.getConsensusSQPair2().getSequence());
+            writeMutations(output, pAlignedConsensus.getMutations1());
+            writeMutations(output, pAlignedConsensus.getMutations2());
+        }
+    }
+
+    public static AlignedConsensus read(DataInput input, Sample sample,
+                                        ReferenceLibrary referenceLibrary) throws IOException {
+        byte type = input.readByte();
+        NucleotideSequence umi = readSequence(input);
+
+        switch (type) {
+            case SINGLE:
+                NucleotideSQPair consensusSQPair = readSQPair(input);
+                AlignmentResult alignmentResult = readAlignmentResult(input, referenceLibrary,
+                        consensusSQPair.getSequence());
+                return new SAlignedConsensus(sample, umi, consensusSQPair, alignmentResult,
+                        readMutations(input, referenceLibrary));
+            case PAIRED:
+                NucleotideSQPair consensusSQPair1 = readSQPair(input),
+                        consensusSQPair2 = readSQPair(input);
+                AlignmentResult alignmentResult1 = readAlignmentResult(input, referenceLibrary,
+                        consensusSQPair1.getSequence()),
+                        alignmentResult2 = readAlignmentResult(input, referenceLibrary,
+                                consensusSQPair2.getSequence());
+                MutationArray mutations1 = readMutations(input, referenceLibrary),
+                        mutations2 = readMutations(input, referenceLibrary);
+                return new PAlignedConsensus(sample, umi, consensusSQPair1, consensusSQPair2,
+                        alignmentResult1, alignmentResult2, mutations1, mutations2);
+            default:
+                throw new IOException("Unknown aligned consensus type " + type);
+        }
+    }
+
+    private static void writeSequence(DataOutput output, NucleotideSequence sequence) throws IOException {
+        sequence.getInnerData().writeTo(output);
+    }
+
+    private static NucleotideSequence readSequence(DataInput input) throws IOException {
+        return new NucleotideSequence(Bit2Array.readFrom(input));
+    }
+
+    private static void writeSQPair(DataOutput output, NucleotideSQPair sqPair) throws IOException {
+        writeSequence(output, sqPair.getSequence());
+        // quality length always matches that of the sequence
+        output.write(sqPair.getQuality().getInnerData());
+    }
+
+    private static NucleotideSQPair readSQPair(DataInput input) throws IOException {
+        NucleotideSequence sequence = readSequence(input);
+        byte[] quality = new byte[sequence.size()];
+        input.readFully(quality);
+        return new NucleotideSQPair(sequence, new SequenceQualityPhred(quality));
+    }
+
+    private static void writeRange(DataOutput output, Range range) throws IOException {
+        output.writeInt(range.getFrom());
+        output.writeInt(range.getTo());
+        output.writeBoolean(range.isReverse());
+    }
+
+    private static Range readRange(DataInput input) throws IOException {
+        return new Range(input.readInt(), input.readInt(), input.readBoolean());
+    }
+
+    private static void writeCodes(DataOutput output, int[] codes) throws IOException {
+        output.writeInt(codes.length);
+        for (int code : codes) {
+            output.writeInt(code);
+        }
+    }
+
+    private static int[] readCodes(DataInput input) throws IOException {
+        int[] codes = new int[input.readInt()];
+        for (int i = 0; i < codes.length; i++) {
+            codes[i] = input.readInt();
+        }
+        return codes;
+    }
+
+    private static void writeAlignmentResult(DataOutput output, AlignmentResult alignmentResult,
+                                             NucleotideSequence consensus) throws IOException {
+        output.writeBoolean(alignmentResult != null);
+        if (alignmentResult == null) {
+            return;
+        }
+
+        output.writeInt(alignmentResult.getReference().getIndex());
+        output.writeBoolean(alignmentResult.isReverseComplement());
+        output.writeBoolean(alignmentResult.isGood());
+        output.writeByte(alignmentResult.getScore());
+
+        // Query is the consensus sequence as aligned, store it only if it cannot be restored this way
+        NucleotideSequence query = alignmentResult.getQuery();
+        boolean restorable = query.equals(alignmentResult.isReverseComplement() ?
+                consensus.getReverseComplement() : consensus);
+        output.writeBoolean(restorable);
+        if (!restorable) {
+            writeSequence(output, query);
+        }
+
+        LocalAlignment alignment = alignmentResult.getAlignment();
+        writeRange(output, alignment.getSequence1Range());
+        writeRange(output, alignment.getSequence2Range());
+        output.writeFloat(alignment.getScore());
+        writeCodes(output, alignment.getMutations());
+    }
+
+    private static AlignmentResult readAlignmentResult(DataInput input, ReferenceLibrary referenceLibrary,
+                                                       NucleotideSequence consensus) throws IOException {
+        if (!input.readBoolean()) {
+            return null;
+        }
+
+        Reference reference = referenceLibrary.getAt(input.readInt());
+        boolean reverseComplement = input.readBoolean(), good = input.readBoolean();
+        byte score = input.readByte();
+
+        NucleotideSequence query = input.readBoolean() ?
+                (reverseComplement ? consensus.getReverseComplement() : consensus) :
+                readSequence(input);
+
+        Range sequence1Range = readRange(input), sequence2Range = readRange(input);
+        float alignmentScore = input.readFloat();
+        LocalAlignment alignment = new LocalAlignment(sequence1Range, sequence2Range,
+                readCodes(input), alignmentScore, true);
+
+        return new AlignmentResult(query, reference, alignment, reverseComplement, score, good);
+    }
+
+    private static void writeMutations(DataOutput output, MutationArray mutationArray) throws IOException {
+        output.writeBoolean(mutationArray != null);
+        if (mutationArray == null) {
+            return;
+        }
+
+        // Mutations are re-assembled from codes upon reading, the same way they were created
+        output.writeInt(((Reference) mutationArray.getReference()).getIndex());
+        writeCodes(output, mutationArray.getMutationCodes(false));
+
+        List<Mutation> mutations = mutationArray.getMutations();
+        output.writeInt(mutationArray.getNumberOfFiltered());
+        for (int i = 0; i < mutations.size(); i++) {
+            if (mutations.get(i).isFiltered()) {
+                output.writeInt(i);
+            }
+        }
+    }
+
+    private static MutationArray readMutations(DataInput input, ReferenceLibrary referenceLibrary) throws IOException {
+        if (!input.readBoolean()) {
+            return null;
+        }
+
+        MutationArray mutationArray = new MutationArray(referenceLibrary.getAt(input.readInt()), readCodes(input));
+
+        List<Mutation> mutations = mutationArray.getMutations();
+        int numberOfFiltered = input.readInt();
+        for (int i = 0; i < numberOfFiltered; i++) {
+            mutations.get(input.readInt()).filter();
+        }
+
+        return mutationArray;
+    }
+}
@@ -32,6 +32,8 @@ import com.antigenomics.mageri.core.mutations.MutationsExtractor;
 import com.antigenomics.mageri.misc.ProcessorResultWrapper;
 import com.antigenomics.mageri.pipeline.Speaker;
 
+import java.io.IOException;
+import java.io.Writer;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
@@ -52,9 +54,14 @@ public abstract class ConsensusAligner<ConsensusType extends Consensus, AlignedC
     protected boolean cleared = false;
 
     protected ConsensusAligner(Aligner aligner, ConsensusAlignerParameters parameters) {
+        this(aligner, aligner.getReferenceLibrary(), parameters);
+    }
+
+    // Aligner is null if restored from binary output, see ConsensusAlignerCodec
+    ConsensusAligner(Aligner aligner, ReferenceLibrary referenceLibrary, ConsensusAlignerParameters parameters) {
         super("mapper");
         this.aligner = aligner;
-        this.referenceLibrary = aligner.getReferenceLibrary();
+        this.referenceLibrary = referenceLibrary;
         this.parameters = parameters;
         for (Reference reference : referenceLibrary.getReferences()) {
             alignerTableByReference.put(reference, new MutationsTable(reference));
@@ -173,10 +180,11 @@ public abstract class ConsensusAligner<ConsensusType extends Consensus, AlignedC
     }
 
     @Override
-    public String getBody() {
+    public void writeBody(Writer writer) throws IOException {
         if (cleared) {
             Speaker.INSTANCE.sout("WARNING: Calling output for Aligner that was cleared", 1);
-            return "Was cleared..";
+            writer.write("Was cleared..");
+            return;
         }
 
         StringBuilder stringBuilder = new StringBuilder();
@@ -200,9 +208,10 @@ public abstract class ConsensusAligner<ConsensusType extends Consensus, AlignedC
                     }
 
                     stringBuilder.append(major).append(minor).append(cqs).append("\n");
+                    writer.append(stringBuilder);
+                    stringBuilder.setLength(0);
                 }
             }
         }
-        return stringBuilder.toString();
     }
 }
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2014-2016 Mikhail Shugay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.antigenomics.mageri.core.mapping;
+
+import com.antigenomics.mageri.core.genomic.Reference;
+import com.antigenomics.mageri.core.genomic.ReferenceLibrary;
+import com.antigenomics.mageri.core.mutations.Mutation;
+import com.antigenomics.mageri.core.mutations.MutationCodec;
+import com.antigenomics.mageri.misc.Basics;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Encoding of consensus aligner statistics and mutation tables used by binary analysis output.
+ * Only tables of references that were updated are stored. Restored aligners hold no k-mer aligner,
+ * they are only used to access statistics.
+ */
+public final class ConsensusAlignerCodec {
+    public static final int VERSION = 1;
+
+    private ConsensusAlignerCodec() {
+    }
+
+    public static void write(DataOutput output, ConsensusAligner consensusAligner) throws IOException {
+        output.writeInt(VERSION);
+        output.writeBoolean(consensusAligner.isPairedEnd());
+        Basics.writeParameters(output, consensusAligner.getParameters());
+
+        output.writeInt(consensusAligner.totalMigs.get());
+        output.writeInt(consensusAligner.alignedMigs.get());
+        output.writeInt(consensusAligner.goodAlignmentMigs.get());
+        output.writeInt(consensusAligner.skippedMigs.get());
+        output.writeInt(consensusAligner.chimericMigs.get());
+        output.writeBoolean(consensusAligner.cleared);
+
+        List<MutationsTable> mutationsTables = new ArrayList<>();
+        for (Reference reference : consensusAligner.getReferenceLibrary().getReferences()) {
+            MutationsTable mutationsTable = consensusAligner.getAlignerTable(reference);
+            if (mutationsTable != null && mutationsTable.wasUpdated()) {
+                mutationsTables.add(mutationsTable);
+            }
+        }
+
+        output.writeInt(mutationsTables.size());
+        for (MutationsTable mutationsTable : mutationsTables) {
+            writeMutationsTable(output, mutationsTable);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public static ConsensusAligner read(DataInput input, ReferenceLibrary referenceLibrary) throws IOException {
+        int version = input.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported consensus aligner encoding version " + version + ".");
+        }
+
+        boolean pairedEnd = input.readBoolean();
+        ConsensusAlignerParameters parameters = ConsensusAlignerParameters.fromXml(Basics.readParameters(input));
+        ConsensusAligner consensusAligner = pairedEnd ?
+                new PConsensusAligner(referenceLibrary, parameters) :
+                new SConsensusAligner(referenceLibrary, parameters);
+
+        consensusAligner.totalMigs.set(input.readInt());
+        consensusAligner.alignedMigs.set(input.readInt());
+        consensusAligner.goodAlignmentMigs.set(input.readInt());
+        consensusAligner.skippedMigs.set(input.readInt());
+        consensusAligner.chimericMigs.set(input.readInt());
+        if (input.readBoolean()) {
+            consensusAligner.clear();
+        }
+
+        int numberOfTables = input.readInt();
+        for (int i = 0; i < numberOfTables; i++) {
+            MutationsTable mutationsTable = readMutationsTable(input, referenceLibrary);
+            consensusAligner.alignerTableByReference.put(mutationsTable.getReference(), mutationsTable);
+        }
+
+        return consensusAligner;
+    }
+
+    private static void writeMutationsTable(DataOutput output, MutationsTable mutationsTable) throws IOException {
+        output.writeInt(mutationsTable.getReference().getIndex());
+        output.writeInt(mutationsTable.migCount.get());
+
+        // Matrix sizes are restored from reference length
+        writeMatrix(output, mutationsTable.majorMigs);
+        writeMatrix(output, mutationsTable.minorMigs);
+        for (int i = 0; i < mutationsTable.qualitySum.qualitySum.length(); i++) {
+            output.writeLong(mutationsTable.qualitySum.qualitySum.get(i));
+        }
+
+        output.writeInt(mutationsTable.mutationsWithCount.size());
+        for (Map.Entry<Mutation, AtomicInteger> entry : mutationsTable.mutationsWithCount.entrySet()) {
+            MutationCodec.write(output, entry.getKey());
+            output.writeInt(entry.getValue().get());
+        }
+    }
+
+    private static MutationsTable readMutationsTable(DataInput input,
+                                                     ReferenceLibrary referenceLibrary) throws IOException {
+        MutationsTable mutationsTable = new MutationsTable(referenceLibrary.getAt(input.readInt()));
+        mutationsTable.migCount.set(input.readInt());
+
+        readMatrix(input, mutationsTable.majorMigs);
+        readMatrix(input, mutationsTable.minorMigs);
+        for (int i = 0; i < mutationsTable.qualitySum.qualitySum.length(); i++) {
+            mutationsTable.qualitySum.qualitySum.set(i, input.readLong());
+        }
+
+        int numberOfMutations = input.readInt();
+        for (int i = 0; i < numberOfMutations; i++) {
+            Mutation mutation = MutationCodec.read(input);
+            mutationsTable.mutationsWithCount.put(mutation, new AtomicInteger(input.readInt()));
+        }
+
+        return mutationsTable;
+    }
+
+    private static void writeMatrix(DataOutput output, NucleotideMatrix matrix) throws IOException {
+        for (int i = 0; i < matrix.matrixArray.length(); i++) {
+            output.writeInt(matrix.matrixArray.get(i));
+        }
+    }
+
+    private static void readMatrix(DataInput input, NucleotideMatrix matrix) throws IOException {
+        for (int i = 0; i < matrix.matrixArray.length(); i++) {
+            matrix.matrixArray.set(i, input.readInt());
+        }
+    }
+}
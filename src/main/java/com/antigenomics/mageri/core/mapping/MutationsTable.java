@@ -32,10 +32,10 @@ import java.util.concurrent.atomic.AtomicInteger;
 
 public final class MutationsTable implements Serializable {
     private final Reference reference;
-    private final AtomicInteger migCount;
-    private final NucleotideMatrix majorMigs, minorMigs;
-    private final QualitySumMatrix qualitySum;
-    private final ConcurrentHashMap<Mutation, AtomicInteger> mutationsWithCount;
+    final AtomicInteger migCount;
+    final NucleotideMatrix majorMigs, minorMigs;
+    final QualitySumMatrix qualitySum;
+    final ConcurrentHashMap<Mutation, AtomicInteger> mutationsWithCount;
 
     public MutationsTable(Reference reference) {
         this.reference = reference;
@@ -45,6 +45,10 @@ public final class PConsensusAligner extends ConsensusAligner<PConsensus, Aligne
         super(new ExtendedKmerAligner(referenceLibrary), ConsensusAlignerParameters.DEFAULT);
     }
 
+    PConsensusAligner(ReferenceLibrary referenceLibrary, ConsensusAlignerParameters parameters) {
+        super(null, referenceLibrary, parameters);
+    }
+
     @Override
     public AlignedConsensus align(PConsensus pConsensus) {
         SConsensus consensus1 = pConsensus.getConsensus1(),
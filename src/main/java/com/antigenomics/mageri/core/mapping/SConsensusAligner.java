@@ -38,6 +38,10 @@ public final class SConsensusAligner extends ConsensusAligner<SConsensus, SAlign
         super(new ExtendedKmerAligner(referenceLibrary), ConsensusAlignerParameters.DEFAULT);
     }
 
+    SConsensusAligner(ReferenceLibrary referenceLibrary, ConsensusAlignerParameters parameters) {
+        super(null, referenceLibrary, parameters);
+    }
+
     @Override
     public SAlignedConsensus align(SConsensus consensus) {
         NucleotideSQPair consensusSQPair = consensus.getConsensusSQPair();
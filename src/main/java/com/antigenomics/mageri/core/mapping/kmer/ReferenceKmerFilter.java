@@ -0,0 +1,171 @@
+/*
+ * Copyright 2014-2016 Mikhail Shugay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.antigenomics.mageri.core.mapping.kmer;
+
+import com.antigenomics.mageri.core.genomic.Reference;
+import com.antigenomics.mageri.core.genomic.ReferenceLibrary;
+import com.antigenomics.mageri.core.mapping.ConsensusAlignerParameters;
+import com.milaboratory.core.sequence.nucleotide.NucleotideSequence;
+import com.milaboratory.core.sequencing.read.PSequencingRead;
+import com.milaboratory.core.sequencing.read.SequencingRead;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Bloom filter holding k-mers of all references (both strands), used to drop off-target reads
+ * (primer dimers, off-target captures, etc) right after checkout, before they are indexed.
+ * K-mers are the same as the ones used by {@link KMerFinder}, so reads that are dropped would not be mapped anyway.
+ */
+public class ReferenceKmerFilter implements Serializable {
+    private static final int BITS_PER_KMER = 16, NUMBER_OF_HASHES = 3;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final int k, minHits;
+    private final boolean spacedSeeds;
+    private final long[] bits;
+    private final long bitMask;
+    private final String referenceFingerprint;
+    private transient KmerUtils kmerUtils;
+
+    public ReferenceKmerFilter(ReferenceLibrary referenceLibrary, int minHits) {
+        this(referenceLibrary, ConsensusAlignerParameters.DEFAULT, minHits);
+    }
+
+    public ReferenceKmerFilter(ReferenceLibrary referenceLibrary, ConsensusAlignerParameters alignerParameters,
+                               int minHits) {
+        this.k = alignerParameters.getK();
+        this.spacedSeeds = alignerParameters.getUseSpacedKmers();
+        this.minHits = minHits;
+        this.kmerUtils = new KmerUtils(k, spacedSeeds);
+
+        long nKmers = 0;
+        for (Reference reference : referenceLibrary.getReferences()) {
+            nKmers += 2 * Math.max(0, reference.size() - k + 1);
+        }
+
+        // Number of bits is a power of 2, so that bit index is obtained by masking
+        long nBits = Long.highestOneBit(Math.max(64, nKmers * BITS_PER_KMER - 1)) << 1;
+        this.bits = new long[(int) (nBits >>> 6)];
+        this.bitMask = nBits - 1;
+
+        MessageDigest messageDigest = createDigest();
+        for (Reference reference : referenceLibrary.getReferences()) {
+            NucleotideSequence sequence = reference.getSequence();
+            messageDigest.update((reference.getName() + "\t" + sequence + "\n").getBytes(UTF8));
+            if (sequence.size() >= k) {
+                add(kmerUtils.extractKmers(sequence));
+                add(kmerUtils.extractKmers(sequence.getReverseComplement()));
+            }
+        }
+
+        StringBuilder fingerprint = new StringBuilder();
+        for (byte b : messageDigest.digest()) {
+            fingerprint.append(String.format("%02x", b));
+        }
+        this.referenceFingerprint = fingerprint.toString();
+    }
+
+    private static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        // Transient helper is re-created here rather than lazily, so that concurrent countHits calls are safe
+        this.kmerUtils = new KmerUtils(k, spacedSeeds);
+    }
+
+    private static long hash(long kmer) {
+        // 64-bit finalizer of MurmurHash3
+        kmer ^= kmer >>> 33;
+        kmer *= 0xff51afd7ed558ccdL;
+        kmer ^= kmer >>> 33;
+        kmer *= 0xc4ceb9fe1a85ec53L;
+        kmer ^= kmer >>> 33;
+        return kmer;
+    }
+
+    private void add(long[] kmers) {
+        for (long kmer : kmers) {
+            long h1 = hash(kmer), h2 = hash(h1) | 1;
+            for (int i = 0; i < NUMBER_OF_HASHES; i++) {
+                long bit = (h1 + i * h2) & bitMask;
+                bits[(int) (bit >>> 6)] |= 1L << bit;
+            }
+        }
+    }
+
+    private boolean contains(long kmer) {
+        long h1 = hash(kmer), h2 = hash(h1) | 1;
+        for (int i = 0; i < NUMBER_OF_HASHES; i++) {
+            long bit = (h1 + i * h2) & bitMask;
+            if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    // Thread-safe
+    public int countHits(NucleotideSequence sequence) {
+        if (sequence.size() < k)
+            return 0;
+
+        int hits = 0;
+        for (long kmer : kmerUtils.extractKmers(sequence)) {
+            if (contains(kmer))
+                hits++;
+        }
+        return hits;
+    }
+
+    public boolean isOffTarget(SequencingRead read) {
+        int hits = countHits(read.getData(0).getSequence());
+        if (hits < minHits && read instanceof PSequencingRead) {
+            hits += countHits(read.getData(1).getSequence());
+        }
+        return hits < minHits;
+    }
+
+    public int getMinHits() {
+        return minHits;
+    }
+
+    public int getK() {
+        return k;
+    }
+
+    public boolean getUseSpacedKmers() {
+        return spacedSeeds;
+    }
+
+    /**
+     * Gets the hash of names and sequences of references the filter was built from.
+     */
+    public String getReferenceFingerprint() {
+        return referenceFingerprint;
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2014-2016 Mikhail Shugay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.antigenomics.mageri.core.mutations;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Encoding of a single mutation used by binary analysis output: type, mutation codes and filter flag.
+ * Mutations are restored without a parent mutation array.
+ */
+public final class MutationCodec {
+    private MutationCodec() {
+    }
+
+    public static void write(DataOutput output, Mutation mutation) throws IOException {
+        output.writeChar(mutation.getType());
+
+        if (mutation instanceof Substitution) {
+            output.writeInt(((Substitution) mutation).code);
+        } else {
+            int[] codes = ((Indel) mutation).codes;
+            output.writeInt(codes.length);
+            for (int code : codes) {
+                output.writeInt(code);
+            }
+        }
+
+        output.writeBoolean(mutation.isFiltered());
+    }
+
+    public static Mutation read(DataInput input) throws IOException {
+        char type = input.readChar();
+        Mutation mutation;
+
+        if (type == 'S') {
+            mutation = new Substitution(null, input.readInt());
+        } else {
+            int[] codes = new int[input.readInt()];
+            for (int i = 0; i < codes.length; i++) {
+                codes[i] = input.readInt();
+            }
+
+            switch (type) {
+                case 'I':
+                    mutation = new Insertion(null, codes);
+                    break;
+                case 'D':
+                    mutation = new Deletion(null, codes);
+                    break;
+                default:
+                    throw new IOException("Unknown mutation type " + type);
+            }
+        }
+
+        if (input.readBoolean()) {
+            mutation.filter();
+        }
+
+        return mutation;
+    }
+}
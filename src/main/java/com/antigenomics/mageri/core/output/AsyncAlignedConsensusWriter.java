@@ -0,0 +1,112 @@
+/*
+ * Copyright 2014-2016 Mikhail Shugay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.antigenomics.mageri.core.output;
+
+import com.antigenomics.mageri.core.mapping.AlignedConsensus;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Passes aligned consensuses through a bounded queue to a background thread that formats and writes them
+ * using the underlying writer, so that output overlaps with alignment.
+ */
+public class AsyncAlignedConsensusWriter implements AlignedConsensusWriter {
+    public static final int DEFAULT_QUEUE_SIZE = 4096;
+
+    private final AlignedConsensusWriter writer;
+    private final BlockingQueue<Object> queue;
+    private final Thread writerThread;
+    private volatile Throwable error = null;
+    private boolean closed = false;
+
+    public AsyncAlignedConsensusWriter(AlignedConsensusWriter writer) {
+        this(writer, DEFAULT_QUEUE_SIZE);
+    }
+
+    public AsyncAlignedConsensusWriter(AlignedConsensusWriter writer, int queueSize) {
+        this.writer = writer;
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+        this.writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Object item;
+                    while ((item = queue.take()) != EndOfQueue.INSTANCE) {
+                        AsyncAlignedConsensusWriter.this.writer.write((AlignedConsensus) item);
+                    }
+                } catch (Throwable e) {
+                    error = e;
+                    // unblock producer
+                    queue.clear();
+                }
+            }
+        }, "async-alignment-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    @Override
+    public void write(AlignedConsensus alignedConsensus) throws IOException {
+        checkError();
+        put(alignedConsensus);
+    }
+
+    private void put(Object item) throws IOException {
+        try {
+            while (!queue.offer(item, 100, TimeUnit.MILLISECONDS)) {
+                checkError();
+            }
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private void checkError() throws IOException {
+        if (error != null) {
+            throw new IOException("Failed to write aligned consensus", error);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        try {
+            if (error == null) {
+                put(EndOfQueue.INSTANCE);
+            }
+            writerThread.join();
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        } finally {
+            writer.close();
+        }
+
+        checkError();
+    }
+
+    private enum EndOfQueue {
+        INSTANCE
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2014-2016 Mikhail Shugay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.antigenomics.mageri.core.output;
+
+import com.antigenomics.mageri.core.mapping.AlignedConsensus;
+import com.antigenomics.mageri.core.mapping.ConsensusAligner;
+import com.antigenomics.mageri.core.mapping.PAlignedConsensus;
+import com.antigenomics.mageri.core.mapping.SAlignedConsensus;
+import com.antigenomics.mageri.misc.ParallelBgzfOutputStream;
+import com.antigenomics.mageri.pipeline.Platform;
+import com.antigenomics.mageri.pipeline.analysis.Sample;
+import htsjdk.samtools.*;
+import htsjdk.samtools.util.BinaryCodec;
+import htsjdk.samtools.util.StringLineReader;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+public class BamWriter implements AlignedConsensusWriter {
+    private static final byte[] BAM_MAGIC = "BAM\1".getBytes();
+
+    private final SAMFileHeader header;
+    private final String readGroupId;
+    private final OutputStream outputStream;
+    private final BAMRecordCodec codec;
+
+    public BamWriter(Sample sample, OutputStream outputStream,
+                     ConsensusAligner consensusAligner, Platform platform,
+                     int numberOfThreads) throws IOException {
+        this(SamWriter.getHeader(consensusAligner.getReferenceLibrary(), sample, platform),
+                Integer.toString(sample.getId()),
+                new ParallelBgzfOutputStream(outputStream, numberOfThreads));
+    }
+
+    BamWriter(String headerText, String readGroupId, OutputStream outputStream) throws IOException {
+        this.header = new SAMTextHeaderCodec().decode(new StringLineReader(headerText), null);
+        this.readGroupId = readGroupId;
+        this.outputStream = outputStream;
+
+        writeHeader(headerText + "\n");
+
+        this.codec = new BAMRecordCodec(header);
+        codec.setOutputStream(outputStream);
+    }
+
+    private void writeHeader(String headerText) {
+        BinaryCodec binaryCodec = new BinaryCodec(outputStream);
+
+        binaryCodec.writeBytes(BAM_MAGIC);
+        binaryCodec.writeString(headerText, true, false);
+
+        SAMSequenceDictionary sequenceDictionary = header.getSequenceDictionary();
+        binaryCodec.writeInt(sequenceDictionary.size());
+        for (SAMSequenceRecord sequenceRecord : sequenceDictionary.getSequences()) {
+            binaryCodec.writeString(sequenceRecord.getSequenceName(), true, true);
+            binaryCodec.writeInt(sequenceRecord.getSequenceLength());
+        }
+    }
+
+    public SAMFileHeader getHeader() {
+        return header;
+    }
+
+    public SAMRecord createRecord(SamSegmentRecord segmentRecord) {
+        SAMRecord record = new SAMRecord(header);
+
+        record.setReadName(segmentRecord.getQueryName());
+        record.setFlags(segmentRecord.getFlag());
+        record.setReferenceName(segmentRecord.getReferenceName());
+        record.setAlignmentStart(segmentRecord.getPosition());
+        record.setMappingQuality(Math.max(0, segmentRecord.getMapqScore()));
+        record.setCigarString(segmentRecord.getCigarString());
+        record.setMateReferenceName(segmentRecord.getNextReferenceName());
+        record.setMateAlignmentStart(segmentRecord.getNextPosition());
+        record.setInferredInsertSize(segmentRecord.getTemplateLength());
+        record.setReadString(segmentRecord.getSequence());
+        record.setBaseQualityString(segmentRecord.getQuality());
+        record.setAttribute(SAMTag.RG.name(), readGroupId);
+
+        return record;
+    }
+
+    public synchronized void write(SAMRecord record) {
+        codec.encode(record);
+    }
+
+    public void write(SamRecord samRecord) {
+        for (SamSegmentRecord segmentRecord : samRecord.getSamSegmentRecords()) {
+            write(createRecord(segmentRecord));
+        }
+    }
+
+    @Override
+    public void write(AlignedConsensus alignedConsensus) {
+        SamRecord samRecord = alignedConsensus.isPairedEnd() ?
+                SamUtil.create((PAlignedConsensus) alignedConsensus) :
+                SamUtil.create((SAlignedConsensus) alignedConsensus);
+
+        if (samRecord != null) {
+            write(samRecord);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        outputStream.close();
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2014-2016 Mikhail Shugay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.antigenomics.mageri.core.output;
+
+import com.antigenomics.mageri.core.variant.VariantCaller;
+import com.antigenomics.mageri.pipeline.Platform;
+import com.antigenomics.mageri.pipeline.analysis.Sample;
+import htsjdk.samtools.util.BlockCompressedOutputStream;
+import htsjdk.tribble.Feature;
+import htsjdk.tribble.index.Index;
+import htsjdk.tribble.index.tabix.TabixFormat;
+import htsjdk.tribble.index.tabix.TabixIndexCreator;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Writes bgzip-compressed VCF (.vcf.gz) together with its tabix index (.vcf.gz.tbi).
+ * Records should come in contig and position order, as provided by {@link VariantCaller}.
+ */
+public class IndexedVcfWriter extends VcfWriter {
+    private final File outputFile;
+    private final BlockCompressedOutputStream outputStream;
+    private final TabixIndexCreator indexCreator = new TabixIndexCreator(TabixFormat.VCF);
+
+    public IndexedVcfWriter(Sample sample, File outputFile,
+                            VariantCaller variantCaller, Platform platform) throws IOException {
+        this(sample, outputFile, new BlockCompressedOutputStream(outputFile), variantCaller, platform);
+    }
+
+    private IndexedVcfWriter(Sample sample, File outputFile, BlockCompressedOutputStream outputStream,
+                             VariantCaller variantCaller, Platform platform) throws IOException {
+        super(sample, outputStream, variantCaller, platform);
+        this.outputFile = outputFile;
+        this.outputStream = outputStream;
+        // Header goes to the compressed stream through the PrintWriter, records are written directly
+        writer.flush();
+    }
+
+    @Override
+    public synchronized void write(final VcfRecord record) throws IOException {
+        // Index entry points to the virtual file offset at the start of the record
+        indexCreator.addFeature(new Feature() {
+            @Override
+            public String getChr() {
+                return record.getChromosome();
+            }
+
+            @Override
+            public String getContig() {
+                return record.getChromosome();
+            }
+
+            @Override
+            public int getStart() {
+                return record.getPosition();
+            }
+
+            @Override
+            public int getEnd() {
+                return record.getPosition() + Math.max(1, record.getReferenceBase().length()) - 1;
+            }
+        }, outputStream.getFilePointer());
+
+        outputStream.write((record.toString() + "\n").getBytes());
+    }
+
+    @Override
+    public synchronized void close() {
+        try {
+            Index index = indexCreator.finalizeIndex(outputStream.getFilePointer());
+            super.close();
+            index.writeBasedOnFeatureFile(outputFile);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2014-2016 Mikhail Shugay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.antigenomics.mageri.core.output;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import static com.antigenomics.mageri.core.output.PileupWriter.*;
+
+/**
+ * Random access to files written by PileupWriter. Data blocks of consecutive references are memory-mapped together
+ * on first access, in segments of at most a given size. Columns of a reference that doesn't fit into a segment
+ * are mapped separately.
+ */
+public final class PileupReader implements Closeable {
+    public static final long DEFAULT_SEGMENT_SIZE = 1L << 30;
+    private static final int COVERAGE = 0, MAJOR = 1, MINOR = 5, CQS = 9;
+
+    private final FileChannel channel;
+    private final String[] names;
+    private final int[] lengths;
+    private final long[] offsets;
+    private final Map<String, Integer> indexByName = new HashMap<>();
+    // first segment holding reference data and whether there is a segment per column
+    private final int[] firstSegments;
+    private final boolean[] splitColumns;
+    private final long[] segmentOffsets, segmentSizes;
+    private final AtomicReferenceArray<MappedByteBuffer> segments;
+
+    public PileupReader(File file) throws IOException {
+        this(file, DEFAULT_SEGMENT_SIZE);
+    }
+
+    public PileupReader(File file, long segmentSize) throws IOException {
+        this.channel = new RandomAccessFile(file, "r").getChannel();
+
+        try (DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (input.readInt() != MAGIC) {
+                throw new IOException("Not a pileup file: " + file.getAbsolutePath());
+            }
+            int version = input.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported pileup file version " + version);
+            }
+
+            int n = input.readInt();
+            this.names = new String[n];
+            this.lengths = new int[n];
+            this.offsets = new long[n];
+            this.firstSegments = new int[n];
+            this.splitColumns = new boolean[n];
+
+            for (int i = 0; i < n; i++) {
+                byte[] name = new byte[input.readUnsignedShort()];
+                input.readFully(name);
+                names[i] = new String(name, StandardCharsets.UTF_8);
+                lengths[i] = input.readInt();
+                offsets[i] = input.readLong();
+                indexByName.put(names[i], i);
+            }
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+
+        // Offsets within a mapped segment are ints
+        segmentSize = Math.min(segmentSize, Integer.MAX_VALUE);
+        List<long[]> segmentList = new ArrayList<>();
+        long[] segment = null;
+
+        for (int i = 0; i < names.length; i++) {
+            long columnSize = getColumnSize(i), blockSize = COLUMNS * columnSize;
+
+            if (blockSize > segmentSize) {
+                if (columnSize > Integer.MAX_VALUE) {
+                    channel.close();
+                    throw new IOException("Reference " + names[i] + " is too long to be mapped");
+                }
+                firstSegments[i] = segmentList.size();
+                splitColumns[i] = true;
+                for (int j = 0; j < COLUMNS; j++) {
+                    segmentList.add(new long[]{offsets[i] + j * columnSize, columnSize});
+                }
+                segment = null;
+            } else {
+                // Blocks are written one after another
+                if (segment == null || offsets[i] != segment[0] + segment[1] ||
+                        segment[1] + blockSize > segmentSize) {
+                    segment = new long[]{offsets[i], 0};
+                    segmentList.add(segment);
+                }
+                firstSegments[i] = segmentList.size() - 1;
+                segment[1] += blockSize;
+            }
+        }
+
+        this.segmentOffsets = new long[segmentList.size()];
+        this.segmentSizes = new long[segmentList.size()];
+        for (int i = 0; i < segmentList.size(); i++) {
+            segmentOffsets[i] = segmentList.get(i)[0];
+            segmentSizes[i] = segmentList.get(i)[1];
+        }
+        this.segments = new AtomicReferenceArray<>(segmentList.size());
+    }
+
+    public int getSegmentCount() {
+        return segmentOffsets.length;
+    }
+
+    public int getReferenceCount() {
+        return names.length;
+    }
+
+    // Returns -1 if reference was not covered
+    public int getReferenceIndex(String name) {
+        Integer index = indexByName.get(name);
+        return index == null ? -1 : index;
+    }
+
+    public String getReferenceName(int referenceIndex) {
+        return names[referenceIndex];
+    }
+
+    public int getReferenceLength(int referenceIndex) {
+        return lengths[referenceIndex];
+    }
+
+    public int getMigCoverage(int referenceIndex, int pos) {
+        return getInt(referenceIndex, COVERAGE, pos);
+    }
+
+    public int getMajorMigCount(int referenceIndex, int pos, int letterCode) {
+        return getInt(referenceIndex, MAJOR + letterCode, pos);
+    }
+
+    public int getMinorMigCount(int referenceIndex, int pos, int letterCode) {
+        return getInt(referenceIndex, MINOR + letterCode, pos);
+    }
+
+    public float getMeanCqs(int referenceIndex, int pos, int letterCode) {
+        int segmentIndex = getSegmentIndex(referenceIndex, CQS + letterCode);
+        return getSegment(segmentIndex).getFloat(getOffset(referenceIndex, CQS + letterCode, pos, segmentIndex));
+    }
+
+    private int getInt(int referenceIndex, int column, int pos) {
+        int segmentIndex = getSegmentIndex(referenceIndex, column);
+        return getSegment(segmentIndex).getInt(getOffset(referenceIndex, column, pos, segmentIndex));
+    }
+
+    private long getColumnSize(int referenceIndex) {
+        return (long) BYTES_PER_VALUE * lengths[referenceIndex];
+    }
+
+    private int getSegmentIndex(int referenceIndex, int column) {
+        return firstSegments[referenceIndex] + (splitColumns[referenceIndex] ? column : 0);
+    }
+
+    private int getOffset(int referenceIndex, int column, int pos, int segmentIndex) {
+        return (int) (offsets[referenceIndex] + column * getColumnSize(referenceIndex) -
+                segmentOffsets[segmentIndex]) + pos * BYTES_PER_VALUE;
+    }
+
+    // Absolute gets do not modify buffer state, so a mapped segment can be shared between threads
+    private ByteBuffer getSegment(int segmentIndex) {
+        MappedByteBuffer segment = segments.get(segmentIndex);
+
+        if (segment == null) {
+            // Concurrent first accesses may both map the segment, only one mapping is kept
+            try {
+                segments.compareAndSet(segmentIndex, null, channel.map(FileChannel.MapMode.READ_ONLY,
+                        segmentOffsets[segmentIndex], segmentSizes[segmentIndex]));
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            segment = segments.get(segmentIndex);
+        }
+
+        return segment;
+    }
+
+    // Mapped segments stay valid after the file is closed
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
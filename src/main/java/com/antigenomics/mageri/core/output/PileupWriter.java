@@ -0,0 +1,107 @@
+/*
+ * Copyright 2014-2016 Mikhail Shugay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.antigenomics.mageri.core.output;
+
+import com.antigenomics.mageri.core.genomic.Reference;
+import com.antigenomics.mageri.core.mapping.ConsensusAligner;
+import com.antigenomics.mageri.core.mapping.MutationsTable;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+ * Binary columnar dump of MutationsTable contents, same data as .mapper.txt.
+ *
+ * Layout (big-endian):
+ * header: int magic, int version, int number of references
+ * index:  for each reference - short name length, UTF-8 name, int length, long offset of its data block
+ * data:   for each reference - coverage, A/C/G/T.major, A/C/G/T.minor (int) and A/C/G/T.cqs (float) columns,
+ *         each column holding one value per reference position
+ */
+public final class PileupWriter {
+    public static final int MAGIC = 0x4D475055, VERSION = 1,
+            COLUMNS = 13, BYTES_PER_VALUE = 4;
+
+    private PileupWriter() {
+    }
+
+    public static void write(ConsensusAligner consensusAligner, File file) throws IOException {
+        List<MutationsTable> mutationsTables = new ArrayList<>();
+
+        for (Reference reference : consensusAligner.getReferenceLibrary().getReferences()) {
+            MutationsTable mutationsTable = consensusAligner.getAlignerTable(reference);
+            if (mutationsTable.wasUpdated()) {
+                mutationsTables.add(mutationsTable);
+            }
+        }
+
+        write(mutationsTables, new FileOutputStream(file));
+    }
+
+    public static void write(List<MutationsTable> mutationsTables, OutputStream outputStream) throws IOException {
+        int n = mutationsTables.size();
+        byte[][] names = new byte[n][];
+
+        // Offsets are known in advance, so the whole file is written in a single pass
+        long offset = 3 * BYTES_PER_VALUE;
+        for (int i = 0; i < n; i++) {
+            names[i] = mutationsTables.get(i).getReference().getName().getBytes(StandardCharsets.UTF_8);
+            offset += 2 + names[i].length + BYTES_PER_VALUE + 8;
+        }
+
+        try (DataOutputStream output = new DataOutputStream(new BufferedOutputStream(outputStream, 65536))) {
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeInt(n);
+
+            for (int i = 0; i < n; i++) {
+                int length = mutationsTables.get(i).length();
+                output.writeShort(names[i].length);
+                output.write(names[i]);
+                output.writeInt(length);
+                output.writeLong(offset);
+                offset += (long) COLUMNS * BYTES_PER_VALUE * length;
+            }
+
+            for (MutationsTable mutationsTable : mutationsTables) {
+                int length = mutationsTable.length();
+
+                for (int pos = 0; pos < length; pos++) {
+                    output.writeInt(mutationsTable.getMigCoverage(pos));
+                }
+                for (int letter = 0; letter < 4; letter++) {
+                    for (int pos = 0; pos < length; pos++) {
+                        output.writeInt(mutationsTable.getMajorMigCount(pos, letter));
+                    }
+                }
+                for (int letter = 0; letter < 4; letter++) {
+                    for (int pos = 0; pos < length; pos++) {
+                        output.writeInt(mutationsTable.getMinorMigCount(pos, letter));
+                    }
+                }
+                for (int letter = 0; letter < 4; letter++) {
+                    for (int pos = 0; pos < length; pos++) {
+                        output.writeFloat(mutationsTable.getMeanCqs(pos, letter));
+                    }
+                }
+            }
+        }
+    }
+}
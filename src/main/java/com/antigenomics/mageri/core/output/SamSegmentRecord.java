@@ -16,6 +16,8 @@
 
 package com.antigenomics.mageri.core.output;
 
+import com.antigenomics.mageri.misc.AsciiBuffer;
+
 import java.io.Serializable;
 
 import static com.antigenomics.mageri.core.output.SamUtil.*;
@@ -139,6 +141,16 @@ public final class SamSegmentRecord implements Comparable<SamSegmentRecord>, Ser
         this.templateLength = templateLength;
     }
 
+    public void appendTo(AsciiBuffer buffer) {
+        buffer.append(queryName).append('\t')
+                .append(flag).append('\t')
+                .append(referenceName).append('\t').append(position).append('\t')
+                .append(mapqScore).append('\t').append(cigarString).append('\t')
+                .append(nextReferenceName).append('\t').append(nextPosition).append('\t')
+                .append(templateLength).append('\t')
+                .append(sequence).append('\t').append(quality);
+    }
+
     @Override
     public String toString() {
         return queryName + "\t" +
@@ -19,25 +19,49 @@ package com.antigenomics.mageri.core.output;
 import com.antigenomics.mageri.core.mapping.ConsensusAligner;
 import com.antigenomics.mageri.pipeline.Mageri;
 import com.antigenomics.mageri.core.genomic.Contig;
+import com.antigenomics.mageri.core.genomic.ReferenceLibrary;
 import com.antigenomics.mageri.core.mapping.AlignedConsensus;
 import com.antigenomics.mageri.core.mapping.PAlignedConsensus;
 import com.antigenomics.mageri.core.mapping.SAlignedConsensus;
+import com.antigenomics.mageri.misc.AsciiBuffer;
 import com.antigenomics.mageri.misc.RecordWriter;
 import com.antigenomics.mageri.pipeline.Platform;
 import com.antigenomics.mageri.pipeline.analysis.Sample;
 
+import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 
-public class SamWriter extends RecordWriter<SamRecord, ConsensusAligner> {
+public class SamWriter extends RecordWriter<SamRecord, ConsensusAligner> implements AlignedConsensusWriter {
+    // Records are formatted into a reusable buffer and written to the byte stream, bypassing the PrintWriter
+    private final OutputStream outputStream;
+    private final AsciiBuffer buffer = new AsciiBuffer();
+
     public SamWriter(Sample sample, OutputStream outputStream,
                      ConsensusAligner consensusAligner, Platform platform) throws IOException {
+        this(sample, new BufferedOutputStream(outputStream, 1 << 16), consensusAligner, platform);
+    }
+
+    private SamWriter(Sample sample, BufferedOutputStream outputStream,
+                      ConsensusAligner consensusAligner, Platform platform) throws IOException {
         super(sample, outputStream, consensusAligner.getReferenceLibrary(), consensusAligner, platform);
+        this.outputStream = outputStream;
+        writer.flush();
     }
 
     @Override
     protected String getHeader() {
-        StringBuilder stringBuilder = new StringBuilder("@HD\tVN:1.0\tSO:unsorted\tGO:query");
+        return getHeader(referenceLibrary, sample, platform);
+    }
+
+    public static String getHeader(ReferenceLibrary referenceLibrary, Sample sample, Platform platform) {
+        return getHeader(referenceLibrary, sample, platform, false);
+    }
+
+    public static String getHeader(ReferenceLibrary referenceLibrary, Sample sample, Platform platform,
+                                   boolean coordinateSorted) {
+        StringBuilder stringBuilder = new StringBuilder(coordinateSorted ?
+                "@HD\tVN:1.0\tSO:coordinate" : "@HD\tVN:1.0\tSO:unsorted\tGO:query");
 
         for (Contig contig : referenceLibrary.getGenomicInfoProvider().getContigs()) {
             if (!contig.skipInSamAndVcf()) {
@@ -70,10 +94,14 @@ public class SamWriter extends RecordWriter<SamRecord, ConsensusAligner> {
     @Override
     public synchronized void write(SamRecord samRecord) throws IOException {
         for (SamSegmentRecord segmentRecord : samRecord.getSamSegmentRecords()) {
-            writer.println(segmentRecord.toString() + "\tRG:Z:" + sample.getId());
+            buffer.clear();
+            segmentRecord.appendTo(buffer);
+            buffer.append("\tRG:Z:").append(sample.getId()).append('\n');
+            buffer.writeTo(outputStream);
         }
     }
 
+    @Override
     public void write(AlignedConsensus alignedConsensus) throws IOException {
         SamRecord samRecord = alignedConsensus.isPairedEnd() ?
                 SamUtil.create((PAlignedConsensus) alignedConsensus) :
@@ -83,4 +111,14 @@ public class SamWriter extends RecordWriter<SamRecord, ConsensusAligner> {
             write(samRecord);
         }
     }
-}
\ No newline at end of file
+
+    @Override
+    public synchronized void close() {
+        try {
+            outputStream.flush();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        super.close();
+    }
+}
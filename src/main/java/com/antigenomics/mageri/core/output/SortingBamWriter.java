@@ -0,0 +1,344 @@
+/*
+ * Copyright 2014-2016 Mikhail Shugay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.antigenomics.mageri.core.output;
+
+import com.antigenomics.mageri.core.mapping.ConsensusAligner;
+import com.antigenomics.mageri.misc.ParallelBgzfOutputStream;
+import com.antigenomics.mageri.pipeline.Platform;
+import com.antigenomics.mageri.pipeline.analysis.Sample;
+import htsjdk.samtools.*;
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+
+import java.io.*;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Writes a coordinate-sorted BAM file together with its .bai index. Records are buffered in memory
+ * up to a given estimated size, sorted chunks are spilled to BGZF-compressed temporary runs. Runs are merged
+ * in rounds so that no more than a given number of runs is open at once. All BGZF output shares a single
+ * pool of deflater threads. The index is built from records as they are written in the last merge round.
+ */
+public class SortingBamWriter extends BamWriter {
+    public static final long DEFAULT_MAX_BYTES_IN_RAM = Math.min(256L << 20, Runtime.getRuntime().maxMemory() / 4);
+    public static final int DEFAULT_MAX_RUNS_PER_MERGE = 64;
+    // SAMRecord object, its fields, read group attribute and array list slot
+    private static final int RECORD_OVERHEAD = 320;
+    // BAMIndexer reads record offsets from the record file source, which can only be set from within htsjdk
+    private static final Constructor<?> BAM_FILE_SPAN;
+    private static final Method SET_FILE_SOURCE;
+
+    static {
+        try {
+            BAM_FILE_SPAN = Class.forName("htsjdk.samtools.BAMFileSpan").getDeclaredConstructor(Chunk.class);
+            BAM_FILE_SPAN.setAccessible(true);
+            SET_FILE_SOURCE = SAMRecord.class.getDeclaredMethod("setFileSource", SAMFileSource.class);
+            SET_FILE_SOURCE.setAccessible(true);
+        } catch (ReflectiveOperationException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private final File outputFile;
+    private final ParallelBgzfOutputStream outputStream;
+    private final ExecutorService deflaters;
+    private final long maxBytesInRam;
+    private final int numberOfThreads, maxRunsPerMerge;
+    private final Comparator<SAMRecord> comparator = new SAMRecordCoordinateComparator();
+    private final List<SAMRecord> buffer = new ArrayList<>();
+    private final List<File> runs = new ArrayList<>();
+    private long bytesInRam = 0;
+
+    public SortingBamWriter(Sample sample, File outputFile,
+                            ConsensusAligner consensusAligner, Platform platform,
+                            int numberOfThreads) throws IOException {
+        this(sample, outputFile, consensusAligner, platform, numberOfThreads,
+                DEFAULT_MAX_BYTES_IN_RAM, DEFAULT_MAX_RUNS_PER_MERGE);
+    }
+
+    public SortingBamWriter(Sample sample, File outputFile,
+                            ConsensusAligner consensusAligner, Platform platform,
+                            int numberOfThreads, long maxBytesInRam, int maxRunsPerMerge) throws IOException {
+        this(SamWriter.getHeader(consensusAligner.getReferenceLibrary(), sample, platform, true),
+                Integer.toString(sample.getId()), outputFile, numberOfThreads, maxBytesInRam, maxRunsPerMerge);
+    }
+
+    SortingBamWriter(String headerText, String readGroupId, File outputFile,
+                     int numberOfThreads, long maxBytesInRam, int maxRunsPerMerge) throws IOException {
+        this(headerText, readGroupId, outputFile, numberOfThreads, maxBytesInRam, maxRunsPerMerge,
+                ParallelBgzfOutputStream.createDeflaterPool(numberOfThreads));
+    }
+
+    private SortingBamWriter(String headerText, String readGroupId, File outputFile,
+                             int numberOfThreads, long maxBytesInRam, int maxRunsPerMerge,
+                             ExecutorService deflaters) throws IOException {
+        this(headerText, readGroupId, outputFile, numberOfThreads, maxBytesInRam, maxRunsPerMerge, deflaters,
+                new ParallelBgzfOutputStream(new FileOutputStream(outputFile), deflaters, numberOfThreads,
+                        BlockCompressedStreamConstants.DEFAULT_COMPRESSION_LEVEL));
+    }
+
+    private SortingBamWriter(String headerText, String readGroupId, File outputFile,
+                             int numberOfThreads, long maxBytesInRam, int maxRunsPerMerge,
+                             ExecutorService deflaters, ParallelBgzfOutputStream outputStream) throws IOException {
+        super(headerText, readGroupId, outputStream);
+        if (maxRunsPerMerge < 2) {
+            throw new IllegalArgumentException("At least two runs should be merged at once.");
+        }
+        this.outputFile = outputFile;
+        this.outputStream = outputStream;
+        this.deflaters = deflaters;
+        this.numberOfThreads = numberOfThreads;
+        this.maxBytesInRam = maxBytesInRam;
+        this.maxRunsPerMerge = maxRunsPerMerge;
+    }
+
+    static long estimateSize(SAMRecord record) {
+        // bases and qualities are stored as byte arrays, read name as a string
+        return RECORD_OVERHEAD + 2L * record.getReadLength() + 2L * record.getReadName().length() +
+                32L * record.getCigarLength();
+    }
+
+    @Override
+    public synchronized void write(SAMRecord record) {
+        buffer.add(record);
+        bytesInRam += estimateSize(record);
+
+        if (bytesInRam >= maxBytesInRam) {
+            try {
+                spill();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    private void spill() throws IOException {
+        Collections.sort(buffer, comparator);
+        runs.add(writeRun(buffer.iterator()));
+        buffer.clear();
+        bytesInRam = 0;
+    }
+
+    private File writeRun(Iterator<SAMRecord> records) throws IOException {
+        File run = File.createTempFile(outputFile.getName() + ".", ".run", outputFile.getAbsoluteFile().getParentFile());
+        run.deleteOnExit();
+
+        try (OutputStream outputStream = new ParallelBgzfOutputStream(
+                new BufferedOutputStream(new FileOutputStream(run)), deflaters, numberOfThreads, 1)) {
+            BAMRecordCodec codec = new BAMRecordCodec(getHeader());
+            codec.setOutputStream(outputStream);
+
+            while (records.hasNext()) {
+                codec.encode(records.next());
+            }
+        } catch (IOException | RuntimeException e) {
+            run.delete();
+            throw e;
+        }
+
+        return run;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        OutputStream indexStream = null;
+
+        try {
+            Collections.sort(buffer, comparator);
+
+            // Merge runs in rounds until all remaining ones can be opened at once
+            while (runs.size() > maxRunsPerMerge) {
+                List<File> group = runs.subList(0, maxRunsPerMerge);
+                File merged;
+                try (MergingIterator iterator = new MergingIterator(group, null)) {
+                    merged = writeRun(iterator);
+                }
+                for (File run : group) {
+                    run.delete();
+                }
+                group.clear();
+                runs.add(merged);
+            }
+
+            indexStream = new BufferedOutputStream(new FileOutputStream(outputFile.getPath() + ".bai"));
+            BAMIndexer indexer = new BAMIndexer(indexStream, getHeader());
+            Queue<IndexEntry> pending = new ArrayDeque<>();
+
+            try (MergingIterator iterator = new MergingIterator(runs, buffer.iterator())) {
+                while (iterator.hasNext()) {
+                    SAMRecord record = iterator.next();
+                    long start = outputStream.getPosition();
+                    super.write(record);
+                    pending.add(new IndexEntry(record, start, outputStream.getPosition()));
+                    index(indexer, pending);
+                }
+            }
+
+            buffer.clear();
+            bytesInRam = 0;
+            super.close();
+
+            index(indexer, pending);
+            indexer.finish();
+        } finally {
+            try {
+                super.close();
+                if (indexStream != null) {
+                    indexStream.close();
+                }
+            } finally {
+                for (File run : runs) {
+                    run.delete();
+                }
+                runs.clear();
+                deflaters.shutdownNow();
+            }
+        }
+    }
+
+    // Records are passed to the indexer once the blocks holding them are compressed and their offsets are known
+    private void index(BAMIndexer indexer, Queue<IndexEntry> pending) {
+        while (!pending.isEmpty() && outputStream.isWritten(pending.peek().end)) {
+            IndexEntry entry = pending.poll();
+            Chunk chunk = new Chunk(outputStream.getFilePointer(entry.start), outputStream.getFilePointer(entry.end));
+
+            try {
+                SET_FILE_SOURCE.invoke(entry.record,
+                        new SAMFileSource(null, (SAMFileSpan) BAM_FILE_SPAN.newInstance(chunk)));
+            } catch (ReflectiveOperationException e) {
+                throw new RuntimeException(e);
+            }
+
+            indexer.processAlignment(entry.record);
+        }
+    }
+
+    private static class IndexEntry {
+        final SAMRecord record;
+        final long start, end;
+
+        IndexEntry(SAMRecord record, long start, long end) {
+            this.record = record;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    // k-way merge of sorted runs and an optional sorted in-memory chunk
+    private class MergingIterator implements Iterator<SAMRecord>, Closeable {
+        private final List<RunIterator> runIterators = new ArrayList<>();
+        private final PriorityQueue<RunIterator> queue;
+
+        MergingIterator(List<File> runs, Iterator<SAMRecord> inMemory) throws IOException {
+            this.queue = new PriorityQueue<>(runs.size() + 1, new Comparator<RunIterator>() {
+                @Override
+                public int compare(RunIterator o1, RunIterator o2) {
+                    return comparator.compare(o1.current, o2.current);
+                }
+            });
+
+            try {
+                for (File run : runs) {
+                    RunIterator runIterator = new RunIterator(new BlockCompressedInputStream(run), getHeader());
+                    runIterators.add(runIterator);
+                    if (runIterator.current != null) {
+                        queue.add(runIterator);
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                close();
+                throw e;
+            }
+
+            if (inMemory != null) {
+                RunIterator runIterator = new RunIterator(inMemory);
+                if (runIterator.current != null) {
+                    queue.add(runIterator);
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !queue.isEmpty();
+        }
+
+        @Override
+        public SAMRecord next() {
+            RunIterator runIterator = queue.poll();
+            SAMRecord record = runIterator.current;
+            if (runIterator.advance() != null) {
+                queue.add(runIterator);
+            }
+            return record;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (RunIterator runIterator : runIterators) {
+                runIterator.close();
+            }
+        }
+    }
+
+    private static class RunIterator implements Closeable {
+        private final BAMRecordCodec codec;
+        private final InputStream inputStream;
+        private final Iterator<SAMRecord> iterator;
+        SAMRecord current;
+
+        RunIterator(InputStream inputStream, SAMFileHeader header) {
+            this.inputStream = inputStream;
+            this.codec = new BAMRecordCodec(header);
+            this.iterator = null;
+            codec.setInputStream(inputStream);
+            advance();
+        }
+
+        RunIterator(Iterator<SAMRecord> iterator) {
+            this.inputStream = null;
+            this.codec = null;
+            this.iterator = iterator;
+            advance();
+        }
+
+        SAMRecord advance() {
+            if (iterator != null) {
+                current = iterator.hasNext() ? iterator.next() : null;
+            } else {
+                current = codec.decode();
+            }
+            return current;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (inputStream != null) {
+                inputStream.close();
+            }
+        }
+    }
+}
@@ -49,6 +49,18 @@ public class VcfRecord implements Record {
         this.quality = quality;
     }
 
+    public String getChromosome() {
+        return chromosome;
+    }
+
+    public int getPosition() {
+        return position;
+    }
+
+    public String getReferenceBase() {
+        return referenceBase;
+    }
+
     @Override
     public String toString() {
         return chromosome + "\t" + position + "\t" + id + "\t" +
@@ -32,7 +32,7 @@ public class Variant implements Serializable, Comparable<Variant> {
     private final Mutation mutation;
     private final int count, depth;
     private final double alleleFrequency, qual, cqs;
-    private final NucleotideSequence ancestralAllele;
+    final NucleotideSequence ancestralAllele;
     private final boolean hasReference;
     private final ErrorRateEstimate errorRateEstimate;
     private FilterSummary filterSummary = FilterSummary.DUMMY;
@@ -19,6 +19,7 @@ package com.antigenomics.mageri.core.variant;
 import com.antigenomics.mageri.core.PipelineBlock;
 import com.antigenomics.mageri.core.assemble.DummyMinorCaller;
 import com.antigenomics.mageri.core.assemble.MinorCaller;
+import com.antigenomics.mageri.core.genomic.GenomicInfo;
 import com.antigenomics.mageri.core.genomic.Reference;
 import com.antigenomics.mageri.core.mapping.ConsensusAligner;
 import com.antigenomics.mageri.core.mapping.MutationsTable;
@@ -29,6 +30,8 @@ import com.antigenomics.mageri.core.variant.filter.SingletonFilter;
 import com.antigenomics.mageri.core.variant.filter.VariantFilter;
 import com.antigenomics.mageri.core.variant.model.*;
 import com.antigenomics.mageri.misc.AuxiliaryStats;
+import com.antigenomics.mageri.pipeline.Speaker;
+import cc.redberry.pipe.InputPort;
 import com.milaboratory.core.sequence.mutations.Mutations;
 import com.milaboratory.core.sequence.nucleotide.NucleotideSequence;
 import com.milaboratory.core.sequence.nucleotide.NucleotideSequenceBuilder;
@@ -41,13 +44,21 @@ import org.apache.commons.math.MathException;
 import org.apache.commons.math.distribution.BinomialDistribution;
 import org.apache.commons.math.distribution.BinomialDistributionImpl;
 
+import java.io.IOException;
+import java.io.Writer;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 public class VariantCaller extends PipelineBlock {
     private final VariantCallerParameters variantCallerParameters;
     private final ReferenceLibrary referenceLibrary;
     private final VariantFilter[] filters;
-    private final List<Variant> variants = new ArrayList<>();
+    private final int errorModelStatisticCount;
+    final List<Variant> variants = new ArrayList<>();
+    boolean called = false, streamed = false;
+
+    private static final int BATCH_SIZE_PER_THREAD = 16;
 
     public VariantCaller(ConsensusAligner consensusAligner) {
         this(consensusAligner, new DummyMinorCaller(), VariantCallerParameters.DEFAULT);
@@ -59,101 +70,82 @@ public class VariantCaller extends PipelineBlock {
 
     public VariantCaller(ConsensusAligner consensusAligner, MinorCaller minorCaller,
                          VariantCallerParameters variantCallerParameters) {
+        this(consensusAligner, minorCaller, variantCallerParameters, Runtime.getRuntime().availableProcessors());
+    }
+
+    public VariantCaller(ConsensusAligner consensusAligner, MinorCaller minorCaller,
+                         VariantCallerParameters variantCallerParameters, int numberOfThreads) {
+        this(consensusAligner.getReferenceLibrary(), variantCallerParameters);
+        call(consensusAligner, minorCaller, numberOfThreads, null, true);
+    }
+
+    public VariantCaller(ReferenceLibrary referenceLibrary, VariantCallerParameters variantCallerParameters) {
         super("variant.caller");
         this.variantCallerParameters = variantCallerParameters;
-        this.referenceLibrary = consensusAligner.getReferenceLibrary();
+        this.referenceLibrary = referenceLibrary;
         filters = new VariantFilter[3];
         filters[0] = new QualFilter(variantCallerParameters.getQualityThreshold());
         filters[1] = new SingletonFilter(variantCallerParameters.getSingletonFrequencyThreshold());
         filters[2] = new CoverageFilter(variantCallerParameters.getCoverageThreshold());
 
-        int errorModelStatisticCount = ErrorModelProvider.getErrorModelStatisticNames(variantCallerParameters).length;
+        this.errorModelStatisticCount = ErrorModelProvider.getErrorModelStatisticNames(variantCallerParameters).length;
+    }
 
-        for (Reference reference : referenceLibrary.getReferences()) {
-            MutationsTable mutationsTable = consensusAligner.getAlignerTable(reference);
-            if (mutationsTable.wasUpdated()) {
-                ErrorModel errorModel = ErrorModelProvider.create(variantCallerParameters,
-                        mutationsTable, minorCaller);
+    /**
+     * Calls variants in contig/genomic order, pushing each one to variantPort (if not null) as soon as it is final.
+     * Variants are kept in memory and accessible via {@link #getVariants()} only if storeVariants is set.
+     */
+    public void call(ConsensusAligner consensusAligner, MinorCaller minorCaller,
+                     int numberOfThreads,
+                     InputPort<Variant> variantPort, boolean storeVariants) {
+        if (called) {
+            throw new RuntimeException("Variants were already called.");
+        }
 
-                Set<Integer> substitutionCodes = new HashSet<>();
+        this.streamed = !storeVariants;
 
-                for (Mutation mutation : mutationsTable.getMutations()) {
-                    Variant variant;
+        // References are independent, so each batch of references is called in fork/join tasks.
+        // Each task returns a sorted chunk and chunks are merged with ties resolved by reference index,
+        // which is exactly what a stable sort of the concatenated sequential output gives
+        List<Reference> references = new ArrayList<>(referenceLibrary.getReferences());
+        Collections.sort(references, GENOMIC_ORDER);
 
-                    if (mutation instanceof Substitution) {
-                        int code = ((Substitution) mutation).getCode(),
-                                pos = Mutations.getPosition(code),
-                                to = Mutations.getTo(code);
+        int batchSize = Math.max(1, numberOfThreads) * BATCH_SIZE_PER_THREAD;
+        List<Variant> pending = new ArrayList<>();
 
-                        if (variantCallerParameters.showAbsentVariants()) {
-                            substitutionCodes.add(code);
-                        }
+        ForkJoinPool pool = new ForkJoinPool(Math.max(1, numberOfThreads));
+        try {
+            for (int from = 0; from < references.size(); from += batchSize) {
+                int to = Math.min(from + batchSize, references.size());
 
-                        int majorCount = mutationsTable.getMajorMigCount(pos, to),
-                                coverage = mutationsTable.getMigCoverage(pos);
-
-                        VariantQuality variantQuality = errorModel.computeQuality(majorCount,
-                                coverage, mutation);
-
-                        NucleotideSequenceBuilder nsb = new NucleotideSequenceBuilder(1);
-                        nsb.setCode(0, mutationsTable.getAncestralBase(pos));
-
-                        variant = new Variant(reference,
-                                mutation, majorCount,
-                                mutationsTable.getMigCoverage(pos),
-                                variantQuality.getScore(), mutationsTable.getMeanCqs(pos, to),
-                                nsb.create(), mutationsTable.hasReferenceBase(pos),
-                                variantQuality.getErrorRateEstimate());
-                    } else if (variantCallerParameters.isNoIndels()) {
-                        continue;
-                    } else {
-                        int rawCount = mutationsTable.getRawMutationCount(mutation);
-                        int pos = mutation.getStart();
-
-                        variant = new Variant(reference,
-                                mutation, rawCount,
-                                mutationsTable.getMigCoverage(pos),
-                                VcfUtil.UNDEF_QUAL, mutationsTable.getMeanCqs(pos),
-                                new NucleotideSequence(""), true,
-                                ErrorRateEstimate.createDummy(errorModelStatisticCount));
-                    }
+                pending = merge(pending, pool.invoke(new ReferenceRangeTask(consensusAligner, minorCaller,
+                        references, from, to)));
 
-                    variant.filter(this);
-                    variants.add(variant);
-                }
+                // Variants of a reference are located strictly after its start,
+                // so everything up to the start of next reference is final
+                Reference next = to < references.size() ? references.get(to) : null;
 
-                // Debug mode - provide error rates for absent positions
-                if (variantCallerParameters.showAbsentVariants()) {
-                    for (int pos = 0; pos < reference.size(); pos++) {
-                        int from = reference.codeAt(pos);
-                        for (int to = 0; to < 4; to++) {
-                            if (to != from) {
-                                int code = Mutations.createSubstitution(pos, from, to);
-
-                                if (!substitutionCodes.contains(code)) {
-                                    Mutation mutation = new Substitution(null, code);
-
-                                    ErrorRateEstimate errorRateEstimate = errorModel.computeErrorRate(mutation);
-
-                                    NucleotideSequenceBuilder nsb = new NucleotideSequenceBuilder(1);
-                                    nsb.setCode(0, mutationsTable.getAncestralBase(pos));
-
-                                    Variant variant = new Variant(reference,
-                                            mutation, 0,
-                                            mutationsTable.getMigCoverage(pos),
-                                            VcfUtil.UNDEF_QUAL, mutationsTable.getMeanCqs(pos, to),
-                                            nsb.create(), mutationsTable.hasReferenceBase(pos),
-                                            errorRateEstimate);
-
-                                    variants.add(variant);
-                                }
-                            }
-                        }
+                int flushed = 0;
+                for (Variant variant : pending) {
+                    if (next != null && !precedes(variant, next)) {
+                        break;
+                    }
+                    if (variantPort != null) {
+                        variantPort.put(variant);
                     }
+                    if (storeVariants) {
+                        variants.add(variant);
+                    }
+                    flushed++;
                 }
+                pending.subList(0, flushed).clear();
             }
+        } finally {
+            pool.shutdown();
         }
 
+        called = true;
+
         // This is quite important for memory usage
         // Of all objects, mig reader, consensus consensusAligner and variant caller
         // consume most memory. Consensus consensusAligner holds memory ~ number of references
@@ -161,15 +153,191 @@ public class VariantCaller extends PipelineBlock {
         // Variant caller data is needed to merge variant tables from different samples
         // Consensus consensusAligner is the only thing we can and should get rid from here
         consensusAligner.clear();
+    }
+
+    private static boolean precedes(Variant variant, Reference reference) {
+        GenomicInfo genomicInfo = reference.getGenomicInfo();
+        int result = variant.getReference().getGenomicInfo().getContig().compareTo(genomicInfo.getContig());
+
+        return result < 0 || (result == 0 && variant.getGenomicPosition() <= genomicInfo.getStart());
+    }
+
+    private List<Variant> callVariants(Reference reference, MutationsTable mutationsTable,
+                                       MinorCaller minorCaller) {
+        List<Variant> variants = new ArrayList<>();
+
+        ErrorModel errorModel = ErrorModelProvider.create(variantCallerParameters,
+                mutationsTable, minorCaller);
+
+        Set<Integer> substitutionCodes = new HashSet<>();
+
+        for (Mutation mutation : mutationsTable.getMutations()) {
+            Variant variant;
+
+            if (mutation instanceof Substitution) {
+                int code = ((Substitution) mutation).getCode(),
+                        pos = Mutations.getPosition(code),
+                        to = Mutations.getTo(code);
+
+                if (variantCallerParameters.showAbsentVariants()) {
+                    substitutionCodes.add(code);
+                }
+
+                int majorCount = mutationsTable.getMajorMigCount(pos, to),
+                        coverage = mutationsTable.getMigCoverage(pos);
+
+                VariantQuality variantQuality = errorModel.computeQuality(majorCount,
+                        coverage, mutation);
+
+                NucleotideSequenceBuilder nsb = new NucleotideSequenceBuilder(1);
+                nsb.setCode(0, mutationsTable.getAncestralBase(pos));
+
+                variant = new Variant(reference,
+                        mutation, majorCount,
+                        mutationsTable.getMigCoverage(pos),
+                        variantQuality.getScore(), mutationsTable.getMeanCqs(pos, to),
+                        nsb.create(), mutationsTable.hasReferenceBase(pos),
+                        variantQuality.getErrorRateEstimate());
+            } else if (variantCallerParameters.isNoIndels()) {
+                continue;
+            } else {
+                int rawCount = mutationsTable.getRawMutationCount(mutation);
+                int pos = mutation.getStart();
+
+                variant = new Variant(reference,
+                        mutation, rawCount,
+                        mutationsTable.getMigCoverage(pos),
+                        VcfUtil.UNDEF_QUAL, mutationsTable.getMeanCqs(pos),
+                        new NucleotideSequence(""), true,
+                        ErrorRateEstimate.createDummy(errorModelStatisticCount));
+            }
+
+            variant.filter(this);
+            variants.add(variant);
+        }
+
+        // Debug mode - provide error rates for absent positions
+        if (variantCallerParameters.showAbsentVariants()) {
+            for (int pos = 0; pos < reference.size(); pos++) {
+                int from = reference.codeAt(pos);
+                for (int to = 0; to < 4; to++) {
+                    if (to != from) {
+                        int code = Mutations.createSubstitution(pos, from, to);
+
+                        if (!substitutionCodes.contains(code)) {
+                            Mutation mutation = new Substitution(null, code);
+
+                            ErrorRateEstimate errorRateEstimate = errorModel.computeErrorRate(mutation);
+
+                            NucleotideSequenceBuilder nsb = new NucleotideSequenceBuilder(1);
+                            nsb.setCode(0, mutationsTable.getAncestralBase(pos));
+
+                            Variant variant = new Variant(reference,
+                                    mutation, 0,
+                                    mutationsTable.getMigCoverage(pos),
+                                    VcfUtil.UNDEF_QUAL, mutationsTable.getMeanCqs(pos, to),
+                                    nsb.create(), mutationsTable.hasReferenceBase(pos),
+                                    errorRateEstimate);
+
+                            variants.add(variant);
+                        }
+                    }
+                }
+            }
+        }
 
         // Variants should be sorted for GATK compatibility
         Collections.sort(variants);
+
+        return variants;
+    }
+
+    private static List<Variant> merge(List<Variant> first, List<Variant> second) {
+        List<Variant> merged = new ArrayList<>(first.size() + second.size());
+
+        int i = 0, j = 0;
+        while (i < first.size() && j < second.size()) {
+            if (VARIANT_ORDER.compare(second.get(j), first.get(i)) < 0) {
+                merged.add(second.get(j++));
+            } else {
+                merged.add(first.get(i++));
+            }
+        }
+        merged.addAll(first.subList(i, first.size()));
+        merged.addAll(second.subList(j, second.size()));
+
+        return merged;
+    }
+
+    private static final Comparator<Variant> VARIANT_ORDER = new Comparator<Variant>() {
+        @Override
+        public int compare(Variant o1, Variant o2) {
+            int result = o1.compareTo(o2);
+
+            // keep variants of the same reference in their original order
+            return result == 0 ?
+                    Integer.compare(o1.getReference().getIndex(), o2.getReference().getIndex()) :
+                    result;
+        }
+    };
+
+    private static final Comparator<Reference> GENOMIC_ORDER = new Comparator<Reference>() {
+        @Override
+        public int compare(Reference o1, Reference o2) {
+            int result = o1.getGenomicInfo().compareTo(o2.getGenomicInfo());
+
+            return result == 0 ? Integer.compare(o1.getIndex(), o2.getIndex()) : result;
+        }
+    };
+
+    private class ReferenceRangeTask extends RecursiveTask<List<Variant>> {
+        private final ConsensusAligner consensusAligner;
+        private final MinorCaller minorCaller;
+        private final List<Reference> references;
+        private final int from, to;
+
+        ReferenceRangeTask(ConsensusAligner consensusAligner, MinorCaller minorCaller,
+                           List<Reference> references, int from, int to) {
+            this.consensusAligner = consensusAligner;
+            this.minorCaller = minorCaller;
+            this.references = references;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected List<Variant> compute() {
+            if (to - from == 1) {
+                Reference reference = references.get(from);
+                MutationsTable mutationsTable = consensusAligner.getAlignerTable(reference);
+
+                return mutationsTable.wasUpdated() ?
+                        callVariants(reference, mutationsTable, minorCaller) :
+                        new ArrayList<Variant>();
+            } else if (to == from) {
+                return new ArrayList<>();
+            }
+
+            int mid = (from + to) >>> 1;
+
+            ReferenceRangeTask left = new ReferenceRangeTask(consensusAligner, minorCaller, references, from, mid),
+                    right = new ReferenceRangeTask(consensusAligner, minorCaller, references, mid, to);
+
+            right.fork();
+            List<Variant> leftVariants = left.compute();
+
+            return merge(leftVariants, right.join());
+        }
     }
 
     public ReferenceLibrary getReferenceLibrary() {
         return referenceLibrary;
     }
 
+    public VariantCallerParameters getVariantCallerParameters() {
+        return variantCallerParameters;
+    }
+
     public int getFilterCount() {
         return filters.length;
     }
@@ -179,6 +347,9 @@ public class VariantCaller extends PipelineBlock {
     }
 
     public List<Variant> getVariants() {
+        if (streamed) {
+            throw new RuntimeException("Variants were streamed to output and not stored.");
+        }
         return Collections.unmodifiableList(variants);
     }
 
@@ -196,13 +367,17 @@ public class VariantCaller extends PipelineBlock {
     }
 
     @Override
-    public String getBody() {
-        StringBuilder stringBuilder = new StringBuilder();
+    public void writeBody(Writer writer) throws IOException {
+        if (streamed) {
+            // Variants were already written to output files as they were called, only the header is left here
+            Speaker.INSTANCE.sout("WARNING: Variants were streamed to output and not stored, " +
+                    "VariantCaller output has no rows", 1);
+            return;
+        }
 
         for (Variant variant : variants) {
-            stringBuilder.append(variant.toString()).append("\n");
+            writer.write(variant.toString());
+            writer.write("\n");
         }
-
-        return stringBuilder.toString();
     }
 }
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2014-2016 Mikhail Shugay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.antigenomics.mageri.core.variant;
+
+import com.antigenomics.mageri.core.genomic.ReferenceLibrary;
+import com.antigenomics.mageri.core.mutations.MutationCodec;
+import com.antigenomics.mageri.core.variant.filter.FilterSummary;
+import com.antigenomics.mageri.core.variant.model.ErrorRateEstimate;
+import com.antigenomics.mageri.misc.Basics;
+import com.milaboratory.core.sequence.nucleotide.NucleotideSequence;
+import com.milaboratory.util.Bit2Array;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Encoding of called variants used by binary analysis output. Filter summaries are not stored,
+ * they are re-computed with the filters of restored variant caller.
+ */
+public final class VariantCallerCodec {
+    public static final int VERSION = 1;
+
+    private VariantCallerCodec() {
+    }
+
+    public static void write(DataOutput output, VariantCaller variantCaller) throws IOException {
+        output.writeInt(VERSION);
+        Basics.writeParameters(output, variantCaller.getVariantCallerParameters());
+        output.writeBoolean(variantCaller.called);
+        output.writeBoolean(variantCaller.streamed);
+
+        output.writeInt(variantCaller.variants.size());
+        for (Variant variant : variantCaller.variants) {
+            writeVariant(output, variant);
+        }
+    }
+
+    public static VariantCaller read(DataInput input, ReferenceLibrary referenceLibrary) throws IOException {
+        int version = input.readInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported variant caller encoding version " + version + ".");
+        }
+
+        VariantCaller variantCaller = new VariantCaller(referenceLibrary,
+                VariantCallerParameters.fromXml(Basics.readParameters(input)));
+        variantCaller.called = input.readBoolean();
+        variantCaller.streamed = input.readBoolean();
+
+        int numberOfVariants = input.readInt();
+        for (int i = 0; i < numberOfVariants; i++) {
+            variantCaller.variants.add(readVariant(input, variantCaller));
+        }
+
+        return variantCaller;
+    }
+
+    private static void writeVariant(DataOutput output, Variant variant) throws IOException {
+        output.writeInt(variant.getReference().getIndex());
+        MutationCodec.write(output, variant.getMutation());
+        output.writeInt(variant.getCount());
+        output.writeInt(variant.getDepth());
+        output.writeDouble(variant.getQual());
+        output.writeDouble(variant.getCqs());
+        variant.ancestralAllele.getInnerData().writeTo(output);
+        output.writeBoolean(variant.hasReference());
+
+        ErrorRateEstimate errorRateEstimate = variant.getErrorRateEstimate();
+        output.writeDouble(errorRateEstimate.getErrorRate());
+        output.writeInt(errorRateEstimate.getStatistics().length);
+        for (double statistic : errorRateEstimate.getStatistics()) {
+            output.writeDouble(statistic);
+        }
+
+        // Variants at absent positions are not filtered
+        output.writeBoolean(variant.getFilterSummary() != FilterSummary.DUMMY);
+    }
+
+    private static Variant readVariant(DataInput input, VariantCaller variantCaller) throws IOException {
+        ReferenceLibrary referenceLibrary = variantCaller.getReferenceLibrary();
+
+        int referenceIndex = input.readInt();
+        Variant variant = new Variant(referenceLibrary.getAt(referenceIndex),
+                MutationCodec.read(input),
+                input.readInt(), input.readInt(),
+                input.readDouble(), input.readDouble(),
+                new NucleotideSequence(Bit2Array.readFrom(input)), input.readBoolean(),
+                readErrorRateEstimate(input));
+
+        if (input.readBoolean()) {
+            variant.filter(variantCaller);
+        }
+
+        return variant;
+    }
+
+    private static ErrorRateEstimate readErrorRateEstimate(DataInput input) throws IOException {
+        double errorRate = input.readDouble();
+        double[] statistics = new double[input.readInt()];
+        for (int i = 0; i < statistics.length; i++) {
+            statistics[i] = input.readDouble();
+        }
+        return new ErrorRateEstimate(errorRate, statistics);
+    }
+}
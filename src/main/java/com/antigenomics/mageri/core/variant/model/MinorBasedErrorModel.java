@@ -23,9 +23,13 @@ import com.antigenomics.mageri.core.mutations.Substitution;
 import com.antigenomics.mageri.core.output.VcfUtil;
 import com.antigenomics.mageri.core.variant.VariantCallerParameters;
 import com.antigenomics.mageri.misc.AuxiliaryStats;
+import com.antigenomics.mageri.misc.QualityScoreCache;
 import com.milaboratory.core.sequence.mutations.Mutations;
 
 public class MinorBasedErrorModel implements ErrorModel {
+    // Shared across references, scores are keyed by count and negative binomial parameters
+    private static final QualityScoreCache SCORE_CACHE = new QualityScoreCache();
+
     private final int coverageThreshold, minorCountThreshold;
     private final boolean shouldPropagate;
     private final double cycles, lambda, propagateProb, compoundQScoreSD, compoundQScoreMu;
@@ -178,6 +182,13 @@ public class MinorBasedErrorModel implements ErrorModel {
             return -1.0;
         }
 
-        return -10 * Math.log10(1.0 - AuxiliaryStats.negativeBinomialCdf(majorCount, r, p));
+        Double score = SCORE_CACHE.get(majorCount, total, r, p);
+
+        if (score == null) {
+            score = -10 * Math.log10(1.0 - AuxiliaryStats.negativeBinomialCdf(majorCount, r, p));
+            SCORE_CACHE.put(majorCount, total, r, p, score);
+        }
+
+        return score;
     }
 }
\ No newline at end of file
@@ -6,10 +6,14 @@ import com.antigenomics.mageri.core.mutations.Mutation;
 import com.antigenomics.mageri.core.mutations.Substitution;
 import com.antigenomics.mageri.core.variant.VariantCallerParameters;
 import com.antigenomics.mageri.misc.AuxiliaryStats;
+import com.antigenomics.mageri.misc.QualityScoreCache;
 import com.milaboratory.core.sequence.mutations.Mutations;
 import com.milaboratory.core.sequence.nucleotide.NucleotideAlphabet;
 
 public class PresetErrorModel implements ErrorModel {
+    // Shared across references, as a and b only depend on substitution type
+    private static final QualityScoreCache SCORE_CACHE = new QualityScoreCache();
+
     private final double[][] alpha = new double[4][4], beta = new double[4][4];
     private final double propagateProb;
     private final MutationsTable mutationsTable;
@@ -90,6 +94,13 @@ public class PresetErrorModel implements ErrorModel {
             return 0;
         }
 
-        return -10 * Math.log10(AuxiliaryStats.betaBinomialPvalueFast(majorCount, coverage, a, b));
+        Double score = SCORE_CACHE.get(majorCount, coverage, a, b);
+
+        if (score == null) {
+            score = -10 * Math.log10(AuxiliaryStats.betaBinomialPvalueFast(majorCount, coverage, a, b));
+            SCORE_CACHE.put(majorCount, coverage, a, b, score);
+        }
+
+        return score;
     }
 }
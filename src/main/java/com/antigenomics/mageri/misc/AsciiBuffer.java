@@ -0,0 +1,104 @@
+/*
+ * Copyright 2014-2016 Mikhail Shugay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.antigenomics.mageri.misc;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Reusable byte buffer for formatting ASCII text records without creating intermediate strings.
+ */
+public final class AsciiBuffer {
+    private byte[] bytes;
+    private int size = 0;
+
+    public AsciiBuffer() {
+        this(1024);
+    }
+
+    public AsciiBuffer(int initialCapacity) {
+        this.bytes = new byte[initialCapacity];
+    }
+
+    private void ensureCapacity(int additional) {
+        if (size + additional > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + additional));
+        }
+    }
+
+    public AsciiBuffer append(char c) {
+        ensureCapacity(1);
+        bytes[size++] = (byte) c;
+        return this;
+    }
+
+    public AsciiBuffer append(String string) {
+        int length = string.length();
+        ensureCapacity(length);
+        for (int i = 0; i < length; i++) {
+            bytes[size++] = (byte) string.charAt(i);
+        }
+        return this;
+    }
+
+    public AsciiBuffer append(int value) {
+        if (value == Integer.MIN_VALUE) {
+            return append(Integer.toString(value));
+        }
+
+        ensureCapacity(11);
+
+        if (value < 0) {
+            bytes[size++] = '-';
+            value = -value;
+        }
+
+        int start = size;
+        do {
+            bytes[size++] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+
+        // digits were written in reverse order
+        for (int i = start, j = size - 1; i < j; i++, j--) {
+            byte tmp = bytes[i];
+            bytes[i] = bytes[j];
+            bytes[j] = tmp;
+        }
+
+        return this;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public void writeTo(OutputStream outputStream) throws IOException {
+        outputStream.write(bytes, 0, size);
+    }
+
+    @Override
+    public String toString() {
+        return new String(bytes, 0, size);
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2014-2016 Mikhail Shugay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.antigenomics.mageri.misc;
+
+import com.milaboratory.core.sequence.NucleotideSQPair;
+import com.milaboratory.core.sequence.quality.QualityFormat;
+import com.milaboratory.core.sequencing.read.SequencingRead;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes FASTQ records on a background thread. Records are formatted by the calling threads and passed through
+ * a bounded queue, so calling threads are not serialized on output. Each read of a paired-end record is written
+ * to its own output stream.
+ */
+public class AsyncFastqWriter implements FastqWriter<SequencingRead> {
+    public static final int DEFAULT_QUEUE_SIZE = 4096;
+    private static final byte[] PLUS_DELIMITER = "\n+\n".getBytes();
+    private static final byte[][] END_OF_QUEUE = new byte[0][];
+
+    private final OutputStream[] outputStreams;
+    private final byte qualityOffset;
+    private final BlockingQueue<byte[][]> queue;
+    private final Thread writerThread;
+    private volatile Throwable error = null;
+    private boolean closed = false;
+
+    public AsyncFastqWriter(OutputStream... outputStreams) {
+        this(QualityFormat.Phred33, DEFAULT_QUEUE_SIZE, outputStreams);
+    }
+
+    public AsyncFastqWriter(QualityFormat qualityFormat, int queueSize, OutputStream... outputStreams) {
+        this.outputStreams = outputStreams;
+        this.qualityOffset = qualityFormat.getOffset();
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+        this.writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    byte[][] records;
+                    while ((records = queue.take()) != END_OF_QUEUE) {
+                        for (int i = 0; i < records.length; i++) {
+                            AsyncFastqWriter.this.outputStreams[i].write(records[i]);
+                        }
+                    }
+                } catch (Throwable e) {
+                    error = e;
+                    // unblock producers
+                    queue.clear();
+                }
+            }
+        }, "async-fastq-writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    @Override
+    public void write(SequencingRead read) throws IOException {
+        checkError();
+
+        byte[][] records = new byte[outputStreams.length][];
+        for (int i = 0; i < records.length; i++) {
+            records[i] = format(read.getDescription(i), read.getData(i));
+        }
+
+        put(records);
+    }
+
+    private byte[] format(String description, NucleotideSQPair data) {
+        byte[] descriptionBytes = description.getBytes(),
+                sequenceBytes = data.getSequence().toString().getBytes(),
+                qualityBytes = data.getQuality().encode(qualityOffset);
+
+        byte[] record = new byte[descriptionBytes.length + sequenceBytes.length + qualityBytes.length +
+                PLUS_DELIMITER.length + 3];
+        int offset = 0;
+
+        record[offset++] = '@';
+        offset = copy(descriptionBytes, record, offset);
+        record[offset++] = '\n';
+        offset = copy(sequenceBytes, record, offset);
+        offset = copy(PLUS_DELIMITER, record, offset);
+        offset = copy(qualityBytes, record, offset);
+        record[offset] = '\n';
+
+        return record;
+    }
+
+    private static int copy(byte[] from, byte[] to, int offset) {
+        System.arraycopy(from, 0, to, offset, from.length);
+        return offset + from.length;
+    }
+
+    private void put(byte[][] records) throws IOException {
+        try {
+            while (!queue.offer(records, 100, TimeUnit.MILLISECONDS)) {
+                checkError();
+            }
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private void checkError() throws IOException {
+        if (error != null) {
+            throw new IOException("Failed to write FASTQ record", error);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        try {
+            if (error == null) {
+                put(END_OF_QUEUE);
+            }
+            writerThread.join();
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        } finally {
+            closeOutputStreams();
+        }
+
+        checkError();
+    }
+
+    private void closeOutputStreams() throws IOException {
+        IOException exception = null;
+
+        for (OutputStream outputStream : outputStreams) {
+            try {
+                outputStream.close();
+            } catch (IOException e) {
+                if (exception == null) {
+                    exception = e;
+                }
+            }
+        }
+
+        if (exception != null) {
+            throw exception;
+        }
+    }
+}
@@ -59,6 +59,30 @@ public class AuxiliaryStats {
     }
 
     public static double betaBinomialPvalueFast(int k, int n, double alpha, double beta, double pThreshold) {
+        double pdf = Math.exp(Beta.logBeta(alpha, n + beta) - Beta.logBeta(alpha, beta));
+
+        if (pdf < Double.MIN_NORMAL) {
+            // P(0) underflows, cannot proceed with term ratios
+            return betaBinomialPvalue(k, n, alpha, beta, pThreshold);
+        }
+
+        double sum = 1.0 + 0.5 * betaBinomialPdf(k, n, alpha, beta);
+
+        for (int i = 0; i < k; i++) {
+            sum -= pdf;
+
+            if (sum <= pThreshold) {
+                return pThreshold;
+            }
+
+            // P(i + 1) / P(i) = (n - i) * (i + alpha) / (i + 1) / (n - i - 1 + beta)
+            pdf *= (n - i) * (i + alpha) / ((i + 1) * (n - i - 1 + beta));
+        }
+
+        return sum;
+    }
+
+    public static double betaBinomialPvalue(int k, int n, double alpha, double beta, double pThreshold) {
         double sum = 1.0 + 0.5 * betaBinomialPdf(k, n, alpha, beta);
 
         for (int i = 0; i < k; i++) {
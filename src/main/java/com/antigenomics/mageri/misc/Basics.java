@@ -18,9 +18,14 @@ package com.antigenomics.mageri.misc;
 
 import org.jdom.Document;
 import org.jdom.Element;
+import org.jdom.JDOMException;
+import org.jdom.input.SAXBuilder;
 import org.jdom.output.Format;
 import org.jdom.output.XMLOutputter;
 
+import java.io.ByteArrayInputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 import java.util.Comparator;
 import java.util.List;
@@ -135,4 +140,35 @@ public final class Basics {
         Document document = new Document(e);
         new XMLOutputter(Format.getPrettyFormat()).output(document, System.out);
     }
+
+    // Parameter sets are stored in binary output as XML and are read back with fromXml(parent)
+    public static void writeParameters(DataOutput output, ParameterSet... parameterSets) throws IOException {
+        Element parent = new Element("parameters");
+        for (ParameterSet parameterSet : parameterSets) {
+            parent.addContent(parameterSet.toXml());
+        }
+
+        byte[] bytes = new XMLOutputter(Format.getCompactFormat()).outputString(parent).getBytes("UTF-8");
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    // Creating a parser is costly compared to parsing a parameter set, so parsers are re-used
+    private static final ThreadLocal<SAXBuilder> PARAMETERS_BUILDER = new ThreadLocal<SAXBuilder>() {
+        @Override
+        protected SAXBuilder initialValue() {
+            return new SAXBuilder();
+        }
+    };
+
+    public static Element readParameters(DataInput input) throws IOException {
+        byte[] bytes = new byte[input.readInt()];
+        input.readFully(bytes);
+
+        try {
+            return PARAMETERS_BUILDER.get().build(new ByteArrayInputStream(bytes)).getRootElement();
+        } catch (JDOMException e) {
+            throw new IOException("Malformed parameters in binary input.", e);
+        }
+    }
 }
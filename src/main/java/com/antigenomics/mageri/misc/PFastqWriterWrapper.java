@@ -16,27 +16,30 @@
 
 package com.antigenomics.mageri.misc;
 
-import com.milaboratory.core.sequencing.io.fastq.PFastqWriter;
+import com.milaboratory.core.sequencing.io.fastq.SFastqWriter;
 import com.milaboratory.core.sequencing.read.PSequencingRead;
 
 import java.io.IOException;
 
 public class PFastqWriterWrapper implements FastqWriter<PSequencingRead> {
-    private final PFastqWriter writer;
+    private final SFastqWriter writer1, writer2;
 
 
-    public PFastqWriterWrapper(PFastqWriter writer) {
-        this.writer = writer;
+    public PFastqWriterWrapper(SFastqWriter writer1, SFastqWriter writer2) {
+        this.writer1 = writer1;
+        this.writer2 = writer2;
     }
 
 
     @Override
     public void write(PSequencingRead read) throws IOException {
-        writer.write(read);
+        writer1.write(read.getSingleRead(0));
+        writer2.write(read.getSingleRead(1));
     }
 
     @Override
     public void close() throws IOException {
-        writer.close();
+        writer1.close();
+        writer2.close();
     }
 }
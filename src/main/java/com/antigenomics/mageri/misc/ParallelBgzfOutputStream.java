@@ -0,0 +1,295 @@
+/*
+ * Copyright 2014-2016 Mikhail Shugay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.antigenomics.mageri.misc;
+
+import htsjdk.samtools.util.BlockCompressedStreamConstants;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * BGZF (blocked GZIP) output stream that compresses blocks on a pool of threads. Blocks are written in order.
+ * The output is a valid multi-member GZIP file, so it can be used for plain .gz output as well.
+ */
+public class ParallelBgzfOutputStream extends OutputStream {
+    private static final int BLOCK_SIZE = BlockCompressedStreamConstants.DEFAULT_UNCOMPRESSED_BLOCK_SIZE,
+            MAX_DEFLATED_SIZE = BlockCompressedStreamConstants.MAX_COMPRESSED_BLOCK_SIZE -
+                    BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH -
+                    BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH;
+
+    private final OutputStream outputStream;
+    private final ExecutorService executorService;
+    private final boolean ownsExecutorService;
+    private final Queue<Future<byte[]>> pendingBlocks = new ArrayDeque<>();
+    private final int maxPendingBlocks, compressionLevel;
+    private byte[] buffer = new byte[BLOCK_SIZE];
+    private int bufferSize = 0;
+    // address, compressed and uncompressed size of written blocks
+    private final Queue<long[]> blockAddresses = new ArrayDeque<>();
+    private long compressedBytesWritten = 0, submittedBlocks = 0, writtenBlocks = 0, firstAddressedBlock = 0;
+    private boolean closed = false, trackBlockAddresses = false;
+
+    public ParallelBgzfOutputStream(OutputStream outputStream, int numberOfThreads) {
+        this(outputStream, numberOfThreads, BlockCompressedStreamConstants.DEFAULT_COMPRESSION_LEVEL);
+    }
+
+    public ParallelBgzfOutputStream(OutputStream outputStream, int numberOfThreads, int compressionLevel) {
+        this(outputStream, createDeflaterPool(numberOfThreads), numberOfThreads, compressionLevel, true);
+    }
+
+    /**
+     * Creates a stream that compresses blocks on an external pool, the pool is not shut down when the stream is closed.
+     */
+    public ParallelBgzfOutputStream(OutputStream outputStream, ExecutorService executorService,
+                                    int numberOfThreads, int compressionLevel) {
+        this(outputStream, executorService, numberOfThreads, compressionLevel, false);
+    }
+
+    private ParallelBgzfOutputStream(OutputStream outputStream, ExecutorService executorService,
+                                     int numberOfThreads, int compressionLevel, boolean ownsExecutorService) {
+        this.outputStream = outputStream;
+        this.compressionLevel = compressionLevel;
+        this.maxPendingBlocks = 4 * Math.max(1, numberOfThreads);
+        this.executorService = executorService;
+        this.ownsExecutorService = ownsExecutorService;
+    }
+
+    public static ExecutorService createDeflaterPool(int numberOfThreads) {
+        return Executors.newFixedThreadPool(Math.max(1, numberOfThreads), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "bgzf-deflater");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (bufferSize == BLOCK_SIZE) {
+            submitBlock();
+        }
+        buffer[bufferSize++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+        while (length > 0) {
+            if (bufferSize == BLOCK_SIZE) {
+                submitBlock();
+            }
+            int count = Math.min(length, BLOCK_SIZE - bufferSize);
+            System.arraycopy(bytes, offset, buffer, bufferSize, count);
+            bufferSize += count;
+            offset += count;
+            length -= count;
+        }
+    }
+
+    // Flushes buffered data as a (possibly short) block, all pending blocks are written
+    @Override
+    public void flush() throws IOException {
+        if (bufferSize > 0) {
+            submitBlock();
+        }
+        while (!pendingBlocks.isEmpty()) {
+            writeNextBlock();
+        }
+        outputStream.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        try {
+            flush();
+            // Records ending at a block boundary point to the terminator block
+            addBlock(BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK.length, 0);
+            outputStream.write(BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK);
+            compressedBytesWritten += BlockCompressedStreamConstants.EMPTY_GZIP_BLOCK.length;
+            outputStream.close();
+        } finally {
+            if (ownsExecutorService) {
+                executorService.shutdownNow();
+            } else {
+                for (Future<byte[]> pendingBlock : pendingBlocks) {
+                    pendingBlock.cancel(true);
+                }
+                pendingBlocks.clear();
+            }
+        }
+    }
+
+    public long getCompressedBytesWritten() {
+        return compressedBytesWritten;
+    }
+
+    /**
+     * Gets the position of the next byte written to this stream as block number and offset within the block.
+     * It is converted to a BGZF virtual file pointer with {@link #getFilePointer(long)} once the block is written.
+     * Block addresses are recorded starting from the first call to this method.
+     */
+    public long getPosition() {
+        if (!trackBlockAddresses) {
+            trackBlockAddresses = true;
+            firstAddressedBlock = writtenBlocks;
+        }
+        return bufferSize == BLOCK_SIZE ? (submittedBlocks + 1) << 16 : (submittedBlocks << 16) | bufferSize;
+    }
+
+    public boolean isWritten(long position) {
+        return (position >>> 16) < writtenBlocks;
+    }
+
+    /**
+     * Converts a position to a BGZF virtual file pointer. Positions should be converted in non-decreasing order,
+     * as addresses of blocks preceding the given one are discarded. Similar to htsjdk streams, the end of a block
+     * is reported as the start of the next one.
+     */
+    public long getFilePointer(long position) {
+        long block = position >>> 16;
+
+        if (!isWritten(position)) {
+            throw new IllegalStateException("Block " + block + " was not written yet.");
+        }
+
+        while (firstAddressedBlock < block) {
+            blockAddresses.poll();
+            firstAddressedBlock++;
+        }
+
+        long[] blockAddress = blockAddresses.peek();
+        int offset = (int) (position & 0xFFFF);
+
+        return offset > 0 && offset == blockAddress[2] ?
+                (blockAddress[0] + blockAddress[1]) << 16 :
+                (blockAddress[0] << 16) | offset;
+    }
+
+    private void addBlock(int compressedSize, int uncompressedSize) {
+        if (trackBlockAddresses) {
+            blockAddresses.add(new long[]{compressedBytesWritten, compressedSize, uncompressedSize});
+        }
+        writtenBlocks++;
+    }
+
+    private void submitBlock() throws IOException {
+        if (pendingBlocks.size() >= maxPendingBlocks) {
+            writeNextBlock();
+        }
+
+        final byte[] block = buffer;
+        final int blockSize = bufferSize;
+
+        pendingBlocks.add(executorService.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws Exception {
+                return compressBlock(block, blockSize, compressionLevel);
+            }
+        }));
+
+        buffer = new byte[BLOCK_SIZE];
+        bufferSize = 0;
+        submittedBlocks++;
+    }
+
+    private void writeNextBlock() throws IOException {
+        byte[] compressedBlock;
+
+        try {
+            compressedBlock = pendingBlocks.poll().get();
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IOException("Failed to compress BGZF block", e);
+        }
+
+        // uncompressed size is stored in the last four bytes of the block
+        addBlock(compressedBlock.length, readInt(compressedBlock, compressedBlock.length - 4));
+        outputStream.write(compressedBlock);
+        compressedBytesWritten += compressedBlock.length;
+    }
+
+    static byte[] compressBlock(byte[] block, int blockSize, int compressionLevel) {
+        byte[] deflated = new byte[MAX_DEFLATED_SIZE];
+        int deflatedSize = deflate(block, blockSize, deflated, compressionLevel);
+
+        if (deflatedSize < 0) {
+            // Incompressible data, store as is
+            deflatedSize = deflate(block, blockSize, deflated, Deflater.NO_COMPRESSION);
+        }
+
+        CRC32 crc32 = new CRC32();
+        crc32.update(block, 0, blockSize);
+
+        int totalSize = BlockCompressedStreamConstants.BLOCK_HEADER_LENGTH + deflatedSize +
+                BlockCompressedStreamConstants.BLOCK_FOOTER_LENGTH;
+        byte[] compressedBlock = new byte[totalSize];
+
+        // GZIP header with BC extra subfield holding total block size - 1
+        System.arraycopy(BlockCompressedStreamConstants.GZIP_BLOCK_PREAMBLE, 0,
+                compressedBlock, 0, BlockCompressedStreamConstants.GZIP_BLOCK_PREAMBLE.length);
+        int offset = BlockCompressedStreamConstants.BLOCK_LENGTH_OFFSET;
+        offset = writeShort(compressedBlock, offset, totalSize - 1);
+
+        System.arraycopy(deflated, 0, compressedBlock, offset, deflatedSize);
+        offset += deflatedSize;
+
+        offset = writeInt(compressedBlock, offset, (int) crc32.getValue());
+        writeInt(compressedBlock, offset, blockSize);
+
+        return compressedBlock;
+    }
+
+    private static int deflate(byte[] block, int blockSize, byte[] deflated, int compressionLevel) {
+        Deflater deflater = new Deflater(compressionLevel, true);
+
+        try {
+            deflater.setInput(block, 0, blockSize);
+            deflater.finish();
+            int deflatedSize = deflater.deflate(deflated, 0, deflated.length);
+            return deflater.finished() ? deflatedSize : -1;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static int writeShort(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) value;
+        bytes[offset + 1] = (byte) (value >>> 8);
+        return offset + 2;
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xFF) | (bytes[offset + 1] & 0xFF) << 8 |
+                (bytes[offset + 2] & 0xFF) << 16 | (bytes[offset + 3] & 0xFF) << 24;
+    }
+
+    private static int writeInt(byte[] bytes, int offset, int value) {
+        offset = writeShort(bytes, offset, value);
+        return writeShort(bytes, offset, value >>> 16);
+    }
+}
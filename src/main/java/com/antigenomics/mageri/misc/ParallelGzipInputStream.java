@@ -0,0 +1,365 @@
+/*
+ * Copyright 2014-2016 Mikhail Shugay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.antigenomics.mageri.misc;
+
+import java.io.*;
+import java.util.concurrent.*;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+/**
+ * GZIP input stream that decompresses ahead of the reader on a background thread. BGZF input (as written by
+ * {@link ParallelBgzfOutputStream}, bgzip, etc) is split into independent blocks that are inflated on a pool of
+ * threads shared by all streams, other GZIP files (including multi-member ones) are inflated sequentially
+ * on the background thread.
+ */
+public class ParallelGzipInputStream extends InputStream {
+    // No point in more inflaters, FASTQ parsing can't keep up with them anyway
+    public static final int DEFAULT_NUMBER_OF_THREADS = Math.max(1,
+            Math.min(4, Runtime.getRuntime().availableProcessors() / 2));
+
+    private static final int CHUNK_SIZE = 256 * 1024, GZIP_HEADER_LENGTH = 12, GZIP_FOOTER_LENGTH = 8,
+            FEXTRA = 4;
+
+    // Shared, so that R1, R2 and other inputs that are read together don't start a pool each
+    private static final ThreadPoolExecutor INFLATERS = new ThreadPoolExecutor(DEFAULT_NUMBER_OF_THREADS,
+            DEFAULT_NUMBER_OF_THREADS, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "gzip-inflater");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    static {
+        INFLATERS.allowCoreThreadTimeOut(true);
+    }
+
+    private final InputStream inputStream;
+    private final BlockingQueue<Future<byte[]>> pendingChunks;
+    private final Thread readerThread;
+    private final FutureTask<byte[]> endOfStream;
+    private byte[] chunk = new byte[0];
+    private int chunkOffset = 0;
+    private boolean closed = false, finished = false;
+
+    public ParallelGzipInputStream(InputStream inputStream) {
+        this(inputStream, DEFAULT_NUMBER_OF_THREADS);
+    }
+
+    /**
+     * Creates a stream that decompresses input ahead of the reader.
+     *
+     * @param inputStream     GZIP or BGZF input stream.
+     * @param numberOfThreads expected number of threads consuming the data, bounds the number of blocks
+     *                        that are inflated ahead. Inflater threads are shared, see {@link #setNumberOfThreads(int)}.
+     */
+    public ParallelGzipInputStream(InputStream inputStream, int numberOfThreads) {
+        if (inputStream == null) {
+            throw new NullPointerException();
+        }
+        this.inputStream = new BufferedInputStream(inputStream, CHUNK_SIZE);
+        numberOfThreads = Math.max(1, numberOfThreads);
+        this.pendingChunks = new ArrayBlockingQueue<>(Math.max(16, 4 * numberOfThreads));
+        this.endOfStream = completed(null);
+        this.readerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                readAhead();
+            }
+        }, "gzip-reader");
+        readerThread.setDaemon(true);
+        readerThread.start();
+    }
+
+    /**
+     * Sets the number of threads that inflate BGZF blocks, the pool is shared by all streams.
+     *
+     * @param numberOfThreads number of inflater threads.
+     */
+    public static synchronized void setNumberOfThreads(int numberOfThreads) {
+        numberOfThreads = Math.max(1, numberOfThreads);
+        // Core size can't exceed maximum size at any point
+        if (numberOfThreads > INFLATERS.getMaximumPoolSize()) {
+            INFLATERS.setMaximumPoolSize(numberOfThreads);
+            INFLATERS.setCorePoolSize(numberOfThreads);
+        } else {
+            INFLATERS.setCorePoolSize(numberOfThreads);
+            INFLATERS.setMaximumPoolSize(numberOfThreads);
+        }
+    }
+
+    public static int getNumberOfThreads() {
+        return INFLATERS.getMaximumPoolSize();
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!ensureChunk()) {
+            return -1;
+        }
+        return chunk[chunkOffset++] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (!ensureChunk()) {
+            return -1;
+        }
+        int count = Math.min(length, chunk.length - chunkOffset);
+        System.arraycopy(chunk, chunkOffset, bytes, offset, count);
+        chunkOffset += count;
+        return count;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return closed ? 0 : chunk.length - chunkOffset;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+
+        readerThread.interrupt();
+        // Only blocks of this stream are cancelled, inflaters are shared
+        Future<byte[]> pendingChunk;
+        while ((pendingChunk = pendingChunks.poll()) != null) {
+            pendingChunk.cancel(true);
+        }
+        inputStream.close();
+    }
+
+    private boolean ensureChunk() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+
+        while (chunkOffset == chunk.length) {
+            if (finished) {
+                return false;
+            }
+
+            Future<byte[]> nextChunk;
+            try {
+                nextChunk = pendingChunks.take();
+                chunk = nextChunk.get();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while waiting for GZIP data");
+            } catch (ExecutionException e) {
+                finished = true;
+                chunk = new byte[0];
+                chunkOffset = 0;
+                throw e.getCause() instanceof IOException ? (IOException) e.getCause() :
+                        new IOException("Failed to decompress GZIP data", e.getCause());
+            }
+
+            if (nextChunk == endOfStream) {
+                finished = true;
+                chunk = new byte[0];
+            }
+            chunkOffset = 0;
+        }
+
+        return true;
+    }
+
+    // Runs on the reader thread
+    private void readAhead() {
+        try {
+            if (isBgzf()) {
+                readBgzfBlocks();
+            } else {
+                readGzipChunks();
+            }
+            pendingChunks.put(endOfStream);
+        } catch (InterruptedException e) {
+            // closed
+        } catch (final Exception e) {
+            try {
+                pendingChunks.put(failed(e));
+            } catch (InterruptedException e1) {
+                // closed
+            }
+        }
+    }
+
+    private boolean isBgzf() throws IOException {
+        inputStream.mark(GZIP_HEADER_LENGTH + 6);
+        try {
+            byte[] header = new byte[GZIP_HEADER_LENGTH + 6];
+            return readFully(header, 0, header.length) == header.length && isBgzfHeader(header);
+        } finally {
+            inputStream.reset();
+        }
+    }
+
+    private static boolean isBgzfHeader(byte[] header) {
+        return (header[0] & 0xFF) == 0x1F && (header[1] & 0xFF) == 0x8B && header[2] == 8 &&
+                (header[3] & FEXTRA) != 0 &&
+                header[12] == 'B' && header[13] == 'C' && readShort(header, 14) == 2;
+    }
+
+    private void readBgzfBlocks() throws IOException, InterruptedException {
+        byte[] header = new byte[GZIP_HEADER_LENGTH];
+
+        while (true) {
+            int headerLength = readFully(header, 0, GZIP_HEADER_LENGTH);
+            if (headerLength == 0) {
+                return;
+            }
+            if (headerLength < GZIP_HEADER_LENGTH || (header[0] & 0xFF) != 0x1F || (header[1] & 0xFF) != 0x8B ||
+                    (header[3] & FEXTRA) == 0) {
+                throw new IOException("Malformed BGZF block header");
+            }
+
+            int extraLength = readShort(header, 10);
+            byte[] extra = new byte[extraLength];
+            if (readFully(extra, 0, extraLength) < extraLength) {
+                throw new IOException("Truncated BGZF block header");
+            }
+
+            int blockSize = -1;
+            for (int i = 0; i + 4 <= extraLength; i += 4 + readShort(extra, i + 2)) {
+                if (extra[i] == 'B' && extra[i + 1] == 'C' && readShort(extra, i + 2) == 2) {
+                    blockSize = readShort(extra, i + 4) + 1;
+                }
+            }
+            final int dataLength = blockSize - GZIP_HEADER_LENGTH - extraLength;
+            if (blockSize < 0 || dataLength < GZIP_FOOTER_LENGTH) {
+                throw new IOException("Malformed BGZF block header, no block size");
+            }
+
+            final byte[] block = new byte[dataLength];
+            if (readFully(block, 0, dataLength) < dataLength) {
+                throw new IOException("Truncated BGZF block");
+            }
+
+            pendingChunks.put(INFLATERS.submit(new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws Exception {
+                    return inflateBlock(block);
+                }
+            }));
+        }
+    }
+
+    private void readGzipChunks() throws IOException, InterruptedException {
+        // GZIPInputStream takes care of multi-member files
+        InputStream gzipInputStream = new GZIPInputStream(inputStream, CHUNK_SIZE);
+
+        while (true) {
+            byte[] bytes = new byte[CHUNK_SIZE];
+            int length = 0, count;
+            while (length < CHUNK_SIZE && (count = gzipInputStream.read(bytes, length, CHUNK_SIZE - length)) >= 0) {
+                length += count;
+            }
+
+            if (length == 0) {
+                return;
+            }
+            if (length < CHUNK_SIZE) {
+                byte[] trimmed = new byte[length];
+                System.arraycopy(bytes, 0, trimmed, 0, length);
+                bytes = trimmed;
+            }
+            pendingChunks.put(completed(bytes));
+        }
+    }
+
+    static byte[] inflateBlock(byte[] block) throws IOException {
+        int footerOffset = block.length - GZIP_FOOTER_LENGTH;
+        byte[] inflated = new byte[readInt(block, footerOffset + 4)];
+
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(block, 0, footerOffset);
+            int length = 0;
+            while (length < inflated.length) {
+                int count = inflater.inflate(inflated, length, inflated.length - length);
+                if (count == 0 && (inflater.finished() || inflater.needsInput())) {
+                    break;
+                }
+                length += count;
+            }
+            if (length != inflated.length) {
+                throw new IOException("Corrupt BGZF block, size mismatch");
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt BGZF block", e);
+        } finally {
+            inflater.end();
+        }
+
+        CRC32 crc32 = new CRC32();
+        crc32.update(inflated, 0, inflated.length);
+        if ((int) crc32.getValue() != readInt(block, footerOffset)) {
+            throw new IOException("Corrupt BGZF block, CRC mismatch");
+        }
+
+        return inflated;
+    }
+
+    private int readFully(byte[] bytes, int offset, int length) throws IOException {
+        int total = 0, count;
+        while (total < length && (count = inputStream.read(bytes, offset + total, length - total)) >= 0) {
+            total += count;
+        }
+        return total;
+    }
+
+    private static int readShort(byte[] bytes, int offset) {
+        return (bytes[offset] & 0xFF) | ((bytes[offset + 1] & 0xFF) << 8);
+    }
+
+    private static int readInt(byte[] bytes, int offset) {
+        return readShort(bytes, offset) | (readShort(bytes, offset + 2) << 16);
+    }
+
+    private static FutureTask<byte[]> completed(final byte[] bytes) {
+        FutureTask<byte[]> task = new FutureTask<>(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws Exception {
+                return bytes;
+            }
+        });
+        task.run();
+        return task;
+    }
+
+    private static FutureTask<byte[]> failed(final Exception exception) {
+        FutureTask<byte[]> task = new FutureTask<>(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws Exception {
+                throw exception;
+            }
+        });
+        task.run();
+        return task;
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright 2014-2016 Mikhail Shugay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.antigenomics.mageri.misc;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Bounded thread-safe memo for quality scores computed from (count, total) pairs and two model parameters.
+ * The cache is simply dropped once it reaches its maximal size.
+ */
+public class QualityScoreCache {
+    public static final int DEFAULT_MAX_SIZE = 1 << 20;
+
+    private final ConcurrentHashMap<Key, Double> scores = new ConcurrentHashMap<>();
+    private final int maxSize;
+
+    public QualityScoreCache() {
+        this(DEFAULT_MAX_SIZE);
+    }
+
+    public QualityScoreCache(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    public Double get(int count, int total, double param1, double param2) {
+        return scores.get(new Key(count, total, param1, param2));
+    }
+
+    public void put(int count, int total, double param1, double param2, double score) {
+        if (scores.size() >= maxSize) {
+            scores.clear();
+        }
+        scores.put(new Key(count, total, param1, param2), score);
+    }
+
+    public int size() {
+        return scores.size();
+    }
+
+    public void clear() {
+        scores.clear();
+    }
+
+    private static final class Key {
+        private final int count, total;
+        private final long param1, param2;
+
+        Key(int count, int total, double param1, double param2) {
+            this.count = count;
+            this.total = total;
+            this.param1 = Double.doubleToLongBits(param1);
+            this.param2 = Double.doubleToLongBits(param2);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+
+            Key key = (Key) o;
+
+            return count == key.count && total == key.total &&
+                    param1 == key.param1 && param2 == key.param2;
+        }
+
+        @Override
+        public int hashCode() {
+            int result = count;
+            result = 31 * result + total;
+            result = 31 * result + (int) (param1 ^ (param1 >>> 32));
+            result = 31 * result + (int) (param2 ^ (param2 >>> 32));
+            return result;
+        }
+    }
+}
@@ -16,9 +16,14 @@
 
 package com.antigenomics.mageri.pipeline;
 
+import com.antigenomics.mageri.core.input.UnalignedBamReader;
 import com.antigenomics.mageri.core.variant.model.ErrorModelType;
+import com.antigenomics.mageri.misc.ParallelGzipInputStream;
+import com.antigenomics.mageri.pipeline.analysis.AnalysisReader;
+import com.antigenomics.mageri.pipeline.analysis.AnalysisSerializer;
 import com.antigenomics.mageri.pipeline.analysis.ProjectAnalysis;
 import com.antigenomics.mageri.pipeline.analysis.ProjectAnalysisRaw;
+import com.antigenomics.mageri.pipeline.analysis.ProjectAnalysisStreaming;
 import com.antigenomics.mageri.pipeline.input.*;
 import org.apache.commons.cli.*;
 import org.apache.commons.io.FileUtils;
@@ -26,7 +31,6 @@ import org.jdom.JDOMException;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
 import java.nio.file.Paths;
 import java.util.List;
 
@@ -40,7 +44,12 @@ public final class Mageri {
             MY_COMMAND = System.getProperty("sun.java.command");
 
     public static ProjectAnalysis loadAnalysis(File file) throws IOException, ClassNotFoundException {
-        return (ProjectAnalysis) SerializationUtils.readObjectFromFile(file);
+        return AnalysisSerializer.read(file);
+    }
+
+    // Loads samples and their parts on demand, should be closed after use
+    public static AnalysisReader openAnalysis(File file) throws IOException {
+        return new AnalysisReader(file);
     }
 
     public static void main(String[] args) throws Exception {
@@ -50,7 +59,8 @@ public final class Mageri {
         Presets presets = null;
         Input input = null;
         String outputFolder = null;
-        boolean writeBinary = false, noUmi = false;
+        boolean writeBinary = false, writeBam = false, sortBam = false, indexVcf = false, writePileup = false,
+                noUmi = false, umiGrouped = false;
 
         try {
             // parse the command line arguments
@@ -78,6 +88,7 @@ public final class Mageri {
             ////////////////////////////////////////////////////////////////////////////////////////////////////////////////
             // Runtime
             runtimeParameters = parseRuntimeParameters(commandLine);
+            ParallelGzipInputStream.setNumberOfThreads(runtimeParameters.getNumberOfThreads());
 
             ////////////////////////////////////////////////////////////////////////////////////////////////////////////////
             // Presets
@@ -98,7 +109,17 @@ public final class Mageri {
             ////////////////////////////////////////////////////////////////////////////////////////////////////////////////
             // Advanced/experimental
             writeBinary = commandLine.hasOption(OPT_BINARY_OUTPUT);
+            writeBam = commandLine.hasOption(OPT_BAM_OUTPUT);
+            sortBam = commandLine.hasOption(OPT_SORTED_BAM_OUTPUT);
+            indexVcf = commandLine.hasOption(OPT_INDEXED_VCF_OUTPUT);
+            writePileup = commandLine.hasOption(OPT_PILEUP_OUTPUT);
             noUmi = commandLine.hasOption(OPT_NO_UMI);
+            umiGrouped = commandLine.hasOption(OPT_UMI_GROUPED);
+
+            if (noUmi && umiGrouped) {
+                throw new ParseException("Options --" + OPT_NO_UMI + " and --" + OPT_UMI_GROUPED +
+                        " are mutually exclusive.");
+            }
 
             if (writeBinary && noUmi) {
                 throw new ParseException("Binary serialization of raw output is not supported yet.");
@@ -119,10 +140,15 @@ public final class Mageri {
         ////////////////////////////////////////////////////////////////////////////////////////////////////////////////
         // Prepare
         ProjectAnalysis projectAnalysis = noUmi ? new ProjectAnalysisRaw(input, presets, runtimeParameters) :
+                umiGrouped ? new ProjectAnalysisStreaming(input, presets, runtimeParameters) :
                 new ProjectAnalysis(input, presets, runtimeParameters);
 
         projectAnalysis.setOutputPath(outputFolder);
         projectAnalysis.setWriteBinary(writeBinary);
+        projectAnalysis.setWriteBam(writeBam);
+        projectAnalysis.setSortBam(sortBam);
+        projectAnalysis.setIndexVcf(indexVcf);
+        projectAnalysis.setWritePileup(writePileup);
 
         ////////////////////////////////////////////////////////////////////////////////////////////////////////////////
         // Run
@@ -154,6 +180,7 @@ public final class Mageri {
         int numberOfThreads = Runtime.getRuntime().availableProcessors();
         long readLimit = -1;
         byte verbosity = 2;
+        int umiIndexPartitions = 0;
 
         if (commandLine.hasOption(OPT_THREADS)) {
             numberOfThreads = Integer.parseInt(commandLine.getOptionValue(OPT_THREADS));
@@ -165,7 +192,13 @@ public final class Mageri {
             verbosity = Byte.parseByte(commandLine.getOptionValue(OPT_VERBOSITY));
         }
 
-        return new RuntimeParameters(numberOfThreads, readLimit, verbosity);
+        if (commandLine.hasOption(OPT_UMI_INDEX_PARTITIONS)) {
+            umiIndexPartitions = Integer.parseInt(commandLine.getOptionValue(OPT_UMI_INDEX_PARTITIONS));
+        }
+
+        return new RuntimeParameters(numberOfThreads, readLimit, verbosity,
+                getOptionValue(commandLine, OPT_UMI_INDEX_CACHE), umiIndexPartitions,
+                getOptionValue(commandLine, OPT_UMI_INDEX_SPILL_FOLDER));
     }
 
     public static Input parseInput(CommandLine commandLine) throws ParseException, IOException {
@@ -208,16 +241,31 @@ public final class Mageri {
     public static InputChunk parseInputChunk(CommandLine commandLine) throws IOException, ParseException {
         String sampleName = commandLine.getOptionValue(OPT_NAME_SAMPLE, "my_sample");
 
-        boolean paired = commandLine.hasOption(OPT_R2);
+        boolean interleaved = commandLine.hasOption(OPT_INTERLEAVED),
+                paired = commandLine.hasOption(OPT_R2) || interleaved;
 
         String fastq1Name = commandLine.getOptionValue(OPT_R1),
                 fastq2Name = getOptionValue(commandLine, OPT_R2);
 
-        InputStream fastq1Stream = FileIOProvider.INSTANCE.getStream(fastq1Name),
-                fastq2Stream = paired ? FileIOProvider.INSTANCE.getStream(fastq2Name) : null;
+        if (interleaved && fastq2Name != null) {
+            throw new ParseException("Second read file (-" + OPT_R2 + ") is not allowed for interleaved input.");
+        }
 
-        return new InputChunk(fastq1Stream, fastq2Stream, sampleName,
-                parseCheckoutRule(commandLine, sampleName, paired));
+        if (UnalignedBamReader.isSamFile(fastq1Name)) {
+            if (paired) {
+                throw new ParseException("Second read file (-" + OPT_R2 + ") or --" + OPT_INTERLEAVED +
+                        " is not allowed for BAM input.");
+            }
+            if (InputChunk.getIOProvider(FileIOProvider.INSTANCE, fastq1Name) != FileIOProvider.INSTANCE) {
+                throw new ParseException("BAM input should be a regular file.");
+            }
+        }
+
+        // Mates of BAM input are stored in the same file
+        paired = InputChunk.isPairedEnd(FileIOProvider.INSTANCE, fastq1Name, fastq2Name, interleaved);
+
+        return InputChunk.create(FileIOProvider.INSTANCE, fastq1Name, fastq2Name, interleaved, paired,
+                sampleName, parseCheckoutRule(commandLine, sampleName, paired));
     }
 
     public static CheckoutRule parseCheckoutRule(CommandLine commandLine,
@@ -274,7 +322,11 @@ public final class Mageri {
             OPT_IMPORT_PRESET = "import-preset", OPT_EXPORT_PRESET = "export-preset",
             OPT_INPUT_LONG = "input", OPT_INPUT_SHORT = "I",
             OPT_OUTPUT_LONG = "output-path", OPT_OUTPUT_SHORT = "O",
-            OPT_BINARY_OUTPUT = "write-binary", OPT_NO_UMI = "no-umi";
+            OPT_BINARY_OUTPUT = "write-binary", OPT_BAM_OUTPUT = "write-bam",
+            OPT_SORTED_BAM_OUTPUT = "sort-bam", OPT_INDEXED_VCF_OUTPUT = "index-vcf",
+            OPT_PILEUP_OUTPUT = "write-pileup", OPT_NO_UMI = "no-umi",
+            OPT_UMI_GROUPED = "umi-grouped", OPT_UMI_INDEX_CACHE = "umi-index-cache",
+            OPT_UMI_INDEX_PARTITIONS = "umi-index-partitions", OPT_UMI_INDEX_SPILL_FOLDER = "umi-index-spill-folder";
 
     // Manual analysis options
     private static final String
@@ -287,7 +339,7 @@ public final class Mageri {
             OPT_META_REFS = "references",
             OPT_META_BED = "bed",
             OPT_META_CONTIGS = "contigs",
-            OPT_R1 = "R1", OPT_R2 = "R2";
+            OPT_R1 = "R1", OPT_R2 = "R2", OPT_INTERLEAVED = "interleaved";
 
     private static final Options CLI = new Options()
             //
@@ -391,9 +443,12 @@ public final class Mageri {
             // Manual
             .addOption(
                     OptionBuilder
-                            .withArgName("fastq[.gz]")
+                            .withArgName("fastq[.gz]|bam")
                             .hasArg(true)
-                            .withDescription("(manual input) First read file.")
+                            .withDescription("(manual input) First read file, " +
+                                    "or unaligned BAM/SAM with UMIs in RX/QX tags (CRAM is not supported). " +
+                                    "FASTQ can also be read from standard input (-), a named pipe or /dev/fd/N, " +
+                                    "gzip compression is then detected automatically.")
                             .create(OPT_R1)
             )
             .addOption(
@@ -403,6 +458,13 @@ public final class Mageri {
                             .withDescription("(manual input) Second read file. [optional]")
                             .create(OPT_R2)
             )
+            .addOption(
+                    OptionBuilder
+                            .withDescription("(manual input) First read file contains interleaved paired-end " +
+                                    "reads, each R1 record followed by its R2 mate. [optional]")
+                            .withLongOpt(OPT_INTERLEAVED)
+                            .create()
+            )
             .addOption(
                     OptionBuilder
                             .withArgName("fasta")
@@ -507,6 +569,32 @@ public final class Mageri {
                             .withLongOpt(OPT_OUTPUT_LONG)
                             .create(OPT_OUTPUT_SHORT)
             )
+            .addOption(
+                    OptionBuilder
+                            .withDescription("Write consensus alignments in BAM format instead of SAM.")
+                            .withLongOpt(OPT_BAM_OUTPUT)
+                            .create()
+            )
+            .addOption(
+                    OptionBuilder
+                            .withDescription("Write coordinate-sorted and indexed (.bai) BAM files, implies --" +
+                                    OPT_BAM_OUTPUT + ".")
+                            .withLongOpt(OPT_SORTED_BAM_OUTPUT)
+                            .create()
+            )
+            .addOption(
+                    OptionBuilder
+                            .withDescription("Write bgzip-compressed (.vcf.gz) and tabix-indexed (.tbi) VCF files.")
+                            .withLongOpt(OPT_INDEXED_VCF_OUTPUT)
+                            .create()
+            )
+            .addOption(
+                    OptionBuilder
+                            .withDescription("Write per-position coverage, major/minor counts and CQS " +
+                                    "in binary columnar format (.pileup).")
+                            .withLongOpt(OPT_PILEUP_OUTPUT)
+                            .create()
+            )
             //
             // Advanced / experimental
             .addOption(
@@ -521,5 +609,38 @@ public final class Mageri {
                                     "i.e. no UMI-based assembly and error correction.")
                             .withLongOpt(OPT_NO_UMI)
                             .create()
+            ).addOption(
+                    OptionBuilder
+                            .withDescription("[advanced/experimental] Input reads are grouped by UMI, " +
+                                    "e.g. unaligned BAM sorted by RX tag. MIGs are assembled while input is read, " +
+                                    "without holding all reads in memory. UMI mismatch filtering is not performed.")
+                            .withLongOpt(OPT_UMI_GROUPED)
+                            .create()
+            ).addOption(
+                    OptionBuilder
+                            .withArgName("folder")
+                            .hasArg(true)
+                            .withDescription("[advanced/experimental] Save UMI index of each sample group " +
+                                    "to a given folder and re-use it in subsequent runs with the same input files " +
+                                    "and pre-processing parameters, skipping read checkout.")
+                            .withLongOpt(OPT_UMI_INDEX_CACHE)
+                            .create()
+            ).addOption(
+                    OptionBuilder
+                            .withArgName("integer")
+                            .hasArg(true)
+                            .withDescription("[advanced/experimental] Spill UMI index to a given number of " +
+                                    "on-disk partitions instead of holding all reads " +
+                                    "in memory. Use for inputs that do not fit in the heap. [default = 0, disabled]")
+                            .withLongOpt(OPT_UMI_INDEX_PARTITIONS)
+                            .create()
+            ).addOption(
+                    OptionBuilder
+                            .withArgName("folder")
+                            .hasArg(true)
+                            .withDescription("[advanced/experimental] Folder to store on-disk UMI index " +
+                                    "partitions in. [default = java.io.tmpdir]")
+                            .withLongOpt(OPT_UMI_INDEX_SPILL_FOLDER)
+                            .create()
             );
 }
\ No newline at end of file
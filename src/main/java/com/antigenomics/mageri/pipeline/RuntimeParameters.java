@@ -28,6 +28,12 @@ public class RuntimeParameters implements Serializable {
     private final int numberOfThreads;
     private final long readLimit;
     private final byte verbosityLevel;
+    // Folder where UMI index checkpoints are stored and looked up, null if disabled
+    private final String umiIndexCacheFolder;
+    // Number of on-disk partitions the UMI index is spilled to, 0 to keep it in memory
+    private final int umiIndexPartitions;
+    // Folder the UMI index partitions are stored in, system temporary folder if null
+    private final String umiIndexSpillFolder;
 
     public static final RuntimeParameters DEFAULT = new RuntimeParameters();
 
@@ -36,9 +42,17 @@ public class RuntimeParameters implements Serializable {
     }
 
     public RuntimeParameters(int numberOfThreads, long readLimit, byte verbosityLevel) {
+        this(numberOfThreads, readLimit, verbosityLevel, null, 0, null);
+    }
+
+    public RuntimeParameters(int numberOfThreads, long readLimit, byte verbosityLevel,
+                             String umiIndexCacheFolder, int umiIndexPartitions, String umiIndexSpillFolder) {
         this.numberOfThreads = numberOfThreads;
         this.readLimit = readLimit;
         this.verbosityLevel = verbosityLevel;
+        this.umiIndexCacheFolder = umiIndexCacheFolder;
+        this.umiIndexPartitions = umiIndexPartitions;
+        this.umiIndexSpillFolder = umiIndexSpillFolder;
     }
 
     public int getNumberOfThreads() {
@@ -53,16 +67,46 @@ public class RuntimeParameters implements Serializable {
         return verbosityLevel;
     }
 
+    public String getUmiIndexCacheFolder() {
+        return umiIndexCacheFolder;
+    }
+
+    public int getUmiIndexPartitions() {
+        return umiIndexPartitions;
+    }
+
+    public String getUmiIndexSpillFolder() {
+        return umiIndexSpillFolder;
+    }
+
     public RuntimeParameters withNumberOfThreads(int numberOfThreads) {
-        return new RuntimeParameters(numberOfThreads, readLimit, verbosityLevel);
+        return new RuntimeParameters(numberOfThreads, readLimit, verbosityLevel, umiIndexCacheFolder,
+                umiIndexPartitions, umiIndexSpillFolder);
     }
 
     public RuntimeParameters withReadLimit(long readLimit) {
-        return new RuntimeParameters(numberOfThreads, readLimit, verbosityLevel);
+        return new RuntimeParameters(numberOfThreads, readLimit, verbosityLevel, umiIndexCacheFolder,
+                umiIndexPartitions, umiIndexSpillFolder);
     }
 
     public RuntimeParameters withVerbosityLevel(byte verbosityLevel) {
-        return new RuntimeParameters(numberOfThreads, readLimit, verbosityLevel);
+        return new RuntimeParameters(numberOfThreads, readLimit, verbosityLevel, umiIndexCacheFolder,
+                umiIndexPartitions, umiIndexSpillFolder);
+    }
+
+    public RuntimeParameters withUmiIndexCacheFolder(String umiIndexCacheFolder) {
+        return new RuntimeParameters(numberOfThreads, readLimit, verbosityLevel, umiIndexCacheFolder,
+                umiIndexPartitions, umiIndexSpillFolder);
+    }
+
+    public RuntimeParameters withUmiIndexPartitions(int umiIndexPartitions) {
+        return new RuntimeParameters(numberOfThreads, readLimit, verbosityLevel, umiIndexCacheFolder,
+                umiIndexPartitions, umiIndexSpillFolder);
+    }
+
+    public RuntimeParameters withUmiIndexSpillFolder(String umiIndexSpillFolder) {
+        return new RuntimeParameters(numberOfThreads, readLimit, verbosityLevel, umiIndexCacheFolder,
+                umiIndexPartitions, umiIndexSpillFolder);
     }
 
     @Override
@@ -75,6 +119,11 @@ public class RuntimeParameters implements Serializable {
         if (numberOfThreads != that.numberOfThreads) return false;
         if (readLimit != that.readLimit) return false;
         if (verbosityLevel != that.verbosityLevel) return false;
+        if (umiIndexPartitions != that.umiIndexPartitions) return false;
+        if (umiIndexCacheFolder != null ? !umiIndexCacheFolder.equals(that.umiIndexCacheFolder) :
+                that.umiIndexCacheFolder != null) return false;
+        if (umiIndexSpillFolder != null ? !umiIndexSpillFolder.equals(that.umiIndexSpillFolder) :
+                that.umiIndexSpillFolder != null) return false;
 
         return true;
     }
@@ -84,6 +133,9 @@ public class RuntimeParameters implements Serializable {
         int result = numberOfThreads;
         result = 31 * result + (int) (readLimit ^ (readLimit >>> 32));
         result = 31 * result + (int) verbosityLevel;
+        result = 31 * result + umiIndexPartitions;
+        result = 31 * result + (umiIndexCacheFolder != null ? umiIndexCacheFolder.hashCode() : 0);
+        result = 31 * result + (umiIndexSpillFolder != null ? umiIndexSpillFolder.hashCode() : 0);
         return result;
     }
 }
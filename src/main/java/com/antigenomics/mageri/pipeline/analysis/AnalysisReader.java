@@ -0,0 +1,247 @@
+/*
+ * Copyright 2014-2016 Mikhail Shugay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.antigenomics.mageri.pipeline.analysis;
+
+import com.antigenomics.mageri.core.genomic.ReferenceLibrary;
+import com.antigenomics.mageri.core.genomic.ReferenceLibraryCodec;
+import com.antigenomics.mageri.core.mapping.AlignedConsensus;
+import com.antigenomics.mageri.core.mapping.AlignedConsensusCodec;
+import com.antigenomics.mageri.core.mapping.ConsensusAligner;
+import com.antigenomics.mageri.core.mapping.ConsensusAlignerCodec;
+import com.antigenomics.mageri.core.variant.VariantCaller;
+import com.antigenomics.mageri.core.variant.VariantCallerCodec;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.InflaterInputStream;
+
+import static com.antigenomics.mageri.pipeline.analysis.AnalysisSerializer.*;
+
+/**
+ * Random access to binary analysis output (.mi files) written by AnalysisSerializer.
+ * Only the table of contents, that also holds project structure, is read upon opening. References are read
+ * once when first needed, i.e. by any sample part, and the project section only when a sample or project
+ * analysis is requested, while sample analyses and their parts are read on demand. Loaded parts are kept,
+ * so that repeated calls return the same instances, and a loaded sample analysis refers to the same parts
+ * as the getters here.
+ */
+public class AnalysisReader implements Closeable {
+    private final RandomAccessFile file;
+    private final String version;
+    private final Project project;
+    private final Map<String, Sample> samplesByName = new LinkedHashMap<>();
+    private final Map<String, Map<String, long[]>> toc = new HashMap<>();
+    private final Map<String, Map<String, Object>> partsBySample = new HashMap<>();
+    private ReferenceLibrary referenceLibrary;
+    private ProjectAnalysis projectAnalysis;
+
+    public AnalysisReader(File file) throws IOException {
+        this.file = new RandomAccessFile(file, "r");
+
+        try {
+            int magic = this.file.readInt();
+
+            if (magic == LEGACY_MAGIC) {
+                throw new IOException("File " + file.getAbsolutePath() + " was written by an older version " +
+                        "using plain Java serialization and can only be loaded as a whole with Mageri.loadAnalysis.");
+            }
+
+            if (magic != MAGIC) {
+                throw new IOException("Not a MAGERI binary file: " + file.getAbsolutePath());
+            }
+
+            int formatVersion = this.file.readInt();
+            this.version = this.file.readUTF();
+
+            if (formatVersion != FORMAT_VERSION) {
+                throw new IOException("Unsupported binary format version " + formatVersion +
+                        " (file was written by " + version + ").");
+            }
+
+            this.file.seek(this.file.length() - 8);
+            this.file.seek(this.file.readLong());
+
+            // Read the whole table of contents at once
+            byte[] tocBytes = new byte[(int) (this.file.length() - 8 - this.file.getFilePointer())];
+            this.file.readFully(tocBytes);
+            DataInputStream tocInput = new DataInputStream(new ByteArrayInputStream(tocBytes));
+
+            this.project = ProjectAnalysisCodec.readProjectStructure(tocInput);
+
+            int nSections = tocInput.readInt();
+            for (int i = 0; i < nSections; i++) {
+                String sampleName = tocInput.readUTF(), part = tocInput.readUTF();
+                long offset = tocInput.readLong();
+                int length = tocInput.readInt();
+
+                Map<String, long[]> sections = toc.get(sampleName);
+                if (sections == null) {
+                    toc.put(sampleName, sections = new HashMap<>());
+                }
+                sections.put(part, new long[]{offset, length});
+            }
+
+            for (Sample sample : project.getSamples()) {
+                if (toc.containsKey(sample.getFullName())) {
+                    samplesByName.put(sample.getFullName(), sample);
+                }
+            }
+        } catch (IOException e) {
+            this.file.close();
+            throw e;
+        }
+    }
+
+    // Version of the software that wrote the file
+    public String getVersion() {
+        return version;
+    }
+
+    public List<String> getSampleNames() {
+        return new ArrayList<>(samplesByName.keySet());
+    }
+
+    public Project getProject() {
+        return project;
+    }
+
+    public synchronized ReferenceLibrary getReferenceLibrary() throws IOException {
+        if (referenceLibrary == null) {
+            try (DataInputStream input = openSection(PROJECT_SECTION, REFERENCES)) {
+                referenceLibrary = ReferenceLibraryCodec.read(input);
+            }
+        }
+        return referenceLibrary;
+    }
+
+    /**
+     * Gets the project analysis without loading any samples. The returned instance is partial:
+     * it only holds sample analyses that were loaded so far with {@link #getSampleAnalysis(String)},
+     * and is updated in place as more samples are loaded. Use {@link #readAll()} to get the complete analysis.
+     */
+    public synchronized ProjectAnalysis getProjectAnalysis() throws IOException {
+        if (projectAnalysis == null) {
+            try (DataInputStream input = openSection(PROJECT_SECTION, PROJECT_SECTION)) {
+                projectAnalysis = ProjectAnalysisCodec.readProject(input, project, getReferenceLibrary());
+            }
+        }
+        return projectAnalysis;
+    }
+
+    public synchronized SampleAnalysis getSampleAnalysis(String sampleName) throws IOException {
+        Sample sample = getSample(sampleName);
+
+        SampleAnalysis sampleAnalysis = getProjectAnalysis().analysisBySample.get(sample);
+        if (sampleAnalysis == null) {
+            ConsensusAligner consensusAligner = getConsensusAligner(sampleName);
+            VariantCaller variantCaller = getVariantCaller(sampleName);
+            List<AlignedConsensus> alignments = getAlignments(sampleName);
+
+            try (DataInputStream input = openSection(sampleName, CORE)) {
+                sampleAnalysis = ProjectAnalysisCodec.readSample(input, projectAnalysis, sample,
+                        consensusAligner, variantCaller, alignments);
+            }
+            projectAnalysis.analysisBySample.put(sample, sampleAnalysis);
+        }
+
+        return sampleAnalysis;
+    }
+
+    public ConsensusAligner getConsensusAligner(String sampleName) throws IOException {
+        return (ConsensusAligner) readPart(sampleName, ALIGNER);
+    }
+
+    // Null if variants were not called for a given sample
+    public VariantCaller getVariantCaller(String sampleName) throws IOException {
+        return getSections(sampleName).containsKey(VARIANTS) ?
+                (VariantCaller) readPart(sampleName, VARIANTS) : null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public List<AlignedConsensus> getAlignments(String sampleName) throws IOException {
+        return (List<AlignedConsensus>) readPart(sampleName, ALIGNMENTS);
+    }
+
+    /**
+     * Loads all sample analyses and returns the complete project analysis.
+     */
+    public ProjectAnalysis readAll() throws IOException {
+        for (String sampleName : getSampleNames()) {
+            getSampleAnalysis(sampleName);
+        }
+        return getProjectAnalysis();
+    }
+
+    private synchronized Object readPart(String sampleName, String part) throws IOException {
+        Sample sample = getSample(sampleName);
+
+        Map<String, Object> parts = partsBySample.get(sampleName);
+        if (parts == null) {
+            partsBySample.put(sampleName, parts = new HashMap<>());
+        }
+
+        Object obj = parts.get(part);
+        if (obj == null) {
+            try (DataInputStream input = openSection(sampleName, part)) {
+                switch (part) {
+                    case ALIGNER:
+                        obj = ConsensusAlignerCodec.read(input, getReferenceLibrary());
+                        break;
+                    case VARIANTS:
+                        obj = VariantCallerCodec.read(input, getReferenceLibrary());
+                        break;
+                    default:
+                        obj = AlignedConsensusCodec.readAll(input, sample, getReferenceLibrary());
+                }
+            }
+            parts.put(part, obj);
+        }
+
+        return obj;
+    }
+
+    private Sample getSample(String sampleName) {
+        Sample sample = samplesByName.get(sampleName);
+        if (sample == null) {
+            throw new IllegalArgumentException("Sample " + sampleName + " is not present in analysis output.");
+        }
+        return sample;
+    }
+
+    private Map<String, long[]> getSections(String sampleName) {
+        getSample(sampleName);
+        return toc.get(sampleName);
+    }
+
+    // Sections are small compared to the whole file, so each is read at once and inflated from memory
+    private synchronized DataInputStream openSection(String sampleName, String part) throws IOException {
+        long[] section = toc.get(sampleName).get(part);
+
+        byte[] bytes = new byte[(int) section[1]];
+        file.seek(section[0]);
+        file.readFully(bytes);
+
+        return new DataInputStream(new BufferedInputStream(
+                new InflaterInputStream(new ByteArrayInputStream(bytes))));
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
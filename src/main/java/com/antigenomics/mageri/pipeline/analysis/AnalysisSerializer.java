@@ -0,0 +1,168 @@
+/*
+ * Copyright 2014-2016 Mikhail Shugay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.antigenomics.mageri.pipeline.analysis;
+
+import com.antigenomics.mageri.core.genomic.ReferenceLibraryCodec;
+import com.antigenomics.mageri.core.mapping.AlignedConsensusCodec;
+import com.antigenomics.mageri.core.mapping.ConsensusAlignerCodec;
+import com.antigenomics.mageri.core.variant.VariantCallerCodec;
+import com.antigenomics.mageri.pipeline.Mageri;
+import com.antigenomics.mageri.pipeline.SerializationUtils;
+import org.apache.commons.io.output.CloseShieldOutputStream;
+import org.apache.commons.io.output.CountingOutputStream;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Versioned binary format for ProjectAnalysis (.mi files).
+ *
+ * The file starts with a header (magic, format version and software version) followed by sections, a table of
+ * contents and the offset of the table of contents. The table of contents holds project structure (sample groups
+ * and samples) and the location of each section. Each section is deflate-compressed and encoded field by field
+ * with a codec that writes its own version: the project section holds presets, runtime parameters and output
+ * flags (see ProjectAnalysisCodec), references are stored in a separate section (ReferenceLibraryCodec) and
+ * each sample analysis is split into a core section and separate sections for its parts, i.e. consensus aligner
+ * with mutation tables (ConsensusAlignerCodec), variants (VariantCallerCodec) and alignments
+ * (AlignedConsensusCodec). So any part can be read with only the table of contents and references at hand,
+ * see AnalysisReader.
+ *
+ * Pre-processing state (input files, demultiplexing) is not stored, so a loaded analysis can not be run again.
+ * Files of previous versions, that were written with plain Java serialization, are still read as is.
+ */
+public final class AnalysisSerializer {
+    public static final int MAGIC = 0x4D474D49, FORMAT_VERSION = 3;
+    // Header of streams produced by plain Java serialization, i.e. .mi files of previous versions
+    static final int LEGACY_MAGIC = 0xACED0005;
+
+    static final String PROJECT_SECTION = "", REFERENCES = "references", CORE = "core", ALIGNER = "aligner", VARIANTS = "variants",
+            ALIGNMENTS = "alignments";
+
+    private AnalysisSerializer() {
+    }
+
+    public static void write(ProjectAnalysis projectAnalysis, File file) throws IOException {
+        try (TocOutputStream output = new TocOutputStream(new FileOutputStream(file))) {
+            output.writeInt(MAGIC);
+            output.writeInt(FORMAT_VERSION);
+            output.writeUTF(String.valueOf(Mageri.MY_VERSION));
+
+            DataOutputStream section = output.beginSection(PROJECT_SECTION, PROJECT_SECTION);
+            ProjectAnalysisCodec.writeProject(section, projectAnalysis);
+            output.endSection(section);
+
+            section = output.beginSection(PROJECT_SECTION, REFERENCES);
+            ReferenceLibraryCodec.write(section, projectAnalysis.referenceLibrary);
+            output.endSection(section);
+
+            for (Map.Entry<Sample, SampleAnalysis> entry : projectAnalysis.analysisBySample.entrySet()) {
+                String sampleName = entry.getKey().getFullName();
+                SampleAnalysis sampleAnalysis = entry.getValue();
+
+                section = output.beginSection(sampleName, ALIGNER);
+                ConsensusAlignerCodec.write(section, sampleAnalysis.consensusAligner);
+                output.endSection(section);
+
+                if (sampleAnalysis.variantCaller != null) {
+                    section = output.beginSection(sampleName, VARIANTS);
+                    VariantCallerCodec.write(section, sampleAnalysis.variantCaller);
+                    output.endSection(section);
+                }
+
+                section = output.beginSection(sampleName, ALIGNMENTS);
+                AlignedConsensusCodec.writeAll(section, sampleAnalysis.alignmentDataList);
+                output.endSection(section);
+
+                section = output.beginSection(sampleName, CORE);
+                ProjectAnalysisCodec.writeSample(section, sampleAnalysis);
+                output.endSection(section);
+            }
+
+            output.writeToc(projectAnalysis.project);
+        }
+    }
+
+    public static ProjectAnalysis read(File file) throws IOException, ClassNotFoundException {
+        int magic;
+        try (DataInputStream input = new DataInputStream(new FileInputStream(file))) {
+            magic = input.readInt();
+        }
+
+        if (magic == LEGACY_MAGIC) {
+            try {
+                return (ProjectAnalysis) SerializationUtils.readObjectFromFile(file);
+            } catch (InvalidClassException e) {
+                throw new IOException("File " + file.getAbsolutePath() + " was written by an older version " +
+                        "that is not compatible with this one, please re-run the analysis.", e);
+            }
+        }
+
+        try (AnalysisReader analysisReader = new AnalysisReader(file)) {
+            return analysisReader.readAll();
+        }
+    }
+
+    private static final class TocOutputStream extends DataOutputStream {
+        private final CountingOutputStream counter;
+        private final List<String[]> tocNames = new ArrayList<>();
+        private final List<Long> tocOffsets = new ArrayList<>();
+        private final List<Integer> tocLengths = new ArrayList<>();
+        private Deflater deflater;
+
+        TocOutputStream(OutputStream out) {
+            super(new CountingOutputStream(new BufferedOutputStream(out, 65536)));
+            this.counter = (CountingOutputStream) this.out;
+        }
+
+        DataOutputStream beginSection(String sampleName, String part) throws IOException {
+            flush();
+            tocNames.add(new String[]{sampleName, part});
+            tocOffsets.add(counter.getByteCount());
+            deflater = new Deflater(Deflater.BEST_SPEED);
+
+            return new DataOutputStream(new DeflaterOutputStream(new CloseShieldOutputStream(counter),
+                    deflater, 65536));
+        }
+
+        void endSection(DataOutputStream section) throws IOException {
+            try {
+                section.close();
+            } finally {
+                deflater.end();
+            }
+            tocLengths.add((int) (counter.getByteCount() - tocOffsets.get(tocOffsets.size() - 1)));
+        }
+
+        void writeToc(Project project) throws IOException {
+            long tocOffset = counter.getByteCount();
+            ProjectAnalysisCodec.writeProjectStructure(this, project);
+            writeInt(tocNames.size());
+            for (int i = 0; i < tocNames.size(); i++) {
+                writeUTF(tocNames.get(i)[0]);
+                writeUTF(tocNames.get(i)[1]);
+                writeLong(tocOffsets.get(i));
+                writeInt(tocLengths.get(i));
+            }
+            writeLong(tocOffset);
+        }
+    }
+}
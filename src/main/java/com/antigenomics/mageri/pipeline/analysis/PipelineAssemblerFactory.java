@@ -23,6 +23,8 @@ import com.antigenomics.mageri.core.assemble.PAssemblerFactory;
 import com.antigenomics.mageri.core.assemble.SAssemblerFactory;
 import com.antigenomics.mageri.core.input.PreprocessorParameters;
 
+import java.io.IOException;
+import java.io.Writer;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -57,7 +59,7 @@ public class PipelineAssemblerFactory extends PipelineBlock {
     }
 
     @Override
-    public String getBody() {
+    public void writeBody(Writer writer) throws IOException {
         StringBuilder stringBuilder = new StringBuilder();
         for (Sample sample : assemblersBySample.keySet()) {
             Assembler assembler = assemblersBySample.get(sample);
@@ -71,7 +73,8 @@ public class PipelineAssemblerFactory extends PipelineBlock {
                     append(assembler.getReadsDroppedShortR2()).append("\t").
                     append(assembler.getReadsDroppedErrorR1()).append("\t").
                     append(assembler.getReadsDroppedErrorR2()).append("\n");
+            writer.append(stringBuilder);
+            stringBuilder.setLength(0);
         }
-        return stringBuilder.toString();
     }
 }
@@ -25,6 +25,8 @@ import com.antigenomics.mageri.core.mapping.PConsensusAlignerFactory;
 import com.antigenomics.mageri.core.mapping.SConsensusAlignerFactory;
 import com.antigenomics.mageri.core.mapping.alignment.AlignerFactory;
 
+import java.io.IOException;
+import java.io.Writer;
 import java.util.*;
 
 public class PipelineConsensusAlignerFactory extends PipelineBlock {
@@ -69,7 +71,7 @@ public class PipelineConsensusAlignerFactory extends PipelineBlock {
     }
 
     @Override
-    public String getBody() {
+    public void writeBody(Writer writer) throws IOException {
         StringBuilder stringBuilder = new StringBuilder();
         for (Sample sample : alignersBySample.keySet()) {
             ConsensusAligner aligner = alignersBySample.get(sample);
@@ -87,7 +89,8 @@ public class PipelineConsensusAlignerFactory extends PipelineBlock {
             }*/
 
             stringBuilder.append("\n");
+            writer.append(stringBuilder);
+            stringBuilder.setLength(0);
         }
-        return stringBuilder.toString();
     }
 }
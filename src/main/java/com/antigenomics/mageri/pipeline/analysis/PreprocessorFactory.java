@@ -18,6 +18,7 @@ package com.antigenomics.mageri.pipeline.analysis;
 
 import com.antigenomics.mageri.core.PipelineBlock;
 import com.antigenomics.mageri.core.input.PreprocessorParameters;
+import com.antigenomics.mageri.core.mapping.kmer.ReferenceKmerFilter;
 import com.antigenomics.mageri.pipeline.RuntimeParameters;
 import com.antigenomics.mageri.pipeline.input.Input;
 import com.antigenomics.mageri.preprocessing.CheckoutProcessor;
@@ -25,18 +26,27 @@ import com.antigenomics.mageri.preprocessing.DemultiplexParameters;
 import com.antigenomics.mageri.preprocessing.PCheckoutProcessor;
 
 import java.io.IOException;
+import java.io.Writer;
 import java.util.HashMap;
 import java.util.Map;
 
 public class PreprocessorFactory extends PipelineBlock {
     private final DemultiplexParameters demultiplexParameters;
     private final PreprocessorParameters preprocessorParameters;
+    // Only needed to create pre-processors, large and not worth storing in binary output
+    private transient final ReferenceKmerFilter referenceKmerFilter;
     private final Map<SampleGroup, Preprocessor> preprocessorBySampleGroup = new HashMap<>();
 
     public PreprocessorFactory(DemultiplexParameters demultiplexParameters, PreprocessorParameters preprocessorParameters) {
+        this(demultiplexParameters, preprocessorParameters, null);
+    }
+
+    public PreprocessorFactory(DemultiplexParameters demultiplexParameters, PreprocessorParameters preprocessorParameters,
+                               ReferenceKmerFilter referenceKmerFilter) {
         super("checkout");
         this.demultiplexParameters = demultiplexParameters;
         this.preprocessorParameters = preprocessorParameters;
+        this.referenceKmerFilter = referenceKmerFilter;
     }
 
     public Preprocessor create(Input input, SampleGroup sampleGroup) throws IOException, InterruptedException {
@@ -47,11 +57,16 @@ public class PreprocessorFactory extends PipelineBlock {
         return createNoUmi(input, sampleGroup, RuntimeParameters.DEFAULT);
     }
 
+    public StreamingPreprocessor createStreaming(Input input, SampleGroup sampleGroup) throws IOException, InterruptedException {
+        return createStreaming(input, sampleGroup, RuntimeParameters.DEFAULT);
+    }
+
     public Preprocessor create(Input input, SampleGroup sampleGroup, RuntimeParameters runtimeParameters) throws IOException, InterruptedException {
         PreprocessorImpl preprocessor = new PreprocessorImpl(input, sampleGroup,
                 demultiplexParameters,
                 preprocessorParameters,
-                runtimeParameters);
+                runtimeParameters,
+                referenceKmerFilter);
 
         preprocessorBySampleGroup.put(sampleGroup, preprocessor);
 
@@ -62,7 +77,20 @@ public class PreprocessorFactory extends PipelineBlock {
         RawReadPreprocessor preprocessor = new RawReadPreprocessor(input, sampleGroup,
                 demultiplexParameters,
                 preprocessorParameters,
-                runtimeParameters);
+                runtimeParameters,
+                referenceKmerFilter);
+
+        preprocessorBySampleGroup.put(sampleGroup, preprocessor);
+
+        return preprocessor;
+    }
+
+    public StreamingPreprocessor createStreaming(Input input, SampleGroup sampleGroup, RuntimeParameters runtimeParameters) throws IOException, InterruptedException {
+        StreamingPreprocessor preprocessor = new StreamingPreprocessor(input, sampleGroup,
+                demultiplexParameters,
+                preprocessorParameters,
+                runtimeParameters,
+                referenceKmerFilter);
 
         preprocessorBySampleGroup.put(sampleGroup, preprocessor);
 
@@ -75,11 +103,11 @@ public class PreprocessorFactory extends PipelineBlock {
 
     @Override
     public String getHeader() {
-        return "sample.group\tsample.name\ttotal\tmaster.found\tslave.found\tmaster.first\tmig.size.threshold";
+        return "sample.group\tsample.name\ttotal\tmaster.found\tslave.found\tmaster.first\tmig.size.threshold\toff.target";
     }
 
     @Override
-    public String getBody() {
+    public void writeBody(Writer writer) throws IOException {
         StringBuilder stringBuilder = new StringBuilder();
         for (Preprocessor preprocessor : preprocessorBySampleGroup.values()) {
             for (Sample sample : preprocessor.getSampleGroup().getSamples()) {
@@ -96,9 +124,11 @@ public class PreprocessorFactory extends PipelineBlock {
                         append(paired ?
                                 ((PCheckoutProcessor) checkoutProcessor).getMasterFirstRatio() :
                                 "1").append("\t").
-                        append(preprocessor.getOverSeq(sampleName)).append("\n");
+                        append(preprocessor.getOverSeq(sampleName)).append("\t").
+                        append(checkoutProcessor.getOffTargetCounter(sampleName)).append("\n");
+                writer.append(stringBuilder);
+                stringBuilder.setLength(0);
             }
         }
-        return stringBuilder.toString();
     }
 }
@@ -17,8 +17,11 @@
 package com.antigenomics.mageri.pipeline.analysis;
 
 import cc.redberry.pipe.OutputPort;
+import cc.redberry.pipe.OutputPortCloseable;
+import cc.redberry.pipe.util.Chunk;
 import com.antigenomics.mageri.core.assemble.Consensus;
 import com.antigenomics.mageri.core.input.*;
+import com.antigenomics.mageri.core.mapping.kmer.ReferenceKmerFilter;
 import com.antigenomics.mageri.misc.ProcessorResultWrapper;
 import com.antigenomics.mageri.pipeline.RuntimeParameters;
 import com.antigenomics.mageri.pipeline.input.CheckoutRule;
@@ -28,8 +31,12 @@ import com.antigenomics.mageri.preprocessing.CheckoutProcessor;
 import com.antigenomics.mageri.preprocessing.DemultiplexParameters;
 import com.antigenomics.mageri.core.Mig;
 import com.antigenomics.mageri.core.ReadSpecific;
+import com.milaboratory.core.sequencing.read.SequencingRead;
 import sun.reflect.generics.reflectiveObjects.NotImplementedException;
 
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
 
@@ -52,6 +59,14 @@ public class PreprocessorImpl<MigType extends Mig> implements Preprocessor<MigTy
                             DemultiplexParameters demultiplexParameters,
                             PreprocessorParameters preprocessorParameters,
                             RuntimeParameters runtimeParameters) throws IOException, InterruptedException {
+        this(input, sampleGroup, demultiplexParameters, preprocessorParameters, runtimeParameters, null);
+    }
+
+    public PreprocessorImpl(Input input, SampleGroup sampleGroup,
+                            DemultiplexParameters demultiplexParameters,
+                            PreprocessorParameters preprocessorParameters,
+                            RuntimeParameters runtimeParameters,
+                            ReferenceKmerFilter referenceKmerFilter) throws IOException, InterruptedException {
         this.preprocessorParameters = preprocessorParameters;
         this.sampleGroup = sampleGroup;
         InputChunk inputChunk = input.getByName(sampleGroup.getName());
@@ -60,12 +75,49 @@ public class PreprocessorImpl<MigType extends Mig> implements Preprocessor<MigTy
 
         checkoutRule.setDemultiplexParameters(demultiplexParameters);
 
-        this.migReader = inputChunk.isPairedEnd() ?
-                new PMigReader(inputChunk.getInputStream1(), inputChunk.getInputStream2(),
-                        checkoutRule.getProcessor(), preprocessorParameters, runtimeParameters)
-                :
-                new SMigReader(inputChunk.getInputStream1(),
-                        checkoutRule.getProcessor(), preprocessorParameters, runtimeParameters);
+        // Look for UMI index saved by a previous run on the same input with the same parameters
+        File checkpointFile = null;
+        String checkpointKey = null;
+        UmiIndexCheckpoint checkpoint = null;
+
+        if (runtimeParameters.getUmiIndexCacheFolder() != null && inputChunk.getFingerprint() != null) {
+            checkpointFile = new File(runtimeParameters.getUmiIndexCacheFolder(),
+                    sampleGroup.getName() + ".umi.idx");
+            checkpointKey = UmiIndexCheckpoint.createKey(inputChunk.getFingerprint(), checkoutRule.getKey(),
+                    demultiplexParameters, preprocessorParameters, runtimeParameters.getReadLimit(),
+                    referenceKmerFilter);
+            checkpoint = UmiIndexCheckpoint.load(checkpointFile, checkpointKey);
+        }
+
+        // Input files are not opened at all if checkpoint is found
+        if (checkpoint != null) {
+            this.migReader = inputChunk.isPairedEnd() ?
+                    new PMigReader(checkpoint,
+                            checkoutRule.getProcessor(), preprocessorParameters, runtimeParameters)
+                    :
+                    new SMigReader(checkpoint,
+                            checkoutRule.getProcessor(), preprocessorParameters, runtimeParameters);
+        } else {
+            OutputPortCloseable<Chunk<SequencingRead>> reader =
+                    inputChunk.createReader(runtimeParameters.getNumberOfThreads());
+            try {
+                this.migReader = inputChunk.isPairedEnd() ?
+                        new PMigReader(reader,
+                                checkoutRule.getProcessor(), preprocessorParameters, runtimeParameters,
+                                referenceKmerFilter)
+                        :
+                        new SMigReader(reader,
+                                checkoutRule.getProcessor(), preprocessorParameters, runtimeParameters,
+                                referenceKmerFilter);
+            } finally {
+                reader.close();
+            }
+
+            if (checkpointFile != null) {
+                FileUtils.forceMkdir(checkpointFile.getParentFile());
+                migReader.saveUmiIndex(checkpointFile, checkpointKey);
+            }
+        }
     }
 
     public MigSizeDistribution getUmiHistogram(Sample sample) {
@@ -18,17 +18,20 @@ package com.antigenomics.mageri.pipeline.analysis;
 
 import com.antigenomics.mageri.core.genomic.BedGenomicInfoProvider;
 import com.antigenomics.mageri.core.input.MigOutputPort;
-import com.antigenomics.mageri.core.mapping.AlignedConsensus;
+import com.antigenomics.mageri.core.mapping.ConsensusAligner;
 import com.antigenomics.mageri.core.mapping.alignment.ExtendedKmerAlignerFactory;
+import com.antigenomics.mageri.core.mapping.kmer.ReferenceKmerFilter;
+import com.antigenomics.mageri.core.output.AlignedConsensusWriter;
+import com.antigenomics.mageri.core.output.BamWriter;
+import com.antigenomics.mageri.core.output.IndexedVcfWriter;
 import com.antigenomics.mageri.core.output.SamWriter;
+import com.antigenomics.mageri.core.output.SortingBamWriter;
 import com.antigenomics.mageri.core.output.VcfWriter;
-import com.antigenomics.mageri.core.variant.Variant;
+import com.antigenomics.mageri.core.variant.VariantCaller;
 import com.antigenomics.mageri.pipeline.RuntimeParameters;
-import com.antigenomics.mageri.pipeline.SerializationUtils;
 import com.antigenomics.mageri.pipeline.input.Input;
 import com.antigenomics.mageri.core.genomic.BasicGenomicInfoProvider;
 import com.antigenomics.mageri.core.genomic.ReferenceLibrary;
-import com.antigenomics.mageri.core.variant.VariantCaller;
 import com.antigenomics.mageri.pipeline.Presets;
 import com.antigenomics.mageri.pipeline.Speaker;
 
@@ -48,7 +51,8 @@ public class ProjectAnalysis implements Serializable {
     protected final Presets presets;
     protected final RuntimeParameters runtimeParameters;
     protected String outputPath = null;
-    protected boolean writeBinary = false;
+    protected boolean writeBinary = false, writeBam = false, sortBam = false, indexVcf = false, writePileup = false,
+            storeVariants = false, storeAlignments = false;
     protected final Map<Sample, SampleAnalysis> analysisBySample = new TreeMap<>();
     protected final PreprocessorFactory preprocessorFactory;
     protected transient final PipelineAssemblerFactory pipelineAssemblerFactory;
@@ -72,8 +76,18 @@ public class ProjectAnalysis implements Serializable {
                                 new BasicGenomicInfoProvider(),
                         presets.getReferenceLibraryParameters());
 
+        // Reads lacking reference k-mers are dropped at checkout if requested
+        ReferenceKmerFilter referenceKmerFilter = null;
+        int minReferenceKmerHits = presets.getPreprocessorParameters().getMinReferenceKmerHits();
+        if (minReferenceKmerHits > 0) {
+            referenceKmerFilter = new ReferenceKmerFilter(referenceLibrary,
+                    presets.getConsensusAlignerParameters(), minReferenceKmerHits);
+            sout("Off-target reads having less than " + minReferenceKmerHits +
+                    " reference k-mers will be dropped at checkout.", 1);
+        }
+
         this.preprocessorFactory = new PreprocessorFactory(presets.getDemultiplexParameters(),
-                presets.getPreprocessorParameters());
+                presets.getPreprocessorParameters(), referenceKmerFilter);
 
         this.pipelineAssemblerFactory = new PipelineAssemblerFactory(presets.getPreprocessorParameters(),
                 presets.getAssemblerParameters());
@@ -84,6 +98,19 @@ public class ProjectAnalysis implements Serializable {
                 presets.getConsensusAlignerParameters());
     }
 
+    // Restored from binary output, pre-processing state is not stored and the analysis can not be run again
+    ProjectAnalysis(Project project, ReferenceLibrary referenceLibrary,
+                    Presets presets, RuntimeParameters runtimeParameters) {
+        this.project = project;
+        this.referenceLibrary = referenceLibrary;
+        this.presets = presets;
+        this.runtimeParameters = runtimeParameters;
+        this.input = null;
+        this.preprocessorFactory = null;
+        this.pipelineAssemblerFactory = null;
+        this.pipelineConsensusAlignerFactory = null;
+    }
+
     protected void sout(String message, int verbosityLevel) {
         Speaker.INSTANCE.sout("[" + project.getName() + "] " +
                 message, verbosityLevel);
@@ -126,36 +153,7 @@ public class ProjectAnalysis implements Serializable {
         if (outputPath != null) {
             sout("Writing output.", 1);
 
-            for (SampleGroup sampleGroup : project.getSampleGroups()) {
-                for (Sample sample : sampleGroup.getSamples()) {
-                    SampleAnalysis sampleAnalysis = getAnalysis(sample);
-
-                    String prefix = sampleAnalysis.getOutputPrefix();
-
-                    // Write SAM file
-                    SamWriter samWriter = new SamWriter(sample,
-                            new FileOutputStream(prefix + ".sam"), sampleAnalysis.getConsensusAligner(),
-                            presets.getPlatform());
-
-                    for (AlignedConsensus alignedConsensus : sampleAnalysis.getAlignmentDataList()) {
-                        samWriter.write(alignedConsensus);
-                    }
-
-                    samWriter.close();
-
-                    // Write VCF file
-                    VariantCaller variantCaller = sampleAnalysis.getVariantCaller();
-                    VcfWriter vcfWriter = new VcfWriter(sample,
-                            new FileOutputStream(prefix + ".vcf"), variantCaller,
-                            presets.getPlatform());
-
-                    for (Variant variant : variantCaller.getVariants()) {
-                        vcfWriter.write(variant);
-                    }
-
-                    vcfWriter.close();
-                }
-            }
+            // SAM/BAM and VCF files were already written upon sample analysis
 
             String outputPath = this.outputPath + project.getName();
 
@@ -166,7 +164,7 @@ public class ProjectAnalysis implements Serializable {
             pipelineConsensusAlignerFactory.writePlainText(outputPath);
 
             if (writeBinary) {
-                SerializationUtils.writeObjectToFile(new File(outputPath + ".mi"), this);
+                AnalysisSerializer.write(this, new File(outputPath + ".mi"));
             }
 
             sout("Done.", 1);
@@ -204,7 +202,75 @@ public class ProjectAnalysis implements Serializable {
         this.writeBinary = writeBinary;
     }
 
+    public AlignedConsensusWriter createAlignedConsensusWriter(Sample sample, String prefix,
+                                                               ConsensusAligner consensusAligner) throws IOException {
+        int numberOfThreads = runtimeParameters.getNumberOfThreads();
+
+        if (sortBam) {
+            return new SortingBamWriter(sample, new File(prefix + ".bam"), consensusAligner,
+                    presets.getPlatform(), numberOfThreads);
+        } else if (writeBam) {
+            return new BamWriter(sample, new FileOutputStream(prefix + ".bam"), consensusAligner,
+                    presets.getPlatform(), numberOfThreads);
+        } else {
+            return new SamWriter(sample, new FileOutputStream(prefix + ".sam"), consensusAligner,
+                    presets.getPlatform());
+        }
+    }
+
+    public VcfWriter createVcfWriter(Sample sample, String prefix, VariantCaller variantCaller) throws IOException {
+        return indexVcf ?
+                new IndexedVcfWriter(sample, new File(prefix + ".vcf.gz"), variantCaller, presets.getPlatform()) :
+                new VcfWriter(sample, new FileOutputStream(prefix + ".vcf"), variantCaller, presets.getPlatform());
+    }
+
+    public void setWriteBam(boolean writeBam) {
+        this.writeBam = writeBam;
+    }
+
+    // Implies BAM output
+    public void setSortBam(boolean sortBam) {
+        this.sortBam = sortBam;
+        this.writeBam |= sortBam;
+    }
+
+    // Write bgzip-compressed VCF with tabix index
+    public void setIndexVcf(boolean indexVcf) {
+        this.indexVcf = indexVcf;
+    }
+
+    public boolean writePileup() {
+        return writePileup;
+    }
+
+    // Binary counterpart of the .mapper.txt table
+    public void setWritePileup(boolean writePileup) {
+        this.writePileup = writePileup;
+    }
+
+    // Variants are streamed to output files, so there is no need to keep them unless explicitly asked
+    public boolean storeVariants() {
+        return outputPath == null || writeBinary || storeVariants;
+    }
+
+    // Same for aligned consensuses
+    public boolean storeAlignments() {
+        return outputPath == null || writeBinary || storeAlignments;
+    }
+
+    public void setStoreAlignments(boolean storeAlignments) {
+        this.storeAlignments = storeAlignments;
+    }
+
+    public void setStoreVariants(boolean storeVariants) {
+        this.storeVariants = storeVariants;
+    }
+
     public Preprocessor getPreprocessor(SampleGroup sampleGroup) {
+        if (preprocessorFactory == null) {
+            throw new RuntimeException("No pre-processors exist. Looks like this analysis was loaded from binary output..");
+        }
+
         return preprocessorFactory.getPreprocessor(sampleGroup);
     }
 
@@ -0,0 +1,217 @@
+/*
+ * Copyright 2014-2016 Mikhail Shugay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.antigenomics.mageri.pipeline.analysis;
+
+import com.antigenomics.mageri.core.assemble.Assembler;
+import com.antigenomics.mageri.core.assemble.AssemblerCodec;
+import com.antigenomics.mageri.core.assemble.AssemblerParameters;
+import com.antigenomics.mageri.core.genomic.ReferenceLibrary;
+import com.antigenomics.mageri.core.genomic.ReferenceLibraryParameters;
+import com.antigenomics.mageri.core.input.MigSizeDistribution;
+import com.antigenomics.mageri.core.input.MigSizeDistributionCodec;
+import com.antigenomics.mageri.core.input.PreprocessorParameters;
+import com.antigenomics.mageri.core.mapping.AlignedConsensus;
+import com.antigenomics.mageri.core.mapping.ConsensusAligner;
+import com.antigenomics.mageri.core.mapping.ConsensusAlignerParameters;
+import com.antigenomics.mageri.core.variant.VariantCaller;
+import com.antigenomics.mageri.core.variant.VariantCallerParameters;
+import com.antigenomics.mageri.misc.Basics;
+import com.antigenomics.mageri.pipeline.LibraryType;
+import com.antigenomics.mageri.pipeline.Platform;
+import com.antigenomics.mageri.pipeline.Presets;
+import com.antigenomics.mageri.pipeline.RuntimeParameters;
+import com.antigenomics.mageri.preprocessing.DemultiplexParameters;
+import org.jdom.Element;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Encoding of project and sample analysis metadata used by binary analysis output.
+ * Project structure, references, as well as consensus aligner, variants and alignments of a sample
+ * are stored separately, see AnalysisSerializer.
+ */
+final class ProjectAnalysisCodec {
+    static final int VERSION = 1;
+
+    private ProjectAnalysisCodec() {
+    }
+
+    static void writeProject(DataOutput output, ProjectAnalysis projectAnalysis) throws IOException {
+        output.writeInt(VERSION);
+        writePresets(output, projectAnalysis.presets);
+        writeRuntimeParameters(output, projectAnalysis.runtimeParameters);
+
+        writeNullableString(output, projectAnalysis.outputPath);
+        output.writeBoolean(projectAnalysis.writeBinary);
+        output.writeBoolean(projectAnalysis.writeBam);
+        output.writeBoolean(projectAnalysis.sortBam);
+        output.writeBoolean(projectAnalysis.indexVcf);
+        output.writeBoolean(projectAnalysis.writePileup);
+        output.writeBoolean(projectAnalysis.storeVariants);
+        output.writeBoolean(projectAnalysis.storeAlignments);
+    }
+
+    static ProjectAnalysis readProject(DataInput input, Project project,
+                                       ReferenceLibrary referenceLibrary) throws IOException {
+        checkVersion(input.readInt());
+
+        ProjectAnalysis projectAnalysis = new ProjectAnalysis(project, referenceLibrary,
+                readPresets(input), readRuntimeParameters(input));
+
+        projectAnalysis.outputPath = readNullableString(input);
+        projectAnalysis.writeBinary = input.readBoolean();
+        projectAnalysis.writeBam = input.readBoolean();
+        projectAnalysis.sortBam = input.readBoolean();
+        projectAnalysis.indexVcf = input.readBoolean();
+        projectAnalysis.writePileup = input.readBoolean();
+        projectAnalysis.storeVariants = input.readBoolean();
+        projectAnalysis.storeAlignments = input.readBoolean();
+
+        return projectAnalysis;
+    }
+
+    static void writeSample(DataOutput output, SampleAnalysis sampleAnalysis) throws IOException {
+        output.writeInt(VERSION);
+        output.writeBoolean(sampleAnalysis.paired);
+        output.writeBoolean(sampleAnalysis.ran);
+        output.writeBoolean(sampleAnalysis.alignmentsStreamed);
+
+        // Both are absent for raw read analysis
+        output.writeBoolean(sampleAnalysis.migSizeDistribution != null);
+        if (sampleAnalysis.migSizeDistribution != null) {
+            MigSizeDistributionCodec.write(output, sampleAnalysis.migSizeDistribution);
+        }
+        output.writeBoolean(sampleAnalysis.assembler != null);
+        if (sampleAnalysis.assembler != null) {
+            AssemblerCodec.write(output, sampleAnalysis.assembler);
+        }
+    }
+
+    static SampleAnalysis readSample(DataInput input, ProjectAnalysis parent, Sample sample,
+                                     ConsensusAligner consensusAligner, VariantCaller variantCaller,
+                                     List<AlignedConsensus> alignments) throws IOException {
+        checkVersion(input.readInt());
+
+        boolean paired = input.readBoolean(), ran = input.readBoolean(), alignmentsStreamed = input.readBoolean();
+        MigSizeDistribution migSizeDistribution = input.readBoolean() ? MigSizeDistributionCodec.read(input) : null;
+        Assembler assembler = input.readBoolean() ? AssemblerCodec.read(input) : null;
+
+        SampleAnalysis sampleAnalysis = new SampleAnalysis(parent, sample, migSizeDistribution, null,
+                assembler, consensusAligner, paired);
+        sampleAnalysis.variantCaller = variantCaller;
+        sampleAnalysis.ran = ran;
+        sampleAnalysis.alignmentsStreamed = alignmentsStreamed;
+        sampleAnalysis.alignmentDataList = alignments;
+
+        return sampleAnalysis;
+    }
+
+    static void writeProjectStructure(DataOutput output, Project project) throws IOException {
+        output.writeInt(VERSION);
+        output.writeUTF(project.getName());
+        output.writeInt(project.getSampleGroups().size());
+        for (SampleGroup sampleGroup : project.getSampleGroups()) {
+            output.writeUTF(sampleGroup.getName());
+            output.writeBoolean(sampleGroup.isPairedEnd());
+            output.writeInt(sampleGroup.getSamples().size());
+            for (Sample sample : sampleGroup.getSamples()) {
+                output.writeBoolean(sample.isSubmultiplexed());
+                if (sample.isSubmultiplexed()) {
+                    output.writeUTF(sample.getName());
+                }
+            }
+        }
+    }
+
+    static Project readProjectStructure(DataInput input) throws IOException {
+        checkVersion(input.readInt());
+
+        Project project = new Project(input.readUTF());
+        int numberOfSampleGroups = input.readInt();
+        for (int i = 0; i < numberOfSampleGroups; i++) {
+            SampleGroup sampleGroup = project.createSampleGroup(input.readUTF(), input.readBoolean());
+            int numberOfSamples = input.readInt();
+            for (int j = 0; j < numberOfSamples; j++) {
+                if (input.readBoolean()) {
+                    sampleGroup.createSample(input.readUTF());
+                } else {
+                    sampleGroup.createSample();
+                }
+            }
+        }
+        return project;
+    }
+
+    private static void writePresets(DataOutput output, Presets presets) throws IOException {
+        output.writeUTF(presets.getPlatform().name());
+        output.writeUTF(presets.getLibraryType().name());
+        Basics.writeParameters(output, presets.getDemultiplexParameters(), presets.getPreprocessorParameters(),
+                presets.getAssemblerParameters(), presets.getReferenceLibraryParameters(),
+                presets.getConsensusAlignerParameters(), presets.getVariantCallerParameters());
+    }
+
+    // Presets are not read with Presets.fromXml, as it rejects presets written by other versions
+    private static Presets readPresets(DataInput input) throws IOException {
+        Platform platform = Platform.valueOf(input.readUTF());
+        LibraryType libraryType = LibraryType.valueOf(input.readUTF());
+        Element parameters = Basics.readParameters(input);
+
+        return new Presets(platform, libraryType,
+                DemultiplexParameters.fromXml(parameters),
+                PreprocessorParameters.fromXml(parameters),
+                AssemblerParameters.fromXml(parameters),
+                ReferenceLibraryParameters.fromXml(parameters),
+                ConsensusAlignerParameters.fromXml(parameters),
+                VariantCallerParameters.fromXml(parameters));
+    }
+
+    private static void writeRuntimeParameters(DataOutput output,
+                                               RuntimeParameters runtimeParameters) throws IOException {
+        output.writeInt(runtimeParameters.getNumberOfThreads());
+        output.writeLong(runtimeParameters.getReadLimit());
+        output.writeByte(runtimeParameters.getVerbosityLevel());
+        writeNullableString(output, runtimeParameters.getUmiIndexCacheFolder());
+        output.writeInt(runtimeParameters.getUmiIndexPartitions());
+        writeNullableString(output, runtimeParameters.getUmiIndexSpillFolder());
+    }
+
+    private static RuntimeParameters readRuntimeParameters(DataInput input) throws IOException {
+        return new RuntimeParameters(input.readInt(), input.readLong(), input.readByte(),
+                readNullableString(input), input.readInt(), readNullableString(input));
+    }
+
+    private static void writeNullableString(DataOutput output, String string) throws IOException {
+        output.writeBoolean(string != null);
+        if (string != null) {
+            output.writeUTF(string);
+        }
+    }
+
+    private static String readNullableString(DataInput input) throws IOException {
+        return input.readBoolean() ? input.readUTF() : null;
+    }
+
+    private static void checkVersion(int version) throws IOException {
+        if (version != VERSION) {
+            throw new IOException("Unsupported analysis metadata encoding version " + version + ".");
+        }
+    }
+}
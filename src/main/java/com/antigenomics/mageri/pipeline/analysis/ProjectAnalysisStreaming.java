@@ -0,0 +1,115 @@
+/*
+ * Copyright 2014-2016 Mikhail Shugay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.antigenomics.mageri.pipeline.analysis;
+
+import com.antigenomics.mageri.core.input.MigOutputPort;
+import com.antigenomics.mageri.pipeline.Presets;
+import com.antigenomics.mageri.pipeline.RuntimeParameters;
+import com.antigenomics.mageri.pipeline.input.Input;
+
+import java.io.IOException;
+
+public class ProjectAnalysisStreaming extends ProjectAnalysis {
+    public ProjectAnalysisStreaming(Input input) throws IOException {
+        this(input, Presets.DEFAULT, RuntimeParameters.DEFAULT);
+    }
+
+    public ProjectAnalysisStreaming(Input input,
+                                    Presets presets,
+                                    RuntimeParameters runtimeParameters) throws IOException {
+        super(input, presets, runtimeParameters);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void run() throws Exception {
+        sout("Started analysis.", 1);
+
+        for (SampleGroup sampleGroup : project.getSampleGroups()) {
+            sout("Processing sample group " + sampleGroup.getName() + ".", 1);
+            final StreamingPreprocessor preprocessor = preprocessorFactory.createStreaming(input, sampleGroup,
+                    runtimeParameters);
+            preprocessor.start();
+
+            // MIGs of all samples come from the same input, so samples are analyzed simultaneously
+            Thread[] analysisThreads = new Thread[sampleGroup.getSamples().size()];
+            final Exception[] failures = new Exception[analysisThreads.length];
+
+            for (int i = 0; i < sampleGroup.getSamples().size(); i++) {
+                final Sample sample = sampleGroup.getSamples().get(i);
+                final MigOutputPort inputPort = preprocessor.create(sample);
+                final SampleAnalysis sampleAnalysis = new SampleAnalysis(
+                        this, sample, preprocessor.getUmiHistogram(sample),
+                        inputPort,
+                        pipelineAssemblerFactory.create(sample),
+                        pipelineConsensusAlignerFactory.create(sample),
+                        inputPort.isPairedEnd()
+                );
+
+                final int index = i;
+                analysisThreads[i] = new Thread(
+                        new Runnable() {
+                            @Override
+                            public void run() {
+                                try {
+                                    analyze(sampleAnalysis);
+                                } catch (Exception e) {
+                                    failures[index] = e;
+                                    // Otherwise reader blocks once the MIG buffer of this sample is full
+                                    preprocessor.cancel();
+                                }
+                            }
+                        }
+                );
+
+                analysisBySample.put(sample, sampleAnalysis);
+
+                analysisThreads[i].start();
+            }
+
+            RuntimeException preprocessingFailure = null;
+            try {
+                preprocessor.stop();
+            } catch (RuntimeException e) {
+                preprocessingFailure = e;
+            }
+
+            for (Thread analysisThread : analysisThreads) {
+                analysisThread.join();
+            }
+
+            for (Exception failure : failures) {
+                if (failure != null) {
+                    throw failure;
+                }
+            }
+
+            if (preprocessingFailure != null) {
+                throw preprocessingFailure;
+            }
+        }
+
+        sout("Done.", 1);
+
+        write();
+    }
+
+    protected void analyze(SampleAnalysis sampleAnalysis) throws Exception {
+        sampleAnalysis.run();
+    }
+}
@@ -18,6 +18,7 @@ package com.antigenomics.mageri.pipeline.analysis;
 
 import cc.redberry.pipe.*;
 import cc.redberry.pipe.blocks.Merger;
+import cc.redberry.pipe.util.Chunk;
 import cc.redberry.pipe.util.CountLimitingOutputPort;
 import com.antigenomics.mageri.core.Mig;
 import com.antigenomics.mageri.core.assemble.Consensus;
@@ -27,6 +28,7 @@ import com.antigenomics.mageri.core.input.raw.IndexedReadContainer;
 import com.antigenomics.mageri.core.input.raw.PRawReadProcessor;
 import com.antigenomics.mageri.core.input.raw.SRawReadProcessor;
 import com.antigenomics.mageri.core.input.raw.SomewhatRawReadProperlyWrapped;
+import com.antigenomics.mageri.core.mapping.kmer.ReferenceKmerFilter;
 import com.antigenomics.mageri.misc.ProcessorResultWrapper;
 import com.antigenomics.mageri.pipeline.RuntimeParameters;
 import com.antigenomics.mageri.pipeline.input.CheckoutRule;
@@ -34,24 +36,21 @@ import com.antigenomics.mageri.pipeline.input.Input;
 import com.antigenomics.mageri.pipeline.input.InputChunk;
 import com.antigenomics.mageri.preprocessing.CheckoutProcessor;
 import com.antigenomics.mageri.preprocessing.DemultiplexParameters;
-import com.milaboratory.core.sequence.quality.QualityFormat;
-import com.milaboratory.core.sequencing.io.fastq.PFastqReader;
-import com.milaboratory.core.sequencing.io.fastq.SFastqReader;
 import com.milaboratory.core.sequencing.read.SequencingRead;
-import com.milaboratory.util.CompressionType;
 import sun.reflect.generics.reflectiveObjects.NotImplementedException;
 
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.*;
 import java.util.concurrent.LinkedBlockingQueue;
 
 public class RawReadPreprocessor<MigType extends Mig> implements Preprocessor<MigType> {
     private final SampleGroup sampleGroup;
-    private final Map<String, LinkedBlockingQueue<ReadContainer>> buffersBySample = new HashMap<>();
+    // Reads are passed to samples in batches, one queue operation per batch
+    private static final List<ReadContainer> LAST_BATCH = Collections.singletonList(ReadContainer.LAST);
+    private final Map<String, LinkedBlockingQueue<List<ReadContainer>>> buffersBySample = new HashMap<>();
     private final CheckoutProcessor checkoutProcessor;
     private final Thread readerThread;
-    private final VoidProcessorFactory<SequencingRead> innerProcessorFactory;
+    private final VoidProcessorFactory<Chunk<SequencingRead>> innerProcessorFactory;
 
     public RawReadPreprocessor(Input input, SampleGroup sampleGroup) throws IOException, InterruptedException {
         this(input, sampleGroup, DemultiplexParameters.DEFAULT, PreprocessorParameters.DEFAULT);
@@ -63,11 +62,19 @@ public class RawReadPreprocessor<MigType extends Mig> implements Preprocessor<Mi
         this(input, sampleGroup, demultiplexParameters, preprocessorParameters, RuntimeParameters.DEFAULT);
     }
 
+    public RawReadPreprocessor(Input input, SampleGroup sampleGroup,
+                               DemultiplexParameters demultiplexParameters,
+                               PreprocessorParameters preprocessorParameters,
+                               RuntimeParameters runtimeParameters) throws IOException, InterruptedException {
+        this(input, sampleGroup, demultiplexParameters, preprocessorParameters, runtimeParameters, null);
+    }
+
     @SuppressWarnings("unchecked")
     public RawReadPreprocessor(Input input, SampleGroup sampleGroup,
                                DemultiplexParameters demultiplexParameters,
                                PreprocessorParameters preprocessorParameters,
-                               final RuntimeParameters runtimeParameters) throws IOException, InterruptedException {
+                               final RuntimeParameters runtimeParameters,
+                               ReferenceKmerFilter referenceKmerFilter) throws IOException, InterruptedException {
         this.sampleGroup = sampleGroup;
 
         final InputChunk inputChunk = input.getByName(sampleGroup.getName());
@@ -77,24 +84,34 @@ public class RawReadPreprocessor<MigType extends Mig> implements Preprocessor<Mi
         this.checkoutProcessor = checkoutRule.getProcessor();
 
         for (Sample sample : sampleGroup.getSamples()) {
-            buffersBySample.put(sample.getName(), new LinkedBlockingQueue<ReadContainer>(524288));
+            buffersBySample.put(sample.getName(),
+                    new LinkedBlockingQueue<List<ReadContainer>>(MigReader.BUFFER_SIZE / MigReader.BATCH_SIZE));
         }
 
         final Processor<SequencingRead, IndexedReadContainer> demultiplexer = sampleGroup.isPairedEnd() ?
-                new PRawReadProcessor(checkoutProcessor, preprocessorParameters) :
-                new SRawReadProcessor(checkoutProcessor, preprocessorParameters);
+                new PRawReadProcessor(checkoutProcessor, preprocessorParameters, referenceKmerFilter) :
+                new SRawReadProcessor(checkoutProcessor, preprocessorParameters, referenceKmerFilter);
 
         this.innerProcessorFactory = new VoidProcessorFactory() {
             @Override
-            public VoidProcessor<SequencingRead> create() {
-                return new VoidProcessor<SequencingRead>() {
+            public VoidProcessor<Chunk<SequencingRead>> create() {
+                return new VoidProcessor<Chunk<SequencingRead>>() {
                     @Override
-                    public void process(SequencingRead sequencingRead) {
+                    public void process(Chunk<SequencingRead> sequencingReads) {
                         try {
-                            IndexedReadContainer result = demultiplexer.process(sequencingRead);
-                            if (result.isIndexed()) {
-                                LinkedBlockingQueue<ReadContainer> buffer = buffersBySample.get(result.getSampleName());
-                                buffer.put(result.getRead());
+                            Map<String, List<ReadContainer>> batchesBySample = new HashMap<>();
+                            for (SequencingRead sequencingRead : sequencingReads) {
+                                IndexedReadContainer result = demultiplexer.process(sequencingRead);
+                                if (result.isIndexed()) {
+                                    List<ReadContainer> batch = batchesBySample.get(result.getSampleName());
+                                    if (batch == null) {
+                                        batchesBySample.put(result.getSampleName(), batch = new ArrayList<>());
+                                    }
+                                    batch.add(result.getRead());
+                                }
+                            }
+                            for (Map.Entry<String, List<ReadContainer>> entry : batchesBySample.entrySet()) {
+                                buffersBySample.get(entry.getKey()).put(entry.getValue());
                             }
                         } catch (Exception e) {
                             throw new RuntimeException(e);
@@ -104,20 +121,24 @@ public class RawReadPreprocessor<MigType extends Mig> implements Preprocessor<Mi
             }
         };
 
+        // Input is opened here, once the sample group is processed.
+        // Reads are parsed in batches on worker threads
+        final OutputPortCloseable<Chunk<SequencingRead>> reader = inputChunk.createReader(runtimeParameters.getNumberOfThreads());
+
         this.readerThread = new Thread(new Runnable() {
             @Override
             public void run() {
                 try {
-                    OutputPort<SequencingRead> input = inputChunk.isPairedEnd() ?
-                            new PReadOutputPort(inputChunk) :
-                            new SReadOutputPort(inputChunk);
+                    OutputPort<Chunk<SequencingRead>> input = reader;
 
                     if (runtimeParameters.getReadLimit() > -1) {
-                        input = new CountLimitingOutputPort<>(input, runtimeParameters.getReadLimit());
+                        input = CUtils.chunked(new CountLimitingOutputPort<>(CUtils.unchunked(input),
+                                runtimeParameters.getReadLimit()), MigReader.BATCH_SIZE);
                     }
 
                     // Buffer the input - speed up and protect from parallelization problems
-                    final Merger<SequencingRead> bufferedInput = new Merger<>(524288);
+                    final Merger<Chunk<SequencingRead>> bufferedInput =
+                            new Merger<>(MigReader.BUFFER_SIZE / MigReader.BATCH_SIZE);
                     bufferedInput.merge(input);
                     bufferedInput.start();
                     input = bufferedInput;
@@ -125,44 +146,17 @@ public class RawReadPreprocessor<MigType extends Mig> implements Preprocessor<Mi
                     CUtils.processAllInParallel(input, innerProcessorFactory,
                             runtimeParameters.getNumberOfThreads());
 
-                    for (LinkedBlockingQueue<ReadContainer> buffer : buffersBySample.values()) {
-                        buffer.put(ReadContainer.LAST); // Redberry-pipe is null-based, but here nulls are not allowed
+                    for (LinkedBlockingQueue<List<ReadContainer>> buffer : buffersBySample.values()) {
+                        buffer.put(LAST_BATCH); // Redberry-pipe is null-based, but here nulls are not allowed
                     }
                 } catch (InterruptedException ignored) {
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
+                } finally {
+                    reader.close();
                 }
             }
         });
     }
 
-    private static class SReadOutputPort implements OutputPort<SequencingRead> {
-        private final SFastqReader reader;
-
-        public SReadOutputPort(InputChunk inputChunk) throws IOException {
-            this.reader = new SFastqReader(inputChunk.getInputStream1(), QualityFormat.Phred33, CompressionType.None);
-        }
-
-        @Override
-        public SequencingRead take() {
-            return reader.take();
-        }
-    }
-
-    private static class PReadOutputPort implements OutputPort<SequencingRead> {
-        private final PFastqReader reader;
-
-        public PReadOutputPort(InputChunk inputChunk) throws IOException {
-            this.reader = new PFastqReader(inputChunk.getInputStream1(), inputChunk.getInputStream2(),
-                    QualityFormat.Phred33, CompressionType.None, null, false, false);
-        }
-
-        @Override
-        public SequencingRead take() {
-            return reader.take();
-        }
-    }
-
     @Override
     public MigSizeDistribution getUmiHistogram(Sample sample) {
         throw new NotImplementedException();
@@ -174,17 +168,26 @@ public class RawReadPreprocessor<MigType extends Mig> implements Preprocessor<Mi
         if (!sampleGroup.getSamples().contains(sample))
             throw new RuntimeException("Sample " + sample + " not found in sample group " + sampleGroup);
 
-        final LinkedBlockingQueue<ReadContainer> buffer = buffersBySample.get(sample.getName());
+        final LinkedBlockingQueue<List<ReadContainer>> buffer = buffersBySample.get(sample.getName());
 
         return new OutputPort<ProcessorResultWrapper<Consensus>>() {
+            private List<ReadContainer> batch = Collections.emptyList();
+            private int index = 0;
+
             @Override
-            public SomewhatRawReadProperlyWrapped take() {
+            public synchronized SomewhatRawReadProperlyWrapped take() {
                 try {
-                    ReadContainer readContainer = buffer.take();
+                    while (index == batch.size()) {
+                        batch = buffer.take();
+                        index = 0;
+                    }
+
+                    ReadContainer readContainer = batch.get(index);
 
                     if (readContainer.isLast()) {
                         return null;
                     } else {
+                        index++;
                         return new SomewhatRawReadProperlyWrapped(sample, readContainer);
                     }
                 } catch (InterruptedException ignored) {
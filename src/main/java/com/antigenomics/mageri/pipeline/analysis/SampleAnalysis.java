@@ -16,6 +16,7 @@
 
 package com.antigenomics.mageri.pipeline.analysis;
 
+import cc.redberry.pipe.InputPort;
 import cc.redberry.pipe.OutputPort;
 import cc.redberry.pipe.blocks.Merger;
 import cc.redberry.pipe.blocks.ParallelProcessor;
@@ -24,15 +25,24 @@ import com.antigenomics.mageri.core.Mig;
 import com.antigenomics.mageri.core.ReadSpecific;
 import com.antigenomics.mageri.core.assemble.Assembler;
 import com.antigenomics.mageri.core.assemble.Consensus;
+import com.antigenomics.mageri.core.assemble.MinorCaller;
 import com.antigenomics.mageri.core.input.MigOutputPort;
 import com.antigenomics.mageri.core.input.MigOutputPortImpl;
 import com.antigenomics.mageri.core.input.MigSizeDistribution;
 import com.antigenomics.mageri.core.mapping.AlignedConsensus;
 import com.antigenomics.mageri.core.mapping.ConsensusAligner;
+import com.antigenomics.mageri.core.output.AlignedConsensusWriter;
+import com.antigenomics.mageri.core.output.AsyncAlignedConsensusWriter;
+import com.antigenomics.mageri.core.output.PileupWriter;
+import com.antigenomics.mageri.core.output.VcfWriter;
+import com.antigenomics.mageri.core.variant.Variant;
 import com.antigenomics.mageri.core.variant.VariantCaller;
 import com.antigenomics.mageri.pipeline.Speaker;
 import com.antigenomics.mageri.misc.ProcessorResultWrapper;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.LinkedList;
@@ -51,9 +61,9 @@ public class SampleAnalysis implements ReadSpecific, Serializable {
     protected final ConsensusAligner consensusAligner;
     protected VariantCaller variantCaller;
 
-    protected boolean ran = false;
+    protected boolean ran = false, alignmentsStreamed = false;
 
-    protected final List<AlignedConsensus> alignmentDataList = new ArrayList<>();
+    protected List<AlignedConsensus> alignmentDataList = new ArrayList<>();
 
     @SuppressWarnings("unchecked")
     protected SampleAnalysis(ProjectAnalysis parent,
@@ -119,6 +129,10 @@ public class SampleAnalysis implements ReadSpecific, Serializable {
         reporter.setDaemon(true);
         reporter.start();
 
+        if (outputPrefix != null) {
+            assembler.openConsensusWriter(outputPrefix, parent.getRuntimeParameters().getNumberOfThreads());
+        }
+
         // Assemble & align in parallel
         final OutputPort<ProcessorResultWrapper<Consensus>> assemblyResults =
                 new ParallelProcessor<>(countingInput, assembler, parent.getRuntimeParameters().getNumberOfThreads());
@@ -126,20 +140,16 @@ public class SampleAnalysis implements ReadSpecific, Serializable {
         final OutputPort<ProcessorResultWrapper<AlignedConsensus>> alignerResults =
                 new ParallelProcessor<>(assemblyResults, consensusAligner, parent.getRuntimeParameters().getNumberOfThreads());
 
-        ProcessorResultWrapper<AlignedConsensus> alignmentDataWrapped;
-        while ((alignmentDataWrapped = alignerResults.take()) != null) {
-            if (alignmentDataWrapped.hasResult()) {
-                alignmentDataList.add(alignmentDataWrapped.getResult());
-            }
-        }
+        collectAlignments(alignerResults, outputPrefix);
 
         // Write plain-text and consensus FASTQ files
         // Write consensus aligner output now, as it will be cleared upon creation of VariantCaller
         if (outputPrefix != null) {
             migSizeDistribution.writePlainText(outputPrefix);
-            assembler.writePlainText(outputPrefix);
+            assembler.writePlainText(outputPrefix, parent.getRuntimeParameters().getNumberOfThreads());
             assembler.getMinorCaller().writePlainText(outputPrefix);
             consensusAligner.writePlainText(outputPrefix);
+            writePileup(outputPrefix);
         }
 
         assembler.clear();
@@ -148,18 +158,89 @@ public class SampleAnalysis implements ReadSpecific, Serializable {
 
         sout("Calling variants.", 1);
 
-        this.variantCaller = new VariantCaller(consensusAligner, assembler.getMinorCaller(),
-                parent.getPresets().getVariantCallerParameters());
-
-        if (outputPrefix != null) {
-            variantCaller.writePlainText(outputPrefix);
-        }
+        callVariants(assembler.getMinorCaller(), outputPrefix);
 
         sout("Finished", 1);
 
         ran = true;
     }
 
+    protected void collectAlignments(OutputPort<ProcessorResultWrapper<AlignedConsensus>> alignerResults,
+                                     String outputPrefix) throws IOException {
+        boolean storeAlignments = parent.storeAlignments();
+        alignmentsStreamed = !storeAlignments;
+
+        // Write SAM/BAM records as soon as consensuses are aligned, formatting is done by a background thread
+        AlignedConsensusWriter alignedConsensusWriter = outputPrefix != null ?
+                new AsyncAlignedConsensusWriter(
+                        parent.createAlignedConsensusWriter(sample, outputPrefix, consensusAligner)) : null;
+
+        // Writer is closed in any case, so that the output file and the writer thread are released
+        try {
+            ProcessorResultWrapper<AlignedConsensus> alignmentDataWrapped;
+            while ((alignmentDataWrapped = alignerResults.take()) != null) {
+                if (alignmentDataWrapped.hasResult()) {
+                    AlignedConsensus alignedConsensus = alignmentDataWrapped.getResult();
+
+                    if (alignedConsensusWriter != null) {
+                        alignedConsensusWriter.write(alignedConsensus);
+                    }
+
+                    if (storeAlignments) {
+                        alignmentDataList.add(alignedConsensus);
+                    }
+                }
+            }
+        } finally {
+            if (alignedConsensusWriter != null) {
+                alignedConsensusWriter.close();
+            }
+        }
+    }
+
+    protected void writePileup(String outputPrefix) throws IOException {
+        if (parent.writePileup()) {
+            PileupWriter.write(consensusAligner, new File(outputPrefix + ".pileup"));
+        }
+    }
+
+    protected void callVariants(MinorCaller minorCaller, String outputPrefix) throws IOException {
+        this.variantCaller = new VariantCaller(consensusAligner.getReferenceLibrary(),
+                parent.getPresets().getVariantCallerParameters());
+
+        int numberOfThreads = parent.getRuntimeParameters().getNumberOfThreads();
+
+        if (outputPrefix == null) {
+            variantCaller.call(consensusAligner, minorCaller, numberOfThreads, null, true);
+            return;
+        }
+
+        // Stream variants directly to VCF and plain-text output
+        // Writers are closed in any case, so that the VCF is finished and its index is written
+        final VcfWriter vcfWriter = parent.createVcfWriter(sample, outputPrefix, variantCaller);
+        try {
+            final PrintWriter plainTextWriter = variantCaller.createPlainTextWriter(outputPrefix);
+            try {
+                variantCaller.call(consensusAligner, minorCaller, numberOfThreads,
+                        new InputPort<Variant>() {
+                            @Override
+                            public void put(Variant variant) {
+                                try {
+                                    vcfWriter.write(variant);
+                                } catch (IOException e) {
+                                    throw new RuntimeException(e);
+                                }
+                                plainTextWriter.println(variant.toString());
+                            }
+                        }, parent.storeVariants());
+            } finally {
+                plainTextWriter.close();
+            }
+        } finally {
+            vcfWriter.close();
+        }
+    }
+
     protected String getOutputPrefix() {
         String outputPath = parent.outputPath;
 
@@ -195,6 +276,9 @@ public class SampleAnalysis implements ReadSpecific, Serializable {
     }
 
     public List<AlignedConsensus> getAlignmentDataList() {
+        if (alignmentsStreamed) {
+            throw new RuntimeException("Aligned consensuses were streamed to output and not stored.");
+        }
         return alignmentDataList;
     }
 
@@ -39,7 +39,6 @@ import com.antigenomics.mageri.core.assemble.DummyMinorCaller;
 import com.antigenomics.mageri.core.input.MigSizeDistribution;
 import com.antigenomics.mageri.core.mapping.AlignedConsensus;
 import com.antigenomics.mageri.core.mapping.ConsensusAligner;
-import com.antigenomics.mageri.core.variant.VariantCaller;
 import com.antigenomics.mageri.misc.ProcessorResultWrapper;
 
 public class SampleAnalysisRaw extends SampleAnalysis {
@@ -91,28 +90,19 @@ public class SampleAnalysisRaw extends SampleAnalysis {
         final OutputPort<ProcessorResultWrapper<AlignedConsensus>> alignerResults =
                 new ParallelProcessor<>(countingInput, consensusAligner, parent.getRuntimeParameters().getNumberOfThreads());
 
-        ProcessorResultWrapper<AlignedConsensus> alignmentDataWrapped;
-        while ((alignmentDataWrapped = alignerResults.take()) != null) {
-            if (alignmentDataWrapped.hasResult()) {
-                alignmentDataList.add(alignmentDataWrapped.getResult());
-            }
-        }
+        collectAlignments(alignerResults, outputPrefix);
 
         // Write consensus aligner output now, as it will be cleared upon creation of VariantCaller
         if (outputPrefix != null) {
             consensusAligner.writePlainText(outputPrefix);
+            writePileup(outputPrefix);
         }
 
         sout("Finished, " + countingInput.getCount() + " reads processed in total.", 1);
 
         sout("Calling variants.", 1);
 
-        this.variantCaller = new VariantCaller(consensusAligner, new DummyMinorCaller(),
-                parent.getPresets().getVariantCallerParameters());
-
-        if (outputPrefix != null) {
-            variantCaller.writePlainText(outputPrefix);
-        }
+        callVariants(new DummyMinorCaller(), outputPrefix);
 
         sout("Finished", 1);
 
@@ -0,0 +1,485 @@
+/*
+ * Copyright 2014-2016 Mikhail Shugay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.antigenomics.mageri.pipeline.analysis;
+
+import cc.redberry.pipe.CUtils;
+import cc.redberry.pipe.OutputPort;
+import cc.redberry.pipe.OutputPortCloseable;
+import cc.redberry.pipe.Processor;
+import cc.redberry.pipe.blocks.Merger;
+import cc.redberry.pipe.blocks.ParallelProcessor;
+import cc.redberry.pipe.util.Chunk;
+import cc.redberry.pipe.util.CountLimitingOutputPort;
+import cc.redberry.pipe.util.Indexer;
+import cc.redberry.pipe.util.OrderedOutputPort;
+import com.antigenomics.mageri.core.Mig;
+import com.antigenomics.mageri.core.assemble.Consensus;
+import com.antigenomics.mageri.core.input.*;
+import com.antigenomics.mageri.core.input.index.*;
+import com.antigenomics.mageri.core.mapping.kmer.ReferenceKmerFilter;
+import com.antigenomics.mageri.misc.ProcessorResultWrapper;
+import com.antigenomics.mageri.pipeline.RuntimeParameters;
+import com.antigenomics.mageri.pipeline.Speaker;
+import com.antigenomics.mageri.pipeline.input.CheckoutRule;
+import com.antigenomics.mageri.pipeline.input.Input;
+import com.antigenomics.mageri.pipeline.input.InputChunk;
+import com.antigenomics.mageri.preprocessing.CheckoutProcessor;
+import com.antigenomics.mageri.preprocessing.DemultiplexParameters;
+import com.milaboratory.core.sequence.nucleotide.NucleotideSequence;
+import com.milaboratory.core.sequencing.read.SequencingRead;
+import sun.reflect.generics.reflectiveObjects.NotImplementedException;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pre-processor for input that is grouped by UMI, e.g. unaligned BAM sorted by RX tag. Instead of building UMI index,
+ * a MIG is emitted as soon as the next read has a different UMI, so only the MIGs being assembled are kept in memory.
+ * UMI mismatch filtering requires all UMIs to be known and is not performed, UMIs are expected to be corrected upstream.
+ */
+public class StreamingPreprocessor<MigType extends Mig> implements Preprocessor<MigType> {
+    // Over-sequencing threshold is estimated from MIGs found within this number of first reads
+    public static final int PREFIX_SIZE = MigReader.BUFFER_SIZE;
+    // MIGs are passed to samples in batches, one queue operation per batch
+    private static final List<Mig> LAST_BATCH = new ArrayList<>(0);
+
+    private final SampleGroup sampleGroup;
+    private final PreprocessorParameters preprocessorParameters;
+    private final CheckoutProcessor checkoutProcessor;
+    private final Map<String, MigSizeDistribution> umiHistogramBySample = new HashMap<>();
+    private final Map<String, Integer> overSeqBySample = new HashMap<>();
+    private transient final Map<String, MigStream> streamsBySample = new HashMap<>();
+    private transient final UmiIndexer umiIndexer;
+    private transient final Thread readerThread;
+    private transient volatile Throwable failure = null;
+    // Set if sample analysis has failed and no longer takes MIGs
+    private transient volatile boolean cancelled = false;
+
+    public StreamingPreprocessor(Input input, SampleGroup sampleGroup) throws IOException, InterruptedException {
+        this(input, sampleGroup, DemultiplexParameters.DEFAULT, PreprocessorParameters.DEFAULT);
+    }
+
+    public StreamingPreprocessor(Input input, SampleGroup sampleGroup,
+                                 DemultiplexParameters demultiplexParameters,
+                                 PreprocessorParameters preprocessorParameters) throws IOException, InterruptedException {
+        this(input, sampleGroup, demultiplexParameters, preprocessorParameters, RuntimeParameters.DEFAULT);
+    }
+
+    public StreamingPreprocessor(Input input, SampleGroup sampleGroup,
+                                 DemultiplexParameters demultiplexParameters,
+                                 PreprocessorParameters preprocessorParameters,
+                                 RuntimeParameters runtimeParameters) throws IOException, InterruptedException {
+        this(input, sampleGroup, demultiplexParameters, preprocessorParameters, runtimeParameters, null);
+    }
+
+    public StreamingPreprocessor(Input input, SampleGroup sampleGroup,
+                                 DemultiplexParameters demultiplexParameters,
+                                 PreprocessorParameters preprocessorParameters,
+                                 final RuntimeParameters runtimeParameters,
+                                 ReferenceKmerFilter referenceKmerFilter) throws IOException, InterruptedException {
+        this.sampleGroup = sampleGroup;
+        this.preprocessorParameters = preprocessorParameters;
+
+        final InputChunk inputChunk = input.getByName(sampleGroup.getName());
+
+        CheckoutRule checkoutRule = inputChunk.getCheckoutRule();
+        checkoutRule.setDemultiplexParameters(demultiplexParameters);
+        this.checkoutProcessor = checkoutRule.getProcessor();
+
+        QualityProvider qualityProvider = new QualityProvider(preprocessorParameters.getGoodQualityThreshold());
+        this.umiIndexer = new UmiIndexer(checkoutProcessor,
+                preprocessorParameters.getUmiQualThreshold(),
+                sampleGroup.isPairedEnd() ?
+                        new PairedEndReadWrappingFactory(qualityProvider) :
+                        new SingleEndReadWrappingFactory(qualityProvider),
+                referenceKmerFilter);
+
+        for (Sample sample : sampleGroup.getSamples()) {
+            MigStream migStream = new MigStream(sample);
+            streamsBySample.put(sample.getName(), migStream);
+            umiHistogramBySample.put(sample.getName(), migStream.histogram);
+            if (preprocessorParameters.forceOverseq()) {
+                overSeqBySample.put(sample.getName(), preprocessorParameters.getDefaultOverseq());
+            }
+        }
+
+        this.readerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                OutputPortCloseable<Chunk<SequencingRead>> reader = null;
+                try {
+                    reader = inputChunk.createReader(runtimeParameters.getNumberOfThreads());
+                    OutputPort<Chunk<SequencingRead>> input = reader;
+
+                    if (runtimeParameters.getReadLimit() > -1) {
+                        input = CUtils.chunked(new CountLimitingOutputPort<>(CUtils.unchunked(input),
+                                runtimeParameters.getReadLimit()), MigReader.BATCH_SIZE);
+                    }
+
+                    // Buffer the input - speed up and protect from parallelization problems
+                    final Merger<Chunk<SequencingRead>> bufferedInput =
+                            new Merger<>(MigReader.BUFFER_SIZE / MigReader.BATCH_SIZE);
+                    bufferedInput.merge(input);
+                    bufferedInput.start();
+
+                    group(bufferedInput, runtimeParameters.getNumberOfThreads());
+                } catch (Throwable e) {
+                    failure = e;
+                } finally {
+                    if (reader != null) {
+                        reader.close();
+                    }
+                    // Let sample analyses finish in any case
+                    for (MigStream migStream : streamsBySample.values()) {
+                        try {
+                            if (!migStream.offer(LAST_BATCH)) {
+                                migStream.buffer.clear();
+                                migStream.buffer.offer(LAST_BATCH);
+                            }
+                        } catch (InterruptedException ignored) {
+                        }
+                    }
+                }
+            }
+        });
+    }
+
+    // Runs on the reader thread
+    private void group(final OutputPort<Chunk<SequencingRead>> input, int numberOfThreads) throws InterruptedException {
+        // Checkout is run in parallel, batches are numbered to restore input order afterwards
+        final OutputPort<Batch<Chunk<SequencingRead>>> numberedInput = new OutputPort<Batch<Chunk<SequencingRead>>>() {
+            private long index = 0;
+
+            @Override
+            public synchronized Batch<Chunk<SequencingRead>> take() {
+                Chunk<SequencingRead> reads = input.take();
+                return reads == null ? null : new Batch<>(index++, reads);
+            }
+        };
+
+        final Processor<Chunk<SequencingRead>, Chunk<ProcessorResultWrapper<IndexingInfo>>> chunkIndexer =
+                CUtils.chunked(umiIndexer);
+
+        OutputPort<Batch<Chunk<ProcessorResultWrapper<IndexingInfo>>>> indexingResults = new OrderedOutputPort<>(
+                new ParallelProcessor<>(numberedInput,
+                        new Processor<Batch<Chunk<SequencingRead>>, Batch<Chunk<ProcessorResultWrapper<IndexingInfo>>>>() {
+                            @Override
+                            public Batch<Chunk<ProcessorResultWrapper<IndexingInfo>>> process(Batch<Chunk<SequencingRead>> batch) {
+                                return new Batch<>(batch.index, chunkIndexer.process(batch.data));
+                            }
+                        }, numberOfThreads),
+                new Indexer<Batch>() {
+                    @Override
+                    public long getIndex(Batch batch) {
+                        return batch.index;
+                    }
+                });
+
+        boolean estimatingOverSeq = !preprocessorParameters.forceOverseq();
+        long readCount = 0;
+
+        Batch<Chunk<ProcessorResultWrapper<IndexingInfo>>> results;
+        while ((results = indexingResults.take()) != null) {
+            if (cancelled) {
+                throw new CancellationException("Pre-processing of sample group " +
+                        sampleGroup.getName() + " is cancelled");
+            }
+
+            readCount += results.data.size();
+            for (ProcessorResultWrapper<IndexingInfo> result : results.data) {
+                if (result.hasResult()) {
+                    IndexingInfo indexingInfo = result.getResult();
+                    streamsBySample.get(indexingInfo.getSampleName()).add(indexingInfo.getUmi(),
+                            indexingInfo.getReadInfo());
+                }
+            }
+
+            if (estimatingOverSeq && readCount >= PREFIX_SIZE) {
+                estimateOverSeq();
+                estimatingOverSeq = false;
+            }
+
+            if (!estimatingOverSeq) {
+                for (MigStream migStream : streamsBySample.values()) {
+                    migStream.flush();
+                }
+            }
+        }
+
+        for (MigStream migStream : streamsBySample.values()) {
+            migStream.finishGroup();
+        }
+
+        if (estimatingOverSeq) {
+            estimateOverSeq();
+        }
+
+        for (MigStream migStream : streamsBySample.values()) {
+            migStream.flush();
+        }
+
+        Speaker.INSTANCE.sout("[Indexer] Finished reading UMI-grouped input, " +
+                readCount + " reads processed, " +
+                ((int) (checkoutProcessor.extractionRatio() * 10000) / 100.0) + "% extracted", 1);
+    }
+
+    private void estimateOverSeq() {
+        for (MigStream migStream : streamsBySample.values()) {
+            overSeqBySample.put(migStream.sample.getName(), migStream.histogram.getMigSizeThreshold());
+        }
+    }
+
+    @Override
+    public MigSizeDistribution getUmiHistogram(Sample sample) {
+        if (!sampleGroup.getSamples().contains(sample))
+            throw new RuntimeException("Sample " + sample + " not found in sample group " + sampleGroup);
+
+        return umiHistogramBySample.get(sample.getName());
+    }
+
+    @Override
+    public MigOutputPort<MigType> create(Sample sample) {
+        if (!sampleGroup.getSamples().contains(sample))
+            throw new RuntimeException("Sample " + sample + " not found in sample group " + sampleGroup);
+
+        final LinkedBlockingQueue<List<Mig>> buffer = streamsBySample.get(sample.getName()).buffer;
+
+        return new MigOutputPort<MigType>() {
+            private List<Mig> batch = Collections.emptyList();
+            private int index = 0;
+
+            @SuppressWarnings("unchecked")
+            @Override
+            public synchronized MigType take() {
+                try {
+                    while (batch != LAST_BATCH && index == batch.size()) {
+                        batch = buffer.take();
+                        index = 0;
+                    }
+
+                    return batch == LAST_BATCH ? null : (MigType) batch.get(index++);
+                } catch (InterruptedException ignored) {
+                    return null;
+                }
+            }
+
+            @Override
+            public void clear() {
+                // MIGs are not stored
+            }
+
+            @Override
+            public boolean isPairedEnd() {
+                return sampleGroup.isPairedEnd();
+            }
+        };
+    }
+
+    @Override
+    public OutputPort<ProcessorResultWrapper<Consensus>> createRaw(Sample sample) {
+        throw new NotImplementedException();
+    }
+
+    @Override
+    public int getOverSeq(String sampleName) {
+        Integer overSeq = overSeqBySample.get(sampleName);
+        if (overSeq == null)
+            throw new RuntimeException("Over-sequencing threshold for " + sampleName + " is not estimated yet");
+        return overSeq;
+    }
+
+    @Override
+    public SampleGroup getSampleGroup() {
+        return sampleGroup;
+    }
+
+    @Override
+    public CheckoutProcessor getCheckoutProcessor() {
+        return checkoutProcessor;
+    }
+
+    @Override
+    public boolean isPairedEnd() {
+        return sampleGroup.isPairedEnd();
+    }
+
+    public void start() {
+        readerThread.start();
+    }
+
+    // Stops reading input, should be called if MIGs are no longer taken from any of the samples
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public void stop() throws InterruptedException {
+        readerThread.join();
+
+        if (failure != null && !cancelled)
+            throw new RuntimeException("Failed to pre-process sample group " + sampleGroup.getName(), failure);
+    }
+
+    private static final class Batch<T> {
+        final long index;
+        final T data;
+
+        Batch(long index, T data) {
+            this.index = index;
+            this.data = data;
+        }
+    }
+
+    // Collects reads of current UMI group for a given sample, accessed by the reader thread only
+    private final class MigStream {
+        final Sample sample;
+        final MigSizeDistribution histogram = new MigSizeDistribution(preprocessorParameters);
+        final LinkedBlockingQueue<List<Mig>> buffer =
+                new LinkedBlockingQueue<>(MigReader.BUFFER_SIZE / MigReader.BATCH_SIZE);
+        // Finished groups that are not yet passed to sample analysis
+        final List<Map.Entry<NucleotideSequence, List<ReadInfo>>> finishedGroups = new ArrayList<>();
+        // To check that input is indeed grouped by UMI
+        final UmiRepeatFilter finishedUmis = new UmiRepeatFilter();
+        NucleotideSequence umi = null;
+        List<ReadInfo> readInfos = null;
+
+        MigStream(Sample sample) {
+            this.sample = sample;
+        }
+
+        void add(NucleotideSequence umi, ReadInfo readInfo) {
+            if (!umi.equals(this.umi)) {
+                finishGroup();
+                if (finishedUmis.check(umi)) {
+                    throw new RuntimeException("Input is not grouped by UMI: " + finishedUmis.getRepeats() +
+                            " UMIs of sample " + sample.getName() + " are found again after other UMIs, " +
+                            (int) finishedUmis.getExpectedRepeats() + " are expected by chance.");
+                }
+                this.umi = umi;
+                this.readInfos = new ArrayList<>();
+            }
+            readInfos.add(readInfo);
+        }
+
+        void finishGroup() {
+            if (umi != null) {
+                histogram.update(readInfos.size());
+                finishedGroups.add(new AbstractMap.SimpleImmutableEntry<>(umi, readInfos));
+                umi = null;
+                readInfos = null;
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        void flush() throws InterruptedException {
+            int overSeq = overSeqBySample.get(sample.getName());
+            boolean trimAdapters = preprocessorParameters.trimAdapters();
+
+            List<Mig> migs = new ArrayList<>();
+            for (Map.Entry<NucleotideSequence, List<ReadInfo>> group : finishedGroups) {
+                if (group.getValue().size() >= overSeq) {
+                    migs.add(sampleGroup.isPairedEnd() ?
+                            PMigReader.createMig(sample, group.getKey(), group.getValue(), trimAdapters) :
+                            SMigReader.createMig(sample, group.getKey(), group.getValue(), trimAdapters));
+                }
+            }
+            finishedGroups.clear();
+
+            if (!migs.isEmpty() && !offer(migs)) {
+                throw new CancellationException("Pre-processing of sample group " +
+                        sampleGroup.getName() + " is cancelled");
+            }
+        }
+
+        // Waits till sample analysis takes the batch, returns false if pre-processing is cancelled meanwhile
+        boolean offer(List<Mig> migs) throws InterruptedException {
+            while (!buffer.offer(migs, 100, TimeUnit.MILLISECONDS)) {
+                if (cancelled) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Fixed-size Bloom filter of UMIs seen so far. UMIs of grouped input come in once, so the number of UMIs
+     * found in the filter should agree with its false positive rate, which is estimated from the fraction of bits set.
+     * Ungrouped input is reported once this number is well above the one expected by chance.
+     */
+    private static final class UmiRepeatFilter {
+        private static final int NUMBER_OF_BITS = 1 << 23, NUMBER_OF_HASHES = 3, MIN_REPEATS = 10;
+        private static final double Z_SCORE = 6;
+
+        private final long[] bits = new long[NUMBER_OF_BITS >>> 6];
+        private int bitsSet = 0, repeats = 0;
+        private double expectedRepeats = 0;
+
+        // Adds UMI, returns true if there are too many repeated UMIs for grouped input
+        boolean check(NucleotideSequence umi) {
+            expectedRepeats += Math.pow((double) bitsSet / NUMBER_OF_BITS, NUMBER_OF_HASHES);
+
+            long h1 = hash(umi), h2 = hash(h1) | 1;
+            boolean found = true;
+            for (int i = 0; i < NUMBER_OF_HASHES; i++) {
+                int bit = (int) ((h1 + i * h2) & (NUMBER_OF_BITS - 1));
+                long mask = 1L << bit;
+                if ((bits[bit >>> 6] & mask) == 0) {
+                    bits[bit >>> 6] |= mask;
+                    bitsSet++;
+                    found = false;
+                }
+            }
+
+            if (found) {
+                repeats++;
+            }
+
+            return repeats >= MIN_REPEATS &&
+                    repeats > expectedRepeats + Z_SCORE * Math.sqrt(expectedRepeats);
+        }
+
+        int getRepeats() {
+            return repeats;
+        }
+
+        double getExpectedRepeats() {
+            return expectedRepeats;
+        }
+
+        private static long hash(NucleotideSequence umi) {
+            long key = umi.size();
+            for (int i = 0; i < umi.size(); i++) {
+                key = key * 0x9e3779b97f4a7c15L + umi.codeAt(i) + 1;
+            }
+            return hash(key);
+        }
+
+        private static long hash(long key) {
+            // 64-bit finalizer of MurmurHash3
+            key ^= key >>> 33;
+            key *= 0xff51afd7ed558ccdL;
+            key ^= key >>> 33;
+            key *= 0xc4ceb9fe1a85ec53L;
+            key ^= key >>> 33;
+            return key;
+        }
+    }
+}
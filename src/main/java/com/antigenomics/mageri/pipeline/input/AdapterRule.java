@@ -47,6 +47,15 @@ public abstract class AdapterRule extends CheckoutRule {
     @Override
     public abstract boolean hasSubMultiplexing();
 
+    @Override
+    public String getKey() {
+        String key = getClass().getSimpleName() + "\t" + index + "\t" + paired;
+        for (String barcode : barcodes) {
+            key += "\n" + barcode;
+        }
+        return key;
+    }
+
     @Override
     public String toString() {
         String out = "adapter_rule\n-submultiplex:" + hasSubMultiplexing() + "\n-samples:";
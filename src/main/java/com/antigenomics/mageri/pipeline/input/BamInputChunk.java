@@ -0,0 +1,51 @@
+/*
+ * Copyright 2014-2016 Mikhail Shugay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.antigenomics.mageri.pipeline.input;
+
+import cc.redberry.pipe.OutputPortCloseable;
+import cc.redberry.pipe.util.Chunk;
+import com.antigenomics.mageri.core.input.UnalignedBamReader;
+import com.milaboratory.core.sequencing.read.SequencingRead;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+public class BamInputChunk extends InputChunk {
+    protected final boolean pairedEnd;
+
+    public BamInputChunk(InputStreamSupplier inputStreamSupplier, boolean pairedEnd,
+                         String name, CheckoutRule checkoutRule) {
+        super(inputStreamSupplier, null, name, checkoutRule);
+        this.pairedEnd = pairedEnd;
+    }
+
+    public BamInputChunk(InputStream inputStream, boolean pairedEnd,
+                         String name, CheckoutRule checkoutRule) {
+        this(wrap(inputStream), pairedEnd, name, checkoutRule);
+    }
+
+    @Override
+    public OutputPortCloseable<Chunk<SequencingRead>> createReader(int numberOfThreads) throws IOException {
+        return new UnalignedBamReader(inputStreamSupplier1.get(), pairedEnd, numberOfThreads);
+    }
+
+    @Override
+    public boolean isPairedEnd() {
+        return pairedEnd;
+    }
+}
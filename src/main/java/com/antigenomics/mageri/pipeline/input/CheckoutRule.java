@@ -35,6 +35,12 @@ public abstract class CheckoutRule implements Serializable {
 
     public abstract boolean hasSubMultiplexing();
 
+    /**
+     * Gets a canonical representation of the rule that changes whenever checkout results would change.
+     * Demultiplexing parameters are not included.
+     */
+    public abstract String getKey();
+
     public DemultiplexParameters getDemultiplexParameters() {
         return demultiplexParameters;
     }
@@ -16,11 +16,13 @@
 
 package com.antigenomics.mageri.pipeline.input;
 
+import com.antigenomics.mageri.misc.ParallelGzipInputStream;
+
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.zip.GZIPInputStream;
 
 public class FileIOProvider extends IOProvider {
     public static final FileIOProvider INSTANCE = new FileIOProvider();
@@ -33,13 +35,30 @@ public class FileIOProvider extends IOProvider {
     public InputStream getStream(String path) throws IOException {
         InputStream inputStream = new FileInputStream(path);
 
-        // Take care for gzipped input
+        // Take care for gzipped input, inflated ahead of the reader so that R1 and R2 are decompressed
+        // on separate threads
         if (path.endsWith(".gz"))
-            inputStream = new GZIPInputStream(inputStream);
+            inputStream = new ParallelGzipInputStream(inputStream);
 
         return inputStream;
     }
 
+    @Override
+    public InputStreamSupplier getStreamSupplier(String path) throws IOException {
+        // Stream is opened later, check that the file is there right away
+        File file = new File(path);
+        if (!file.isFile() || !file.canRead())
+            throw new FileNotFoundException(path + " (file not found or not readable)");
+
+        return super.getStreamSupplier(path);
+    }
+
+    @Override
+    public String getFingerprint(String path) throws IOException {
+        File file = new File(path);
+        return protocol + ":" + file.getAbsolutePath() + ":" + file.length() + ":" + file.lastModified();
+    }
+
     @Override
     public InputStreamWrapper getWrappedStream(String path) throws IOException {
         return new InputStreamWrapper(protocol, new File(path).getAbsolutePath(), getStream(path));
@@ -33,6 +33,20 @@ public abstract class IOProvider {
 
     public abstract InputStream getStream(String path) throws IOException;
 
+    public InputStreamSupplier getStreamSupplier(final String path) throws IOException {
+        return new InputStreamSupplier() {
+            @Override
+            public InputStream get() throws IOException {
+                return getStream(path);
+            }
+        };
+    }
+
+    // Identifies the contents of a given path, used to check that cached results are up to date
+    public String getFingerprint(String path) throws IOException {
+        return protocol + ":" + path;
+    }
+
     public InputStreamWrapper getWrappedStream(String path) throws IOException {
         return new InputStreamWrapper(protocol, path, getStream(path));
     }
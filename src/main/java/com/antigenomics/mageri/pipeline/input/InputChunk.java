@@ -16,30 +16,102 @@
 
 package com.antigenomics.mageri.pipeline.input;
 
+import cc.redberry.pipe.OutputPortCloseable;
+import cc.redberry.pipe.util.Chunk;
 import com.antigenomics.mageri.core.ReadSpecific;
+import com.antigenomics.mageri.core.input.ParallelFastqReader;
+import com.antigenomics.mageri.core.input.UnalignedBamReader;
+import com.milaboratory.core.sequencing.read.SequencingRead;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.Serializable;
 
 public class InputChunk implements ReadSpecific, Serializable {
-    protected transient final InputStream inputStream1, inputStream2;
+    // Input files are opened only when the chunk is processed
+    protected transient final InputStreamSupplier inputStreamSupplier1, inputStreamSupplier2;
     protected final String name;
     protected final CheckoutRule checkoutRule;
+    protected String fingerprint = null;
 
-    public InputChunk(InputStream inputStream1, InputStream inputStream2,
+    public InputChunk(InputStreamSupplier inputStreamSupplier1, InputStreamSupplier inputStreamSupplier2,
                       String name, CheckoutRule checkoutRule) {
-        this.inputStream1 = inputStream1;
-        this.inputStream2 = inputStream2;
+        this.inputStreamSupplier1 = inputStreamSupplier1;
+        this.inputStreamSupplier2 = inputStreamSupplier2;
         this.name = name;
         this.checkoutRule = checkoutRule;
     }
 
-    public InputStream getInputStream1() {
-        return inputStream1;
+    public InputChunk(InputStream inputStream1, InputStream inputStream2,
+                      String name, CheckoutRule checkoutRule) {
+        this(wrap(inputStream1), wrap(inputStream2), name, checkoutRule);
+    }
+
+    /**
+     * Creates a chunk for single-end, paired-end or interleaved FASTQ or unaligned BAM input, input streams are
+     * opened once the chunk is processed. Fingerprint is built from those of input files and is unknown (null)
+     * if any of them is a stream.
+     */
+    public static InputChunk create(IOProvider ioProvider, String fileName1, String fileName2,
+                                    boolean interleaved, boolean pairedEnd,
+                                    String name, CheckoutRule checkoutRule) throws IOException {
+        IOProvider ioProvider1 = getIOProvider(ioProvider, fileName1),
+                ioProvider2 = fileName2 != null ? getIOProvider(ioProvider, fileName2) : null;
+
+        InputStreamSupplier inputStreamSupplier1 = ioProvider1.getStreamSupplier(fileName1),
+                inputStreamSupplier2 = ioProvider2 != null ? ioProvider2.getStreamSupplier(fileName2) : null;
+
+        InputChunk inputChunk = UnalignedBamReader.isSamFile(fileName1) ?
+                new BamInputChunk(inputStreamSupplier1, pairedEnd, name, checkoutRule) :
+                interleaved ? new InterleavedInputChunk(inputStreamSupplier1, name, checkoutRule) :
+                        new InputChunk(inputStreamSupplier1, inputStreamSupplier2, name, checkoutRule);
+
+        String fingerprint1 = ioProvider1.getFingerprint(fileName1),
+                fingerprint2 = ioProvider2 != null ? ioProvider2.getFingerprint(fileName2) : "";
+        inputChunk.setFingerprint(fingerprint1 == null || fingerprint2 == null ? null :
+                fingerprint1 + (ioProvider2 != null ? "\t" + fingerprint2 : "") +
+                        (interleaved ? "\tinterleaved" : ""));
+
+        return inputChunk;
+    }
+
+    // Unaligned BAM holds both mates, its header is checked for paired reads
+    public static boolean isPairedEnd(IOProvider ioProvider, String fileName1, String fileName2,
+                                      boolean interleaved) throws IOException {
+        return UnalignedBamReader.isSamFile(fileName1) ?
+                UnalignedBamReader.isPairedEnd(getIOProvider(ioProvider, fileName1).getStream(fileName1)) :
+                fileName2 != null || interleaved;
+    }
+
+    // Reads can come from standard input or named pipes
+    public static IOProvider getIOProvider(IOProvider ioProvider, String fileName) {
+        return ioProvider == FileIOProvider.INSTANCE && StreamIOProvider.isStream(fileName) ?
+                StreamIOProvider.INSTANCE : ioProvider;
+    }
+
+    // Supplier for a stream that is already opened
+    protected static InputStreamSupplier wrap(final InputStream inputStream) {
+        return inputStream == null ? null : new InputStreamSupplier() {
+            @Override
+            public InputStream get() throws IOException {
+                return inputStream;
+            }
+        };
+    }
+
+    public OutputPortCloseable<Chunk<SequencingRead>> createReader(int numberOfThreads) throws IOException {
+        return new ParallelFastqReader(inputStreamSupplier1.get(),
+                inputStreamSupplier2 == null ? null : inputStreamSupplier2.get(),
+                numberOfThreads);
+    }
+
+    // Fingerprint of input files, null if unknown
+    public String getFingerprint() {
+        return fingerprint;
     }
 
-    public InputStream getInputStream2() {
-        return inputStream2;
+    public void setFingerprint(String fingerprint) {
+        this.fingerprint = fingerprint;
     }
 
     public String getName() {
@@ -52,7 +124,7 @@ public class InputChunk implements ReadSpecific, Serializable {
 
     @Override
     public boolean isPairedEnd() {
-        return inputStream2 != null;
+        return inputStreamSupplier2 != null;
     }
 
     @Override
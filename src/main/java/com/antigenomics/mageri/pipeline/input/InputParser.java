@@ -16,13 +16,13 @@
 
 package com.antigenomics.mageri.pipeline.input;
 
+import com.antigenomics.mageri.core.input.UnalignedBamReader;
 import com.antigenomics.mageri.pipeline.Speaker;
 import com.antigenomics.mageri.preprocessing.barcode.BarcodeListParser;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
 import java.io.IOException;
-import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -94,18 +94,8 @@ public class InputParser {
                         fastq1FileName = tokenized[1],
                         fastq2FileName = tokenized[2].equals(BarcodeListParser.EMPTY_BARCODE) ?
                                 null : tokenized[2];
-                boolean paired = fastq2FileName != null;
 
-                // apply rule to each index
-                CheckoutRule checkoutRule = getCheckoutRule(chunkName, table, paired);
-
-                if (checkoutRule == null)
-                    throw new RuntimeException("No multiplex rule is specified for chunk " + chunkName);
-
-                InputStream fasq1 = ioProvider.getStream(fastq1FileName),
-                        fastq2 = paired ? ioProvider.getStream(fastq2FileName) : null;
-
-                chunks.add(new InputChunk(fasq1, fastq2, chunkName, checkoutRule));
+                chunks.add(createChunk(chunkName, fastq1FileName, fastq2FileName, table));
             }
         }
 
@@ -120,19 +110,39 @@ public class InputParser {
             String chunkName = rule.getString("index"),
                     fastq1FileName = rule.getString("r1"),
                     fastq2FileName = rule.has("r2") ? rule.getString("r2") : null;
-            boolean paired = fastq2FileName != null;
 
-            CheckoutRule checkoutRule = getCheckoutRule(chunkName, rule, paired);
+            chunks.add(createChunk(chunkName, fastq1FileName, fastq2FileName, rule));
+        }
+        return chunks;
+    }
 
-            if (checkoutRule == null)
-                throw new RuntimeException("No multiplex rule is specified for chunk " + chunkName);
+    private InputChunk createChunk(String chunkName, String fastq1FileName, String fastq2FileName,
+                                   JSONObject rule) throws IOException {
+        // Unaligned BAM holds both mates, UMIs are in tags
+        boolean bam = UnalignedBamReader.isSamFile(fastq1FileName);
 
-            InputStream fasq1 = ioProvider.getStream(fastq1FileName),
-                    fastq2 = paired ? ioProvider.getStream(fastq2FileName) : null;
+        // R1 and R2 records alternate in a single FASTQ file
+        boolean interleaved = rule.optBoolean("interleaved", false);
 
-            chunks.add(new InputChunk(fasq1, fastq2, chunkName, checkoutRule));
-        }
-        return chunks;
+        if (bam && fastq2FileName != null)
+            throw new RuntimeException("Second read file is not allowed for BAM input, chunk " + chunkName);
+
+        if (interleaved && (bam || fastq2FileName != null))
+            throw new RuntimeException("Interleaved input should be a single FASTQ file, chunk " + chunkName);
+
+        // Streams can be read only once, while BAM header is checked for paired reads beforehand
+        if (bam && InputChunk.getIOProvider(ioProvider, fastq1FileName) == StreamIOProvider.INSTANCE)
+            throw new RuntimeException("BAM input should be a regular file, chunk " + chunkName);
+
+        boolean paired = InputChunk.isPairedEnd(ioProvider, fastq1FileName, fastq2FileName, interleaved);
+
+        CheckoutRule checkoutRule = getCheckoutRule(chunkName, rule, paired);
+
+        if (checkoutRule == null)
+            throw new RuntimeException("No multiplex rule is specified for chunk " + chunkName);
+
+        return InputChunk.create(ioProvider, fastq1FileName, fastq2FileName, interleaved, paired,
+                chunkName, checkoutRule);
     }
 
     private CheckoutRule getCheckoutRule(String chunkName, JSONObject rule,
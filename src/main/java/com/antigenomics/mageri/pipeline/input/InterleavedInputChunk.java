@@ -0,0 +1,49 @@
+/*
+ * Copyright 2014-2016 Mikhail Shugay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.antigenomics.mageri.pipeline.input;
+
+import cc.redberry.pipe.OutputPortCloseable;
+import cc.redberry.pipe.util.Chunk;
+import com.antigenomics.mageri.core.input.ParallelFastqReader;
+import com.milaboratory.core.sequencing.read.SequencingRead;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+// Paired-end FASTQ with R1 and R2 records alternating in a single file
+public class InterleavedInputChunk extends InputChunk {
+    public InterleavedInputChunk(InputStreamSupplier inputStreamSupplier,
+                                 String name, CheckoutRule checkoutRule) {
+        super(inputStreamSupplier, null, name, checkoutRule);
+    }
+
+    public InterleavedInputChunk(InputStream inputStream,
+                                 String name, CheckoutRule checkoutRule) {
+        this(wrap(inputStream), name, checkoutRule);
+    }
+
+    @Override
+    public OutputPortCloseable<Chunk<SequencingRead>> createReader(int numberOfThreads) throws IOException {
+        return new ParallelFastqReader(inputStreamSupplier1.get(), true, numberOfThreads);
+    }
+
+    @Override
+    public boolean isPairedEnd() {
+        return true;
+    }
+}
@@ -59,6 +59,11 @@ public class PositionalRule extends CheckoutRule {
         return false;
     }
 
+    @Override
+    public String getKey() {
+        return getClass().getSimpleName() + "\t" + sampleName + "\t" + mask1 + "\t" + mask2 + "\t" + paired;
+    }
+
     @Override
     public String toString() {
         return "preprocessed_rule\n-submultiplex:" + hasSubMultiplexing() + "\n-samples:" + sampleName;
@@ -46,6 +46,11 @@ public final class PreprocessedRule extends CheckoutRule {
         return false;
     }
 
+    @Override
+    public String getKey() {
+        return getClass().getSimpleName() + "\t" + sampleName;
+    }
+
     @Override
     public String toString() {
         return "preprocessed\n-submultiplex:" + hasSubMultiplexing() + "\n-samples:" + sampleName;
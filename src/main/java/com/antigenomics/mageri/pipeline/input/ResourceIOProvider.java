@@ -16,9 +16,10 @@
 
 package com.antigenomics.mageri.pipeline.input;
 
+import com.antigenomics.mageri.misc.ParallelGzipInputStream;
+
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.zip.GZIPInputStream;
 
 public class ResourceIOProvider extends IOProvider {
     public static final ResourceIOProvider INSTANCE = new ResourceIOProvider();
@@ -30,6 +31,6 @@ public class ResourceIOProvider extends IOProvider {
     @Override
     public InputStream getStream(String path) throws IOException {
         InputStream is = ResourceIOProvider.class.getClassLoader().getResourceAsStream(path);
-        return path.endsWith(".gz") ? new GZIPInputStream(is) : is;
+        return path.endsWith(".gz") ? new ParallelGzipInputStream(is) : is;
     }
 }
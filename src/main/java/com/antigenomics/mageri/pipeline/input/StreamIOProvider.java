@@ -0,0 +1,89 @@
+/*
+ * Copyright 2014-2016 Mikhail Shugay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.antigenomics.mageri.pipeline.input;
+
+import com.antigenomics.mageri.misc.ParallelGzipInputStream;
+import org.apache.commons.io.input.CloseShieldInputStream;
+
+import java.io.*;
+
+/**
+ * Provides input that can be read only once, such as standard input ("-" or "/dev/stdin"), named pipes and
+ * file descriptors ("/dev/fd/N"), e.g. reads piped straight from BCL conversion. Nothing is written to disk and
+ * compression is detected from the stream contents, as such paths carry no ".gz" suffix.
+ */
+public class StreamIOProvider extends IOProvider {
+    public static final StreamIOProvider INSTANCE = new StreamIOProvider();
+    public static final String STDIN = "-";
+
+    private static final int GZIP_MAGIC = 0x8b1f, BUFFER_SIZE = 64 * 1024;
+
+    private StreamIOProvider() {
+        super("stream");
+    }
+
+    // Checks if a given path can be read only once and should be handled by this provider
+    public static boolean isStream(String path) {
+        if (isStdin(path) || path.startsWith("/dev/fd/")) {
+            return true;
+        }
+        File file = new File(path);
+        // FIFOs and character devices
+        return file.exists() && !file.isFile() && !file.isDirectory();
+    }
+
+    private static boolean isStdin(String path) {
+        return path.equals(STDIN) || path.equals("/dev/stdin");
+    }
+
+    @Override
+    public InputStream getStream(String path) throws IOException {
+        // Standard input is left open for the rest of the program
+        InputStream inputStream = new BufferedInputStream(isStdin(path) ?
+                new CloseShieldInputStream(System.in) :
+                new FileInputStream(path), BUFFER_SIZE);
+
+        return isGzipped(inputStream) ? new ParallelGzipInputStream(inputStream) : inputStream;
+    }
+
+    // Peeks at first two bytes, stream is reset afterwards
+    private static boolean isGzipped(InputStream inputStream) throws IOException {
+        inputStream.mark(2);
+        int b1 = inputStream.read(), b2 = inputStream.read();
+        inputStream.reset();
+        return b1 >= 0 && b2 >= 0 && (b1 | (b2 << 8)) == GZIP_MAGIC;
+    }
+
+    @Override
+    public InputStreamSupplier getStreamSupplier(String path) throws IOException {
+        // Stream is opened later (opening a pipe blocks until the writer shows up), check that it is there right away
+        if (!isStdin(path)) {
+            File file = new File(path);
+            if (!file.exists() || file.isDirectory() || !file.canRead())
+                throw new FileNotFoundException(path + " (not found or not readable)");
+        }
+
+        return super.getStreamSupplier(path);
+    }
+
+    @Override
+    public String getFingerprint(String path) throws IOException {
+        // Contents can't be checked without consuming the stream, so results are never cached
+        return null;
+    }
+}
@@ -29,7 +29,7 @@ import java.util.concurrent.atomic.AtomicLongArray;
 
 public abstract class CheckoutProcessor<ReadType extends SequencingRead, ResultType extends CheckoutResult>
         implements ReadSpecific, Serializable {
-    protected final AtomicLongArray masterCounters;
+    protected final AtomicLongArray masterCounters, offTargetCounters;
     protected final AtomicLong goodCounter, totalCounter;
     protected final String[] sampleNames;
     protected final List<String> sampleNameList = new ArrayList<>();
@@ -43,6 +43,7 @@ public abstract class CheckoutProcessor<ReadType extends SequencingRead, ResultT
         this.goodCounter = new AtomicLong();
         this.totalCounter = new AtomicLong();
         this.masterCounters = new AtomicLongArray(masterBarcodes.length);
+        this.offTargetCounters = new AtomicLongArray(masterBarcodes.length);
 
         for (int i = 0; i < masterBarcodes.length; i++) {
             List<Integer> idsForSample = sampleNameToId.get(sampleNames[i]);
@@ -69,6 +70,18 @@ public abstract class CheckoutProcessor<ReadType extends SequencingRead, ResultT
         return count;
     }
 
+    // Reads that passed checkout but were dropped as off-target, see ReferenceKmerFilter
+    public void countOffTarget(CheckoutResult result) {
+        offTargetCounters.incrementAndGet(result.getSampleId());
+    }
+
+    public long getOffTargetCounter(String sampleName) {
+        long count = 0;
+        for (int id : getSampleIds(sampleName))
+            count += offTargetCounters.get(id);
+        return count;
+    }
+
     public abstract ResultType checkoutImpl(ReadType read);
 
     public ResultType checkout(ReadType read) {
@@ -95,6 +108,29 @@ public abstract class CheckoutProcessor<ReadType extends SequencingRead, ResultT
         return totalCounter.get();
     }
 
+    // Counters are stored along with the UMI index checkpoint and restored when it is loaded
+    public long[] getCounters() {
+        int n = masterCounters.length();
+        long[] counters = new long[2 * n + 2];
+        counters[0] = totalCounter.get();
+        counters[1] = goodCounter.get();
+        for (int i = 0; i < n; i++) {
+            counters[i + 2] = masterCounters.get(i);
+            counters[i + n + 2] = offTargetCounters.get(i);
+        }
+        return counters;
+    }
+
+    public void setCounters(long[] counters) {
+        totalCounter.set(counters[0]);
+        goodCounter.set(counters[1]);
+        int n = masterCounters.length();
+        for (int i = 0; i < n; i++) {
+            masterCounters.set(i, counters[i + 2]);
+            offTargetCounters.set(i, counters[i + n + 2]);
+        }
+    }
+
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder("Counter");
@@ -28,7 +28,9 @@ public final class HeaderExtractor extends CheckoutProcessor<SequencingRead, Che
 
     @Override
     public CheckoutResult checkoutImpl(SequencingRead sequencingRead) {
-        NucleotideSQPair umiSQPair = extractUmiWithQual(sequencingRead.getDescription(0));
+        NucleotideSQPair umiSQPair = sequencingRead instanceof UmiTaggedRead ?
+                ((UmiTaggedRead) sequencingRead).getUmi() :
+                extractUmiWithQual(sequencingRead.getDescription(0));
 
         if (umiSQPair == null) {
             return null;
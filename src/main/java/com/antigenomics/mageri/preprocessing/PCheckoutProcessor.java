@@ -64,6 +64,27 @@ public abstract class PCheckoutProcessor extends CheckoutProcessor<PSequencingRe
         return count;
     }
 
+    @Override
+    public long[] getCounters() {
+        long[] counters = super.getCounters(), pairedCounters = new long[counters.length + slaveCounters.length() + 1];
+        System.arraycopy(counters, 0, pairedCounters, 0, counters.length);
+        pairedCounters[counters.length] = masterFirstCounter.get();
+        for (int i = 0; i < slaveCounters.length(); i++) {
+            pairedCounters[counters.length + i + 1] = slaveCounters.get(i);
+        }
+        return pairedCounters;
+    }
+
+    @Override
+    public void setCounters(long[] counters) {
+        super.setCounters(counters);
+        int offset = 2 * masterCounters.length() + 2;
+        masterFirstCounter.set(counters[offset]);
+        for (int i = 0; i < slaveCounters.length(); i++) {
+            slaveCounters.set(i, counters[offset + i + 1]);
+        }
+    }
+
     @Override
     public abstract PCheckoutResult checkoutImpl(PSequencingRead read);
 
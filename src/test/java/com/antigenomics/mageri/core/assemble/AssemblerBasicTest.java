@@ -29,13 +29,19 @@ import com.antigenomics.mageri.FastTests;
 import com.antigenomics.mageri.core.Mig;
 import com.antigenomics.mageri.core.input.SMig;
 import com.antigenomics.mageri.generators.RandomReferenceGenerator;
+import com.antigenomics.mageri.misc.ProcessorResultWrapper;
+import com.milaboratory.core.sequencing.read.SSequencingRead;
+import org.apache.commons.io.FileUtils;
 import org.junit.Assert;
 import org.junit.Ignore;
 import org.junit.Test;
 import org.junit.experimental.categories.Category;
 
+import java.io.*;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.zip.GZIPInputStream;
 
 import static com.antigenomics.mageri.generators.RandomUtil.randomSequence;
 
@@ -129,6 +135,66 @@ public class AssemblerBasicTest {
                 true, false);
     }
 
+    @Test
+    @Category(FastTests.class)
+    public void consensusFastqTest() throws IOException {
+        RandomMigGenerator migGenerator = new RandomMigGenerator();
+        RandomReferenceGenerator referenceGenerator = new RandomReferenceGenerator();
+        referenceGenerator.setReferenceSizeMin(referenceGenerator.getReferenceSizeMin() * 2);
+        referenceGenerator.setReferenceSizeMax(referenceGenerator.getReferenceSizeMax() * 2);
+
+        File folder = Files.createTempDirectory("assemble").toFile();
+        try {
+            // Consensuses are written either upon assembly or afterwards, upon writing plain-text output
+            for (boolean streamed : new boolean[]{true, false}) {
+                String pathPrefix = new File(folder, streamed ? "streamed" : "stored").getAbsolutePath();
+                PAssembler assembler = new PAssembler(AssemblerParameters.DEFAULT, PreprocessorParameters.DEFAULT);
+
+                if (streamed) {
+                    assembler.openConsensusWriter(pathPrefix, 4);
+                }
+
+                List<PConsensus> consensuses = new ArrayList<>();
+                for (int i = 0; i < 1000; i++) {
+                    ProcessorResultWrapper<PConsensus> result = assembler.process(
+                            migGenerator.nextMig(referenceGenerator.nextSequence()).getPMig());
+                    if (result.hasResult()) {
+                        consensuses.add(result.getResult());
+                    }
+                }
+
+                assembler.writePlainText(pathPrefix, 4);
+
+                Assert.assertFalse("Consensuses were assembled", consensuses.isEmpty());
+                List<SSequencingRead> reads1 = new ArrayList<>(), reads2 = new ArrayList<>();
+                for (PConsensus consensus : consensuses) {
+                    reads1.add(consensus.getConsensus1().asRead());
+                    reads2.add(consensus.getConsensus2().asRead());
+                }
+                assertSameFastq(reads1, new File(pathPrefix + ".assemble.R1.fastq.gz"));
+                assertSameFastq(reads2, new File(pathPrefix + ".assemble.R2.fastq.gz"));
+            }
+        } finally {
+            FileUtils.deleteDirectory(folder);
+        }
+    }
+
+    private static void assertSameFastq(List<SSequencingRead> expected, File file) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new GZIPInputStream(new FileInputStream(file))));
+        try {
+            for (SSequencingRead read : expected) {
+                Assert.assertEquals("Same header", "@" + read.getDescription(), reader.readLine());
+                Assert.assertEquals("Same sequence", read.getData().getSequence().toString(), reader.readLine());
+                Assert.assertEquals("Quality separator", "+", reader.readLine());
+                Assert.assertEquals("Same quality", read.getData().getQuality().toString(), reader.readLine());
+            }
+            Assert.assertNull("Same number of reads", reader.readLine());
+        } finally {
+            reader.close();
+        }
+    }
+
     public void randomMutationsTest(RandomMigGenerator migGenerator,
                                     PercentRangeAssertion readAssembly,
                                     PercentRangeAssertion readDropping,
@@ -21,6 +21,7 @@ import com.antigenomics.mageri.core.input.PreprocessorParameters;
 import com.antigenomics.mageri.core.variant.model.MinorBasedErrorModel;
 import org.apache.commons.math.MathException;
 import org.apache.commons.math.random.JDKRandomGenerator;
+import org.apache.commons.math.special.Gamma;
 import org.apache.commons.math.random.RandomData;
 import org.apache.commons.math.random.RandomDataImpl;
 import org.apache.commons.math.random.RandomGenerator;
@@ -51,6 +52,28 @@ public class MinorCallerTest {
         simulationTest(20, 0.8, (byte) 20, 1e-5, 10, 10000, 100);
     }
 
+    @Test
+    @Category(FastTests.class)
+    public void pValueTableTest() throws MathException {
+        PoissonTestMinorCaller minorCaller = new PoissonTestMinorCaller(AssemblerParameters.DEFAULT,
+                PreprocessorParameters.DEFAULT);
+        double seqErrorRate = Math.pow(10.0,
+                -(double) PreprocessorParameters.DEFAULT.getGoodQualityThreshold() / 10.0) / 3.0;
+
+        for (int pass = 0; pass < 2; pass++) {
+            for (int n = 4; n < PoissonTestMinorCaller.P_VALUE_TABLE_SIZE + 16; n++) {
+                for (int k = 1; k <= n; k++) {
+                    double lambda = n * seqErrorRate;
+                    double p = Gamma.regularizedGammaP(k, lambda) +
+                            0.5 * Math.exp(k * Math.log(lambda) - lambda - Gamma.logGamma(k + 1));
+
+                    Assert.assertEquals("Tabulated P-value is the same as computed one", p,
+                            minorCaller.getPValue(k, n), 0.0);
+                }
+            }
+        }
+    }
+
     private MinorCaller simulationTest(int nCycles, double lambda,
                                        byte seqQual,
                                        double pcrErrorRate,
@@ -26,11 +26,14 @@ import com.antigenomics.mageri.preprocessing.HeaderExtractor;
 import com.antigenomics.mageri.preprocessing.PAdapterExtractor;
 import com.antigenomics.mageri.preprocessing.barcode.BarcodeListParser;
 import com.milaboratory.util.CompressionType;
+import org.apache.commons.io.FileUtils;
 import org.junit.Assert;
 import org.junit.Test;
 import org.junit.experimental.categories.Category;
 
+import java.io.File;
 import java.io.InputStream;
+import java.nio.file.Files;
 import java.util.*;
 
 import static com.antigenomics.mageri.TestDataset.*;
@@ -118,6 +121,46 @@ public class PMigReaderTest {
                 assertInRange(avgSizeDifference * 100);
     }
 
+    @Test
+    @Category(FastTests.class)
+    public void spillTest() throws Exception {
+        File spillFolder = Files.createTempDirectory("spill").toFile();
+
+        try {
+            PMigReader reader = new PMigReader(getR1(), getR2(),
+                    BarcodeListParser.generatePCheckoutProcessor(getBarcodesMix(), DemultiplexParameters.DEFAULT)),
+                    spillReader = new PMigReader(getR1(), getR2(),
+                            BarcodeListParser.generatePCheckoutProcessor(getBarcodesMix(), DemultiplexParameters.DEFAULT),
+                            PreprocessorParameters.DEFAULT, RuntimeParameters.DEFAULT.withUmiIndexPartitions(4)
+                            .withUmiIndexSpillFolder(spillFolder.getPath()));
+
+            Assert.assertEquals("Partitions are stored in spill folder", 1, spillFolder.list().length);
+
+            for (String sampleName : reader.getSampleNames()) {
+                // N bases are randomized, so only MIG sizes are compared
+                Map<NucleotideSequence, Integer> migSizes = new HashMap<>();
+
+                PMig pMig;
+                while ((pMig = reader.take(sampleName, 5)) != null) {
+                    migSizes.put(pMig.getUmi(), pMig.size());
+                }
+
+                int spillMigCount = 0;
+                while ((pMig = spillReader.take(sampleName, 5)) != null) {
+                    Assert.assertEquals("Same spilled MIG size", migSizes.get(pMig.getUmi()), (Integer) pMig.size());
+                    spillMigCount++;
+                }
+
+                Assert.assertEquals("Same number of MIGs", migSizes.size(), spillMigCount);
+                Assert.assertEquals("Same MIG size threshold",
+                        reader.getUmiHistogram(sampleName).getMigSizeThreshold(),
+                        spillReader.getUmiHistogram(sampleName).getMigSizeThreshold());
+            }
+        } finally {
+            FileUtils.deleteQuietly(spillFolder);
+        }
+    }
+
     @Test
     @Category(FastTests.class)
     public void orientationTest() throws Exception {
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2014-2016 Mikhail Shugay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.antigenomics.mageri.core.input;
+
+import cc.redberry.pipe.CUtils;
+import cc.redberry.pipe.OutputPort;
+import com.antigenomics.mageri.FastTests;
+import com.antigenomics.mageri.TestDataset;
+import com.milaboratory.core.sequence.quality.QualityFormat;
+import com.milaboratory.core.sequencing.io.fastq.PFastqReader;
+import com.milaboratory.core.sequencing.io.fastq.SFastqReader;
+import com.milaboratory.core.sequencing.read.PSequencingRead;
+import com.milaboratory.core.sequencing.read.SSequencingRead;
+import com.milaboratory.core.sequencing.read.SequencingRead;
+import com.milaboratory.util.CompressionType;
+import org.apache.commons.io.IOUtils;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+public class ParallelFastqReaderTest {
+    private static void assertSameRead(SSequencingRead expected, SSequencingRead actual) {
+        Assert.assertEquals("Same id", expected.id(), actual.id());
+        Assert.assertEquals("Same header", expected.getDescription(), actual.getDescription());
+        Assert.assertEquals("Same sequence", expected.getData().getSequence(), actual.getData().getSequence());
+        Assert.assertEquals("Same quality", expected.getData().getQuality(), actual.getData().getQuality());
+    }
+
+    @Test
+    @Category(FastTests.class)
+    public void pairedEndTest() throws IOException {
+        for (int numberOfThreads : new int[]{1, 4}) {
+            PFastqReader expectedReader = new PFastqReader(TestDataset.getR1(), TestDataset.getR2(),
+                    QualityFormat.Phred33, CompressionType.None, null, false, false);
+            OutputPort<SequencingRead> reader = CUtils.unchunked(new ParallelFastqReader(TestDataset.getR1(),
+                    TestDataset.getR2(), numberOfThreads, 100));
+
+            PSequencingRead expected;
+            int count = 0;
+            while ((expected = expectedReader.take()) != null) {
+                PSequencingRead actual = (PSequencingRead) reader.take();
+                Assert.assertNotNull("Same number of reads", actual);
+                assertSameRead(expected.getSingleRead(0), actual.getSingleRead(0));
+                assertSameRead(expected.getSingleRead(1), actual.getSingleRead(1));
+                count++;
+            }
+
+            Assert.assertNull("Same number of reads", reader.take());
+            Assert.assertEquals("All reads are read", TestDataset.getNumberOfReads(), count);
+        }
+    }
+
+    @Test
+    @Category(FastTests.class)
+    public void interleavedTest() throws IOException {
+        List<String> lines1 = IOUtils.readLines(TestDataset.getR1()), lines2 = IOUtils.readLines(TestDataset.getR2());
+        StringBuilder interleaved = new StringBuilder();
+        for (int i = 0; i < lines1.size(); i += 4) {
+            for (List<String> lines : Arrays.asList(lines1, lines2)) {
+                for (String line : lines.subList(i, i + 4)) {
+                    interleaved.append(line).append('\n');
+                }
+            }
+        }
+
+        for (int numberOfThreads : new int[]{1, 4}) {
+            OutputPort<SequencingRead> expectedReader = CUtils.unchunked(new ParallelFastqReader(TestDataset.getR1(),
+                    TestDataset.getR2(), numberOfThreads));
+            ParallelFastqReader interleavedReader = new ParallelFastqReader(
+                    new ByteArrayInputStream(interleaved.toString().getBytes()), true, numberOfThreads);
+            Assert.assertTrue("Interleaved input is paired-end", interleavedReader.isPairedEnd());
+            OutputPort<SequencingRead> reader = CUtils.unchunked(interleavedReader);
+
+            SequencingRead expected;
+            int count = 0;
+            while ((expected = expectedReader.take()) != null) {
+                PSequencingRead actual = (PSequencingRead) reader.take();
+                Assert.assertNotNull("Same number of reads", actual);
+                assertSameRead(((PSequencingRead) expected).getSingleRead(0), actual.getSingleRead(0));
+                assertSameRead(((PSequencingRead) expected).getSingleRead(1), actual.getSingleRead(1));
+                count++;
+            }
+
+            Assert.assertNull("Same number of reads", reader.take());
+            Assert.assertEquals("All reads are read", TestDataset.getNumberOfReads(), count);
+        }
+    }
+
+    @Test(expected = RuntimeException.class)
+    @Category(FastTests.class)
+    public void interleavedUnpairedTest() throws IOException {
+        String fastq = "@read1/1\nACGT\n+\nIIII\n@read1/2\nACGT\n+\nIIII\n@read2/1\nACGT\n+\nIIII\n";
+
+        OutputPort<SequencingRead> reader = CUtils.unchunked(new ParallelFastqReader(
+                new ByteArrayInputStream(fastq.getBytes()), true, 1));
+
+        while (reader.take() != null) {
+        }
+    }
+
+    @Test
+    @Category(FastTests.class)
+    public void formatTest() throws IOException {
+        // Unknown bases, lower case, CRLF line breaks and no line break at the end
+        String fastq = "@read1 UMI:ACGT:IIII\nACGTNacgt.\n+\nIIIIIIIIII\r\n" +
+                "@read2\r\nnnGG\r\n+read2\r\n#I5I";
+
+        SFastqReader expectedReader = new SFastqReader(new ByteArrayInputStream(fastq.getBytes()),
+                QualityFormat.Phred33, CompressionType.None);
+        OutputPort<SequencingRead> reader = CUtils.unchunked(new ParallelFastqReader(
+                new ByteArrayInputStream(fastq.getBytes()), null, 2, 1));
+
+        SSequencingRead expected;
+        while ((expected = expectedReader.take()) != null) {
+            assertSameRead(expected, (SSequencingRead) reader.take());
+        }
+        Assert.assertNull(reader.take());
+    }
+
+    @Test(expected = RuntimeException.class)
+    @Category(FastTests.class)
+    public void unpairedTest() throws IOException {
+        String fastq1 = "@read1\nACGT\n+\nIIII\n@read2\nACGT\n+\nIIII\n",
+                fastq2 = "@read1\nACGT\n+\nIIII\n";
+
+        OutputPort<SequencingRead> reader = CUtils.unchunked(new ParallelFastqReader(
+                new ByteArrayInputStream(fastq1.getBytes()), new ByteArrayInputStream(fastq2.getBytes()), 1));
+
+        while (reader.take() != null) {
+        }
+    }
+}
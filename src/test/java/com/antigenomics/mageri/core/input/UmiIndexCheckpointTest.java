@@ -0,0 +1,170 @@
+/*
+ * Copyright 2014-2016 Mikhail Shugay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.antigenomics.mageri.core.input;
+
+import com.antigenomics.mageri.FastTests;
+import com.antigenomics.mageri.core.genomic.ReferenceLibrary;
+import com.antigenomics.mageri.core.input.index.Read;
+import com.antigenomics.mageri.core.mapping.kmer.ReferenceKmerFilter;
+import com.antigenomics.mageri.generators.RandomReferenceGenerator;
+import com.antigenomics.mageri.pipeline.RuntimeParameters;
+import com.antigenomics.mageri.preprocessing.DemultiplexParameters;
+import com.antigenomics.mageri.preprocessing.PAdapterExtractor;
+import com.antigenomics.mageri.preprocessing.SAdapterExtractor;
+import com.antigenomics.mageri.preprocessing.barcode.BarcodeListParser;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+import static com.antigenomics.mageri.TestDataset.*;
+
+public class UmiIndexCheckpointTest {
+    @Test
+    @Category(FastTests.class)
+    public void pairedEndTest() throws Exception {
+        File file = File.createTempFile("mageri", ".umi.idx");
+        file.deleteOnExit();
+
+        PAdapterExtractor processor = BarcodeListParser.generatePCheckoutProcessor(getBarcodesGood(),
+                DemultiplexParameters.DEFAULT),
+                loadedProcessor = BarcodeListParser.generatePCheckoutProcessor(getBarcodesGood(),
+                        DemultiplexParameters.DEFAULT);
+
+        String key = createKey("paired");
+
+        PMigReader reader = new PMigReader(getR1(), getR2(), processor);
+        reader.saveUmiIndex(file, key);
+
+        Assert.assertNull("Checkpoint with different key is not loaded",
+                UmiIndexCheckpoint.load(file, createKey("other")));
+
+        PMigReader loadedReader = new PMigReader(UmiIndexCheckpoint.load(file, key), loadedProcessor,
+                PreprocessorParameters.DEFAULT, RuntimeParameters.DEFAULT);
+
+        Assert.assertArrayEquals("Checkout counters are restored", processor.getCounters(),
+                loadedProcessor.getCounters());
+        Assert.assertEquals("Histogram is restored",
+                reader.getUmiHistogram(SAMPLE_NAME).getMigSizeThreshold(),
+                loadedReader.getUmiHistogram(SAMPLE_NAME).getMigSizeThreshold());
+
+        PMig pMig, loadedPMig;
+        int count = 0;
+        while ((pMig = reader.take(SAMPLE_NAME, 5)) != null) {
+            loadedPMig = loadedReader.take(SAMPLE_NAME, 5);
+
+            Assert.assertNotNull("Same number of MIGs", loadedPMig);
+            Assert.assertEquals("Same UMI", pMig.getUmi(), loadedPMig.getUmi());
+            assertSameReads(pMig.getMig1().getReads(), loadedPMig.getMig1().getReads());
+            assertSameReads(pMig.getMig2().getReads(), loadedPMig.getMig2().getReads());
+            count++;
+        }
+
+        Assert.assertNull("Same number of MIGs", loadedReader.take(SAMPLE_NAME, 5));
+        Assert.assertTrue("MIGs were taken", count > 0);
+    }
+
+    @Test
+    @Category(FastTests.class)
+    public void singleEndTest() throws Exception {
+        File file = File.createTempFile("mageri", ".umi.idx");
+        file.deleteOnExit();
+
+        SAdapterExtractor processor = BarcodeListParser.generateSCheckoutProcessor(getBarcodesGood(),
+                DemultiplexParameters.DEFAULT);
+
+        String key = createKey("single");
+
+        SMigReader reader = new SMigReader(getR1(), processor);
+        reader.saveUmiIndex(file, key);
+
+        SMigReader loadedReader = new SMigReader(UmiIndexCheckpoint.load(file, key),
+                BarcodeListParser.generateSCheckoutProcessor(getBarcodesGood(), DemultiplexParameters.DEFAULT),
+                PreprocessorParameters.DEFAULT, RuntimeParameters.DEFAULT);
+
+        SMig sMig;
+        while ((sMig = reader.take(SAMPLE_NAME, 5)) != null) {
+            SMig loadedSMig = loadedReader.take(SAMPLE_NAME, 5);
+            Assert.assertEquals("Same UMI", sMig.getUmi(), loadedSMig.getUmi());
+            assertSameReads(sMig.getReads(), loadedSMig.getReads());
+        }
+
+        Assert.assertNull("Same number of MIGs", loadedReader.take(SAMPLE_NAME, 5));
+    }
+
+    @Test
+    @Category(FastTests.class)
+    public void keyTest() {
+        String key = createKey("fingerprint");
+
+        Assert.assertEquals("Same key for same input and parameters", key, createKey("fingerprint"));
+        Assert.assertEquals("Overseq settings don't change the key", key,
+                UmiIndexCheckpoint.createKey("fingerprint", "rule", DemultiplexParameters.DEFAULT,
+                        PreprocessorParameters.DEFAULT.withDefaultOverseq(10).withForceOverseq(true), -1, null));
+
+        Assert.assertNotEquals("Fingerprint changes the key", key, createKey("other"));
+        Assert.assertNotEquals("Checkout rule changes the key", key,
+                UmiIndexCheckpoint.createKey("fingerprint", "other", DemultiplexParameters.DEFAULT,
+                        PreprocessorParameters.DEFAULT, -1, null));
+        Assert.assertNotEquals("Demultiplexing parameters change the key", key,
+                UmiIndexCheckpoint.createKey("fingerprint", "rule", DemultiplexParameters.DEFAULT.withMaxTruncations(5),
+                        PreprocessorParameters.DEFAULT, -1, null));
+        Assert.assertNotEquals("Quality threshold changes the key", key,
+                UmiIndexCheckpoint.createKey("fingerprint", "rule", DemultiplexParameters.DEFAULT,
+                        PreprocessorParameters.DEFAULT.withUmiQualThreshold((byte) 30), -1, null));
+        Assert.assertNotEquals("Read limit changes the key", key,
+                UmiIndexCheckpoint.createKey("fingerprint", "rule", DemultiplexParameters.DEFAULT,
+                        PreprocessorParameters.DEFAULT, 1000, null));
+
+        RandomReferenceGenerator randomReferenceGenerator = new RandomReferenceGenerator();
+        ReferenceLibrary referenceLibrary = randomReferenceGenerator.nextReferenceLibrary(10);
+        String filterKey = UmiIndexCheckpoint.createKey("fingerprint", "rule", DemultiplexParameters.DEFAULT,
+                PreprocessorParameters.DEFAULT, -1, new ReferenceKmerFilter(referenceLibrary, 5));
+
+        Assert.assertNotEquals("Reference filter changes the key", key, filterKey);
+        Assert.assertEquals("Same references give same key", filterKey,
+                UmiIndexCheckpoint.createKey("fingerprint", "rule", DemultiplexParameters.DEFAULT,
+                        PreprocessorParameters.DEFAULT, -1, new ReferenceKmerFilter(referenceLibrary, 5)));
+        Assert.assertNotEquals("Minimal number of hits changes the key", filterKey,
+                UmiIndexCheckpoint.createKey("fingerprint", "rule", DemultiplexParameters.DEFAULT,
+                        PreprocessorParameters.DEFAULT, -1, new ReferenceKmerFilter(referenceLibrary, 3)));
+        Assert.assertNotEquals("Other references change the key", filterKey,
+                UmiIndexCheckpoint.createKey("fingerprint", "rule", DemultiplexParameters.DEFAULT,
+                        PreprocessorParameters.DEFAULT, -1,
+                        new ReferenceKmerFilter(randomReferenceGenerator.nextReferenceLibrary(10), 5)));
+    }
+
+    private static String createKey(String fingerprint) {
+        return UmiIndexCheckpoint.createKey(fingerprint, "rule", DemultiplexParameters.DEFAULT,
+                PreprocessorParameters.DEFAULT, -1, null);
+    }
+
+    private static void assertSameReads(List<Read> reads, List<Read> loadedReads) {
+        Assert.assertEquals("Same MIG size", reads.size(), loadedReads.size());
+        for (int i = 0; i < reads.size(); i++) {
+            Read read = reads.get(i), loadedRead = loadedReads.get(i);
+            Assert.assertEquals("Same sequence", read.getSequence(), loadedRead.getSequence());
+            Assert.assertTrue("Same quality mask", Arrays.equals(
+                    read.toNucleotideSQPair().getQuality().getInnerData(),
+                    loadedRead.toNucleotideSQPair().getQuality().getInnerData()));
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2014-2016 Mikhail Shugay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.antigenomics.mageri.core.input;
+
+import cc.redberry.pipe.CUtils;
+import cc.redberry.pipe.OutputPort;
+import com.antigenomics.mageri.FastTests;
+import com.antigenomics.mageri.TestDataset;
+import com.antigenomics.mageri.preprocessing.HeaderExtractor;
+import com.antigenomics.mageri.preprocessing.UmiTaggedRead;
+import com.milaboratory.core.sequence.NucleotideSQPair;
+import com.milaboratory.core.sequence.quality.QualityFormat;
+import com.milaboratory.core.sequencing.io.fastq.PFastqReader;
+import com.milaboratory.core.sequencing.read.PSequencingRead;
+import com.milaboratory.core.sequencing.read.SSequencingRead;
+import com.milaboratory.core.sequencing.read.SequencingRead;
+import com.milaboratory.util.CompressionType;
+import htsjdk.samtools.SAMFileHeader;
+import htsjdk.samtools.SAMFileWriter;
+import htsjdk.samtools.SAMFileWriterFactory;
+import htsjdk.samtools.SAMRecord;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+public class UnalignedBamReaderTest {
+    private static SAMRecord createRecord(SAMFileHeader header, SSequencingRead read,
+                                          boolean first, boolean reverse) {
+        NucleotideSQPair data = reverse ? read.getData().getRC() : read.getData();
+        NucleotideSQPair umi = HeaderExtractor.extractUmiWithQual(read.getDescription());
+        String umiSequence = umi.getSequence().toString(),
+                umiQuality = umi.getQuality().encodeToString(QualityFormat.Phred33.getOffset());
+        int half = umiSequence.length() / 2;
+
+        SAMRecord record = new SAMRecord(header);
+        record.setReadName(read.getDescription().split(" ")[0]);
+        record.setReadUnmappedFlag(true);
+        record.setReadPairedFlag(true);
+        record.setMateUnmappedFlag(true);
+        record.setFirstOfPairFlag(first);
+        record.setSecondOfPairFlag(!first);
+        record.setReadNegativeStrandFlag(reverse);
+        record.setReadBases(data.getSequence().toString().getBytes());
+        record.setBaseQualities(data.getQuality().getInnerData());
+        // Duplex-style UMI, halves separated by hyphen
+        record.setAttribute(UnalignedBamReader.UMI_TAG,
+                umiSequence.substring(0, half) + "-" + umiSequence.substring(half));
+        record.setAttribute(UnalignedBamReader.UMI_QUALITY_TAG,
+                umiQuality.substring(0, half) + " " + umiQuality.substring(half));
+        return record;
+    }
+
+    private static byte[] createBam() throws IOException {
+        SAMFileHeader header = new SAMFileHeader();
+        header.setSortOrder(SAMFileHeader.SortOrder.unsorted);
+
+        ByteArrayOutputStream bam = new ByteArrayOutputStream();
+        SAMFileWriter writer = new SAMFileWriterFactory().makeBAMWriter(header, true, bam);
+
+        PFastqReader reader = new PFastqReader(TestDataset.getR1(), TestDataset.getR2(),
+                QualityFormat.Phred33, CompressionType.None, null, false, false);
+        PSequencingRead read;
+        int count = 0;
+        while ((read = reader.take()) != null) {
+            // Some of the mates are stored reverse-complemented
+            writer.addAlignment(createRecord(header, read.getSingleRead(0), true, false));
+            writer.addAlignment(createRecord(header, read.getSingleRead(1), false, count++ % 2 == 0));
+        }
+        writer.close();
+
+        return bam.toByteArray();
+    }
+
+    private static void assertSameRead(SSequencingRead expected, SSequencingRead actual) {
+        Assert.assertEquals("Same id", expected.id(), actual.id());
+        Assert.assertEquals("Same sequence", expected.getData().getSequence(), actual.getData().getSequence());
+        Assert.assertEquals("Same quality", expected.getData().getQuality(), actual.getData().getQuality());
+    }
+
+    @Test
+    @Category(FastTests.class)
+    public void pairedEndTest() throws IOException {
+        byte[] bam = createBam();
+
+        Assert.assertTrue("Paired-end input is detected",
+                UnalignedBamReader.isPairedEnd(new ByteArrayInputStream(bam)));
+
+        HeaderExtractor headerExtractor = new HeaderExtractor(TestDataset.SAMPLE_NAME);
+
+        for (int numberOfThreads : new int[]{1, 4}) {
+            PFastqReader expectedReader = new PFastqReader(TestDataset.getR1(), TestDataset.getR2(),
+                    QualityFormat.Phred33, CompressionType.None, null, false, false);
+            OutputPort<SequencingRead> reader = CUtils.unchunked(new UnalignedBamReader(
+                    new ByteArrayInputStream(bam), true, numberOfThreads, 100));
+
+            PSequencingRead expected;
+            int count = 0;
+            while ((expected = expectedReader.take()) != null) {
+                PSequencingRead actual = (PSequencingRead) reader.take();
+                Assert.assertNotNull("Same number of reads", actual);
+                assertSameRead(expected.getSingleRead(0), actual.getSingleRead(0));
+                assertSameRead(expected.getSingleRead(1), actual.getSingleRead(1));
+
+                NucleotideSQPair expectedUmi = HeaderExtractor.extractUmiWithQual(expected.getDescription(0));
+                Assert.assertEquals("UMI from tags", expectedUmi, ((UmiTaggedRead) actual).getUmi());
+                Assert.assertEquals("UMI is checked out from tags", expectedUmi.getSequence(),
+                        headerExtractor.checkout(actual).getUmi());
+                count++;
+            }
+
+            Assert.assertNull("Same number of reads", reader.take());
+            Assert.assertEquals("All reads are read", TestDataset.getNumberOfReads(), count);
+        }
+    }
+
+    @Test
+    @Category(FastTests.class)
+    public void samTest() throws IOException {
+        // No QX tag, read without UMI and a secondary record
+        String sam = "@HD\tVN:1.4\tSO:unsorted\n" +
+                "read1\t4\t*\t0\t0\t*\t*\t0\t0\tACGTN\tIIII#\tRX:Z:GGTT\n" +
+                "read1\t260\t*\t0\t0\t*\t*\t0\t0\tACGTN\tIIII#\tRX:Z:GGTT\n" +
+                "read2\t20\t*\t0\t0\t*\t*\t0\t0\tAACC\t5I5I\n";
+
+        Assert.assertFalse("Single-end input is detected",
+                UnalignedBamReader.isPairedEnd(new ByteArrayInputStream(sam.getBytes())));
+
+        OutputPort<SequencingRead> reader = CUtils.unchunked(new UnalignedBamReader(
+                new ByteArrayInputStream(sam.getBytes()), false, 2, 1));
+
+        SSequencingRead read1 = (SSequencingRead) reader.take();
+        Assert.assertEquals("read1", read1.getDescription());
+        Assert.assertEquals(new NucleotideSQPair("ACGTA", "IIII#"), read1.getData());
+        Assert.assertEquals(new NucleotideSQPair("GGTT", "IIII"), ((UmiTaggedRead) read1).getUmi());
+
+        SSequencingRead read2 = (SSequencingRead) reader.take();
+        Assert.assertEquals("Reverse strand record", new NucleotideSQPair("GGTT", "I5I5"), read2.getData());
+        Assert.assertNull(((UmiTaggedRead) read2).getUmi());
+
+        Assert.assertNull(reader.take());
+    }
+
+    @Test
+    @Category(FastTests.class)
+    public void cramTest() throws IOException {
+        final boolean[] closed = new boolean[1];
+        ByteArrayInputStream cram = new ByteArrayInputStream("CRAM\3\0".getBytes()) {
+            @Override
+            public void close() throws IOException {
+                closed[0] = true;
+                super.close();
+            }
+        };
+
+        try {
+            UnalignedBamReader.isPairedEnd(cram);
+            Assert.fail("CRAM input is rejected");
+        } catch (IOException e) {
+            Assert.assertTrue("Error mentions CRAM", e.getMessage().startsWith("CRAM input is not supported"));
+        }
+        Assert.assertTrue("Input stream is closed", closed[0]);
+    }
+}
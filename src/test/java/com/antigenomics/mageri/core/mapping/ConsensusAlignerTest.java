@@ -33,6 +33,8 @@ import com.antigenomics.mageri.PercentRangeAssertion;
 import com.antigenomics.mageri.core.Mig;
 import com.antigenomics.mageri.core.mapping.alignment.ExtendedKmerAligner;
 import com.antigenomics.mageri.core.mutations.MutationArray;
+import com.antigenomics.mageri.core.output.PileupReader;
+import com.antigenomics.mageri.core.output.PileupWriter;
 import com.antigenomics.mageri.pipeline.analysis.Project;
 import com.antigenomics.mageri.pipeline.analysis.Sample;
 import com.antigenomics.mageri.pipeline.analysis.SampleGroup;
@@ -44,6 +46,7 @@ import org.junit.Ignore;
 import org.junit.Test;
 import org.junit.experimental.categories.Category;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.*;
 
@@ -150,6 +153,67 @@ public class ConsensusAlignerTest {
         checkMutationsTable(statsByRef, consensusAligner, setting);
     }
 
+    @Test
+    @Category(FastTests.class)
+    public void pileupTest() throws IOException {
+        RandomReferenceGenerator randomReferenceGenerator = new RandomReferenceGenerator();
+        randomReferenceGenerator.setReferenceSizeMin(100);
+        randomReferenceGenerator.setReferenceSizeMax(150);
+        StatsByRef statsByRef = new StatsByRef(randomReferenceGenerator.nextReferenceLibrary(50));
+        ConsensusAligner consensusAligner = alignerTest(randomReferenceGenerator, statsByRef, "Pileup");
+
+        File file = File.createTempFile("mageri", ".pileup");
+        file.deleteOnExit();
+        PileupWriter.write(consensusAligner, file);
+
+        // Single segment, several references per segment and a segment per column
+        for (long segmentSize : new long[]{PileupReader.DEFAULT_SEGMENT_SIZE, 16 * 1024, 1024}) {
+            checkPileup(consensusAligner, file, segmentSize);
+        }
+    }
+
+    private static void checkPileup(ConsensusAligner consensusAligner, File file,
+                                    long segmentSize) throws IOException {
+        int nUpdated = 0;
+        try (PileupReader pileupReader = new PileupReader(file, segmentSize)) {
+            for (Reference reference : consensusAligner.getReferenceLibrary().getReferences()) {
+                MutationsTable table = consensusAligner.getAlignerTable(reference);
+                int index = pileupReader.getReferenceIndex(reference.getName());
+
+                if (!table.wasUpdated()) {
+                    Assert.assertEquals("Uncovered reference is skipped", -1, index);
+                    continue;
+                }
+
+                nUpdated++;
+                Assert.assertEquals("Reference length", table.length(), pileupReader.getReferenceLength(index));
+
+                for (int i = 0; i < table.length(); i++) {
+                    Assert.assertEquals("Coverage", table.getMigCoverage(i), pileupReader.getMigCoverage(index, i));
+                    for (int j = 0; j < 4; j++) {
+                        Assert.assertEquals("Major count", table.getMajorMigCount(i, j),
+                                pileupReader.getMajorMigCount(index, i, j));
+                        Assert.assertEquals("Minor count", table.getMinorMigCount(i, j),
+                                pileupReader.getMinorMigCount(index, i, j));
+                        Assert.assertEquals("Mean CQS", table.getMeanCqs(i, j),
+                                pileupReader.getMeanCqs(index, i, j), 0);
+                    }
+                }
+            }
+            Assert.assertEquals("All covered references are stored", nUpdated, pileupReader.getReferenceCount());
+
+            if (segmentSize == PileupReader.DEFAULT_SEGMENT_SIZE) {
+                Assert.assertEquals("All references are in a single segment", 1, pileupReader.getSegmentCount());
+            } else if (segmentSize == 1024) {
+                Assert.assertEquals("Columns are mapped separately", PileupWriter.COLUMNS * nUpdated,
+                        pileupReader.getSegmentCount());
+            } else {
+                Assert.assertTrue("References share segments", pileupReader.getSegmentCount() > 1 &&
+                        pileupReader.getSegmentCount() < nUpdated);
+            }
+        }
+    }
+
     public ConsensusAligner alignerTest(RandomReferenceGenerator randomReferenceGenerator,
                                         StatsByRef statsByRef,
                                         String setting) {
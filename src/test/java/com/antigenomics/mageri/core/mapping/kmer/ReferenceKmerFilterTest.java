@@ -0,0 +1,90 @@
+/*
+ * Copyright 2014-2016 Mikhail Shugay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.antigenomics.mageri.core.mapping.kmer;
+
+import com.antigenomics.mageri.FastTests;
+import com.antigenomics.mageri.PercentRangeAssertion;
+import com.antigenomics.mageri.core.genomic.ReferenceLibrary;
+import com.antigenomics.mageri.generators.RandomReferenceGenerator;
+import com.milaboratory.core.sequence.NucleotideSQPair;
+import com.milaboratory.core.sequence.nucleotide.NucleotideSequence;
+import com.milaboratory.core.sequencing.read.SSequencingReadImpl;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+public class ReferenceKmerFilterTest {
+    @Test
+    @Category(FastTests.class)
+    public void offTargetTest() {
+        int nReads = 10000, minHits = 10;
+        RandomReferenceGenerator randomReferenceGenerator = new RandomReferenceGenerator();
+        ReferenceLibrary referenceLibrary = randomReferenceGenerator.nextReferenceLibrary(20);
+        ReferenceKmerFilter filter = new ReferenceKmerFilter(referenceLibrary, minHits);
+
+        int onTargetKept = 0, offTargetDropped = 0;
+        for (int i = 0; i < nReads; i++) {
+            NucleotideSequence onTarget = randomReferenceGenerator.nextMutatedReferenceSequence(referenceLibrary);
+            if (i % 2 == 0) {
+                onTarget = onTarget.getReverseComplement();
+            }
+            if (!filter.isOffTarget(new SSequencingReadImpl(new NucleotideSQPair(onTarget)))) {
+                onTargetKept++;
+            }
+            NucleotideSequence offTarget = randomReferenceGenerator.nextSequence();
+            if (filter.isOffTarget(new SSequencingReadImpl(new NucleotideSQPair(offTarget)))) {
+                offTargetDropped++;
+            }
+        }
+
+        PercentRangeAssertion.createLowerBound("On-target reads kept", "Reference k-mer filter", 99).
+                assertInRange(onTargetKept, nReads);
+        PercentRangeAssertion.createLowerBound("Off-target reads dropped", "Reference k-mer filter", 95).
+                assertInRange(offTargetDropped, nReads);
+    }
+
+    @Test
+    @Category(FastTests.class)
+    public void serializationTest() throws Exception {
+        RandomReferenceGenerator randomReferenceGenerator = new RandomReferenceGenerator();
+        ReferenceLibrary referenceLibrary = randomReferenceGenerator.nextReferenceLibrary(20);
+        ReferenceKmerFilter filter = new ReferenceKmerFilter(referenceLibrary, 10);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream outputStream = new ObjectOutputStream(bytes);
+        outputStream.writeObject(filter);
+        outputStream.close();
+        ReferenceKmerFilter loadedFilter = (ReferenceKmerFilter) new ObjectInputStream(
+                new ByteArrayInputStream(bytes.toByteArray())).readObject();
+
+        Assert.assertEquals("Same reference fingerprint", filter.getReferenceFingerprint(),
+                loadedFilter.getReferenceFingerprint());
+        for (int i = 0; i < 1000; i++) {
+            NucleotideSequence sequence = i % 2 == 0 ?
+                    randomReferenceGenerator.nextMutatedReferenceSequence(referenceLibrary) :
+                    randomReferenceGenerator.nextSequence();
+            Assert.assertEquals("Same hits after deserialization", filter.countHits(sequence),
+                    loadedFilter.countHits(sequence));
+        }
+    }
+}
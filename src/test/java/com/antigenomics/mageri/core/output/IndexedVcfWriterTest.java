@@ -0,0 +1,103 @@
+/*
+ * Copyright 2014-2016 Mikhail Shugay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.antigenomics.mageri.core.output;
+
+import com.antigenomics.mageri.FastTests;
+import com.antigenomics.mageri.core.genomic.Contig;
+import com.antigenomics.mageri.core.genomic.ReferenceLibrary;
+import com.antigenomics.mageri.core.variant.VariantCaller;
+import com.antigenomics.mageri.core.variant.VariantCallerParameters;
+import com.antigenomics.mageri.generators.RandomReferenceGenerator;
+import com.antigenomics.mageri.pipeline.Platform;
+import com.antigenomics.mageri.pipeline.analysis.Sample;
+import htsjdk.samtools.util.CloseableIterator;
+import htsjdk.variant.variantcontext.VariantContext;
+import htsjdk.variant.vcf.VCFFileReader;
+import org.apache.commons.io.FileUtils;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+
+public class IndexedVcfWriterTest {
+    @Test
+    @Category(FastTests.class)
+    public void regionQueryTest() throws IOException {
+        ReferenceLibrary referenceLibrary = new RandomReferenceGenerator().nextReferenceLibrary(3);
+        VariantCaller variantCaller = new VariantCaller(referenceLibrary, VariantCallerParameters.DEFAULT);
+        List<Contig> contigs = referenceLibrary.getGenomicInfoProvider().getContigs();
+        Contig queriedContig = contigs.get(1);
+        int queryStart = 10, queryEnd = 50, nRecords = 0, nInRegion = 0;
+
+        File directory = Files.createTempDirectory("mageri-vcf").toFile();
+        try {
+            File vcfFile = new File(directory, "test.vcf.gz");
+            IndexedVcfWriter writer = new IndexedVcfWriter(Sample.create("test", false), vcfFile,
+                    variantCaller, Platform.ILLUMINA);
+
+            // Records come in contig and position order, as provided by variant caller
+            for (Contig contig : contigs) {
+                for (int position = 1; position <= contig.getLength(); position += 3) {
+                    writer.write(new VcfRecord(contig.getID(), position, ".", "A", "G", 30, "PASS", "DP=100"));
+                    nRecords++;
+                    if (contig == queriedContig && position >= queryStart && position <= queryEnd) {
+                        nInRegion++;
+                    }
+                }
+            }
+
+            writer.close();
+
+            File indexFile = new File(vcfFile.getPath() + ".tbi");
+            Assert.assertTrue("Index was created", indexFile.exists());
+
+            VCFFileReader reader = new VCFFileReader(vcfFile, indexFile, true);
+
+            int nRead = 0;
+            CloseableIterator<VariantContext> iterator = reader.iterator();
+            while (iterator.hasNext()) {
+                iterator.next();
+                nRead++;
+            }
+            iterator.close();
+
+            Assert.assertEquals("All records were written", nRecords, nRead);
+
+            int nQueried = 0;
+            iterator = reader.query(queriedContig.getID(), queryStart, queryEnd);
+            while (iterator.hasNext()) {
+                VariantContext variantContext = iterator.next();
+                Assert.assertEquals("Record from queried contig", queriedContig.getID(), variantContext.getChr());
+                Assert.assertTrue("Record from queried region", variantContext.getStart() >= queryStart &&
+                        variantContext.getStart() <= queryEnd);
+                nQueried++;
+            }
+            iterator.close();
+            reader.close();
+
+            Assert.assertTrue("Region is not empty", nInRegion > 0);
+            Assert.assertEquals("Index can be used to query a region", nInRegion, nQueried);
+        } finally {
+            FileUtils.deleteDirectory(directory);
+        }
+    }
+}
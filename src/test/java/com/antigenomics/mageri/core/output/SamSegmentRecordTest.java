@@ -0,0 +1,52 @@
+/*
+ * Copyright 2014-2016 Mikhail Shugay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.antigenomics.mageri.core.output;
+
+import com.antigenomics.mageri.FastTests;
+import com.antigenomics.mageri.misc.AsciiBuffer;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.util.Random;
+
+public class SamSegmentRecordTest {
+    @Test
+    @Category(FastTests.class)
+    public void bufferFormattingTest() {
+        Random random = new Random(480011L);
+        AsciiBuffer buffer = new AsciiBuffer(16);
+
+        int[] specialValues = new int[]{0, -1, 9, 10, Integer.MAX_VALUE, Integer.MIN_VALUE};
+
+        for (int i = 0; i < 10000; i++) {
+            int templateLength = i < specialValues.length ? specialValues[i] : random.nextInt();
+
+            SamSegmentRecord record = new SamSegmentRecord("read" + i,
+                    random.nextInt(4096), "chr" + random.nextInt(23), random.nextInt(1000000),
+                    (byte) random.nextInt(256), random.nextInt(150) + "M",
+                    "=", random.nextInt(1000000), templateLength,
+                    "ACGT", "IIII");
+
+            buffer.clear();
+            record.appendTo(buffer);
+
+            Assert.assertEquals("Buffer formatting is the same as toString()", record.toString(), buffer.toString());
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2014-2016 Mikhail Shugay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.antigenomics.mageri.core.output;
+
+import com.antigenomics.mageri.FastTests;
+import htsjdk.samtools.*;
+import htsjdk.samtools.util.CloseableIterator;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+
+public class SortingBamWriterTest {
+    private static final String HEADER = "@HD\tVN:1.0\tSO:coordinate\n" +
+            "@SQ\tSN:chr1\tLN:100000\tAS:test\n" +
+            "@SQ\tSN:chr2\tLN:100000\tAS:test\n" +
+            "@RG\tID:1\tSM:test\tPL:ILLUMINA";
+
+    @Test
+    @Category(FastTests.class)
+    public void externalSortTest() throws IOException {
+        // ~15 runs merged at once
+        sortTest(128 * 1024, SortingBamWriter.DEFAULT_MAX_RUNS_PER_MERGE);
+    }
+
+    @Test
+    @Category(FastTests.class)
+    public void mergeRoundsTest() throws IOException {
+        // ~60 runs merged in several rounds with at most 3 open at once
+        sortTest(32 * 1024, 3);
+    }
+
+    private static void sortTest(long maxBytesInRam, int maxRunsPerMerge) throws IOException {
+        File directory = Files.createTempDirectory("mageri-bam").toFile();
+        File bamFile = new File(directory, "test.bam");
+        Random random = new Random(480011L);
+        int nRecords = 5000, nUnmapped = 0, nInRegion = 0;
+
+        SortingBamWriter writer = new SortingBamWriter(HEADER, "1", bamFile, 4, maxBytesInRam, maxRunsPerMerge);
+
+        for (int i = 0; i < nRecords; i++) {
+            boolean unmapped = random.nextInt(10) == 0;
+            String chrom = random.nextBoolean() ? "chr1" : "chr2";
+            int pos = 1 + random.nextInt(99000);
+
+            SamSegmentRecord segmentRecord = unmapped ?
+                    new SamSegmentRecord("read" + i, "ACGTACGTAC", "IIIIIIIIII") :
+                    new SamSegmentRecord("read" + i, 0, chrom, pos, (byte) 30, "10M", "ACGTACGTAC", "IIIIIIIIII");
+
+            if (unmapped) {
+                nUnmapped++;
+            } else if (chrom.equals("chr2") && pos >= 1000 && pos <= 20000) {
+                nInRegion++;
+            }
+
+            writer.write(new SamRecord(segmentRecord));
+        }
+
+        writer.close();
+
+        File indexFile = new File(bamFile.getPath() + ".bai");
+        Assert.assertTrue("Index was created", indexFile.exists());
+
+        SamReader samReader = SamReaderFactory.makeDefault().open(bamFile);
+        SAMRecordCoordinateComparator comparator = new SAMRecordCoordinateComparator();
+        SAMRecord previous = null;
+        int nRead = 0, nReadUnmapped = 0;
+
+        SAMRecordIterator recordIterator = samReader.iterator();
+        while (recordIterator.hasNext()) {
+            SAMRecord record = recordIterator.next();
+            if (previous != null) {
+                Assert.assertTrue("Records are coordinate-sorted", comparator.compare(previous, record) <= 0);
+            }
+            if (record.getReadUnmappedFlag()) {
+                nReadUnmapped++;
+            }
+            previous = record;
+            nRead++;
+        }
+        recordIterator.close();
+
+        Assert.assertEquals("All records were written", nRecords, nRead);
+        Assert.assertEquals("All unmapped records were written", nUnmapped, nReadUnmapped);
+
+        int nQueried = 0;
+        CloseableIterator<SAMRecord> iterator = samReader.queryOverlapping("chr2", 1000, 20000);
+        while (iterator.hasNext()) {
+            SAMRecord record = iterator.next();
+            if (record.getAlignmentStart() >= 1000) {
+                nQueried++;
+            }
+        }
+        iterator.close();
+        samReader.close();
+
+        Assert.assertEquals("Index can be used to query a region", nInRegion, nQueried);
+
+        File referenceIndexFile = Files.createTempFile("mageri-bam", ".bai").toFile();
+        samReader = SamReaderFactory.makeDefault()
+                .enable(SamReaderFactory.Option.INCLUDE_SOURCE_IN_RECORDS)
+                .open(bamFile);
+        BAMIndexer.createIndex(samReader, referenceIndexFile);
+        samReader.close();
+
+        Assert.assertArrayEquals("Index built while writing is the same as the one built by reading the file",
+                Files.readAllBytes(referenceIndexFile.toPath()), Files.readAllBytes(indexFile.toPath()));
+        referenceIndexFile.delete();
+
+        Assert.assertEquals("Temporary runs were removed", 2, directory.listFiles().length);
+        indexFile.delete();
+        bamFile.delete();
+        directory.delete();
+    }
+}
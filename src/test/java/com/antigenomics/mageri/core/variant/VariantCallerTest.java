@@ -16,6 +16,7 @@
 
 package com.antigenomics.mageri.core.variant;
 
+import cc.redberry.pipe.InputPort;
 import com.antigenomics.mageri.ComplexRandomTests;
 import com.antigenomics.mageri.FastTests;
 import com.antigenomics.mageri.core.assemble.Assembler;
@@ -53,6 +54,68 @@ public class VariantCallerTest {
                 PercentRangeAssertion.createLowerBound("Sensitivity", setting, 40));
     }
 
+    @Test
+    @Category(FastTests.class)
+    @SuppressWarnings("unchecked")
+    public void parallelAndStreamingCallingTest() {
+        System.out.println("Checking that parallel and streaming variant calling output matches the sequential one");
+
+        RandomReferenceGenerator randomReferenceGenerator = new RandomReferenceGenerator();
+        randomReferenceGenerator.setReferenceSizeMin(100);
+        randomReferenceGenerator.setReferenceSizeMax(100);
+
+        final ReferenceLibrary referenceLibrary = randomReferenceGenerator.nextReferenceLibrary(20);
+        final Assembler assembler = new SAssembler();
+        final Aligner aligner = new ExtendedKmerAligner(referenceLibrary);
+        ConsensusAligner sequentialAligner = new SConsensusAligner(aligner),
+                parallelAligner = new SConsensusAligner(aligner),
+                streamingAligner = new SConsensusAligner(aligner);
+
+        VariantCallerParameters variantCallerParameters = VariantCallerParameters.DEFAULT
+                .withShowAbsentVariants(true);
+
+        for (Reference reference : referenceLibrary.getReferences()) {
+            ModelMigGenerator modelMigGenerator = new ModelMigGenerator(variantCallerParameters, reference, 16,
+                    0.1,
+                    MutationGenerator.getUniform(1e-2),
+                    MutationGenerator.getUniform(1e-3),
+                    MutationGenerator.NO_INDEL_SKEWED);
+
+            for (int j = 0; j < 1000; j++) {
+                Mig mig = modelMigGenerator.nextMig();
+                Consensus consensus = assembler.assemble(mig);
+                if (consensus != null) {
+                    sequentialAligner.align(consensus);
+                    parallelAligner.align(consensus);
+                    streamingAligner.align(consensus);
+                }
+            }
+        }
+
+        VariantCaller sequentialCaller = new VariantCaller(sequentialAligner,
+                assembler.getMinorCaller(), variantCallerParameters, 1),
+                parallelCaller = new VariantCaller(parallelAligner,
+                        assembler.getMinorCaller(), variantCallerParameters, 4);
+
+        Assert.assertFalse(sequentialCaller.getVariants().isEmpty());
+        Assert.assertEquals("Same number of variants", sequentialCaller.getVariants().size(),
+                parallelCaller.getVariants().size());
+        Assert.assertEquals("Identical output", sequentialCaller.getBody(), parallelCaller.getBody());
+
+        final StringBuilder streamedBody = new StringBuilder();
+        VariantCaller streamingCaller = new VariantCaller(referenceLibrary, variantCallerParameters);
+        streamingCaller.call(streamingAligner, assembler.getMinorCaller(), 4,
+                new InputPort<Variant>() {
+                    @Override
+                    public void put(Variant variant) {
+                        streamedBody.append(variant.toString()).append("\n");
+                    }
+                }, false);
+
+        Assert.assertEquals("Identical streamed output", sequentialCaller.getBody(), streamedBody.toString());
+        Assert.assertEquals("No rows left for caller that streamed variants", "", streamingCaller.getBody());
+    }
+
     @SuppressWarnings("unchecked")
     public void test(double somaticPositionRatio,
                      double somaticFreq, MutationGenerator pcrErrorModel, double seqErrorFreq,
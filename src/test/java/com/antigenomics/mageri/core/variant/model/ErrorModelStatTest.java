@@ -17,6 +17,7 @@
 package com.antigenomics.mageri.core.variant.model;
 
 import com.antigenomics.mageri.misc.AuxiliaryStats;
+import org.junit.Assert;
 import org.junit.Test;
 
 public class ErrorModelStatTest {
@@ -28,6 +29,23 @@ public class ErrorModelStatTest {
         //System.out.println(calc(1590, 2374, 2.1314828, 24344.82));
     }
 
+    @Test
+    public void betaBinomRecurrenceTest() {
+        double[][] params = new double[][]{{0.9278882, 26823.24}, {2.1314829, 24344.82}, {1.0, 10.0}, {0.5, 0.5}};
+        int[] coverages = new int[]{1, 10, 100, 2374, 10000};
+
+        for (double[] ab : params) {
+            for (int n : coverages) {
+                for (int k = 0; k <= n; k += Math.max(1, n / 50)) {
+                    double direct = AuxiliaryStats.betaBinomialPvalue(k, n, ab[0], ab[1], 1e-10),
+                            recurrent = AuxiliaryStats.betaBinomialPvalueFast(k, n, ab[0], ab[1], 1e-10);
+                    Assert.assertEquals("Recurrent tail sum matches direct one for k=" + k + ", n=" + n,
+                            direct, recurrent, 1e-9 + 1e-6 * direct);
+                }
+            }
+        }
+    }
+
     private static double calc(int n, int N, double a, double b) {
         //return -10 * Math.log10(1.0 - AuxiliaryStats.betaBinomialCdf(n, N, a, b));
         return -10 * Math.log10(AuxiliaryStats.betaBinomialPvalueFast(n, N, a, b));
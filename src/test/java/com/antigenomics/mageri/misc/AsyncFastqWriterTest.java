@@ -0,0 +1,119 @@
+/*
+ * Copyright 2014-2016 Mikhail Shugay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.antigenomics.mageri.misc;
+
+import com.antigenomics.mageri.FastTests;
+import com.milaboratory.core.sequence.NucleotideSQPair;
+import com.milaboratory.core.sequence.quality.QualityFormat;
+import com.milaboratory.core.sequencing.io.fastq.SFastqWriter;
+import com.milaboratory.core.sequencing.read.SSequencingRead;
+import com.milaboratory.core.sequencing.read.SSequencingReadImpl;
+import com.milaboratory.util.CompressionType;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.*;
+
+public class AsyncFastqWriterTest {
+    private static final int N_THREADS = 4, N_READS = 5000;
+
+    @Test
+    @Category(FastTests.class)
+    public void formatTest() throws IOException {
+        List<SSequencingRead> reads = createReads(0);
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream(), actual = new ByteArrayOutputStream();
+
+        SFastqWriter writer = new SFastqWriter(expected, QualityFormat.Phred33, CompressionType.None);
+        AsyncFastqWriter asyncWriter = new AsyncFastqWriter(actual);
+        for (SSequencingRead read : reads) {
+            writer.write(read);
+            asyncWriter.write(read);
+        }
+        writer.close();
+        asyncWriter.close();
+
+        Assert.assertArrayEquals("Same output as with milib FASTQ writer",
+                expected.toByteArray(), actual.toByteArray());
+    }
+
+    @Test
+    @Category(FastTests.class)
+    public void concurrentWriteTest() throws Exception {
+        ByteArrayOutputStream actual = new ByteArrayOutputStream();
+        final AsyncFastqWriter asyncWriter = new AsyncFastqWriter(actual);
+        final Set<String> expectedRecords = new HashSet<>();
+
+        Thread[] threads = new Thread[N_THREADS];
+        for (int i = 0; i < N_THREADS; i++) {
+            final List<SSequencingRead> reads = createReads(i);
+            for (SSequencingRead read : reads) {
+                expectedRecords.add("@" + read.getDescription() + "\n" + read.getData().getSequence() + "\n+\n" +
+                        read.getData().getQuality() + "\n");
+            }
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (SSequencingRead read : reads) {
+                            asyncWriter.write(read);
+                        }
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        asyncWriter.close();
+
+        Set<String> records = new HashSet<>();
+        String[] lines = actual.toString().split("\n");
+        Assert.assertEquals("All records were written", 4 * N_THREADS * N_READS, lines.length);
+        for (int i = 0; i < lines.length; i += 4) {
+            records.add(lines[i] + "\n" + lines[i + 1] + "\n" + lines[i + 2] + "\n" + lines[i + 3] + "\n");
+        }
+
+        Assert.assertEquals("Records are not interleaved", expectedRecords, records);
+    }
+
+    private static List<SSequencingRead> createReads(int thread) {
+        Random random = new Random(480011L + thread);
+        List<SSequencingRead> reads = new ArrayList<>();
+        char[] bases = {'A', 'C', 'G', 'T'};
+
+        for (int i = 0; i < N_READS; i++) {
+            int length = 20 + random.nextInt(100);
+            StringBuilder sequence = new StringBuilder(), quality = new StringBuilder();
+            for (int j = 0; j < length; j++) {
+                sequence.append(bases[random.nextInt(4)]);
+                quality.append((char) ('#' + random.nextInt(40)));
+            }
+            reads.add(new SSequencingReadImpl("read" + thread + "_" + i,
+                    new NucleotideSQPair(sequence.toString(), quality.toString()), i));
+        }
+
+        return reads;
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2014-2016 Mikhail Shugay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.antigenomics.mageri.misc;
+
+import com.antigenomics.mageri.FastTests;
+import htsjdk.samtools.util.BlockCompressedInputStream;
+import org.apache.commons.io.IOUtils;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+public class ParallelBgzfOutputStreamTest {
+    @Test
+    @Category(FastTests.class)
+    public void roundTripTest() throws IOException {
+        Random random = new Random(480011L);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+
+        // Mix of compressible text and random (incompressible) bytes spanning many blocks
+        for (int i = 0; i < 20000; i++) {
+            expected.write(("@read" + i + "\nACGTTGCA\n+\nIIIIIIII\n").getBytes());
+            if (i % 1000 == 0) {
+                byte[] noise = new byte[random.nextInt(100000)];
+                random.nextBytes(noise);
+                expected.write(noise);
+            }
+        }
+
+        byte[] expectedBytes = expected.toByteArray();
+
+        for (int numberOfThreads : new int[]{1, 4}) {
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            ParallelBgzfOutputStream outputStream = new ParallelBgzfOutputStream(compressed, numberOfThreads);
+
+            int offset = 0;
+            while (offset < expectedBytes.length) {
+                int length = Math.min(expectedBytes.length - offset, random.nextInt(100000));
+                if (length % 7 == 0) {
+                    outputStream.write(expectedBytes[offset]);
+                    length = 1;
+                } else {
+                    outputStream.write(expectedBytes, offset, length);
+                }
+                offset += length;
+            }
+            outputStream.close();
+
+            byte[] compressedBytes = compressed.toByteArray();
+
+            Assert.assertEquals("Compressed size is tracked", compressedBytes.length,
+                    outputStream.getCompressedBytesWritten());
+            Assert.assertArrayEquals("BGZF stream is decompressed correctly", expectedBytes,
+                    IOUtils.toByteArray(new BlockCompressedInputStream(new ByteArrayInputStream(compressedBytes))));
+            Assert.assertArrayEquals("Multi-member GZIP stream is decompressed correctly", expectedBytes,
+                    IOUtils.toByteArray(new GZIPInputStream(new ByteArrayInputStream(compressedBytes))));
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2014-2016 Mikhail Shugay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.antigenomics.mageri.misc;
+
+import com.antigenomics.mageri.FastTests;
+import org.apache.commons.io.IOUtils;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.zip.GZIPOutputStream;
+
+public class ParallelGzipInputStreamTest {
+    private static byte[] generateData() throws IOException {
+        Random random = new Random(480011L);
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+
+        for (int i = 0; i < 20000; i++) {
+            data.write(("@read" + i + "\nACGTTGCA\n+\nIIIIIIII\n").getBytes());
+            if (i % 1000 == 0) {
+                byte[] noise = new byte[random.nextInt(100000)];
+                random.nextBytes(noise);
+                data.write(noise);
+            }
+        }
+
+        return data.toByteArray();
+    }
+
+    private static byte[] gzip(byte[] bytes, int offset, int length) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        GZIPOutputStream outputStream = new GZIPOutputStream(compressed);
+        outputStream.write(bytes, offset, length);
+        outputStream.close();
+        return compressed.toByteArray();
+    }
+
+    private static byte[] readAll(InputStream inputStream) throws IOException {
+        Random random = new Random(480011L);
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        byte[] buffer = new byte[100000];
+
+        // Mix single byte and bulk reads
+        while (true) {
+            if (random.nextInt(7) == 0) {
+                int b = inputStream.read();
+                if (b < 0) {
+                    break;
+                }
+                data.write(b);
+            } else {
+                int count = inputStream.read(buffer, 0, random.nextInt(buffer.length) + 1);
+                if (count < 0) {
+                    break;
+                }
+                data.write(buffer, 0, count);
+            }
+        }
+
+        inputStream.close();
+        return data.toByteArray();
+    }
+
+    @Test
+    @Category(FastTests.class)
+    public void bgzfTest() throws IOException {
+        byte[] expected = generateData();
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        ParallelBgzfOutputStream outputStream = new ParallelBgzfOutputStream(compressed, 4);
+        outputStream.write(expected);
+        outputStream.close();
+
+        for (int numberOfThreads : new int[]{1, 4}) {
+            Assert.assertArrayEquals("BGZF stream is decompressed correctly", expected,
+                    readAll(new ParallelGzipInputStream(new ByteArrayInputStream(compressed.toByteArray()),
+                            numberOfThreads)));
+        }
+    }
+
+    @Test
+    @Category(FastTests.class)
+    public void sharedInflatersTest() throws IOException {
+        byte[] expected = generateData();
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        ParallelBgzfOutputStream outputStream = new ParallelBgzfOutputStream(compressed, 4);
+        outputStream.write(expected);
+        outputStream.close();
+
+        int numberOfThreads = ParallelGzipInputStream.getNumberOfThreads();
+        try {
+            ParallelGzipInputStream.setNumberOfThreads(3);
+            Assert.assertEquals("Inflater pool is resized", 3, ParallelGzipInputStream.getNumberOfThreads());
+
+            InputStream closedStream = new ParallelGzipInputStream(new ByteArrayInputStream(compressed.toByteArray())),
+                    openStream = new ParallelGzipInputStream(new ByteArrayInputStream(compressed.toByteArray()));
+            closedStream.read();
+            closedStream.close();
+
+            Assert.assertArrayEquals("Closing a stream doesn't affect other streams", expected, readAll(openStream));
+        } finally {
+            ParallelGzipInputStream.setNumberOfThreads(numberOfThreads);
+        }
+    }
+
+    @Test
+    @Category(FastTests.class)
+    public void gzipTest() throws IOException {
+        byte[] expected = generateData();
+
+        Assert.assertArrayEquals("GZIP stream is decompressed correctly", expected,
+                readAll(new ParallelGzipInputStream(new ByteArrayInputStream(gzip(expected, 0, expected.length)))));
+
+        ByteArrayOutputStream multiMember = new ByteArrayOutputStream();
+        int half = expected.length / 2;
+        multiMember.write(gzip(expected, 0, half));
+        multiMember.write(gzip(expected, half, expected.length - half));
+
+        Assert.assertArrayEquals("Multi-member GZIP stream is decompressed correctly", expected,
+                readAll(new ParallelGzipInputStream(new ByteArrayInputStream(multiMember.toByteArray()))));
+    }
+
+    @Test(expected = IOException.class)
+    @Category(FastTests.class)
+    public void corruptBgzfTest() throws IOException {
+        byte[] expected = generateData();
+
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        ParallelBgzfOutputStream outputStream = new ParallelBgzfOutputStream(compressed, 4);
+        outputStream.write(expected);
+        outputStream.close();
+
+        byte[] compressedBytes = compressed.toByteArray();
+        // Truncate in the middle of a block
+        byte[] truncated = new byte[compressedBytes.length / 2];
+        System.arraycopy(compressedBytes, 0, truncated, 0, truncated.length);
+
+        readAll(new ParallelGzipInputStream(new ByteArrayInputStream(truncated)));
+    }
+}
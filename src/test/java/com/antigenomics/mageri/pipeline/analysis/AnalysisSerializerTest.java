@@ -0,0 +1,194 @@
+/*
+ * Copyright 2014-2016 Mikhail Shugay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.antigenomics.mageri.pipeline.analysis;
+
+import com.antigenomics.mageri.DoubleRangeAssertion;
+import com.antigenomics.mageri.FastTests;
+import com.antigenomics.mageri.PerformanceTests;
+import com.antigenomics.mageri.core.mapping.AlignedConsensus;
+import com.antigenomics.mageri.core.mapping.PAlignedConsensus;
+import com.antigenomics.mageri.core.mapping.SAlignedConsensus;
+import com.antigenomics.mageri.pipeline.Mageri;
+import com.antigenomics.mageri.pipeline.SerializationUtils;
+import com.antigenomics.mageri.pipeline.input.InputParser;
+import com.antigenomics.mageri.pipeline.input.ResourceIOProvider;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.io.File;
+import java.util.List;
+
+public class AnalysisSerializerTest {
+    @Test
+    @Category(FastTests.class)
+    public void roundTripTest() throws Exception {
+        InputParser inputParser = new InputParser(ResourceIOProvider.INSTANCE);
+        ProjectAnalysis projectAnalysis = new ProjectAnalysis(inputParser.parseJson("pipeline/byindex.json"));
+        projectAnalysis.run();
+
+        File file = File.createTempFile("mageri", ".mi");
+        file.deleteOnExit();
+        AnalysisSerializer.write(projectAnalysis, file);
+
+        ProjectAnalysis recovered = Mageri.loadAnalysis(file);
+
+        for (Sample sample : projectAnalysis.getProject().getSamples()) {
+            SampleAnalysis original = projectAnalysis.getAnalysis(sample),
+                    loaded = recovered.getAnalysis(sample);
+
+            Assert.assertSame("Shared objects are restored", recovered, loaded.getParent());
+            Assert.assertSame("Shared objects are restored", recovered.getReferenceLibrary(),
+                    loaded.getConsensusAligner().getReferenceLibrary());
+
+            Assert.assertEquals("Variants match", original.getVariantCaller().getBody(),
+                    loaded.getVariantCaller().getBody());
+            Assert.assertEquals("Assembler statistics match", original.getAssembler().getMigsAssembled(),
+                    loaded.getAssembler().getMigsAssembled());
+
+            List<AlignedConsensus> originalAlignments = original.getAlignmentDataList(),
+                    loadedAlignments = loaded.getAlignmentDataList();
+
+            Assert.assertFalse("Alignments were stored", originalAlignments.isEmpty());
+            Assert.assertEquals("Same number of alignments", originalAlignments.size(), loadedAlignments.size());
+
+            for (int i = 0; i < originalAlignments.size(); i++) {
+                Assert.assertEquals("Aligned consensus match", toString(originalAlignments.get(i)),
+                        toString(loadedAlignments.get(i)));
+                Assert.assertSame("Sample is restored", loaded.getSample(), loadedAlignments.get(i).getSample());
+            }
+        }
+    }
+
+    @Test
+    @Category(FastTests.class)
+    public void lazyLoadingTest() throws Exception {
+        InputParser inputParser = new InputParser(ResourceIOProvider.INSTANCE);
+        ProjectAnalysis projectAnalysis = new ProjectAnalysis(inputParser.parseJson("pipeline/byindex.json"));
+        projectAnalysis.run();
+
+        File file = File.createTempFile("mageri", ".mi");
+        file.deleteOnExit();
+        AnalysisSerializer.write(projectAnalysis, file);
+
+        try (AnalysisReader analysisReader = Mageri.openAnalysis(file)) {
+            Assert.assertEquals("All samples are listed", projectAnalysis.getProject().getSamples().size(),
+                    analysisReader.getSampleNames().size());
+
+            for (Sample sample : projectAnalysis.getProject().getSamples()) {
+                SampleAnalysis original = projectAnalysis.getAnalysis(sample);
+                String sampleName = sample.getFullName();
+
+                Assert.assertEquals("Variants match", original.getVariantCaller().getBody(),
+                        analysisReader.getVariantCaller(sampleName).getBody());
+                Assert.assertEquals("Alignments match", original.getAlignmentDataList().size(),
+                        analysisReader.getAlignments(sampleName).size());
+                Assert.assertEquals("Aligner statistics match", original.getConsensusAligner().getAlignedMigs(),
+                        analysisReader.getConsensusAligner(sampleName).getAlignedMigs());
+                Assert.assertSame("Aligner is read once", analysisReader.getConsensusAligner(sampleName),
+                        analysisReader.getConsensusAligner(sampleName));
+                Assert.assertSame("References are read once", analysisReader.getReferenceLibrary(),
+                        analysisReader.getConsensusAligner(sampleName).getReferenceLibrary());
+                Assert.assertSame("Samples are taken from project structure", analysisReader.getProject(),
+                        analysisReader.getAlignments(sampleName).get(0).getSample().getParent().getParent());
+
+                Assert.assertNull("Sample is not loaded until requested",
+                        analysisReader.getProjectAnalysis().getAnalysis(sample));
+                Assert.assertSame("Project analysis shares project structure", analysisReader.getProject(),
+                        analysisReader.getProjectAnalysis().getProject());
+
+                SampleAnalysis loaded = analysisReader.getSampleAnalysis(sampleName);
+                Assert.assertSame("Sample analysis is registered upon loading", loaded,
+                        analysisReader.getProjectAnalysis().getAnalysis(sample));
+                Assert.assertEquals("Variants match", original.getVariantCaller().getBody(),
+                        loaded.getVariantCaller().getBody());
+                Assert.assertEquals("Alignments match", original.getAlignmentDataList().size(),
+                        loaded.getAlignmentDataList().size());
+
+                Assert.assertSame("Loaded sample shares the aligner", analysisReader.getConsensusAligner(sampleName),
+                        loaded.getConsensusAligner());
+                Assert.assertSame("Loaded sample shares the variant caller",
+                        analysisReader.getVariantCaller(sampleName), loaded.getVariantCaller());
+                Assert.assertSame("Loaded sample shares the alignments", analysisReader.getAlignments(sampleName),
+                        loaded.getAlignmentDataList());
+            }
+        }
+    }
+
+    @Test
+    @Category(PerformanceTests.class)
+    public void loadSpeedTest() throws Exception {
+        InputParser inputParser = new InputParser(ResourceIOProvider.INSTANCE);
+        ProjectAnalysis projectAnalysis = new ProjectAnalysis(inputParser.parseJson("pipeline/byindex.json"));
+        projectAnalysis.run();
+
+        File file = File.createTempFile("mageri", ".mi"), legacyFile = File.createTempFile("mageri", ".legacy.mi");
+        file.deleteOnExit();
+        legacyFile.deleteOnExit();
+        AnalysisSerializer.write(projectAnalysis, file);
+        SerializationUtils.writeObjectToFile(legacyFile, projectAnalysis);
+
+        int nWarmUpRepetitions = 50, nRepetitions = 200;
+        long loadTime = 0, legacyLoadTime = 0;
+
+        for (int i = 0; i < nWarmUpRepetitions + nRepetitions; i++) {
+            long startTime = System.nanoTime();
+            ProjectAnalysis loaded = Mageri.loadAnalysis(file);
+            long elapsed = System.nanoTime() - startTime;
+            Assert.assertEquals(projectAnalysis.getProject().getSamples().size(),
+                    loaded.getProject().getSamples().size());
+
+            startTime = System.nanoTime();
+            ProjectAnalysis legacyLoaded = Mageri.loadAnalysis(legacyFile);
+            long legacyElapsed = System.nanoTime() - startTime;
+            Assert.assertEquals(projectAnalysis.getProject().getSamples().size(),
+                    legacyLoaded.getProject().getSamples().size());
+
+            if (i >= nWarmUpRepetitions) {
+                loadTime += elapsed;
+                legacyLoadTime += legacyElapsed;
+            }
+        }
+
+        DoubleRangeAssertion.createLowerBound("FileSizeRatio", "Legacy vs binary format",
+                4.0).assertInRange(legacyFile.length() / (double) file.length());
+        DoubleRangeAssertion.createLowerBound("LoadTimeRatio", "Legacy vs binary format",
+                1.25).assertInRange(legacyLoadTime / (double) loadTime);
+    }
+
+    private static String toString(AlignedConsensus alignedConsensus) {
+        if (alignedConsensus instanceof SAlignedConsensus) {
+            SAlignedConsensus sAlignedConsensus = (SAlignedConsensus) alignedConsensus;
+            return sAlignedConsensus.getUmi() + "\t" + sAlignedConsensus.getConsensusSQPair() + "\t" +
+                    (sAlignedConsensus.isMapped() ?
+                            sAlignedConsensus.getAlignmentResult().getAlignment().getSequence1Range() + "\t" +
+                                    sAlignedConsensus.getAlignmentResult().getQuery() + "\t" +
+                                    sAlignedConsensus.getMutations().getMutations() : "");
+        } else {
+            PAlignedConsensus pAlignedConsensus = (PAlignedConsensus) alignedConsensus;
+            return pAlignedConsensus.getUmi() + "\t" + pAlignedConsensus.getConsensusSQPair1() + "\t" +
+                    pAlignedConsensus.getConsensusSQPair2() + "\t" +
+                    (pAlignedConsensus.isMapped1() ?
+                            pAlignedConsensus.getAlignmentResult1().getAlignment().getSequence1Range() + "\t" +
+                                    pAlignedConsensus.getMutations1().getMutations() : "") + "\t" +
+                    (pAlignedConsensus.isMapped2() ?
+                            pAlignedConsensus.getAlignmentResult2().getAlignment().getSequence1Range() + "\t" +
+                                    pAlignedConsensus.getMutations2().getMutations() : "");
+        }
+    }
+}
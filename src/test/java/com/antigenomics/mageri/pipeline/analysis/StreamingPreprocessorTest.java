@@ -0,0 +1,225 @@
+/*
+ * Copyright 2014-2016 Mikhail Shugay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.antigenomics.mageri.pipeline.analysis;
+
+import cc.redberry.pipe.OutputPortCloseable;
+import cc.redberry.pipe.util.Chunk;
+import com.antigenomics.mageri.FastTests;
+import com.antigenomics.mageri.generators.RandomUtil;
+import com.antigenomics.mageri.core.input.*;
+import com.antigenomics.mageri.pipeline.Presets;
+import com.antigenomics.mageri.pipeline.RuntimeParameters;
+import com.antigenomics.mageri.pipeline.input.Input;
+import com.antigenomics.mageri.pipeline.input.InputChunk;
+import com.antigenomics.mageri.pipeline.input.PreprocessedRule;
+import com.antigenomics.mageri.pipeline.input.ResourceIOProvider;
+import com.antigenomics.mageri.preprocessing.DemultiplexParameters;
+import com.antigenomics.mageri.preprocessing.HeaderExtractor;
+import com.milaboratory.core.sequence.nucleotide.NucleotideSequence;
+import com.milaboratory.core.sequence.quality.QualityFormat;
+import com.milaboratory.core.sequencing.io.fastq.PFastqReader;
+import com.milaboratory.core.sequencing.read.PSequencingRead;
+import com.milaboratory.core.sequencing.read.SSequencingRead;
+import com.milaboratory.core.sequencing.read.SequencingRead;
+import com.milaboratory.util.CompressionType;
+import org.apache.commons.io.IOUtils;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+
+import static com.antigenomics.mageri.TestDataset.*;
+
+public class StreamingPreprocessorTest {
+    private static final PreprocessorParameters PARAMETERS = PreprocessorParameters.IGNORE_QUAL
+            .withMinUmiMismatchRatio(-1);
+
+    private static String toFastq(SSequencingRead read) {
+        return "@" + read.getDescription() + "\n" + read.getData().getSequence() + "\n+\n" +
+                read.getData().getQuality().encodeToString(QualityFormat.Phred33.getOffset()) + "\n";
+    }
+
+    // Test dataset with reads grouped by UMI
+    private static byte[][] createGroupedFastq() throws IOException {
+        PFastqReader reader = new PFastqReader(getR1(), getR2(),
+                QualityFormat.Phred33, CompressionType.None, null, false, false);
+
+        List<PSequencingRead> reads = new ArrayList<>();
+        PSequencingRead read;
+        while ((read = reader.take()) != null) {
+            reads.add(read);
+        }
+
+        Collections.sort(reads, new Comparator<PSequencingRead>() {
+            @Override
+            public int compare(PSequencingRead o1, PSequencingRead o2) {
+                return HeaderExtractor.extractUmiWithQual(o1.getDescription(0)).getSequence().compareTo(
+                        HeaderExtractor.extractUmiWithQual(o2.getDescription(0)).getSequence());
+            }
+        });
+
+        StringBuilder fastq1 = new StringBuilder(), fastq2 = new StringBuilder();
+        for (PSequencingRead sortedRead : reads) {
+            fastq1.append(toFastq(sortedRead.getSingleRead(0)));
+            fastq2.append(toFastq(sortedRead.getSingleRead(1)));
+        }
+
+        return new byte[][]{fastq1.toString().getBytes(), fastq2.toString().getBytes()};
+    }
+
+    private static Map<NucleotideSequence, Integer> indexedMigs(byte[][] fastq,
+                                                                PreprocessorParameters preprocessorParameters,
+                                                                int overSeq) throws Exception {
+        PMigReader reader = new PMigReader(new ByteArrayInputStream(fastq[0]), new ByteArrayInputStream(fastq[1]),
+                new HeaderExtractor(SAMPLE_NAME), preprocessorParameters);
+
+        Map<NucleotideSequence, Integer> migSizes = new HashMap<>();
+        PMig pMig;
+        while ((pMig = reader.take(SAMPLE_NAME, overSeq)) != null) {
+            migSizes.put(pMig.getUmi(), pMig.size());
+        }
+        return migSizes;
+    }
+
+    private static StreamingPreprocessor createPreprocessor(byte[][] fastq,
+                                                            PreprocessorParameters preprocessorParameters)
+            throws Exception {
+        InputStream inputStream1 = new ByteArrayInputStream(fastq[0]),
+                inputStream2 = new ByteArrayInputStream(fastq[1]);
+        Input input = new Input("test", null, null, null,
+                new InputChunk(inputStream1, inputStream2, SAMPLE_NAME, new PreprocessedRule(SAMPLE_NAME)));
+
+        SampleGroup sampleGroup = Project.fromInput(input).getSampleGroups().get(0);
+
+        return new StreamingPreprocessor(input, sampleGroup, DemultiplexParameters.DEFAULT,
+                preprocessorParameters, RuntimeParameters.DEFAULT);
+    }
+
+    @Test
+    @Category(FastTests.class)
+    public void streamingTest() throws Exception {
+        byte[][] fastq = createGroupedFastq();
+
+        Map<NucleotideSequence, Integer> expected = indexedMigs(fastq, PARAMETERS, PARAMETERS.getDefaultOverseq());
+
+        StreamingPreprocessor preprocessor = createPreprocessor(fastq, PARAMETERS);
+        Sample sample = preprocessor.getSampleGroup().getSamples().get(0);
+        MigOutputPort migOutputPort = preprocessor.create(sample);
+        preprocessor.start();
+
+        Map<NucleotideSequence, Integer> actual = new HashMap<>();
+        PMig pMig;
+        while ((pMig = (PMig) migOutputPort.take()) != null) {
+            Assert.assertNull("Each UMI is reported once", actual.put(pMig.getUmi(), pMig.size()));
+        }
+        preprocessor.stop();
+
+        Assert.assertEquals("Same MIGs as for UMI index", expected, actual);
+        Assert.assertEquals("All reads are counted", getNumberOfReads(),
+                preprocessor.getUmiHistogram(sample).getReadTotal());
+    }
+
+    @Test
+    @Category(FastTests.class)
+    public void overSeqEstimateTest() throws Exception {
+        byte[][] fastq = createGroupedFastq();
+        PreprocessorParameters preprocessorParameters = PARAMETERS.withForceOverseq(false);
+
+        // Test dataset is smaller than prefix used for estimation
+        int expected = new PMigReader(new ByteArrayInputStream(fastq[0]), new ByteArrayInputStream(fastq[1]),
+                new HeaderExtractor(SAMPLE_NAME), preprocessorParameters)
+                .getUmiHistogram(SAMPLE_NAME).getMigSizeThreshold();
+
+        StreamingPreprocessor preprocessor = createPreprocessor(fastq, preprocessorParameters);
+        MigOutputPort migOutputPort = preprocessor.create(preprocessor.getSampleGroup().getSamples().get(0));
+        preprocessor.start();
+
+        int migCount = 0;
+        while (migOutputPort.take() != null) {
+            migCount++;
+        }
+        preprocessor.stop();
+
+        Assert.assertEquals("Same over-sequencing threshold", expected, preprocessor.getOverSeq(SAMPLE_NAME));
+        Assert.assertEquals("Same number of MIGs", indexedMigs(fastq, preprocessorParameters, expected).size(),
+                migCount);
+    }
+
+    @Test
+    @Category(FastTests.class)
+    public void ungroupedInputTest() throws Exception {
+        byte[][] fastq = new byte[][]{IOUtils.toByteArray(getR1()), IOUtils.toByteArray(getR2())};
+
+        StreamingPreprocessor preprocessor = createPreprocessor(fastq, PARAMETERS);
+        MigOutputPort migOutputPort = preprocessor.create(preprocessor.getSampleGroup().getSamples().get(0));
+        preprocessor.start();
+
+        while (migOutputPort.take() != null) {
+        }
+
+        try {
+            preprocessor.stop();
+            Assert.fail("Repeated UMI is reported");
+        } catch (RuntimeException e) {
+            Assert.assertTrue(e.getCause().getMessage().startsWith("Input is not grouped by UMI"));
+        }
+    }
+
+    @Test(timeout = 120000)
+    @Category(FastTests.class)
+    public void failedAnalysisTest() throws Exception {
+        // Each read has its own UMI and is passed as a separate batch, so that MIG buffer gets full
+        int numberOfReads = 4 * StreamingPreprocessor.PREFIX_SIZE / MigReader.BATCH_SIZE;
+        StringBuilder fastq = new StringBuilder();
+        for (int i = 0; i < numberOfReads; i++) {
+            String umi = RandomUtil.randomSequence(16).toString();
+            fastq.append("@read").append(i).append(" UMI:").append(umi).append(":IIIIIIIIIIIIIIII\n")
+                    .append("ACGTACGTACGTACGTACGTACGT\n+\nIIIIIIIIIIIIIIIIIIIIIIII\n");
+        }
+
+        InputChunk inputChunk = new InputChunk(new ByteArrayInputStream(fastq.toString().getBytes()), null,
+                SAMPLE_NAME, new PreprocessedRule(SAMPLE_NAME)) {
+            @Override
+            public OutputPortCloseable<Chunk<SequencingRead>> createReader(int numberOfThreads) throws IOException {
+                return new ParallelFastqReader(inputStreamSupplier1.get(), null, numberOfThreads, 1);
+            }
+        };
+        Input input = new Input("test", ResourceIOProvider.INSTANCE.getWrappedStream("pipeline/refs.fa"),
+                null, null, inputChunk);
+
+        ProjectAnalysisStreaming projectAnalysis = new ProjectAnalysisStreaming(input,
+                Presets.DEFAULT.withPreprocessorParameters(PARAMETERS.withDefaultOverseq(1)),
+                RuntimeParameters.DEFAULT) {
+            @Override
+            protected void analyze(SampleAnalysis sampleAnalysis) throws Exception {
+                throw new IOException("Analysis failed");
+            }
+        };
+
+        try {
+            projectAnalysis.run();
+            Assert.fail("Analysis failure is reported");
+        } catch (IOException e) {
+            Assert.assertEquals("Analysis failed", e.getMessage());
+        }
+    }
+}
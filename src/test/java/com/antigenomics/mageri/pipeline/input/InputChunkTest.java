@@ -0,0 +1,72 @@
+/*
+ * Copyright 2014-2016 Mikhail Shugay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.antigenomics.mageri.pipeline.input;
+
+import com.antigenomics.mageri.FastTests;
+import com.antigenomics.mageri.TestDataset;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.io.File;
+import java.io.IOException;
+
+public class InputChunkTest {
+    @Test
+    @Category(FastTests.class)
+    public void createTest() throws IOException {
+        File file1 = File.createTempFile("reads", ".fastq"),
+                file2 = File.createTempFile("reads", ".fastq");
+
+        try {
+            FileUtils.writeByteArrayToFile(file1, IOUtils.toByteArray(TestDataset.getR1()));
+            FileUtils.writeByteArrayToFile(file2, IOUtils.toByteArray(TestDataset.getR2()));
+            String path1 = file1.getPath(), path2 = file2.getPath(),
+                    fingerprint1 = FileIOProvider.INSTANCE.getFingerprint(path1),
+                    fingerprint2 = FileIOProvider.INSTANCE.getFingerprint(path2);
+
+            InputChunk single = create(path1, null, false),
+                    paired = create(path1, path2, false),
+                    interleaved = create(path1, null, true),
+                    stream = create(StreamIOProvider.STDIN, null, false),
+                    pairedStream = create(path1, StreamIOProvider.STDIN, false);
+
+            Assert.assertFalse(single.isPairedEnd());
+            Assert.assertTrue(paired.isPairedEnd());
+            Assert.assertTrue(interleaved instanceof InterleavedInputChunk);
+            Assert.assertTrue(interleaved.isPairedEnd());
+
+            Assert.assertEquals(fingerprint1, single.getFingerprint());
+            Assert.assertEquals(fingerprint1 + "\t" + fingerprint2, paired.getFingerprint());
+            Assert.assertEquals(fingerprint1 + "\tinterleaved", interleaved.getFingerprint());
+            Assert.assertNull("Fingerprint is unknown for streams", stream.getFingerprint());
+            Assert.assertNull("Fingerprint is unknown if any input is a stream", pairedStream.getFingerprint());
+        } finally {
+            file1.delete();
+            file2.delete();
+        }
+    }
+
+    private static InputChunk create(String fileName1, String fileName2, boolean interleaved) throws IOException {
+        boolean pairedEnd = InputChunk.isPairedEnd(FileIOProvider.INSTANCE, fileName1, fileName2, interleaved);
+        return InputChunk.create(FileIOProvider.INSTANCE, fileName1, fileName2, interleaved, pairedEnd,
+                "test", new PreprocessedRule("test"));
+    }
+}
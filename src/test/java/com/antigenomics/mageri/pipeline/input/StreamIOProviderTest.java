@@ -0,0 +1,75 @@
+/*
+ * Copyright 2014-2016 Mikhail Shugay
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.antigenomics.mageri.pipeline.input;
+
+import com.antigenomics.mageri.FastTests;
+import com.antigenomics.mageri.TestDataset;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.GZIPOutputStream;
+
+public class StreamIOProviderTest {
+    @Test
+    @Category(FastTests.class)
+    public void gzipDetectionTest() throws IOException {
+        byte[] fastq = IOUtils.toByteArray(TestDataset.getR1());
+
+        // No suffix, compression is detected from contents
+        File plainFile = File.createTempFile("reads", ".fastq"),
+                gzipFile = File.createTempFile("reads", ".fastq");
+
+        try {
+            FileUtils.writeByteArrayToFile(plainFile, fastq);
+            OutputStream outputStream = new GZIPOutputStream(new FileOutputStream(gzipFile));
+            outputStream.write(fastq);
+            outputStream.close();
+
+            Assert.assertArrayEquals("Plain input is read as is", fastq,
+                    IOUtils.toByteArray(StreamIOProvider.INSTANCE.getStream(plainFile.getPath())));
+            Assert.assertArrayEquals("Gzipped input is decompressed", fastq,
+                    IOUtils.toByteArray(StreamIOProvider.INSTANCE.getStream(gzipFile.getPath())));
+        } finally {
+            plainFile.delete();
+            gzipFile.delete();
+        }
+    }
+
+    @Test
+    @Category(FastTests.class)
+    public void isStreamTest() throws IOException {
+        Assert.assertTrue(StreamIOProvider.isStream(StreamIOProvider.STDIN));
+        Assert.assertTrue(StreamIOProvider.isStream("/dev/stdin"));
+        Assert.assertTrue(StreamIOProvider.isStream("/dev/fd/3"));
+
+        File file = File.createTempFile("reads", ".fastq");
+        try {
+            Assert.assertFalse("Regular files are not streams", StreamIOProvider.isStream(file.getPath()));
+            Assert.assertNull("Streams are never cached", StreamIOProvider.INSTANCE.getFingerprint(file.getPath()));
+        } finally {
+            file.delete();
+        }
+    }
+}